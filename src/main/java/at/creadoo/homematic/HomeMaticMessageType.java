@@ -43,9 +43,20 @@ public enum HomeMaticMessageType {
 	 TIPTRONIC(0xc3),
 	 SMOKEDETECTOR(0xcd);
 	 
-	 private Integer id;
+	 /**
+	  * Types by id, the id is a single byte
+	  */
+	 private static final HomeMaticMessageType[] BY_ID = new HomeMaticMessageType[256];
 	 
-	 private HomeMaticMessageType(final Integer id) {
+	 static {
+		 for (HomeMaticMessageType t: HomeMaticMessageType.values()) {
+			 BY_ID[t.id] = t;
+		 }
+	 }
+	 
+	 private final int id;
+	 
+	 private HomeMaticMessageType(final int id) {
 		 this.id = id;
 	 }
 	 
@@ -53,13 +64,21 @@ public enum HomeMaticMessageType {
 		 return id;
 	 }
 	 
+	 /**
+	  * @return the type or null if the id is unknown
+	  */
+	 public static HomeMaticMessageType getById(final int id) {
+		 if (id < 0 || id >= BY_ID.length) {
+			 return null;
+		 }
+		 return BY_ID[id];
+	 }
+	 
 	 public static HomeMaticMessageType getById(final Integer id) {
-		 for (HomeMaticMessageType t: HomeMaticMessageType.values()) {
-			 if (id.equals(t.getId())) {
-				 return t;
-			 }
+		 if (id == null) {
+			 return null;
 		 }
-		 return null;
+		 return getById(id.intValue());
 	 }
 	 
 }
@@ -71,6 +71,24 @@ public interface IHomeMaticLink {
 	 */
 	void removeLinkListener(IHomeMaticLinkListener linkListener);
 
+	/**
+	 * Subscribe a listener to the received packets matching the filter. The
+	 * listener only gets the packets, the link events are sent to the
+	 * listeners added with {@link #addLinkListener(IHomeMaticLinkListener)}.
+	 * 
+	 * @param filter criteria the packets have to match
+	 * @param linkListener LinkListener instance
+	 * @return the subscription, to be passed to {@link #unsubscribe(ISubscription)}
+	 */
+	ISubscription subscribe(PacketFilter filter, IHomeMaticLinkListener linkListener);
+	
+	/**
+	 * Cancel a subscription
+	 * 
+	 * @param subscription as returned by {@link #subscribe(PacketFilter, IHomeMaticLinkListener)}
+	 */
+	void unsubscribe(ISubscription subscription);
+
 	/**
 	 * Send a packet only with the telegram instance
 	 * 
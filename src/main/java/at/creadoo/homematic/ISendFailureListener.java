@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Callback for packets sent with confirmation that finally failed, after
+ * all retransmissions
+ */
+public interface ISendFailureListener {
+
+	/**
+	 * @param packet the packet as last sent
+	 * @param result the result of the last try, never a success
+	 */
+	void sendFailed(IHomeMaticLink link, HomeMaticPacket packet, SendResult result);
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Selects the received packets of a subscription by sender address,
+ * destination address and message type. Criteria which are not set match
+ * any packet. Filters are immutable, e.g.
+ * <code>PacketFilter.sender(0x3322A4).withMessageType(HomeMaticMessageType.REMOTE)</code>
+ */
+public final class PacketFilter {
+
+	/**
+	 * Address matching any address
+	 */
+	public static final int ANY = -1;
+
+	/**
+	 * Filter matching all packets
+	 */
+	public static final PacketFilter ALL = new PacketFilter(ANY, ANY, null);
+
+	private final int senderAddress;
+
+	private final int destinationAddress;
+
+	private final HomeMaticMessageType messageType;
+
+	private PacketFilter(final int senderAddress, final int destinationAddress, final HomeMaticMessageType messageType) {
+		this.senderAddress = senderAddress < 0 ? ANY : senderAddress;
+		this.destinationAddress = destinationAddress < 0 ? ANY : destinationAddress;
+		this.messageType = messageType;
+	}
+
+	public static PacketFilter sender(final int senderAddress) {
+		return ALL.withSender(senderAddress);
+	}
+
+	public static PacketFilter destination(final int destinationAddress) {
+		return ALL.withDestination(destinationAddress);
+	}
+
+	public static PacketFilter messageType(final HomeMaticMessageType messageType) {
+		return ALL.withMessageType(messageType);
+	}
+
+	public PacketFilter withSender(final int senderAddress) {
+		return new PacketFilter(senderAddress, destinationAddress, messageType);
+	}
+
+	public PacketFilter withDestination(final int destinationAddress) {
+		return new PacketFilter(senderAddress, destinationAddress, messageType);
+	}
+
+	public PacketFilter withMessageType(final HomeMaticMessageType messageType) {
+		return new PacketFilter(senderAddress, destinationAddress, messageType);
+	}
+
+	/**
+	 * @return the sender address or {@link #ANY}
+	 */
+	public int getSenderAddress() {
+		return senderAddress;
+	}
+
+	/**
+	 * @return the destination address or {@link #ANY}
+	 */
+	public int getDestinationAddress() {
+		return destinationAddress;
+	}
+
+	/**
+	 * @return the message type, null for any
+	 */
+	public HomeMaticMessageType getMessageType() {
+		return messageType;
+	}
+
+	public boolean matches(final HomeMaticPacket packet) {
+		return (senderAddress == ANY || senderAddress == packet.getSenderAddress())
+				&& (destinationAddress == ANY || destinationAddress == packet.getDestinationAddress())
+				&& (messageType == null || messageType == packet.getMessageType());
+	}
+
+	/**
+	 * Matches the header fields of a frame before it is decoded into a packet
+	 */
+	public boolean matches(final int senderAddress, final int destinationAddress, final int messageTypeId) {
+		return (this.senderAddress == ANY || this.senderAddress == senderAddress)
+				&& (this.destinationAddress == ANY || this.destinationAddress == destinationAddress)
+				&& (messageType == null || messageType.getId() == messageTypeId);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PacketFilter)) {
+			return false;
+		}
+		final PacketFilter other = (PacketFilter) obj;
+		return senderAddress == other.senderAddress && destinationAddress == other.destinationAddress && messageType == other.messageType;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 31 + senderAddress;
+		result = 31 * result + destinationAddress;
+		return 31 * result + (messageType == null ? 0 : messageType.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "PacketFilter[sender=" + (senderAddress == ANY ? "*" : Integer.toHexString(senderAddress))
+				+ ", destination=" + (destinationAddress == ANY ? "*" : Integer.toHexString(destinationAddress))
+				+ ", messageType=" + (messageType == null ? "*" : messageType) + "]";
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Outcome of a packet sent with confirmation, see
+ * {@link at.creadoo.homematic.impl.LinkBaseImpl#sendConfirmed(HomeMaticPacket)}
+ */
+public final class SendResult {
+
+	public enum Status {
+		/**
+		 * The device answered with an ACK
+		 */
+		ACKNOWLEDGED,
+		/**
+		 * The device answered with a NACK or the AES handshake failed
+		 */
+		NOT_ACKNOWLEDGED,
+		/**
+		 * The gateway got no answer after three tries
+		 */
+		NO_RESPONSE,
+		/**
+		 * Sent without the BIDI flag, no answer is expected
+		 */
+		SENT,
+		/**
+		 * No answer and no gateway report within the timeout of the link
+		 */
+		TIMEOUT,
+		/**
+		 * Not written to the gateway or the link was closed
+		 */
+		FAILED
+	}
+
+	private final Status status;
+
+	private final HomeMaticPacket response;
+
+	private final int retries;
+
+	public SendResult(final Status status) {
+		this(status, null);
+	}
+
+	public SendResult(final Status status, final HomeMaticPacket response) {
+		this(status, response, 0);
+	}
+
+	public SendResult(final Status status, final HomeMaticPacket response, final int retries) {
+		this.status = status;
+		this.response = response;
+		this.retries = retries;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the ACK or NACK of the device, null if the result is not based on one
+	 */
+	public HomeMaticPacket getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return how often the packet was sent again before this result, 0 if
+	 *         the first try decided
+	 */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return the same result after the given number of retransmissions
+	 */
+	public SendResult withRetries(final int retries) {
+		return retries == this.retries ? this : new SendResult(status, response, retries);
+	}
+
+	/**
+	 * @return true if the device acknowledged the packet or no answer was expected
+	 */
+	public boolean isSuccess() {
+		return status == Status.ACKNOWLEDGED || status == Status.SENT;
+	}
+
+	@Override
+	public String toString() {
+		return "SendResult[" + status + (retries > 0 ? ", " + retries + " retries" : "") + (response != null ? ", " + response : "") + "]";
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+/**
+ * Interfaces of a stream with backpressure, with the same methods as
+ * java.util.concurrent.Flow of Java 9 and the Reactive Streams API. The
+ * library still runs on Java 7, adapters to either are plain delegation.
+ */
+public final class Flow {
+
+	private Flow() {
+		//
+	}
+
+	public interface Publisher<T> {
+
+		/**
+		 * Adds the subscriber, which gets {@link Subscriber#onSubscribe(Subscription)} first
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+
+	}
+
+	public interface Subscriber<T> {
+
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+
+	}
+
+	public interface Subscription {
+
+		/**
+		 * Adds n items to the demand of the subscriber
+		 */
+		void request(long n);
+
+		void cancel();
+
+	}
+
+}
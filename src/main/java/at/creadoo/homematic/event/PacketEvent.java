@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Slot of a {@link PacketEventBus}, preallocated and reused for every
+ * lap around the ring
+ */
+public final class PacketEvent {
+
+	private IHomeMaticLink link;
+
+	private HomeMaticPacket packet;
+
+	private long publishTime;
+
+	PacketEvent() {
+		//
+	}
+
+	void set(final IHomeMaticLink link, final HomeMaticPacket packet, final long publishTime) {
+		this.link = link;
+		this.packet = packet;
+		this.publishTime = publishTime;
+	}
+
+	public IHomeMaticLink getLink() {
+		return link;
+	}
+
+	public HomeMaticPacket getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return the time the event was published, in {@link System#nanoTime()}
+	 */
+	public long getPublishTime() {
+		return publishTime;
+	}
+
+}
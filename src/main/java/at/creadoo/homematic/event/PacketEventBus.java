@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Ring buffer of preallocated event slots between the reader threads of
+ * any number of links and a fixed set of handlers, in the manner of the
+ * LMAX Disruptor. Links publish a received packet by claiming the next
+ * slot, see {@link at.creadoo.homematic.impl.LinkBaseImpl#setEventBus(PacketEventBus)}.
+ * Each handler runs on a thread of its own and processes the events in
+ * order, in batches of all events available at once.
+ * <p>
+ * A handler may depend on other handlers, it then only gets an event
+ * after they are done with it, e.g. to persist a packet only after it was
+ * decoded. A link waits for a free slot while the slowest handler is a
+ * full ring behind.
+ * <p>
+ * Handlers are added before the bus is started.
+ */
+public class PacketEventBus {
+
+	private static final Logger log = Logger.getLogger(PacketEventBus.class);
+
+	public static final int DEFAULT_SIZE = 1024;
+
+	private final String name;
+
+	private final WaitStrategy waitStrategy;
+
+	private final PacketEvent[] slots;
+
+	private final int mask;
+
+	private final int shift;
+
+	/**
+	 * Lap around the ring each slot was last published in, tells published
+	 * from merely claimed slots
+	 */
+	private final AtomicIntegerArray published;
+
+	/**
+	 * Last sequence claimed by a link
+	 */
+	private final AtomicLong claimed = new AtomicLong(-1L);
+
+	private final Object lock = new Object();
+
+	private final List<Processor> processors = new ArrayList<Processor>();
+
+	/**
+	 * Processors the links wait for before reusing a slot
+	 */
+	private volatile Processor[] gating = new Processor[0];
+
+	private volatile boolean running = false;
+
+	private volatile boolean closed = false;
+
+	public PacketEventBus() {
+		this(PacketEventBus.class.getSimpleName(), DEFAULT_SIZE, WaitStrategy.BLOCKING);
+	}
+
+	/**
+	 * @param size
+	 *            number of event slots, a power of 2
+	 */
+	public PacketEventBus(final String name, final int size, final WaitStrategy waitStrategy) {
+		if (size < 1 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Size must be a power of 2: " + size);
+		}
+		this.name = name;
+		this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.BLOCKING;
+		this.slots = new PacketEvent[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new PacketEvent();
+		}
+		this.mask = size - 1;
+		this.shift = Integer.numberOfTrailingZeros(size);
+		this.published = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	/**
+	 * Adds a handler which gets the events after the given handlers are done with them
+	 *
+	 * @return the processor of the handler, to pass as dependency for further handlers
+	 */
+	public synchronized Processor addHandler(final PacketEventHandler handler, final Processor... dependencies) {
+		if (running || closed) {
+			throw new IllegalStateException("Handlers must be added before the bus is started");
+		}
+		for (Processor dependency : dependencies) {
+			if (!processors.contains(dependency)) {
+				throw new IllegalArgumentException("Dependency is not a handler of this bus");
+			}
+		}
+		final Processor processor = new Processor(handler, dependencies.clone());
+		processors.add(processor);
+		return processor;
+	}
+
+	public synchronized void start() {
+		if (running || closed) {
+			return;
+		}
+		gating = processors.toArray(new Processor[processors.size()]);
+		running = true;
+		for (int i = 0; i < processors.size(); i++) {
+			final Thread thread = new Thread(processors.get(i), name + "-" + i);
+			thread.setDaemon(true);
+			processors.get(i).thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the handlers, events not yet processed are discarded
+	 */
+	public void close() {
+		final Processor[] current;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			running = false;
+			current = processors.toArray(new Processor[processors.size()]);
+		}
+		signal();
+		for (Processor processor : current) {
+			try {
+				if (processor.thread != null) {
+					processor.thread.join(1000);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Publishes a received packet, waits for a free slot if the handlers are
+	 * a full ring behind
+	 *
+	 * @return false if the bus is not running
+	 */
+	public boolean publish(final IHomeMaticLink link, final HomeMaticPacket packet) {
+		if (!running) {
+			return false;
+		}
+		final long sequence = claimed.incrementAndGet();
+		final long wrapPoint = sequence - slots.length;
+		while (wrapPoint > minimumSequence(gating)) {
+			if (!running) {
+				return false;
+			}
+			idle(wrapPoint, null);
+		}
+
+		final int index = (int) sequence & mask;
+		slots[index].set(link, packet, System.nanoTime());
+		published.set(index, (int) (sequence >>> shift));
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			signal();
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public int getSize() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the number of events published so far
+	 */
+	public long getPublished() {
+		return claimed.get() + 1;
+	}
+
+	private boolean isPublished(final long sequence) {
+		return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+	}
+
+	/**
+	 * @return the last sequence from which on all events up to the given one are published
+	 */
+	private long highestPublished(final long lower, final long upper) {
+		for (long sequence = lower; sequence <= upper; sequence++) {
+			if (!isPublished(sequence)) {
+				return sequence - 1;
+			}
+		}
+		return upper;
+	}
+
+	private static long minimumSequence(final Processor[] processors) {
+		long result = Long.MAX_VALUE;
+		for (Processor processor : processors) {
+			result = Math.min(result, processor.sequence.get());
+		}
+		return result;
+	}
+
+	/**
+	 * @return the last sequence the processor may handle, at least the
+	 *         given one unless the bus was stopped
+	 */
+	private long waitFor(final long sequence, final Processor[] dependencies) {
+		while (running) {
+			final long available = available(sequence, dependencies);
+			if (available >= sequence) {
+				return available;
+			}
+			idle(sequence, dependencies);
+		}
+		return sequence - 1;
+	}
+
+	private long available(final long sequence, final Processor[] dependencies) {
+		if (dependencies.length == 0) {
+			return highestPublished(sequence, claimed.get());
+		}
+		return minimumSequence(dependencies);
+	}
+
+	/**
+	 * Waits a moment for the sequence to become available to a processor
+	 * with the given dependencies, or with null for a link to become free
+	 */
+	private void idle(final long sequence, final Processor[] dependencies) {
+		switch (waitStrategy) {
+		case BLOCKING:
+			synchronized (lock) {
+				// Checked with the lock held, signal() can't slip in between
+				final boolean ready = dependencies == null ? sequence <= minimumSequence(gating) : available(sequence, dependencies) >= sequence;
+				if (!ready && running) {
+					try {
+						lock.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						running = false;
+					}
+				}
+			}
+			break;
+		case YIELDING:
+			Thread.yield();
+			break;
+		case BUSY_SPIN:
+			break;
+		}
+	}
+
+	private void signal() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Runs a handler, see {@link PacketEventBus#addHandler(PacketEventHandler, Processor...)}
+	 */
+	public final class Processor implements Runnable {
+
+		private final PacketEventHandler handler;
+
+		private final Processor[] dependencies;
+
+		/**
+		 * Last sequence the handler is done with
+		 */
+		private final AtomicLong sequence = new AtomicLong(-1L);
+
+		private final AtomicLong batches = new AtomicLong(0L);
+
+		private Thread thread;
+
+		private Processor(final PacketEventHandler handler, final Processor[] dependencies) {
+			this.handler = handler;
+			this.dependencies = dependencies;
+		}
+
+		@Override
+		public void run() {
+			long next = sequence.get() + 1;
+			while (running) {
+				final long available = waitFor(next, dependencies);
+				if (available < next) {
+					continue;
+				}
+				for (long current = next; current <= available; current++) {
+					try {
+						handler.onEvent(slots[(int) current & mask], current, current == available);
+					} catch (Throwable ex) {
+						log.error(name + ": Error in handler " + handler, ex);
+					}
+				}
+				sequence.set(available);
+				batches.incrementAndGet();
+				if (waitStrategy == WaitStrategy.BLOCKING) {
+					signal();
+				}
+				next = available + 1;
+			}
+		}
+
+		public PacketEventHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * @return the last sequence the handler is done with, -1 before the first event
+		 */
+		public long getSequence() {
+			return sequence.get();
+		}
+
+		/**
+		 * @return the number of batches handled so far
+		 */
+		public long getBatches() {
+			return batches.get();
+		}
+
+	}
+
+}
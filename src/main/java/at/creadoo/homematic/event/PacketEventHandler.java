@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+/**
+ * Consumer of the events of a {@link PacketEventBus}, called by a thread of
+ * its own
+ */
+public interface PacketEventHandler {
+
+	/**
+	 * Called for each event in order. The event slot is reused once all
+	 * handlers are done with it, so it must not be kept.
+	 *
+	 * @param event
+	 *            the received packet and the link it was received by
+	 * @param sequence
+	 *            number of the event, counting from 0
+	 * @param endOfBatch
+	 *            true for the last of the events which were available at
+	 *            once, e.g. to flush work collected for the batch
+	 */
+	void onEvent(PacketEvent event, long sequence, boolean endOfBatch) throws Exception;
+
+}
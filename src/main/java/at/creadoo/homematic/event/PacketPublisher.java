@@ -0,0 +1,376 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.impl.OverflowPolicy;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Stream of the packets received by a link, see
+ * {@link at.creadoo.homematic.impl.LinkBaseImpl#getPublisher()}. Each
+ * subscriber has a bounded buffer and its own demand, packets are only
+ * delivered as far as requested. While a buffer is full its
+ * {@link OverflowPolicy} applies, {@link OverflowPolicy#BLOCK} holds up the
+ * link until the subscriber requests more.
+ * <p>
+ * Subscribers are called on threads of a pool, one at a time per
+ * subscriber. The publisher completes the subscribers when it is closed,
+ * closing or restarting the link does not end the stream.
+ */
+public class PacketPublisher implements Flow.Publisher<HomeMaticPacket> {
+
+	private static final Logger log = Logger.getLogger(PacketPublisher.class);
+
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private static final PacketSubscription[] NONE = new PacketSubscription[0];
+
+	private final String name;
+
+	private final ExecutorService executor;
+
+	private final Object lock = new Object();
+
+	/**
+	 * Replaced on subscribe and cancel, iterated without locking
+	 */
+	private volatile PacketSubscription[] subscriptions = NONE;
+
+	private volatile int capacity = DEFAULT_CAPACITY;
+
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+	private volatile boolean closed = false;
+
+	public PacketPublisher(final String name) {
+		this.name = name;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, PacketPublisher.class.getSimpleName() + " [" + name + "]-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public void subscribe(final Flow.Subscriber<? super HomeMaticPacket> subscriber) {
+		subscribe(subscriber, capacity, overflowPolicy);
+	}
+
+	/**
+	 * Adds a subscriber with a buffer of the given capacity and policy
+	 */
+	public PacketSubscription subscribe(final Flow.Subscriber<? super HomeMaticPacket> subscriber, final int capacity, final OverflowPolicy policy) {
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber is required");
+		}
+		final PacketSubscription subscription = new PacketSubscription(subscriber, capacity, policy);
+		synchronized (lock) {
+			if (!closed) {
+				final PacketSubscription[] current = subscriptions;
+				final PacketSubscription[] updated = new PacketSubscription[current.length + 1];
+				System.arraycopy(current, 0, updated, 0, current.length);
+				updated[current.length] = subscription;
+				subscriptions = updated;
+			}
+		}
+		try {
+			subscriber.onSubscribe(subscription);
+		} catch (Throwable ex) {
+			log.error(name + ": Error in subscriber " + subscriber, ex);
+			subscription.cancel();
+			return subscription;
+		}
+		if (closed) {
+			subscription.complete();
+		}
+		return subscription;
+	}
+
+	/**
+	 * Hands a received packet to the subscribers
+	 */
+	public void publish(final HomeMaticPacket packet) {
+		for (PacketSubscription subscription : subscriptions) {
+			subscription.offer(packet);
+		}
+	}
+
+	/**
+	 * Completes the subscribers once they got the packets already buffered
+	 */
+	public void close() {
+		final PacketSubscription[] current;
+		synchronized (lock) {
+			closed = true;
+			current = subscriptions;
+			subscriptions = NONE;
+		}
+		for (PacketSubscription subscription : current) {
+			subscription.complete();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the number of active subscribers
+	 */
+	public int getSubscribers() {
+		return subscriptions.length;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Buffer capacity of subscribers added from now on
+	 */
+	public void setCapacity(final int capacity) {
+		this.capacity = capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Overflow policy of subscribers added from now on
+	 */
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	private void remove(final PacketSubscription subscription) {
+		synchronized (lock) {
+			final PacketSubscription[] current = subscriptions;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == subscription) {
+					final PacketSubscription[] updated = current.length == 1 ? NONE : new PacketSubscription[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+					subscriptions = updated;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Buffer and demand of a subscriber
+	 */
+	public final class PacketSubscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super HomeMaticPacket> subscriber;
+
+		private final OverflowPolicy policy;
+
+		private final BlockingQueue<HomeMaticPacket> buffer;
+
+		private final AtomicLong demand = new AtomicLong(0L);
+
+		/**
+		 * Signals not yet handled by the drain loop, the loop is running while non-zero
+		 */
+		private final AtomicInteger pending = new AtomicInteger(0);
+
+		private final AtomicLong delivered = new AtomicLong(0L);
+
+		private final AtomicLong dropped = new AtomicLong(0L);
+
+		private volatile boolean cancelled = false;
+
+		private volatile boolean completed = false;
+
+		private volatile Throwable error = null;
+
+		private final Runnable drain = new Runnable() {
+
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+
+		private PacketSubscription(final Flow.Subscriber<? super HomeMaticPacket> subscriber, final int capacity, final OverflowPolicy policy) {
+			this.subscriber = subscriber;
+			this.policy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+			this.buffer = new ArrayBlockingQueue<HomeMaticPacket>(Math.max(capacity, 1));
+		}
+
+		@Override
+		public void request(final long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Non-positive request: " + n);
+			} else {
+				long current;
+				long updated;
+				do {
+					current = demand.get();
+					updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!demand.compareAndSet(current, updated));
+			}
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			remove(this);
+			buffer.clear();
+		}
+
+		private void offer(final HomeMaticPacket packet) {
+			if (cancelled) {
+				return;
+			}
+			boolean queued = buffer.offer(packet);
+			if (!queued) {
+				switch (policy) {
+				case BLOCK:
+					try {
+						buffer.put(packet);
+						queued = true;
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					break;
+				case DROP_OLDEST:
+					while (!queued) {
+						if (buffer.poll() != null) {
+							dropped.incrementAndGet();
+						}
+						queued = buffer.offer(packet);
+					}
+					break;
+				case DROP_NEWEST:
+					break;
+				}
+			}
+			if (!queued) {
+				dropped.incrementAndGet();
+			}
+			signal();
+		}
+
+		private void complete() {
+			completed = true;
+			signal();
+		}
+
+		private void signal() {
+			if (pending.getAndIncrement() == 0) {
+				try {
+					executor.execute(drain);
+				} catch (RejectedExecutionException ex) {
+					pending.set(0);
+				}
+			}
+		}
+
+		private void drain() {
+			int missed = 1;
+			do {
+				if (cancelled) {
+					buffer.clear();
+				} else if (error != null) {
+					cancel();
+					subscriber.onError(error);
+				} else {
+					deliver();
+				}
+				missed = pending.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void deliver() {
+			final long requested = demand.get();
+			long emitted = 0L;
+			HomeMaticPacket packet;
+			while (emitted != requested && !cancelled && (packet = buffer.poll()) != null) {
+				try {
+					subscriber.onNext(packet);
+				} catch (Throwable ex) {
+					log.error(name + ": Error in subscriber " + subscriber + ", cancelling", ex);
+					cancel();
+					return;
+				}
+				emitted++;
+			}
+			if (emitted > 0) {
+				delivered.addAndGet(emitted);
+				if (requested != Long.MAX_VALUE) {
+					demand.addAndGet(-emitted);
+				}
+			}
+			if (completed && !cancelled && buffer.isEmpty()) {
+				cancelled = true;
+				remove(this);
+				subscriber.onComplete();
+			}
+		}
+
+		/**
+		 * @return the number of packets requested but not yet delivered
+		 */
+		public long getDemand() {
+			return demand.get();
+		}
+
+		/**
+		 * @return the number of packets waiting for demand
+		 */
+		public int getPending() {
+			return buffer.size();
+		}
+
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		/**
+		 * @return the number of packets the subscriber missed as its buffer was full
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+/**
+ * How the threads of a {@link PacketEventBus} wait for events to process
+ * (handlers) or for free slots (links publishing events)
+ */
+public enum WaitStrategy {
+
+	/**
+	 * Wait on a lock until notified, no CPU is used while idle but each
+	 * event costs a notification
+	 */
+	BLOCKING,
+
+	/**
+	 * Give up the CPU between checks, low latency at moderate CPU usage
+	 */
+	YIELDING,
+
+	/**
+	 * Check again right away, the lowest latency but a waiting thread keeps
+	 * a core busy. Only for as many handlers as there are spare cores.
+	 */
+	BUSY_SPIN
+
+}
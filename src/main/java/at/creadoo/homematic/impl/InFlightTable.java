@@ -0,0 +1,430 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.SendResult;
+import at.creadoo.homematic.link.LinkScheduler;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.SettableFuture;
+
+/**
+ * Packets sent with confirmation which wait for the answer of their
+ * device, keyed by destination address and message counter. An ACK or
+ * NACK of the device (sender and counter of the answer) or a response of
+ * the gateway (destination and counter of the echoed packet) completes
+ * the pending send.
+ * <p>
+ * At most {@link #getWindow()} packets per device are in flight, further
+ * packets to the device wait in order until one of them is completed and
+ * are then handed to the {@link Transmitter}. A send whose try failed
+ * may be retried by the transmitter, it keeps its slot and key meanwhile
+ * so a late answer to an earlier try still completes it.
+ */
+final class InFlightTable {
+
+	/**
+	 * Packets in flight per device, a device handles one at a time
+	 */
+	static final int DEFAULT_WINDOW = 1;
+
+	/**
+	 * A LAN gateway reports a missing answer after three tries within this time
+	 */
+	static final long DEFAULT_TIMEOUT = 3000L;
+
+	/**
+	 * Sends the packets and decides on retries
+	 */
+	interface Transmitter {
+
+		/**
+		 * Sends a packet whose turn has come
+		 */
+		void transmit(Pending pending);
+
+		/**
+		 * @return true if the send is tried again, false to complete it with the result
+		 */
+		boolean retransmit(Pending pending, SendResult result);
+
+		/**
+		 * Called once the send is completed and its slot is free
+		 */
+		void completed(Pending pending);
+
+	}
+
+	/**
+	 * Result of a send, completed with the answer of the device
+	 */
+	final class Pending extends SettableFuture<SendResult> {
+
+		private final HomeMaticPacket packet;
+
+		private final int destinationAddress;
+
+		private final boolean retryAllowed;
+
+		private final SendPriority priority;
+
+		/**
+		 * Retransmissions started so far
+		 */
+		private int retries = 0;
+
+		/**
+		 * Key once the packet is sent, -1 before
+		 */
+		private long key = -1L;
+
+		private boolean active = false;
+
+		private LinkScheduler.ScheduledTask timeout = null;
+
+		private Pending(final HomeMaticPacket packet, final boolean retryAllowed, final SendPriority priority) {
+			this.packet = packet;
+			this.destinationAddress = packet.getDestinationAddress();
+			this.retryAllowed = retryAllowed;
+			this.priority = priority;
+		}
+
+		HomeMaticPacket getPacket() {
+			return packet;
+		}
+
+		SendPriority getPriority() {
+			return priority;
+		}
+
+		/**
+		 * @return false if the packet must not be sent more than once
+		 */
+		boolean isRetryAllowed() {
+			return retryAllowed;
+		}
+
+		synchronized int getRetries() {
+			return retries;
+		}
+
+		/**
+		 * Starts the next retransmission unless the send is completed or
+		 * another answer to the same try already started it
+		 *
+		 * @param retries the retransmissions started before the failed try
+		 * @return true if the caller has to send the packet again
+		 */
+		boolean startRetry(final int retries) {
+			final LinkScheduler.ScheduledTask task;
+			synchronized (this) {
+				if (isDone() || this.retries != retries) {
+					return false;
+				}
+				this.retries++;
+				task = timeout;
+				timeout = null;
+			}
+			if (task != null) {
+				task.cancel();
+			}
+			return true;
+		}
+
+		/**
+		 * Sets the task completing the try with {@link SendResult.Status#TIMEOUT}
+		 *
+		 * @param retries the retransmissions started before the try, the task
+		 *        is cancelled if the send was answered or tried again meanwhile
+		 */
+		void setTimeout(final LinkScheduler.ScheduledTask timeout, final int retries) {
+			final LinkScheduler.ScheduledTask previous;
+			synchronized (this) {
+				if (isDone() || this.retries != retries) {
+					previous = timeout;
+				} else {
+					previous = this.timeout;
+					this.timeout = timeout;
+				}
+			}
+			if (previous != null) {
+				previous.cancel();
+			}
+		}
+
+		@Override
+		protected void done() {
+			final LinkScheduler.ScheduledTask task;
+			synchronized (this) {
+				task = timeout;
+			}
+			if (task != null) {
+				task.cancel();
+			}
+			finish(this);
+		}
+
+	}
+
+	/**
+	 * Sends of one device
+	 */
+	private static final class Device {
+
+		/**
+		 * Sends given a slot, whether already registered as sent or not
+		 */
+		private final List<Pending> active = new ArrayList<Pending>();
+
+		private final ArrayDeque<Pending> waiting = new ArrayDeque<Pending>();
+
+	}
+
+	private final Transmitter transmitter;
+
+	private final Object lock = new Object();
+
+	private final Map<Integer, Device> devices = new HashMap<Integer, Device>();
+
+	private final Map<Long, Pending> sent = new HashMap<Long, Pending>();
+
+	/**
+	 * Number of sent packets waiting for an answer, received frames are only
+	 * looked at if there are any
+	 */
+	private volatile int awaiting = 0;
+
+	private volatile int window = DEFAULT_WINDOW;
+
+	InFlightTable(final Transmitter transmitter) {
+		this.transmitter = transmitter;
+	}
+
+	int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param window packets in flight per device, at least 1
+	 */
+	void setWindow(final int window) {
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * @return the number of packets sent or waiting to be sent
+	 */
+	int size() {
+		synchronized (lock) {
+			int result = 0;
+			for (Device device : devices.values()) {
+				result += device.active.size() + device.waiting.size();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @param retryAllowed false if the packet must not be sent more than once
+	 * @return a send of the packet, to be passed to {@link #add(Pending)}
+	 */
+	Pending create(final HomeMaticPacket packet, final boolean retryAllowed, final SendPriority priority) {
+		return new Pending(packet, retryAllowed, priority);
+	}
+
+	/**
+	 * Adds a send to the window of its device. If the window is full, the
+	 * send waits and is handed to the {@link Transmitter} when its turn
+	 * comes.
+	 *
+	 * @return true if the caller has to send the packet now
+	 */
+	boolean add(final Pending pending) {
+		synchronized (lock) {
+			Device device = devices.get(pending.destinationAddress);
+			if (device == null) {
+				device = new Device();
+				devices.put(pending.destinationAddress, device);
+			}
+			if (device.active.size() < window) {
+				device.active.add(pending);
+				pending.active = true;
+				return true;
+			}
+			device.waiting.add(pending);
+			return false;
+		}
+	}
+
+	/**
+	 * Registers a packet with the message counter it is sent with, from now
+	 * on answers are matched to it. Called before the packet is written, an
+	 * answer may arrive before the write returns.
+	 */
+	void sent(final Pending pending, final int messageCounter) {
+		synchronized (lock) {
+			if (pending.isDone()) {
+				return;
+			}
+			if (pending.key != -1L && sent.get(pending.key) == pending) {
+				// Sent again with another counter
+				sent.remove(pending.key);
+			}
+			pending.key = key(pending.destinationAddress, messageCounter);
+			sent.put(pending.key, pending);
+			awaiting = sent.size();
+		}
+	}
+
+	/**
+	 * Completes the send the frame answers
+	 *
+	 * @return true if the frame answered a pending send
+	 */
+	boolean received(final HomeMaticPacketView frame) {
+		if (awaiting == 0) {
+			return false;
+		}
+		final int response = frame.getGatewayResponse();
+		final long key;
+		final SendResult.Status status;
+		if (response >= 0) {
+			// Gateway response, echoes the sent packet
+			key = key(frame.getDestinationAddress(), frame.getMessageCounter());
+			status = getStatus(response);
+		} else if (frame.getMessageTypeId() == HomeMaticMessageType.ACKNOWLEDGE.getId()) {
+			key = key(frame.getSenderAddress(), frame.getMessageCounter());
+			// Bit 7 of the subtype marks a NACK
+			status = frame.getPayloadLength() > 0 && (frame.getPayload(0) & 0x80) != 0 ? SendResult.Status.NOT_ACKNOWLEDGED : SendResult.Status.ACKNOWLEDGED;
+		} else {
+			return false;
+		}
+		if (status == null) {
+			return false;
+		}
+		final Pending pending;
+		synchronized (lock) {
+			pending = sent.get(key);
+		}
+		if (pending == null) {
+			return false;
+		}
+		return complete(pending, new SendResult(status, response >= 0 ? null : frame.toPacket()), pending.getRetries());
+	}
+
+	/**
+	 * Completes the send with the result of a try unless the
+	 * {@link Transmitter} tries again
+	 *
+	 * @param retries the retransmissions started before the try, results of
+	 *        earlier tries are ignored
+	 * @return true if the result was taken
+	 */
+	boolean complete(final Pending pending, final SendResult result, final int retries) {
+		if (pending.getRetries() != retries) {
+			return false;
+		}
+		if (transmitter.retransmit(pending, result)) {
+			return true;
+		}
+		return pending.set(result.withRetries(retries));
+	}
+
+	/**
+	 * Fails all sends, e.g. when the link is closed
+	 */
+	void clear() {
+		final List<Pending> pending = new ArrayList<Pending>();
+		synchronized (lock) {
+			for (Device device : devices.values()) {
+				pending.addAll(device.waiting);
+				device.waiting.clear();
+				// Including the ones being written right now
+				pending.addAll(device.active);
+			}
+		}
+		for (Pending current : pending) {
+			current.set(new SendResult(SendResult.Status.FAILED));
+		}
+	}
+
+	/**
+	 * Frees the slot of a completed send and starts the next waiting one of the device
+	 */
+	private void finish(final Pending pending) {
+		Pending next = null;
+		synchronized (lock) {
+			final Device device = devices.get(pending.destinationAddress);
+			if (device == null) {
+				return;
+			}
+			if (pending.key != -1L && sent.get(pending.key) == pending) {
+				sent.remove(pending.key);
+				awaiting = sent.size();
+			}
+			if (!pending.active) {
+				device.waiting.remove(pending);
+			} else {
+				device.active.remove(pending);
+				while (next == null && !device.waiting.isEmpty()) {
+					final Pending candidate = device.waiting.poll();
+					if (!candidate.isDone()) {
+						candidate.active = true;
+						device.active.add(candidate);
+						next = candidate;
+					}
+				}
+			}
+			if (device.active.isEmpty() && device.waiting.isEmpty()) {
+				devices.remove(pending.destinationAddress);
+			}
+		}
+		if (next != null) {
+			transmitter.transmit(next);
+		}
+		transmitter.completed(pending);
+	}
+
+	/**
+	 * @return the result the response code of a LAN gateway reports, null if
+	 *         it does not complete the send
+	 */
+	private static SendResult.Status getStatus(final int response) {
+		if ((response & 0x08) != 0) {
+			return SendResult.Status.NO_RESPONSE;
+		} else if ((response & 0xF0) == 0x30 || (response & 0xF0) == 0x50) {
+			// AES handshake not successful
+			return SendResult.Status.NOT_ACKNOWLEDGED;
+		} else if ((response & 0x01) != 0) {
+			return SendResult.Status.ACKNOWLEDGED;
+		} else if ((response & 0x02) != 0) {
+			return SendResult.Status.SENT;
+		}
+		return null;
+	}
+
+	private static long key(final int address, final int messageCounter) {
+		return ((long) (address & 0xFFFFFF) << 8) | (messageCounter & 0xFF);
+	}
+
+}
@@ -19,15 +19,38 @@ import org.apache.log4j.Logger;
 
 import at.creadoo.homematic.IHomeMaticLink;
 import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.ISendFailureListener;
+import at.creadoo.homematic.ISubscription;
+import at.creadoo.homematic.HomeMaticProtocol;
+import at.creadoo.homematic.PacketFilter;
+import at.creadoo.homematic.SendResult;
+import at.creadoo.homematic.event.PacketEventBus;
+import at.creadoo.homematic.event.PacketPublisher;
+import at.creadoo.homematic.link.LANSendQueue;
+import at.creadoo.homematic.link.LinkScheduler;
 import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.AirtimeBudget;
+import at.creadoo.homematic.util.DuplicateFilter;
+import at.creadoo.homematic.util.MessageCounterTable;
+import at.creadoo.homematic.util.SettableFuture;
 import at.creadoo.homematic.util.Util;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Socket connector base implementation class for connecting to gateway
@@ -36,7 +59,102 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 	
 	private static final Logger log = Logger.getLogger(LinkBaseImpl.class);
 	
-    private final List<IHomeMaticLinkListener> listeners = new ArrayList<IHomeMaticLinkListener>();
+	private static final ListenerDispatcher[] NO_DISPATCHERS = new ListenerDispatcher[0];
+
+	/**
+	 * Guards changes of the registered listeners
+	 */
+	private final Object listenersLock = new Object();
+
+	/**
+	 * Dispatchers of the registered listeners in the order they were added.
+	 * The array is never modified, adding or removing a listener replaces it,
+	 * so it is iterated without locking.
+	 */
+	private volatile ListenerDispatcher[] dispatchers = NO_DISPATCHERS;
+
+	/**
+	 * Subscriptions by filter, replaced like the array of dispatchers
+	 */
+	private volatile SubscriptionIndex subscriptions = SubscriptionIndex.EMPTY;
+
+	/**
+	 * Optional ring buffer the received packets are published to
+	 */
+	private volatile PacketEventBus eventBus = null;
+
+	/**
+	 * Stream of the received packets, created on first use
+	 */
+	private volatile PacketPublisher publisher = null;
+
+	/**
+	 * Drops frames already received before they are decoded, null to pass all frames
+	 */
+	private volatile DuplicateFilter duplicateFilter = new DuplicateFilter();
+
+	/**
+	 * Frames dropped by {@link #receivedFrame(HomeMaticPacketView)} without decoding
+	 */
+	private final AtomicLong skippedFrames = new AtomicLong();
+
+	/**
+	 * Packets sent with {@link #sendConfirmed(HomeMaticPacket)} waiting for their answer
+	 */
+	private final InFlightTable inFlight = new InFlightTable(new InFlightTable.Transmitter() {
+
+		@Override
+		public void transmit(final InFlightTable.Pending pending) {
+			// Called on the thread completing the previous send, e.g. the reader, which submitting does not hold up
+			transmitScheduler.submit(pending, pending.getPriority());
+		}
+
+		@Override
+		public boolean retransmit(final InFlightTable.Pending pending, final SendResult result) {
+			return LinkBaseImpl.this.retransmit(pending, result);
+		}
+
+		@Override
+		public void completed(final InFlightTable.Pending pending) {
+			LinkBaseImpl.this.completed(pending);
+		}
+	});
+
+	/**
+	 * Paces the tries of packets sent with confirmation within the airtime of the gateway
+	 */
+	private final TransmitScheduler transmitScheduler = new TransmitScheduler(new TransmitScheduler.Sender() {
+
+		@Override
+		public void transmit(final InFlightTable.Pending pending) {
+			LinkBaseImpl.this.transmit(pending);
+		}
+
+		@Override
+		public LinkScheduler getScheduler() {
+			return LinkBaseImpl.this.getScheduler();
+		}
+	}, null);
+
+	private volatile long ackTimeout = InFlightTable.DEFAULT_TIMEOUT;
+
+	private volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+	/**
+	 * Packets sent by {@link #transmit(InFlightTable.Pending)} right now,
+	 * they keep the message counter it assigned
+	 */
+	private final Set<HomeMaticPacket> assigned = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<HomeMaticPacket, Boolean>()));
+
+	private final AtomicLong retransmissions = new AtomicLong();
+
+	private final AtomicLong sendFailures = new AtomicLong();
+
+	private final List<ISendFailureListener> sendFailureListeners = new CopyOnWriteArrayList<ISendFailureListener>();
+
+	private int listenerQueueCapacity = ListenerDispatcher.DEFAULT_CAPACITY;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
     
     protected final AtomicBoolean listen = new AtomicBoolean(false);
     
@@ -50,9 +168,10 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
     protected byte[] aesRFKeyOld = null;
 
 	/**
-	 * Holds the values of the message counters for the destination devices
+	 * Holds the values of the message counters for the destination devices,
+	 * shared by all threads sending on the link
 	 */
-	private final Map<Integer, Integer> messageCounters = new HashMap<Integer, Integer>();
+	private final MessageCounterTable messageCounters = new MessageCounterTable();
 
 	public LinkBaseImpl() {
 		this(null);
@@ -65,9 +184,7 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 	}
 	
 	protected List<IHomeMaticLinkListener> getListeners() {
-		synchronized (listeners) {
-			return listeners;
-		}
+		return getLinkListeners();
 	}
 
 	@Override
@@ -100,14 +217,74 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 		start(true);
 	}
 
-	protected void receivedPacket(final HomeMaticPacket packet) {
-		for (IHomeMaticLinkListener listener : getListeners()) {
-			try {
-				listener.received(this, packet);
-			} catch (Throwable ex) {
-				//
+	/**
+	 * Decodes a received frame and hands it on like
+	 * {@link #receivedPacket(HomeMaticPacket)}, unless no one is interested in
+	 * it. Answers to packets sent with confirmation complete their send
+	 * first. Frames no subscription selects while there are no listeners, event
+	 * bus or stream are dropped without creating a packet.
+	 */
+	protected void receivedFrame(final HomeMaticPacketView frame) {
+		final AirtimeBudget budget = transmitScheduler.getBudget();
+		if (budget != null) {
+			budget.resync(frame.getGatewayStatus());
+			if (frame.getGatewayResponse() >= 0 && (frame.getGatewayResponse() & 0x08) != 0) {
+				// The gateway sent the packet three times
+				budget.record(2 * AirtimeBudget.getAirtime(frame.getPacketLength(), frame.getControlByte()));
 			}
 		}
+		inFlight.received(frame);
+		if (!isInterested(frame.getSenderAddress(), frame.getDestinationAddress(), frame.getMessageTypeId())) {
+			skippedFrames.incrementAndGet();
+			return;
+		}
+		final HomeMaticPacket packet = frame.toPacket();
+		if (packet == null) {
+			return;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Packet: " + packet);
+		}
+		receivedPacket(packet);
+	}
+
+	/**
+	 * @return true if a listener, the event bus, the stream or a
+	 *         subscription matching the header fields would receive the
+	 *         frame. Listeners, the event bus and the stream take all
+	 *         frames, only subscriptions select by the header.
+	 */
+	protected boolean isInterested(final int senderAddress, final int destinationAddress, final int messageTypeId) {
+		return dispatchers.length > 0 || eventBus != null || publisher != null
+				|| subscriptions.matches(senderAddress, destinationAddress, messageTypeId);
+	}
+
+	/**
+	 * @return the number of received frames dropped without decoding
+	 *         because no one was interested in them
+	 */
+	public long getSkippedFrames() {
+		return skippedFrames.get();
+	}
+
+	/**
+	 * Hands a received packet to the listeners and the matching
+	 * subscriptions, each of them gets it on its own thread, and publishes
+	 * it to the event bus if set
+	 */
+	protected void receivedPacket(final HomeMaticPacket packet) {
+		for (ListenerDispatcher dispatcher : dispatchers) {
+			dispatcher.dispatch(packet);
+		}
+		subscriptions.dispatch(packet);
+		final PacketEventBus bus = eventBus;
+		if (bus != null) {
+			bus.publish(this, packet);
+		}
+		final PacketPublisher current = publisher;
+		if (current != null) {
+			current.publish(packet);
+		}
 	}
 	
 	@Override
@@ -123,10 +300,12 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 			
 			//Actually stop the link
 			closeLink();
+			transmitScheduler.clear();
+			inFlight.clear();
 			
-			for (IHomeMaticLinkListener listener : getLinkListeners()) {
+			for (ListenerDispatcher dispatcher : dispatchers) {
 				try {
-		            listener.linkClosed(this);
+					dispatcher.getListener().linkClosed(this);
 				} catch (Throwable ex) {
 					//
 				}
@@ -143,10 +322,12 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 			
 			//Actually stop the link
 			closeLink();
+			transmitScheduler.clear();
+			inFlight.clear();
 			
-			for (IHomeMaticLinkListener listener : getLinkListeners()) {
+			for (ListenerDispatcher dispatcher : dispatchers) {
 				try {
-					listener.linkTerminated(this);
+					dispatcher.getListener().linkTerminated(this);
 				} catch (Throwable ex) {
 					//
 				}
@@ -158,34 +339,519 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 	
 	protected abstract boolean closeLink();
 
+	/**
+	 * @return a snapshot of the registered listeners, later changes are not reflected
+	 */
 	@Override
 	public List<IHomeMaticLinkListener> getLinkListeners() {
-		synchronized (listeners) {
-			return listeners;
+		final ListenerDispatcher[] current = dispatchers;
+		final List<IHomeMaticLinkListener> result = new ArrayList<IHomeMaticLinkListener>(current.length);
+		for (ListenerDispatcher dispatcher : current) {
+			result.add(dispatcher.getListener());
 		}
+		return Collections.unmodifiableList(result);
 	}
 
 	@Override
 	public void addLinkListener(final IHomeMaticLinkListener linkListener) {
-		synchronized (listeners) {
-			if (!listeners.contains(linkListener)) {
-				listeners.add(linkListener);
+		addLinkListener(linkListener, listenerQueueCapacity, overflowPolicy);
+	}
+
+	/**
+	 * Add a new event listener with a queue of its own
+	 * 
+	 * @param capacity
+	 *            number of received packets queued for the listener
+	 * @param policy
+	 *            what to do with received packets while the queue is full
+	 */
+	public void addLinkListener(final IHomeMaticLinkListener linkListener, final int capacity, final OverflowPolicy policy) {
+		if (linkListener == null) {
+			return;
+		}
+		synchronized (listenersLock) {
+			final ListenerDispatcher[] current = dispatchers;
+			if (indexOf(current, linkListener) < 0) {
+				final ListenerDispatcher[] updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = new ListenerDispatcher(this, linkListener, capacity, policy);
+				dispatchers = updated;
 			}
 		}
 	}
 
 	@Override
 	public void removeLinkListener(final IHomeMaticLinkListener linkListener) {
-		synchronized (listeners) {
-			if (listeners.contains(linkListener)) {
-				listeners.remove(linkListener);
+		synchronized (listenersLock) {
+			final ListenerDispatcher[] current = dispatchers;
+			final int index = indexOf(current, linkListener);
+			if (index >= 0) {
+				final ListenerDispatcher[] updated = current.length == 1 ? NO_DISPATCHERS : new ListenerDispatcher[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, index);
+				System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+				dispatchers = updated;
+				current[index].close();
 			}
 		}
 	}
 
+	@Override
+	public Subscription subscribe(final PacketFilter filter, final IHomeMaticLinkListener linkListener) {
+		return subscribe(filter, linkListener, listenerQueueCapacity, overflowPolicy);
+	}
+
+	/**
+	 * Subscribe a listener to the received packets matching the filter, with
+	 * a queue of its own
+	 * 
+	 * @param capacity
+	 *            number of received packets queued for the subscription
+	 * @param policy
+	 *            what to do with received packets while the queue is full
+	 */
+	public Subscription subscribe(final PacketFilter filter, final IHomeMaticLinkListener linkListener, final int capacity, final OverflowPolicy policy) {
+		if (filter == null || linkListener == null) {
+			throw new IllegalArgumentException("Filter and listener are required");
+		}
+		final Subscription subscription = new Subscription(filter, new ListenerDispatcher(this, linkListener, capacity, policy));
+		synchronized (listenersLock) {
+			subscriptions = subscriptions.with(subscription);
+		}
+		return subscription;
+	}
+
+	@Override
+	public void unsubscribe(final ISubscription subscription) {
+		if (!(subscription instanceof Subscription)) {
+			return;
+		}
+		synchronized (listenersLock) {
+			final SubscriptionIndex current = subscriptions;
+			if (!current.contains((Subscription) subscription)) {
+				return;
+			}
+			subscriptions = current.without((Subscription) subscription);
+		}
+		((Subscription) subscription).getDispatcher().close();
+	}
+
+	public PacketEventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * Publish the received packets to the given event bus, in addition to
+	 * the listeners. Several links may share the same bus. Pass null to
+	 * stop publishing.
+	 */
+	public void setEventBus(final PacketEventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+
+	/**
+	 * @return the received packets as a stream with backpressure, for
+	 *         consumers which want to pull the packets at their own pace
+	 */
+	public PacketPublisher getPublisher() {
+		PacketPublisher result = publisher;
+		if (result == null) {
+			synchronized (listenersLock) {
+				result = publisher;
+				if (result == null) {
+					result = new PacketPublisher(getName());
+					publisher = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	public DuplicateFilter getDuplicateFilter() {
+		return duplicateFilter;
+	}
+
+	/**
+	 * Links of gateways receiving the same devices should share one filter,
+	 * so a frame heard by several gateways is only delivered once. Pass
+	 * null to deliver all frames.
+	 */
+	public void setDuplicateFilter(final DuplicateFilter duplicateFilter) {
+		this.duplicateFilter = duplicateFilter;
+	}
+
+	SubscriptionIndex getSubscriptionIndex() {
+		return subscriptions;
+	}
+
+	private static int indexOf(final ListenerDispatcher[] dispatchers, final IHomeMaticLinkListener linkListener) {
+		for (int i = 0; i < dispatchers.length; i++) {
+			if (dispatchers[i].getListener().equals(linkListener)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the queue of the listener with its lag and drop counters, null
+	 *         if the listener is not registered
+	 */
+	public ListenerDispatcher getListenerDispatcher(final IHomeMaticLinkListener linkListener) {
+		final ListenerDispatcher[] current = dispatchers;
+		final int index = indexOf(current, linkListener);
+		return index >= 0 ? current[index] : null;
+	}
+
+	public int getListenerQueueCapacity() {
+		return listenerQueueCapacity;
+	}
+
+	/**
+	 * Capacity of the queues of listeners added from now on
+	 */
+	public void setListenerQueueCapacity(final int listenerQueueCapacity) {
+		this.listenerQueueCapacity = listenerQueueCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Overflow policy of the queues of listeners added from now on, by
+	 * default the oldest packets are dropped. {@link OverflowPolicy#BLOCK}
+	 * holds up the thread receiving from the gateway, which links using a
+	 * shared selector share with each other.
+	 */
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
 	@Override
 	public abstract boolean send(final HomeMaticPacket packet) throws IOException;
 
+	/**
+	 * Send a packet without waiting for it to be written. Links without a
+	 * send queue send the packet right away and return a completed future.
+	 * 
+	 * @return completed with true once the packet is sent
+	 */
+	public Future<Boolean> sendAsync(final HomeMaticPacket packet) {
+		try {
+			return SettableFuture.immediate(Boolean.valueOf(send(packet)));
+		} catch (IOException ex) {
+			final SettableFuture<Boolean> result = new SettableFuture<Boolean>();
+			result.setException(ex);
+			return result;
+		}
+	}
+
+	/**
+	 * Send a packet and wait for the answer of the device without blocking.
+	 * The packet is written by the scheduler of the link through
+	 * {@link #sendAsync(HomeMaticPacket)}. The send is matched to the ACK or NACK of the device or the response
+	 * of a LAN gateway by destination address and message counter. At most
+	 * {@link #getInFlightWindow()} packets per device are in flight, further
+	 * packets wait for their turn.
+	 * <p>
+	 * Packets without the BIDI flag complete with
+	 * {@link SendResult.Status#SENT} once written. Packets the device does
+	 * not answer are sent again as the {@link #getRetryPolicy()} allows.
+	 * If an airtime budget is set, packets which would exceed it are held
+	 * back until enough airtime is available.
+	 *
+	 * @return completed with the result, cancelling it frees the slot of the device
+	 */
+	public Future<SendResult> sendConfirmed(final HomeMaticPacket packet) {
+		return sendConfirmed(packet, true, SendPriority.NORMAL);
+	}
+
+	/**
+	 * Send a packet and wait for the answer of the device without blocking,
+	 * see {@link #sendConfirmed(HomeMaticPacket)}
+	 *
+	 * @param retryAllowed false for commands that must not be sent more than
+	 *        once, whatever the retry policy says about their type
+	 */
+	public Future<SendResult> sendConfirmed(final HomeMaticPacket packet, final boolean retryAllowed) {
+		return sendConfirmed(packet, retryAllowed, SendPriority.NORMAL);
+	}
+
+	/**
+	 * Send a packet and wait for the answer of the device without blocking,
+	 * see {@link #sendConfirmed(HomeMaticPacket, boolean)}
+	 *
+	 * @param priority order in which held back packets go on air
+	 */
+	public Future<SendResult> sendConfirmed(final HomeMaticPacket packet, final boolean retryAllowed, final SendPriority priority) {
+		final InFlightTable.Pending pending = inFlight.create(packet, retryAllowed, priority != null ? priority : SendPriority.NORMAL);
+		if (inFlight.add(pending)) {
+			transmitScheduler.submit(pending, pending.getPriority());
+		}
+		return pending;
+	}
+
+	/**
+	 * Writes a try of a confirmed send, called by the scheduler. The result
+	 * of the write is handled once its future is completed.
+	 */
+	private void transmit(final InFlightTable.Pending pending) {
+		if (pending.isDone()) {
+			return;
+		}
+		final HomeMaticPacket packet = pending.getPacket();
+		final int retries = pending.getRetries();
+		if (retries == 0) {
+			// Tries again keep the counter of the first one
+			packet.setMessageCounter(getNextMessageCounter(packet.getDestinationAddress()));
+		}
+		final int messageCounter = packet.getMessageCounter();
+		if (HomeMaticProtocol.isBIDISet(packet.getControlByte())) {
+			// The answer may arrive before the write returns
+			inFlight.sent(pending, messageCounter);
+		}
+		Future<Boolean> future;
+		assigned.add(packet);
+		try {
+			future = sendAsync(packet);
+		} catch (Throwable ex) {
+			log.error("Error while sending", ex);
+			future = SettableFuture.immediate(Boolean.FALSE);
+		} finally {
+			// The counter is read when the packet is queued
+			assigned.remove(packet);
+		}
+		final Future<Boolean> result = future;
+		final Runnable handler = new Runnable() {
+
+			@Override
+			public void run() {
+				written(pending, retries, messageCounter, result);
+			}
+		};
+		if (result.isDone()) {
+			handler.run();
+		} else if (result instanceof SettableFuture) {
+			// Completed by the writer of the link, which must not run the listeners of the link
+			((SettableFuture<Boolean>) result).addListener(new Runnable() {
+
+				@Override
+				public void run() {
+					getScheduler().schedule(handler, 0L, 0L);
+				}
+			});
+		} else {
+			getScheduler().schedule(handler, 0L, 0L);
+		}
+	}
+
+	/**
+	 * Completes the try once the packet is written or the write failed
+	 */
+	private void written(final InFlightTable.Pending pending, final int retries, final int messageCounter, final Future<Boolean> future) {
+		final HomeMaticPacket packet = pending.getPacket();
+		if (!isWritten(future)) {
+			if (retries == 0) {
+				releaseMessageCounter(packet.getDestinationAddress(), messageCounter);
+			}
+			inFlight.complete(pending, new SendResult(SendResult.Status.FAILED), retries);
+		} else if (!HomeMaticProtocol.isBIDISet(packet.getControlByte())) {
+			inFlight.complete(pending, new SendResult(SendResult.Status.SENT), retries);
+		} else {
+			pending.setTimeout(getScheduler().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					inFlight.complete(pending, new SendResult(SendResult.Status.TIMEOUT), retries);
+				}
+			}, ackTimeout, 0L), retries);
+		}
+	}
+
+	/**
+	 * @return true if the future reports the packet as written, waits for
+	 *         futures of other types for at most
+	 *         {@link LANSendQueue#DEFAULT_SEND_TIMEOUT}
+	 */
+	private static boolean isWritten(final Future<Boolean> future) {
+		try {
+			return Boolean.TRUE.equals(future.get(LANSendQueue.DEFAULT_SEND_TIMEOUT, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			log.error("Error while sending", ex.getCause());
+		} catch (TimeoutException ex) {
+			log.error("Sending timed out");
+			future.cancel(false);
+		} catch (CancellationException ex) {
+			// Not written
+		}
+		return false;
+	}
+
+	/**
+	 * Schedules the next try of a send the device did not answer
+	 *
+	 * @return true if the packet is sent again
+	 */
+	private boolean retransmit(final InFlightTable.Pending pending, final SendResult result) {
+		final RetryPolicy policy = retryPolicy;
+		if (!pending.isRetryAllowed() || !policy.isRetryable(result.getStatus())) {
+			return false;
+		}
+		final HomeMaticPacket packet = pending.getPacket();
+		final int retries = pending.getRetries();
+		if (retries >= policy.getRetries(packet.getMessageType())) {
+			return false;
+		}
+		if (!pending.startRetry(retries)) {
+			// Completed or already tried again
+			return true;
+		}
+		retransmissions.incrementAndGet();
+		final long delay = policy.getDelay(retries + 1);
+		log.debug("Retry " + (retries + 1) + " of packet " + packet.getMessageCounter() + " to " + Util.toHex(packet.getDestinationAddress()) + " in " + delay + " ms after " + result.getStatus());
+		getScheduler().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				transmitScheduler.submit(pending, pending.getPriority());
+			}
+		}, delay, 0L);
+		return true;
+	}
+
+	private void completed(final InFlightTable.Pending pending) {
+		if (pending.isCancelled()) {
+			return;
+		}
+		final SendResult result;
+		try {
+			result = pending.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException ex) {
+			return;
+		}
+		if (result.isSuccess()) {
+			return;
+		}
+		sendFailures.incrementAndGet();
+		for (ISendFailureListener listener : sendFailureListeners) {
+			try {
+				listener.sendFailed(this, pending.getPacket(), result);
+			} catch (Exception ex) {
+				log.error("Error in send failure listener", ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the airtime the gateway used within the last hour as far as
+	 *         the link knows, null if sends are not paced
+	 */
+	public AirtimeBudget getAirtimeBudget() {
+		return transmitScheduler.getBudget();
+	}
+
+	/**
+	 * Sets the airtime budget packets sent with confirmation are paced by,
+	 * null to send them without pacing, which is the default. Packets sent with
+	 * {@link #send(HomeMaticPacket)} bypass the budget, it learns about
+	 * them from the status the gateway reports.
+	 */
+	public void setAirtimeBudget(final AirtimeBudget budget) {
+		transmitScheduler.setBudget(budget);
+	}
+
+	/**
+	 * @return the number of packets held back until the gateway has airtime
+	 */
+	public int getTransmitQueueSize() {
+		return transmitScheduler.size();
+	}
+
+	/**
+	 * @return the number of times sends were held back for airtime
+	 */
+	public long getDelayedTransmissions() {
+		return transmitScheduler.getDelayed();
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets when packets sent with confirmation are sent again, use
+	 * {@link RetryPolicy#none()} to never retry
+	 */
+	public void setRetryPolicy(final RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.none();
+	}
+
+	/**
+	 * @return the number of packets sent again since the link was created
+	 */
+	public long getRetransmissions() {
+		return retransmissions.get();
+	}
+
+	/**
+	 * @return the number of packets sent with confirmation that finally failed
+	 */
+	public long getSendFailures() {
+		return sendFailures.get();
+	}
+
+	public void addSendFailureListener(final ISendFailureListener listener) {
+		if (listener != null) {
+			sendFailureListeners.add(listener);
+		}
+	}
+
+	public void removeSendFailureListener(final ISendFailureListener listener) {
+		sendFailureListeners.remove(listener);
+	}
+
+	/**
+	 * @return the number of packets sent with confirmation which are in flight or wait for their turn
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	public int getInFlightWindow() {
+		return inFlight.getWindow();
+	}
+
+	/**
+	 * Number of packets sent with confirmation that may wait for the answer
+	 * of the same device, 1 by default
+	 */
+	public void setInFlightWindow(final int window) {
+		inFlight.setWindow(window);
+	}
+
+	public long getAckTimeout() {
+		return ackTimeout;
+	}
+
+	/**
+	 * Time in milliseconds a packet sent with confirmation waits for an answer
+	 */
+	public void setAckTimeout(final long ackTimeout) {
+		this.ackTimeout = ackTimeout;
+	}
+
+	/**
+	 * @return the scheduler of the timeouts of packets sent with
+	 *         confirmation, the shared default scheduler unless overridden
+	 */
+	public LinkScheduler getScheduler() {
+		return LinkScheduler.getDefault();
+	}
+
 	public boolean getAESEnabled() {
 		return aesEnabled;
 	}
@@ -236,25 +902,51 @@ public abstract class LinkBaseImpl implements IHomeMaticLink {
 	protected abstract void cleanUpAES();
 
     protected int getNextMessageCounter(final int destinationAddress) {
-    	int value = 0;
-    	if (messageCounters.containsKey(destinationAddress)) {
-    		value = messageCounters.get(destinationAddress) + 1;
-    		if (value > 255) {
-    			value = 0;
-        	}
+    	return messageCounters.next(destinationAddress);
+    }
+
+	/**
+	 * @return the message counter to send the packet with, the one already
+	 *         assigned if the packet is sent with confirmation
+	 */
+    protected int getMessageCounter(final HomeMaticPacket packet) {
+    	if (assigned.contains(packet)) {
+    		return packet.getMessageCounter();
     	}
-    	messageCounters.put(destinationAddress, value);
+    	return getNextMessageCounter(packet.getDestinationAddress());
+    }
 
-    	return value;
+	/**
+	 * Takes back the message counter of a packet that could not be sent, see
+	 * {@link MessageCounterTable#release(int, int)}
+	 */
+    protected void releaseMessageCounter(final int destinationAddress, final int messageCounter) {
+    	messageCounters.release(destinationAddress, messageCounter);
     }
 
+	/**
+	 * Takes back the message counter last handed out for the address
+	 * 
+	 * @deprecated the counter may already belong to another packet, use
+	 *             {@link #releaseMessageCounter(int, int)} with the counter
+	 *             of the packet that could not be sent
+	 */
+	@Deprecated
     protected void decreaseMessageCounter(final int destinationAddress) {
-    	if (messageCounters.containsKey(destinationAddress)) {
-    		int value = messageCounters.get(destinationAddress) - 1;
-    		if (value < 0) {
-    			value = 255;
-        	}
-        	messageCounters.put(destinationAddress, value);
+    	final int messageCounter = messageCounters.get(destinationAddress);
+    	if (messageCounter >= 0) {
+    		releaseMessageCounter(destinationAddress, messageCounter);
+    	}
+    }
+
+	/**
+	 * Takes back the message counter of a packet that could not be sent,
+	 * unless the packet is sent with confirmation, which takes the counter
+	 * back itself
+	 */
+    protected void releaseMessageCounter(final HomeMaticPacket packet) {
+    	if (!assigned.contains(packet)) {
+    		releaseMessageCounter(packet.getDestinationAddress(), packet.getMessageCounter());
     	}
     }
 
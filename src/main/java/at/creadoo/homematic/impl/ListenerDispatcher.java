@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Delivers the received packets of a link to one listener. The packets are
+ * queued and handed to the listener by a thread of its own, so a slow
+ * listener neither holds up the thread reading from the gateway nor the
+ * other listeners. The thread is started with the first packet and ends
+ * after a minute without packets.
+ * <p>
+ * The queue is bounded, the {@link OverflowPolicy} decides what happens
+ * while it is full. By default the oldest packets are dropped, the receiving
+ * thread is never held up.
+ */
+public class ListenerDispatcher {
+
+	private static final Logger log = Logger.getLogger(ListenerDispatcher.class);
+
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/**
+	 * Time in seconds an idle dispatching thread is kept
+	 */
+	private static final long KEEP_ALIVE = 60L;
+
+	private final IHomeMaticLink link;
+
+	private final IHomeMaticLinkListener listener;
+
+	private final OverflowPolicy policy;
+
+	private final int capacity;
+
+	private final BlockingQueue<Entry> queue;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Set while a drain task is submitted or running
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+
+	private volatile boolean closed = false;
+
+	private final AtomicLong delivered = new AtomicLong(0L);
+
+	private final AtomicLong dropped = new AtomicLong(0L);
+
+	private final AtomicLong maxLag = new AtomicLong(0L);
+
+	private volatile long lastLag = 0L;
+
+	/**
+	 * Set from the first packet dropped until one fits into the queue again
+	 */
+	private volatile boolean overflowing = false;
+
+	private final Runnable drain = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	ListenerDispatcher(final IHomeMaticLink link, final IHomeMaticLinkListener listener, final int capacity, final OverflowPolicy policy) {
+		this.link = link;
+		this.listener = listener;
+		this.capacity = Math.max(capacity, 1);
+		this.policy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+		this.queue = new ArrayBlockingQueue<Entry>(this.capacity);
+
+		this.executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, ListenerDispatcher.class.getSimpleName() + " [" + link.getName() + "]");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues the packet for the listener
+	 *
+	 * @return false if the packet was dropped
+	 */
+	boolean dispatch(final HomeMaticPacket packet) {
+		if (closed) {
+			return false;
+		}
+
+		final Entry entry = new Entry(packet);
+		boolean queued = queue.offer(entry);
+		if (queued) {
+			overflowing = false;
+		} else {
+			if (!overflowing && policy != OverflowPolicy.BLOCK) {
+				overflowing = true;
+				log.warn(link.getName() + ": Queue of listener " + listener + " full, dropping packets");
+			}
+			switch (policy) {
+			case BLOCK:
+				try {
+					queue.put(entry);
+					queued = true;
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queued) {
+					if (queue.poll() != null) {
+						dropped.incrementAndGet();
+					}
+					queued = queue.offer(entry);
+				}
+				break;
+			case DROP_NEWEST:
+				break;
+			}
+		}
+
+		if (!queued) {
+			dropped.incrementAndGet();
+			log.debug(link.getName() + ": Queue of listener " + listener + " full, packet dropped");
+			return false;
+		}
+
+		if (draining.compareAndSet(false, true)) {
+			try {
+				executor.execute(drain);
+			} catch (RejectedExecutionException ex) {
+				// Closed meanwhile
+				draining.set(false);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void drain() {
+		while (true) {
+			Entry entry;
+			while (!closed && (entry = queue.poll()) != null) {
+				lastLag = System.nanoTime() - entry.queued;
+				updateMaxLag(lastLag);
+				try {
+					listener.received(link, entry.packet);
+				} catch (Throwable ex) {
+					log.error(link.getName() + ": Error in listener " + listener, ex);
+				}
+				delivered.incrementAndGet();
+			}
+			draining.set(false);
+
+			// A packet queued after the last poll but before the flag was reset must not wait for the next one
+			if (closed || queue.isEmpty() || !draining.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+
+	private void updateMaxLag(final long lag) {
+		long max;
+		while (lag > (max = maxLag.get())) {
+			if (maxLag.compareAndSet(max, lag)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops the delivery, queued packets are discarded
+	 */
+	void close() {
+		closed = true;
+		queue.clear();
+		executor.shutdown();
+	}
+
+	public IHomeMaticLinkListener getListener() {
+		return listener;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of packets waiting for the listener
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of packets handed to the listener
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return the number of packets the listener missed as its queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the time in milliseconds the last delivered packet waited in the queue
+	 */
+	public long getLag() {
+		return TimeUnit.NANOSECONDS.toMillis(lastLag);
+	}
+
+	/**
+	 * @return the longest time in milliseconds a packet waited in the queue
+	 */
+	public long getMaxLag() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLag.get());
+	}
+
+	private static final class Entry {
+
+		private final HomeMaticPacket packet;
+
+		private final long queued = System.nanoTime();
+
+		private Entry(final HomeMaticPacket packet) {
+			this.packet = packet;
+		}
+
+	}
+
+}
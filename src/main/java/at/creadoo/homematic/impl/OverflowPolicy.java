@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+/**
+ * What a {@link ListenerDispatcher} does with a received packet while the
+ * queue of its listener is full
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Wait for the listener to catch up, this holds up the receiving thread
+	 * and with it all other listeners of the link. Links served by a shared
+	 * selector are held up together, so the listener must never fall behind.
+	 */
+	BLOCK,
+
+	/**
+	 * Discard the oldest queued packet to make room for the new one, the
+	 * default
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new packet
+	 */
+	DROP_NEWEST
+
+}
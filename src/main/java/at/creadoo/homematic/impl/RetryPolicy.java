@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.SendResult;
+
+/**
+ * When and how often a packet sent with confirmation is sent again if its
+ * device does not answer. The delay before retry n is
+ * <code>initialDelay * multiplier^(n - 1)</code>, at most
+ * <code>maxDelay</code>, varied by +/- <code>jitter</code> so devices that
+ * missed the same burst are not retried at the same time.
+ * <p>
+ * A retransmission reuses the message counter of the first try, a device
+ * that did get the packet and only the answer was lost recognizes the
+ * repetition. Packets of the types marked unsafe, virtual key presses by
+ * default, are never sent again: not every device checks the counter, one
+ * that executed a toggle and only lost its answer would toggle back.
+ */
+public final class RetryPolicy {
+
+	public static final int DEFAULT_RETRIES = 2;
+
+	public static final long DEFAULT_INITIAL_DELAY = 500L;
+
+	public static final long DEFAULT_MAX_DELAY = 8000L;
+
+	private final Map<HomeMaticMessageType, Integer> retries = new EnumMap<HomeMaticMessageType, Integer>(HomeMaticMessageType.class);
+
+	private final Set<HomeMaticMessageType> unsafe = EnumSet.of(HomeMaticMessageType.REMOTE);
+
+	private volatile int defaultRetries = DEFAULT_RETRIES;
+
+	private volatile long initialDelay = DEFAULT_INITIAL_DELAY;
+
+	private volatile double multiplier = 2.0;
+
+	private volatile long maxDelay = DEFAULT_MAX_DELAY;
+
+	private volatile double jitter = 0.2;
+
+	/**
+	 * @return a policy that never sends a packet again
+	 */
+	public static RetryPolicy none() {
+		final RetryPolicy result = new RetryPolicy();
+		result.setRetries(0);
+		return result;
+	}
+
+	public int getRetries() {
+		return defaultRetries;
+	}
+
+	/**
+	 * @param retries retransmissions of packets whose type has no own budget
+	 */
+	public void setRetries(final int retries) {
+		this.defaultRetries = Math.max(0, retries);
+	}
+
+	/**
+	 * @return the retransmissions of packets of the type, 0 if the type is unsafe
+	 */
+	public int getRetries(final HomeMaticMessageType messageType) {
+		synchronized (retries) {
+			if (unsafe.contains(messageType)) {
+				return 0;
+			}
+			final Integer result = retries.get(messageType);
+			return result != null ? result : defaultRetries;
+		}
+	}
+
+	/**
+	 * @param retries retransmissions of packets of the type, null for the default
+	 */
+	public void setRetries(final HomeMaticMessageType messageType, final Integer retries) {
+		synchronized (this.retries) {
+			if (retries == null) {
+				this.retries.remove(messageType);
+			} else {
+				this.retries.put(messageType, Math.max(0, retries));
+			}
+		}
+	}
+
+	public boolean isUnsafe(final HomeMaticMessageType messageType) {
+		synchronized (retries) {
+			return unsafe.contains(messageType);
+		}
+	}
+
+	/**
+	 * @param unsafe true if packets of the type must never be sent twice
+	 */
+	public void setUnsafe(final HomeMaticMessageType messageType, final boolean unsafe) {
+		synchronized (retries) {
+			if (unsafe) {
+				this.unsafe.add(messageType);
+			} else {
+				this.unsafe.remove(messageType);
+			}
+		}
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	/**
+	 * @param initialDelay milliseconds before the first retry
+	 */
+	public void setInitialDelay(final long initialDelay) {
+		this.initialDelay = Math.max(0L, initialDelay);
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	/**
+	 * @param multiplier growth of the delay from one retry to the next, at least 1
+	 */
+	public void setMultiplier(final double multiplier) {
+		this.multiplier = Math.max(1.0, multiplier);
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public void setMaxDelay(final long maxDelay) {
+		this.maxDelay = Math.max(0L, maxDelay);
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @param jitter fraction the delay is varied by, between 0 and 1
+	 */
+	public void setJitter(final double jitter) {
+		this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+	}
+
+	/**
+	 * @return true if the result may change when the packet is sent again
+	 */
+	public boolean isRetryable(final SendResult.Status status) {
+		return status == SendResult.Status.TIMEOUT || status == SendResult.Status.NO_RESPONSE;
+	}
+
+	/**
+	 * @param retry the retry to wait for, starting at 1
+	 * @return the milliseconds to wait before the retry
+	 */
+	public long getDelay(final int retry) {
+		final double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, Math.max(0, retry - 1)));
+		final double spread = delay * jitter;
+		if (spread <= 0.0) {
+			return (long) delay;
+		}
+		return Math.max(0L, Math.round(delay - spread + ThreadLocalRandom.current().nextDouble() * 2.0 * spread));
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import at.creadoo.homematic.util.AirtimeBudget;
+
+/**
+ * Order in which packets sent with confirmation go on air when the
+ * airtime budget of the gateway holds them back
+ */
+public enum SendPriority {
+
+	/**
+	 * Sent first, may use all of the budget
+	 */
+	HIGH(1.0),
+
+	NORMAL(1.0),
+
+	/**
+	 * Sent last and only while the gateway is below high load, the rest of
+	 * the budget is kept for the other packets
+	 */
+	LOW(AirtimeBudget.HIGH_LOAD);
+
+	private final double share;
+
+	private SendPriority(final double share) {
+		this.share = share;
+	}
+
+	/**
+	 * @return the share of the airtime budget packets of this priority may use up to
+	 */
+	public double getShare() {
+		return share;
+	}
+
+}
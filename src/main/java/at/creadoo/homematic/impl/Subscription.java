@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.ISubscription;
+import at.creadoo.homematic.PacketFilter;
+
+/**
+ * Subscription registered with a {@link LinkBaseImpl}, the matching packets
+ * are delivered by a dispatcher of its own
+ */
+public final class Subscription implements ISubscription {
+
+	private final PacketFilter filter;
+
+	private final ListenerDispatcher dispatcher;
+
+	Subscription(final PacketFilter filter, final ListenerDispatcher dispatcher) {
+		this.filter = filter;
+		this.dispatcher = dispatcher;
+	}
+
+	@Override
+	public PacketFilter getFilter() {
+		return filter;
+	}
+
+	@Override
+	public IHomeMaticLinkListener getListener() {
+		return dispatcher.getListener();
+	}
+
+	/**
+	 * @return the queue of the subscription with its lag and drop counters
+	 */
+	public ListenerDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	@Override
+	public String toString() {
+		return "Subscription[" + filter + ", " + getListener() + "]";
+	}
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.PacketFilter;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Immutable index of the subscriptions of a link. Each subscription is
+ * filed under its most selective criterion: the sender address, else the
+ * destination address, else the message type. A received packet is only
+ * checked against the subscriptions filed under its sender, its
+ * destination and its type, plus those without any criterion.
+ * <p>
+ * Subscribing or unsubscribing builds a new index, the link swaps it in
+ * like its array of listeners.
+ */
+final class SubscriptionIndex {
+
+	private static final Subscription[] NONE = new Subscription[0];
+
+	static final SubscriptionIndex EMPTY = new SubscriptionIndex(NONE);
+
+	private final Subscription[] subscriptions;
+
+	private final AddressIndex bySender;
+
+	private final AddressIndex byDestination;
+
+	/**
+	 * Indexed by the ordinal of the message type
+	 */
+	private final Subscription[][] byMessageType;
+
+	/**
+	 * Subscriptions matching all packets
+	 */
+	private final Subscription[] unfiltered;
+
+	private SubscriptionIndex(final Subscription[] subscriptions) {
+		this.subscriptions = subscriptions;
+
+		final Map<Integer, List<Subscription>> senders = new LinkedHashMap<Integer, List<Subscription>>();
+		final Map<Integer, List<Subscription>> destinations = new LinkedHashMap<Integer, List<Subscription>>();
+		final Map<Integer, List<Subscription>> messageTypes = new LinkedHashMap<Integer, List<Subscription>>();
+		final List<Subscription> all = new ArrayList<Subscription>();
+		for (Subscription subscription : subscriptions) {
+			final PacketFilter filter = subscription.getFilter();
+			if (filter.getSenderAddress() != PacketFilter.ANY) {
+				add(senders, filter.getSenderAddress(), subscription);
+			} else if (filter.getDestinationAddress() != PacketFilter.ANY) {
+				add(destinations, filter.getDestinationAddress(), subscription);
+			} else if (filter.getMessageType() != null) {
+				add(messageTypes, filter.getMessageType().ordinal(), subscription);
+			} else {
+				all.add(subscription);
+			}
+		}
+
+		this.bySender = new AddressIndex(senders);
+		this.byDestination = new AddressIndex(destinations);
+		this.byMessageType = new Subscription[HomeMaticMessageType.values().length][];
+		for (Map.Entry<Integer, List<Subscription>> entry : messageTypes.entrySet()) {
+			byMessageType[entry.getKey()] = entry.getValue().toArray(NONE);
+		}
+		this.unfiltered = all.toArray(NONE);
+	}
+
+	private static void add(final Map<Integer, List<Subscription>> index, final int key, final Subscription subscription) {
+		List<Subscription> list = index.get(key);
+		if (list == null) {
+			list = new ArrayList<Subscription>(1);
+			index.put(key, list);
+		}
+		list.add(subscription);
+	}
+
+	SubscriptionIndex with(final Subscription subscription) {
+		final Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+		updated[subscriptions.length] = subscription;
+		return new SubscriptionIndex(updated);
+	}
+
+	/**
+	 * @return the index without the subscription, the same index if it does not contain the subscription
+	 */
+	SubscriptionIndex without(final Subscription subscription) {
+		for (int i = 0; i < subscriptions.length; i++) {
+			if (subscriptions[i] == subscription) {
+				if (subscriptions.length == 1) {
+					return EMPTY;
+				}
+				final Subscription[] updated = new Subscription[subscriptions.length - 1];
+				System.arraycopy(subscriptions, 0, updated, 0, i);
+				System.arraycopy(subscriptions, i + 1, updated, i, subscriptions.length - i - 1);
+				return new SubscriptionIndex(updated);
+			}
+		}
+		return this;
+	}
+
+	boolean contains(final Subscription subscription) {
+		for (Subscription current : subscriptions) {
+			if (current == subscription) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean isEmpty() {
+		return subscriptions.length == 0;
+	}
+
+	/**
+	 * Hands the packet to the matching subscriptions
+	 *
+	 * @return the number of matching subscriptions
+	 */
+	int dispatch(final HomeMaticPacket packet) {
+		if (subscriptions.length == 0) {
+			return 0;
+		}
+		int result = dispatch(bySender.get(packet.getSenderAddress()), packet);
+		result += dispatch(byDestination.get(packet.getDestinationAddress()), packet);
+		final HomeMaticMessageType messageType = packet.getMessageType();
+		if (messageType != null) {
+			result += dispatch(byMessageType[messageType.ordinal()], packet);
+		}
+		return result + dispatch(unfiltered, packet);
+	}
+
+	/**
+	 * @return true if a subscription matches a frame with the given header
+	 *         fields, checked before the frame is decoded
+	 */
+	boolean matches(final int senderAddress, final int destinationAddress, final int messageTypeId) {
+		if (subscriptions.length == 0) {
+			return false;
+		}
+		if (unfiltered.length > 0
+				|| matches(bySender.get(senderAddress), senderAddress, destinationAddress, messageTypeId)
+				|| matches(byDestination.get(destinationAddress), senderAddress, destinationAddress, messageTypeId)) {
+			return true;
+		}
+		final HomeMaticMessageType messageType = HomeMaticMessageType.getById(messageTypeId);
+		return messageType != null && matches(byMessageType[messageType.ordinal()], senderAddress, destinationAddress, messageTypeId);
+	}
+
+	private static boolean matches(final Subscription[] candidates, final int senderAddress, final int destinationAddress, final int messageTypeId) {
+		if (candidates == null) {
+			return false;
+		}
+		for (Subscription subscription : candidates) {
+			if (subscription.getFilter().matches(senderAddress, destinationAddress, messageTypeId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int dispatch(final Subscription[] candidates, final HomeMaticPacket packet) {
+		if (candidates == null) {
+			return 0;
+		}
+		int result = 0;
+		for (Subscription subscription : candidates) {
+			if (subscription.getFilter().matches(packet)) {
+				subscription.getDispatcher().dispatch(packet);
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Open addressing hash table from an address to the subscriptions filed
+	 * under it, without boxing on lookup
+	 */
+	private static final class AddressIndex {
+
+		private final int[] keys;
+
+		private final Subscription[][] values;
+
+		private final int mask;
+
+		private AddressIndex(final Map<Integer, List<Subscription>> entries) {
+			int capacity = 2;
+			while (capacity < entries.size() * 2) {
+				capacity <<= 1;
+			}
+			this.keys = new int[capacity];
+			this.values = new Subscription[capacity][];
+			this.mask = capacity - 1;
+
+			for (Map.Entry<Integer, List<Subscription>> entry : entries.entrySet()) {
+				final int key = entry.getKey();
+				int i = hash(key) & mask;
+				while (values[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+				values[i] = entry.getValue().toArray(NONE);
+			}
+		}
+
+		private Subscription[] get(final int key) {
+			int i = hash(key) & mask;
+			Subscription[] value;
+			while ((value = values[i]) != null) {
+				if (keys[i] == key) {
+					return value;
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		private static int hash(final int key) {
+			final int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+	}
+
+}
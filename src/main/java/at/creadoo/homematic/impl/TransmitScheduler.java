@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import at.creadoo.homematic.SendResult;
+import at.creadoo.homematic.link.LinkScheduler;
+import at.creadoo.homematic.util.AirtimeBudget;
+
+/**
+ * Puts the tries of packets sent with confirmation on air within the
+ * {@link AirtimeBudget} of the gateway. Tries are handed to the
+ * {@link Sender} in order of their {@link SendPriority}, then in the order
+ * they were submitted. The queue is always drained by the scheduler of the
+ * link, so submitting never waits for a write. A try that does not fit into
+ * the budget holds back all tries behind it until enough airtime left the
+ * window, the queue is drained again at that time.
+ * <p>
+ * The airtime of a try is booked when it is handed to the sender, sends
+ * failing locally are booked as well.
+ */
+final class TransmitScheduler {
+
+	/**
+	 * Sends the tries whose turn has come
+	 */
+	interface Sender {
+
+		void transmit(InFlightTable.Pending pending);
+
+		LinkScheduler getScheduler();
+
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(final Entry left, final Entry right) {
+			final int result = left.priority.compareTo(right.priority);
+			if (result != 0) {
+				return result;
+			}
+			return left.sequence < right.sequence ? -1 : (left.sequence == right.sequence ? 0 : 1);
+		}
+	};
+
+	private static final class Entry {
+
+		private final InFlightTable.Pending pending;
+
+		private final SendPriority priority;
+
+		private final long sequence;
+
+		/**
+		 * In microseconds
+		 */
+		private final long airtime;
+
+		private Entry(final InFlightTable.Pending pending, final SendPriority priority, final long sequence) {
+			this.pending = pending;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.airtime = AirtimeBudget.getAirtime(pending.getPacket());
+		}
+
+	}
+
+	private final Sender sender;
+
+	private final Object lock = new Object();
+
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(16, ORDER);
+
+	private long sequence = 0L;
+
+	private volatile AirtimeBudget budget;
+
+	/**
+	 * Drains the queue once the budget allows the next try, null if none is scheduled
+	 */
+	private LinkScheduler.ScheduledTask wakeUp = null;
+
+	private long wakeUpTime = 0L;
+
+	private long delayed = 0L;
+
+	/**
+	 * Set while a drain is scheduled and has not started yet
+	 */
+	private boolean drainScheduled = false;
+
+	private final Runnable wake = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (lock) {
+				wakeUp = null;
+			}
+			drain();
+		}
+	};
+
+	private final Runnable drain = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (lock) {
+				drainScheduled = false;
+			}
+			drain();
+		}
+	};
+
+	TransmitScheduler(final Sender sender, final AirtimeBudget budget) {
+		this.sender = sender;
+		this.budget = budget;
+	}
+
+	AirtimeBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @param budget airtime budget of the gateway, null to send without pacing
+	 */
+	void setBudget(final AirtimeBudget budget) {
+		this.budget = budget;
+		scheduleDrain();
+	}
+
+	/**
+	 * @return the number of tries waiting for airtime
+	 */
+	int size() {
+		synchronized (lock) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @return the number of times the budget held back the next try
+	 */
+	long getDelayed() {
+		synchronized (lock) {
+			return delayed;
+		}
+	}
+
+	/**
+	 * Queues a try, the tries the budget allows are sent by the scheduler
+	 */
+	void submit(final InFlightTable.Pending pending, final SendPriority priority) {
+		synchronized (lock) {
+			queue.add(new Entry(pending, priority, sequence++));
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * Fails all queued tries, e.g. when the link is closed
+	 */
+	void clear() {
+		final List<InFlightTable.Pending> pending = new ArrayList<InFlightTable.Pending>();
+		final LinkScheduler.ScheduledTask task;
+		synchronized (lock) {
+			Entry entry;
+			while ((entry = queue.poll()) != null) {
+				pending.add(entry.pending);
+			}
+			task = wakeUp;
+			wakeUp = null;
+		}
+		if (task != null) {
+			task.cancel();
+		}
+		for (InFlightTable.Pending current : pending) {
+			current.set(new SendResult(SendResult.Status.FAILED));
+		}
+	}
+
+	private void scheduleDrain() {
+		synchronized (lock) {
+			if (drainScheduled) {
+				return;
+			}
+			drainScheduled = true;
+		}
+		sender.getScheduler().schedule(drain, 0L, 0L);
+	}
+
+	private void drain() {
+		final List<InFlightTable.Pending> ready = new ArrayList<InFlightTable.Pending>();
+		synchronized (lock) {
+			final AirtimeBudget current = budget;
+			Entry entry;
+			while ((entry = queue.peek()) != null) {
+				if (entry.pending.isDone()) {
+					queue.poll();
+					continue;
+				}
+				if (current != null) {
+					final long wait = current.getWaitTime(entry.airtime, entry.priority.getShare());
+					if (wait > 0L) {
+						scheduleWakeUp(wait);
+						break;
+					}
+					current.record(entry.airtime);
+				}
+				queue.poll();
+				ready.add(entry.pending);
+			}
+		}
+		for (InFlightTable.Pending pending : ready) {
+			sender.transmit(pending);
+		}
+	}
+
+	/**
+	 * Called holding the lock
+	 */
+	private void scheduleWakeUp(final long wait) {
+		final long time = System.currentTimeMillis() + wait;
+		if (wakeUp != null) {
+			if (wakeUpTime <= time) {
+				return;
+			}
+			wakeUp.cancel();
+		} else {
+			delayed++;
+		}
+		wakeUpTime = time;
+		wakeUp = sender.getScheduler().schedule(wake, wait, 0L);
+	}
+
+}
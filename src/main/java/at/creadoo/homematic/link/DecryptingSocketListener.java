@@ -18,129 +18,101 @@ package at.creadoo.homematic.link;
 import org.apache.log4j.Logger;
 
 import at.creadoo.homematic.MessageCallback;
-import at.creadoo.homematic.util.CryptoUtil;
-import at.creadoo.homematic.util.Util;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import javax.crypto.Cipher;
 
-class DecryptingSocketListener implements Runnable {
+/**
+ * Blocking connection to a LAN gateway, reads the socket with a dedicated thread.
+ */
+class DecryptingSocketListener extends LANConnection implements Runnable {
 	
 	private static final Logger log = Logger.getLogger(DecryptingSocketListener.class);
 	
 	private Thread runningThread = null;
 
-	private final MessageCallback callback;
-
-	private final Socket socket;
-
 	/**
-	 * Line end marker
+	 * Set once the connection is stopped, reading then fails without notifying the callback
 	 */
-	private final byte[] endOfLineMarker;
+	private volatile boolean stopped = false;
 
-	private Object cipherLock = new Object();
-	private Cipher cipher = null;
+	private final Socket socket;
+
+	private final Object writeLock = new Object();
 
 	public DecryptingSocketListener(final MessageCallback callback, final Socket socket, final byte[] endOfLineMarker) {
-		this.callback = callback;
-		this.socket = socket;
-		this.endOfLineMarker = endOfLineMarker;
-		this.cipher = null;
+		this(callback, socket, endOfLineMarker, null);
 	}
 
 	public DecryptingSocketListener(final MessageCallback callback, final Socket socket, final byte[] endOfLineMarker, final Cipher cipher) {
-		this.callback = callback;
-		this.socket = socket;
-		this.endOfLineMarker = endOfLineMarker;
-		this.cipher = cipher;
+		this(callback, socket, endOfLineMarker, cipher, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
 	}
-	
-	public void setCipher(final Cipher cipher) {
-		synchronized (cipherLock) {
-			this.cipher = cipher;
-		}
+
+	public DecryptingSocketListener(final MessageCallback callback, final Socket socket, final byte[] endOfLineMarker, final Cipher cipher, final int maxFrameSize) {
+		super(callback, endOfLineMarker, cipher, maxFrameSize);
+		this.socket = socket;
 	}
 	
 	@Override
 	public void run() {
 		log.debug(Thread.currentThread().getName() + " : Starting to observe");
 		
-        final int bufferMax = 2048;
-        byte[] buffer = new byte[bufferMax];
-
+		// Raw bytes as read from the socket, kept until the chunk is processed
+		final byte[] chunk = new byte[READ_BUFFER_SIZE];
+		
 		try {
-	        int offset = 0;
+			final InputStream in = socket.getInputStream();
 	        
 			while (!Thread.interrupted()) {
-				final byte[] buff = new byte[1];
-				final int bytesRead = socket.getInputStream().read(buff);
-				if (bytesRead <= 0) {
+				final int bytesRead = in.read(chunk);
+				if (bytesRead < 0) {
+					throw new EOFException("Connection closed by remote host");
+				} else if (bytesRead == 0) {
 					// No data read simply skip processing for this round
 					continue;
 				}
 				
-				synchronized (cipherLock) {
-					
-					// Decrypt
-					if (this.cipher != null) {
-						final byte[] decrypted = CryptoUtil.aesCrypt(this.cipher, buff);
-						if (decrypted != null) {
-							// Copy bytes
-				            System.arraycopy(decrypted, 0, buffer, offset, decrypted.length);
-							
-				            // Calculate next offset
-				        	offset = offset + decrypted.length;
-						}
-					
-					// Plain mode
-					} else {
-						// Copy bytes
-			            System.arraycopy(buff, 0, buffer, offset, bytesRead);
-
-			            // Calculate next offset
-			        	offset = offset + bytesRead;
-					}
-				}
-	            
-	            // Check for line end and send packet
-	            int lineEndMarker = Util.indexOf(buffer, endOfLineMarker);
-	            if (lineEndMarker > -1) {
-	            	do {
-		            	final byte[] packet = new byte[lineEndMarker];
-						System.arraycopy(buffer, 0, packet, 0, lineEndMarker);
-						
-						final int restLength = offset - lineEndMarker - endOfLineMarker.length;
-						if (restLength > 0) {
-							final byte[] rest = new byte[restLength];
-							System.arraycopy(buffer, lineEndMarker + endOfLineMarker.length, rest, 0, restLength);
-	
-							buffer = new byte[bufferMax];
-							System.arraycopy(rest, 0, buffer, 0, restLength);
-							offset = restLength;
-						} else {
-							buffer = new byte[bufferMax];
-							offset = 0;
-						}
-						
-			            callback.received(this, packet);
-			            
-			            lineEndMarker = Util.indexOf(buffer, endOfLineMarker);
-	            	} while (lineEndMarker > -1);
-	            }
+				process(chunk, bytesRead);
 			}
 		} catch (Throwable ex) {
-			log.error(Thread.currentThread().getName() + ": Error while reading data", ex);
-			if (callback != null) {
-				callback.connectionTerminated();
+			if (stopped) {
+				// The link closed the connection, it may already run a new one
+				log.debug(Thread.currentThread().getName() + ": Connection stopped");
+			} else {
+				log.error(Thread.currentThread().getName() + ": Error while reading data", ex);
+				stop();
+				if (callback != null) {
+					callback.connectionTerminated();
+				}
 			}
-			stop();
 		}
 		
 		log.debug(Thread.currentThread().getName() + " : Stopping to observe");
 	}
 
+	@Override
+	public void write(final ByteBuffer data) throws IOException {
+		synchronized (writeLock) {
+			final OutputStream out = socket.getOutputStream();
+			if (data.hasArray()) {
+				out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+				data.position(data.limit());
+			} else {
+				final byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				out.write(bytes);
+			}
+			out.flush();
+		}
+	}
+
+	@Override
 	public boolean isRunning() {
 		if (runningThread != null) {
 			return runningThread.isAlive();
@@ -151,6 +123,7 @@ class DecryptingSocketListener implements Runnable {
 	/**
 	 * Opens the device in non-blocking mode, and starts observing it.
 	 */
+	@Override
 	public void start() {
 		if (!isRunning()) {
 			runningThread = new Thread(this, this.getClass().getSimpleName() + " [" + socket.getInetAddress() + "]");
@@ -163,7 +136,10 @@ class DecryptingSocketListener implements Runnable {
 	/**
 	 * Stops observing the device, and closes the connection
 	 */
+	@Override
 	public void stop() {
+		stopped = true;
+		getSendQueue().close();
 		if (isRunning()) {
 			try {
 				runningThread.interrupt();
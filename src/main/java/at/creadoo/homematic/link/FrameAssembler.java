@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Assembles line terminated frames out of a byte stream.
+ * <p>
+ * The bytes are stored in a buffer which is allocated once, each frame
+ * starts at its beginning. The search for the line end marker continues with
+ * every appended byte where it stopped before, so no byte is looked at twice. Frames longer than the
+ * maximum frame size are dropped up to the next line end marker and counted
+ * instead of overflowing the buffer.
+ * <p>
+ * Instances are not thread safe and meant to be used by the reading thread
+ * of a single connection.
+ */
+class FrameAssembler {
+
+	private static final Logger log = Logger.getLogger(FrameAssembler.class);
+
+	/**
+	 * Default maximum length of a frame without the line end marker
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 2048;
+
+	/**
+	 * Receives the assembled frames. The passed array is owned by the
+	 * assembler and only valid during the call, so the frame has to be copied
+	 * if it is needed afterwards.
+	 */
+	interface FrameHandler {
+
+		void frame(byte[] data, int offset, int length);
+
+	}
+
+	private final byte[] endOfLineMarker;
+
+	private final int maxFrameSize;
+
+	/**
+	 * Holds the current frame including the already matched part of the line end marker
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Number of bytes of the current frame stored in the buffer
+	 */
+	private int size = 0;
+
+	/**
+	 * Number of bytes of the line end marker matched so far
+	 */
+	private int matched = 0;
+
+	/**
+	 * Set while the rest of an oversize frame is skipped
+	 */
+	private boolean discarding = false;
+
+	private volatile long oversizeFrames = 0L;
+
+	public FrameAssembler(final byte[] endOfLineMarker) {
+		this(endOfLineMarker, DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * @param endOfLineMarker
+	 *            marker terminating a frame, e.g. CR LF. The marker must not
+	 *            start with a suffix of itself.
+	 * @param maxFrameSize
+	 *            maximum length of a frame without the line end marker
+	 */
+	public FrameAssembler(final byte[] endOfLineMarker, final int maxFrameSize) {
+		if (endOfLineMarker == null || endOfLineMarker.length == 0) {
+			throw new IllegalArgumentException("Line end marker must not be empty");
+		}
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("Maximum frame size must be positive: " + maxFrameSize);
+		}
+		this.endOfLineMarker = endOfLineMarker.clone();
+		this.maxFrameSize = maxFrameSize;
+		this.buffer = new byte[maxFrameSize + endOfLineMarker.length];
+	}
+
+	/**
+	 * Appends bytes to the current frame. Processing stops right after the
+	 * first completed frame was passed to the handler, so the caller is able to
+	 * react on the frame (e.g. switch the cipher) before the remaining bytes
+	 * are appended.
+	 *
+	 * @return the number of bytes consumed
+	 */
+	public int append(final byte[] data, final int offset, final int length, final FrameHandler handler) {
+		final int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			final byte b = data[i];
+
+			if (!discarding) {
+				if (size == buffer.length) {
+					// Neither the frame nor its line end marker fit into the buffer
+					discarding = true;
+					oversizeFrames++;
+					log.warn("Dropping frame exceeding the maximum frame size of " + maxFrameSize + " bytes (" + oversizeFrames + " oversize frames so far)");
+					size = 0;
+				} else {
+					buffer[size++] = b;
+				}
+			}
+
+			if (b == endOfLineMarker[matched]) {
+				matched++;
+			} else {
+				matched = (b == endOfLineMarker[0]) ? 1 : 0;
+			}
+
+			if (matched == endOfLineMarker.length) {
+				matched = 0;
+				if (discarding) {
+					discarding = false;
+				} else {
+					// Appending stops here, so the next frame starts at the beginning again
+					final int frameLength = size - endOfLineMarker.length;
+					size = 0;
+
+					handler.frame(buffer, 0, frameLength);
+					return i + 1 - offset;
+				}
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Drops the current partial frame
+	 */
+	public void reset() {
+		size = 0;
+		matched = 0;
+		discarding = false;
+	}
+
+	/**
+	 * @return the number of bytes of the current, not yet completed frame
+	 */
+	public int getPending() {
+		return size;
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * @return the number of frames dropped as they exceeded the maximum frame size
+	 */
+	public long getOversizeFrames() {
+		return oversizeFrames;
+	}
+
+}
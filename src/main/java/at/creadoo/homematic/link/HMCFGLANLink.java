@@ -16,14 +16,14 @@
 package at.creadoo.homematic.link;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 
@@ -33,8 +33,11 @@ import at.creadoo.homematic.IHomeMaticLinkListener;
 import at.creadoo.homematic.MessageCallback;
 import at.creadoo.homematic.impl.LinkBaseImpl;
 import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
 import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.LANFrameTokenizer;
 import at.creadoo.homematic.util.PacketUtil;
+import at.creadoo.homematic.util.SettableFuture;
 import at.creadoo.homematic.util.Util;
 
 /**
@@ -54,16 +57,6 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	
 	private static final int RESET_GATEWAY_TIME_INTERVAL = 10 * 60 * 60 * 1000;
 	
-	/**
-	 * Time between checks if AES was initialized successfully
-	 */
-	private static final int DEFAULT_AES_INIT_WAIT_INTERVAL = 100;
-	
-	/**
-	 * Timeout in milliseconds, to abort waiting for successful AES initialization
-	 */
-	private static final int DEFAULT_AES_INIT_WAIT_TIMEOUT = DEFAULT_AES_INIT_WAIT_INTERVAL * 10 * 5;
-
 	/**
 	 * Line end marker
 	 */
@@ -84,7 +77,12 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	 */
 	private final Integer connectionTimeout;
 	
-	private DecryptingSocketListener listener;
+	/**
+	 * Event loop serving the connection, null for the blocking transport
+	 */
+	private LANSelector selector = null;
+
+	private volatile LANConnection connection;
 
 	private int firmwareVersion;
 
@@ -100,6 +98,16 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	 */
 	private int keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
 
+	/**
+	 * Maximum length of a received frame, longer frames are dropped
+	 */
+	private int maxFrameSize = FrameAssembler.DEFAULT_MAX_FRAME_SIZE;
+
+	/**
+	 * Maximum number of frames waiting to be sent, 0 for no limit
+	 */
+	private int sendQueueCapacity = 0;
+
 	/**
 	 * Holds the startup time value read from the gateway
 	 */
@@ -110,7 +118,20 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	 */
 	private long lastKeepAliveResponse = 0L;
 
-	private final Timer timer = new Timer();
+	/**
+	 * Startup handshake of the current connection
+	 */
+	private volatile LinkHandshake handshake = null;
+
+	/**
+	 * Scheduler executing the periodic tasks, null for the shared default scheduler
+	 */
+	private LinkScheduler scheduler = null;
+
+	/**
+	 * Tasks scheduled for the current connection, cancelled when the link is closed
+	 */
+	private final List<LinkScheduler.ScheduledTask> scheduledTasks = new ArrayList<LinkScheduler.ScheduledTask>();
 
     /**
      * Hexadecimal representation of the central address to be used
@@ -184,24 +205,53 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 
 	@Override
 	protected boolean startLink(final boolean reconnecting) {
+		// Frames may arrive as soon as the connection is established
+		if (getAESEnabled()) {
+			handshake = new LinkHandshake(getName(), LinkHandshake.Step.IV, LinkHandshake.Step.SETUP);
+		} else {
+			handshake = new LinkHandshake(getName(), LinkHandshake.Step.SETUP);
+		}
+		
 		if (remoteAddress != null) {
 			log.info("*** Address *** set to " + remoteAddress.getHostName() + ":" + remoteAddress.getPort());
 			log.info("*** Timeout *** set to " + connectionTimeout);
 			
-			try {
-				this.prepareSocket(remoteAddress, connectionTimeout);
-			} catch (IOException ex) {
-				log.debug("Error connecting to socket", ex);
-				return false;
+			if (selector != null) {
+				try {
+					final SelectorConnection selectorConnection = selector.createConnection(remoteAddress, this, EOL, null, maxFrameSize);
+					selectorConnection.getSendQueue().setCapacity(sendQueueCapacity);
+					connection = selectorConnection;
+					selectorConnection.start();
+					if (!selectorConnection.awaitConnected(connectionTimeout)) {
+						log.debug("Error connecting to " + remoteAddress);
+						stopReceiver();
+						return false;
+					}
+				} catch (IOException ex) {
+					log.debug("Error connecting to socket", ex);
+					return false;
+				} catch (InterruptedException ex) {
+					log.debug("Interrupted while connecting to socket", ex);
+					stopReceiver();
+					return false;
+				}
+				log.info("*** Connected *** to " + remoteAddress + " using " + selector.getName());
+			} else {
+				try {
+					this.prepareSocket(remoteAddress, connectionTimeout);
+				} catch (IOException ex) {
+					log.debug("Error connecting to socket", ex);
+					return false;
+				}
+				log.info("*** Connected *** to " + remoteAddress);
+				startReceiver();
 			}
-			log.info("*** Connected *** to " + remoteAddress);
-			startReceiver();
 		}
 		
 		startUpTime = 0L;
 		
-		// TimerTask to keep connection opened
-		final TimerTask keepAlive = new TimerTask() {
+		// Task to keep connection opened
+		final Runnable keepAlive = new Runnable() {
 
 			@Override
 			public void run() {
@@ -209,8 +259,8 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 			}
 		};
 		
-		// TimerTask to set time in the gateway
-		final TimerTask gatewayTime = new TimerTask() {
+		// Task to set time in the gateway
+		final Runnable gatewayTime = new Runnable() {
 
 			@Override
 			public void run() {
@@ -225,31 +275,33 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 		// scheduling the task at interval
 		if (getAESEnabled()) {
 			// Set very short keepAlive interval as otherwise messages are not received or sent in time due to blocked en-/decryption...
-			timer.schedule(keepAlive, 1500, 500);
+			schedule(keepAlive, 1500, 500);
 		} else {
-			timer.schedule(keepAlive, keepAliveInterval, keepAliveInterval);
+			schedule(keepAlive, keepAliveInterval, keepAliveInterval);
 		}
-		timer.schedule(gatewayTime, RESET_GATEWAY_TIME_INTERVAL, RESET_GATEWAY_TIME_INTERVAL);
+		schedule(gatewayTime, RESET_GATEWAY_TIME_INTERVAL, RESET_GATEWAY_TIME_INTERVAL);
 
 		if (!this.getAESEnabled()) {
 			try {
-				setupGateway();
+				if (setupGateway()) {
+					acknowledge(LinkHandshake.Step.SETUP);
+				}
 			} catch (Throwable ex) {
 				log.error("Error initializing gateway", ex);
 				return false;
 			}
-		} else {
-			// Wait for AES initialized
-			try {
-				int millisWaited = 0;
-				while (!this.aesInitialized.get() && (millisWaited < DEFAULT_AES_INIT_WAIT_TIMEOUT)) {
-					log.debug("Waiting for AES initialization...");
-					Thread.sleep(DEFAULT_AES_INIT_WAIT_INTERVAL);
-					millisWaited = millisWaited + DEFAULT_AES_INIT_WAIT_INTERVAL;
-				}
-			} catch (InterruptedException ex) {
-				log.error("Error while waiting AES to be initialized", ex);
+		}
+		
+		// Wait for the IV exchange and the setup, which follows it with AES
+		try {
+			if (!handshake.await(LinkHandshake.DEFAULT_STEP_TIMEOUT)) {
+				log.warn("Gateway not ready");
+				return false;
 			}
+		} catch (InterruptedException ex) {
+			log.error("Interrupted while waiting for the gateway to get ready", ex);
+			Thread.currentThread().interrupt();
+			return false;
 		}
 		
 		return isConnected();
@@ -257,9 +309,19 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 
 	@Override
 	protected boolean closeLink() {
+		final LinkHandshake current = handshake;
+		if (current != null) {
+			current.cancel();
+		}
+		
 		stopReceiver();
 		
-		timer.cancel();
+		synchronized (scheduledTasks) {
+			for (LinkScheduler.ScheduledTask task : scheduledTasks) {
+				task.cancel();
+			}
+			scheduledTasks.clear();
+		}
 		
 		if (socket != null) {
 			try {
@@ -272,6 +334,15 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 		return true;
 	}
 
+	/**
+	 * Schedule a periodic task with the scheduler of the link
+	 */
+	private final void schedule(final Runnable task, final long delay, final long period) {
+		synchronized (scheduledTasks) {
+			scheduledTasks.add(getScheduler().schedule(task, delay, period));
+		}
+	}
+
 	/**
 	 * Prepare the socket
 	 */
@@ -296,9 +367,11 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	 * Starting the receiver thread
 	 */
 	private final void startReceiver(final Cipher cipher) {
-		if (listener == null) {
+		if (connection == null) {
 			// start thread
-			(listener = new DecryptingSocketListener(this, socket, EOL, cipher)).start();
+			final DecryptingSocketListener listener = new DecryptingSocketListener(this, socket, EOL, cipher, maxFrameSize);
+			listener.getSendQueue().setCapacity(sendQueueCapacity);
+			(connection = listener).start();
 		}
 	}
 
@@ -306,26 +379,27 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	 * Stopping the receiver thread
 	 */
 	private final void stopReceiver() {
-		if (listener != null) {
+		if (connection != null) {
 			// stop thread
-			listener.stop();
-			listener = null;
+			connection.stop();
+			connection = null;
 		}
 	}
 
 	/**
 	 * Setup the gateway with AES keys and time
 	 * 
+	 * @return true if all setup frames were sent
 	 * @throws IOException 
 	 * @throws SocketException 
 	 */
-	private final void setupGateway() throws SocketException, IOException {
+	private final boolean setupGateway() throws SocketException, IOException {
 		// Clear settings
-		send("C");
+		boolean result = send("C");
 		
 		// Set central address
 		if (this.centralAddress != null) {
-			send("A" + this.centralAddress);
+			result &= send("A" + this.centralAddress);
 		}
 		
 		// Set current AES RF key
@@ -335,7 +409,7 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 		} else {
 			strAESKey = "Y01,00,";
 		}
-		send(strAESKey);
+		result &= send(strAESKey);
 
 		// Set previous AES RF key
 		final String strAESKeyOld;
@@ -344,16 +418,18 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 		} else {
 			strAESKeyOld = "Y02,00,";
 		}
-		send(strAESKeyOld);
+		result &= send(strAESKeyOld);
 
 		// Setting a third AES RF key is not supported
-		send("Y03,00,");
+		result &= send("Y03,00,");
 		
 		// Set current date/time
-		setupGatewayTime();
+		result &= setupGatewayTime();
 		
 		// Request the current config
-		sendKeepAlive();
+		result &= sendKeepAlive();
+		
+		return result;
 	}
 
 	/**
@@ -394,9 +470,9 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 	}
 
     public void processData(final byte[] packet) {
-    	final String[] parts = new String(packet).split(",");
+    	final LANFrameTokenizer tokenizer = new LANFrameTokenizer(packet);
         
-        char c = (char) packet[0];
+        char c = tokenizer.getType();
         if (c == 'H') {
             /*
     		Index	Meaning
@@ -409,13 +485,18 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
     		6		Number of registered peers
     		*/
         	
-        	if (parts.length >= 7) {
-        		firmwareVersion = Integer.parseInt(parts[1], 16);
-        		serial = parts[2];
-        		addressDefault = Integer.parseInt(parts[3], 16);
-        		address = Integer.parseInt(parts[4], 16);
+        	if (tokenizer.countFields() >= 7) {
+        		tokenizer.skip(2);
+        		firmwareVersion = tokenizer.hexInt();
+        		tokenizer.next();
+        		serial = tokenizer.string();
+        		tokenizer.next();
+        		addressDefault = tokenizer.hexInt();
+        		tokenizer.next();
+        		address = tokenizer.hexInt();
         		
-        		startUpTime = Long.parseLong(parts[5], 16);
+        		tokenizer.next();
+        		startUpTime = tokenizer.hexLong();
         		lastKeepAliveResponse = System.currentTimeMillis();
         		
         		log.debug("Received info from 'HM-CFG-LAN': [serial=" + serial + ", firmwareVersion=" + firmwareVersion + ", addressDefault=" + Util.toHex(addressDefault) + ", address=" + Util.toHex(address) + "]");
@@ -425,14 +506,14 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 			final String remoteIV = Util.toString(Util.subset(packet, 1));
 	        
 	        this.aesRemoteIV = remoteIV;
-	        this.aesRemoteIVByte = Util.toByteFromHex(this.aesRemoteIV);
 	        
 			log.debug("Received RemoteIV from 'HM-CFG-LAN': [" + this.aesRemoteIV + "]");
 	        
-	        if (!Util.isHex(this.aesRemoteIV) || this.aesRemoteIVByte.length != 16) {
+	        if (!Util.isHex(this.aesRemoteIV) || this.aesRemoteIV.length() != 32) {
 				log.warn("RemoteIV received from HM-CFG-LAN not in hexadecimal format: " + this.aesRemoteIV);
 				return;
 	        }
+	        this.aesRemoteIVByte = Util.toByteFromHex(this.aesRemoteIV);
 	        
     		try {
 	    		this.aesCipherEncrypt = CryptoUtil.getAESCipherEncrypt(this.aesLanKeyByte, this.aesRemoteIVByte);
@@ -452,56 +533,63 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 				return;
     		}
 
-    		listener.setCipher(this.aesCipherDecrypt);
+    		connection.setCipher(this.aesCipherDecrypt);
     		this.aesInitialized.getAndSet(true);
+    		acknowledge(LinkHandshake.Step.IV);
     		
     		try {
-				setupGateway();
+				if (setupGateway()) {
+					acknowledge(LinkHandshake.Step.SETUP);
+				} else {
+					failHandshake("Setup not sent");
+				}
 			} catch (Throwable ex) {
 				log.error("Error initializing gateway", ex);
 				close();
 			}
 		} else if (c == 'V' && !getAESEnabled()) {
 			log.error("Device 'HM-CFG-LAN' requires AES, but AES was not configured!");
+			failHandshake("AES required");
 			return;
 		} else if (c == 'E' || c == 'R') {
-			final HomeMaticPacket homeMaticPacket = PacketUtil.createPacketByMessageType(PacketUtil.convertLANPacketToBidCos(packet));
-			if (homeMaticPacket == null) {
+			final HomeMaticPacketView frame = new HomeMaticPacketView();
+			if (!PacketUtil.decodeLANPacket(packet, getDuplicateFilter(), frame)) {
 	        	return;
 	        }
 	        
-	        log.debug("Packet: " + homeMaticPacket);
-	        
-	        for (IHomeMaticLinkListener listener : getLinkListeners()) {
-	        	try {
-	        		listener.received(this, homeMaticPacket);
-				} catch (Throwable ex) {
-					//
-				}
-	        }
+	        receivedFrame(frame);
 		}
     }
     
     @Override
 	public boolean send(final HomeMaticPacket packet) throws SocketException, IOException {
-    	packet.setSenderAddress(address);
-    	packet.setMessageCounter(getNextMessageCounter(packet.getDestinationAddress()));
-    	
-		final String data = "S" + formatHexTime(System.currentTimeMillis()) + ",00,00000000,01," + formatHexTime(System.currentTimeMillis() - startUpTime) + "," + Util.toHex(packet.getData()).substring(2);
-
-		final boolean result = send(data);
+		final boolean result = LANSendQueue.await(sendAsync(packet), LANSendQueue.DEFAULT_SEND_TIMEOUT);
 		if (!result) {
-			decreaseMessageCounter(packet.getDestinationAddress());
+			releaseMessageCounter(packet);
 		}
 		return result;
 	}
 	
+	/**
+	 * Queue a packet for sending. The packet must not be changed until the
+	 * returned future is completed.
+	 * 
+	 * @return completed with true once the packet is written to the gateway
+	 */
+	@Override
+	public Future<Boolean> sendAsync(final HomeMaticPacket packet) {
+    	packet.setSenderAddress(address);
+    	packet.setMessageCounter(getMessageCounter(packet));
+    	
+    	return enqueue(LANSendQueue.packet(packet, startUpTime));
+	}
+	
 	protected boolean send(final String data) throws SocketException, IOException {
 		if (data == null) {
 			log.debug("Sending not possible. Data is null.");
 			return false;
 		}
-		return send(data.getBytes());
+		return LANSendQueue.await(enqueue(LANSendQueue.command(data)), LANSendQueue.DEFAULT_SEND_TIMEOUT);
 	}
 
 	protected boolean send(final byte[] data) throws SocketException, IOException {
@@ -509,59 +597,51 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 			log.debug("Sending not possible. Data is null.");
 			return false;
 		}
-		if (socket == null) {
-			log.error("Sending not possible. Socket is null.");
-			return false;
+		return LANSendQueue.await(enqueue(LANSendQueue.command(data)), LANSendQueue.DEFAULT_SEND_TIMEOUT);
+	}
+
+	/**
+	 * Queue a frame, encrypted if AES is ready at this point
+	 */
+	private Future<Boolean> enqueue(final LANSendQueue.Frame frame) {
+		final LANConnection current = connection;
+		if (current == null) {
+			log.error("Sending not possible. Not connected.");
+			return SettableFuture.immediate(Boolean.FALSE);
 		}
 		
-		final byte[] packet;
-        if (getAESEnabled()) {
-        	if (this.aesInitialized.get()) {
-            	// Encryption enabled and ready
-	        	//log.debug("Encrypt packet");
-	        	try {
-	            	//log.debug("Plain packet >>");
-	            	//PacketUtil.logPacket(this, data);
-	            	//log.debug("<<");
-	                if (this.aesCipherEncrypt == null) {
-	                	log.error("Encryption not working due to missing cipher");
-	                	packet = Util.appendItem(data, EOL);
-	                } else {
-	                	packet = CryptoUtil.aesCrypt(this.aesCipherEncrypt, Util.appendItem(data, EOL));
-	                }
-	
-	            	//log.debug("Encrypted packet >>");
-	            	//PacketUtil.logPacket(this, packet);
-	            	//log.debug("<<");
-				} catch (Throwable ex) {
-					log.error("Error while encrypting", ex);
-					return false;
-				}
-            } else {
-            	// Encryption enabled but not yet ready
-	        	//log.debug("Trying to send packet but AES not initialized yet. Sending plain.");
-	        	packet = Util.appendItem(data, EOL);
-            }
-        } else {
-        	// Encryption disabled
-        	packet = Util.appendItem(data, EOL);
-        }
-		
-        if (packet == null) {
-        	//log.debug("Packet is null");
-        	return false;
+		Cipher cipherEncrypt = null;
+        if (getAESEnabled() && this.aesInitialized.get()) {
+        	// Encryption enabled and ready, otherwise the frame is sent plain
+        	cipherEncrypt = this.aesCipherEncrypt;
+        	if (cipherEncrypt == null) {
+            	log.error("Encryption not working due to missing cipher");
+        	}
         }
         
-		try {
-			final OutputStream out = socket.getOutputStream();
-			out.write(packet);
-			out.flush();
-			//log.debug("Sending packet: '" + Util.toString(data) + "'");
-		} catch (IOException ex) {
-			log.error("Sending: IO exception", ex);
-			return false;
+        return current.getSendQueue().submit(frame, cipherEncrypt);
+	}
+    
+	private void acknowledge(final LinkHandshake.Step step) {
+		final LinkHandshake current = handshake;
+		if (current != null) {
+			current.acknowledge(step);
 		}
-		return true;
+	}
+	
+	private void failHandshake(final String reason) {
+		final LinkHandshake current = handshake;
+		if (current != null) {
+			current.fail(reason);
+		}
+	}
+	
+	/**
+	 * @return true once the gateway acknowledged the startup handshake
+	 */
+	public boolean isReady() {
+		final LinkHandshake current = handshake;
+		return current != null && current.isReady() && isConnected();
 	}
     
     /**
@@ -579,10 +659,6 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
     	return false;
     }
     
-    private String formatHexTime(final Long time) {
-    	return Util.padLeft(Util.toHex(time), 8, "0");
-    }
-
 	@Override
 	protected boolean setupAES() {
     	if (this.getAESEnabled()) {
@@ -673,5 +749,79 @@ public class HMCFGLANLink extends LinkBaseImpl implements MessageCallback {
 			this.keepAliveInterval = keepAliveInterval;
 		}
 	}
+	
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Set the maximum length of a received frame. Takes effect when the link
+	 * is (re-)started.
+	 */
+	public void setMaxFrameSize(final int maxFrameSize) {
+		if (maxFrameSize > 0) {
+			this.maxFrameSize = maxFrameSize;
+		}
+	}
+	
+	public int getSendQueueCapacity() {
+		return sendQueueCapacity;
+	}
+
+	/**
+	 * Set the maximum number of frames waiting to be sent, further frames are
+	 * rejected. 0 means no limit. Takes effect when the link is (re-)started.
+	 */
+	public void setSendQueueCapacity(final int sendQueueCapacity) {
+		if (sendQueueCapacity >= 0) {
+			this.sendQueueCapacity = sendQueueCapacity;
+		}
+	}
+	
+	/**
+	 * @return the send queue of the current connection with its metrics, null if not connected
+	 */
+	public LANSendQueue getSendQueue() {
+		final LANConnection current = connection;
+		return current != null ? current.getSendQueue() : null;
+	}
+
+	/**
+	 * @return the number of received frames dropped since the link was
+	 *         started as they exceeded the maximum frame size
+	 */
+	public long getOversizeFrames() {
+		final LANConnection current = connection;
+		return current != null ? current.getOversizeFrames() : 0L;
+	}
+
+	public LANSelector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Serve the connection with the given event loop instead of a dedicated
+	 * reader thread. Several links may share the same selector. Pass null to
+	 * use the blocking transport. Takes effect when the link is (re-)started.
+	 */
+	public void setSelector(final LANSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * @return the scheduler executing the keep alive and gateway time tasks
+	 */
+	@Override
+	public LinkScheduler getScheduler() {
+		return scheduler != null ? scheduler : LinkScheduler.getDefault();
+	}
+
+	/**
+	 * Execute the periodic tasks with the given scheduler instead of the
+	 * shared default one. Takes effect when the link is (re-)started.
+	 */
+	public void setScheduler(final LinkScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
 
 }
@@ -18,6 +18,7 @@ package at.creadoo.homematic.link;
 import at.creadoo.homematic.IHomeMaticLinkListener;
 import at.creadoo.homematic.impl.LinkBaseImpl;
 import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -115,10 +116,17 @@ public class HMCFGUSBLink extends LinkBaseImpl implements HidServicesListener {
 	protected void cleanUpAES() {
 		//
 	}
+
+	/**
+	 * Hands a frame received by one of the devices to the listeners
+	 */
+	void frameReceived(final HomeMaticPacketView frame) {
+		receivedFrame(frame);
+	}
     
     @Override
 	public boolean send(final HomeMaticPacket packet) throws SocketException, IOException {
-    	packet.setMessageCounter(getNextMessageCounter(packet.getDestinationAddress()));
+    	packet.setMessageCounter(getMessageCounter(packet));
 
 		boolean result = false;
 		synchronized (connectionsBySerial) {
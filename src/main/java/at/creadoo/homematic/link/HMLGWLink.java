@@ -16,15 +16,15 @@
 package at.creadoo.homematic.link;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.Cipher;
@@ -35,8 +35,11 @@ import at.creadoo.homematic.IHomeMaticLinkListener;
 import at.creadoo.homematic.MessageCallback;
 import at.creadoo.homematic.impl.LinkBaseImpl;
 import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
 import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.LANFrameTokenizer;
 import at.creadoo.homematic.util.PacketUtil;
+import at.creadoo.homematic.util.SettableFuture;
 import at.creadoo.homematic.util.Util;
 
 /**
@@ -57,14 +60,9 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 	private static final int RESET_GATEWAY_TIME_INTERVAL = 10 * 60 * 60 * 1000;
 	
 	/**
-	 * Time between checks if AES was initialized successfully
+	 * Time the gateway needs after the connection was established before it accepts the setup
 	 */
-	private static final int DEFAULT_AES_INIT_WAIT_INTERVAL = 100;
-	
-	/**
-	 * Timeout in milliseconds, to abort waiting for successful AES initialization
-	 */
-	private static final int DEFAULT_AES_INIT_WAIT_TIMEOUT = DEFAULT_AES_INIT_WAIT_INTERVAL * 10 * 5;
+	private static final int GATEWAY_SETUP_DELAY = 2000;
 
 	/**
 	 * Line end marker
@@ -96,9 +94,14 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 	 */
 	private final Integer connectionTimeout;
 	
-	private DecryptingSocketListener listenerDefault;
+	/**
+	 * Event loop serving the connections, null for the blocking transport
+	 */
+	private LANSelector selector = null;
 	
-	private DecryptingSocketListener listenerKeepAlive;
+	private volatile LANConnection listenerDefault;
+	
+	private volatile LANConnection listenerKeepAlive;
 
 	private String firmwareVersion;
 
@@ -125,6 +128,16 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 	 */
 	private int keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
 
+	/**
+	 * Maximum length of a received frame, longer frames are dropped
+	 */
+	private int maxFrameSize = FrameAssembler.DEFAULT_MAX_FRAME_SIZE;
+
+	/**
+	 * Maximum number of frames waiting to be sent on each channel, 0 for no limit
+	 */
+	private int sendQueueCapacity = 0;
+
 	/**
 	 * Holds the startup time value read from the gateway
 	 */
@@ -144,7 +157,25 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 	private Object lastPacketIndexLockDefault = new Object();
 	private Object lastPacketIndexLockKeepAlive = new Object();
 
-	private final Timer timer = new Timer();
+	/**
+	 * Startup handshake of the current connections
+	 */
+	private volatile LinkHandshake handshake = null;
+
+	/**
+	 * Time the connections were established, the setup delay counts from here
+	 */
+	private volatile long connectedTime = 0L;
+
+	/**
+	 * Scheduler executing the periodic tasks, null for the shared default scheduler
+	 */
+	private LinkScheduler scheduler = null;
+
+	/**
+	 * Tasks scheduled for the current connection, cancelled when the link is closed
+	 */
+	private final List<LinkScheduler.ScheduledTask> scheduledTasks = new ArrayList<LinkScheduler.ScheduledTask>();
 
     /**
      * Hexadecimal representation of the central address to be used
@@ -255,27 +286,56 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 				return false;
 			}
 			
+			// Frames may arrive as soon as the connections are established
+			if (getAESEnabled()) {
+				handshake = new LinkHandshake(getName(), LinkHandshake.Step.IV, LinkHandshake.Step.IV_KEEPALIVE, LinkHandshake.Step.GATEWAY, LinkHandshake.Step.SETUP);
+			} else {
+				handshake = new LinkHandshake(getName(), LinkHandshake.Step.GATEWAY, LinkHandshake.Step.SETUP);
+			}
+			
 			log.info("Address for 'HM-LGW' set to '" + remoteAddressDefault.getHostName() + ":" + remoteAddressDefault.getPort() + "/" + remoteAddressKeepAlive.getPort() + "'");
 			log.info("Timeout for 'HM-LGW' set to '" + connectionTimeout + "'");
 			
-			try {
-				if (!this.connectSockets(remoteAddressDefault, remoteAddressKeepAlive, connectionTimeout)) {
-					log.debug("Error connecting sockets");
+			if (selector != null) {
+				try {
+					if (!this.connectChannels(remoteAddressDefault, remoteAddressKeepAlive, connectionTimeout)) {
+						log.debug("Error connecting channels");
+						stopReceiver();
+						return false;
+					}
+				} catch (IOException ex) {
+					log.debug("Error connecting channels", ex);
+					stopReceiver();
+					return false;
+				} catch (InterruptedException ex) {
+					log.debug("Interrupted while connecting channels", ex);
+					stopReceiver();
 					return false;
 				}
-			} catch (IOException ex) {
-				log.debug("Error connecting sockets", ex);
-				return false;
+				
+				connectedTime = System.currentTimeMillis();
+				log.info("Connected to 'HM-LGW' '" + remoteAddressDefault.getHostName() + ":" + remoteAddressDefault.getPort() + "/" + remoteAddressKeepAlive.getPort() + "' using " + selector.getName());
+			} else {
+				try {
+					if (!this.connectSockets(remoteAddressDefault, remoteAddressKeepAlive, connectionTimeout)) {
+						log.debug("Error connecting sockets");
+						return false;
+					}
+				} catch (IOException ex) {
+					log.debug("Error connecting sockets", ex);
+					return false;
+				}
+				
+				connectedTime = System.currentTimeMillis();
+				log.info("Connected to 'HM-LGW' '" + remoteAddressDefault.getHostName() + ":" + remoteAddressDefault.getPort() + "/" + remoteAddressKeepAlive.getPort() + "'");
+				startReceiver();
 			}
-			
-			log.info("Connected to 'HM-LGW' '" + remoteAddressDefault.getHostName() + ":" + remoteAddressDefault.getPort() + "/" + remoteAddressKeepAlive.getPort() + "'");
-			startReceiver();
 		}
 		
 		startUpTime = 0L;
 		
-		// TimerTask to keep connection opened
-		final TimerTask keepAlive = new TimerTask() {
+		// Task to keep connection opened
+		final Runnable keepAlive = new Runnable() {
 
 			@Override
 			public void run() {
@@ -285,8 +345,8 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 			}
 		};
 		
-		// TimerTask to set time in the gateway
-		final TimerTask gatewayTime = new TimerTask() {
+		// Task to set time in the gateway
+		final Runnable gatewayTime = new Runnable() {
 
 			@Override
 			public void run() {
@@ -302,23 +362,24 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 		// scheduling the task at interval
 		if (getAESEnabled()) {
 			// Set very short keepAlive interval as otherwise messages are not received or sent in time due to blocked en-/decryption...
-			timer.schedule(keepAlive, 1500, 500);
+			schedule(keepAlive, 1500, 500);
 		} else {
-			timer.schedule(keepAlive, keepAliveInterval, keepAliveInterval);
+			schedule(keepAlive, keepAliveInterval, keepAliveInterval);
 		}
-		timer.schedule(gatewayTime, RESET_GATEWAY_TIME_INTERVAL, RESET_GATEWAY_TIME_INTERVAL);
+		schedule(gatewayTime, RESET_GATEWAY_TIME_INTERVAL, RESET_GATEWAY_TIME_INTERVAL);
 
-		if (this.getAESEnabled()) {
-			// Wait for AES initialized
+		// Wait for the gateway to acknowledge the IV exchange and to accept the setup
+		final LinkHandshake current = handshake;
+		if (current != null) {
 			try {
-				int millisWaited = 0;
-				while (!this.aesInitialized.get() && (millisWaited < DEFAULT_AES_INIT_WAIT_TIMEOUT)) {
-					log.debug("Waiting for AES initialization...");
-					Thread.sleep(DEFAULT_AES_INIT_WAIT_INTERVAL);
-					millisWaited = millisWaited + DEFAULT_AES_INIT_WAIT_INTERVAL;
+				if (!current.await(LinkHandshake.DEFAULT_STEP_TIMEOUT)) {
+					log.warn("Gateway 'HM-LGW' not ready");
+					return false;
 				}
 			} catch (InterruptedException ex) {
-				log.error("Error while waiting AES to be initialized", ex);
+				log.error("Interrupted while waiting for the gateway to get ready", ex);
+				Thread.currentThread().interrupt();
+				return false;
 			}
 		}
 		
@@ -327,9 +388,19 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 
 	@Override
 	protected boolean closeLink() {
+		final LinkHandshake current = handshake;
+		if (current != null) {
+			current.cancel();
+		}
+		
 		stopReceiver();
 		
-		timer.cancel();
+		synchronized (scheduledTasks) {
+			for (LinkScheduler.ScheduledTask task : scheduledTasks) {
+				task.cancel();
+			}
+			scheduledTasks.clear();
+		}
 		
 		if (socketDefault != null) {
 			try {
@@ -350,6 +421,34 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 		return true;
 	}
 
+	/**
+	 * Schedule a task with the scheduler of the link. A period of 0 executes
+	 * the task once.
+	 */
+	private final void schedule(final Runnable task, final long delay, final long period) {
+		synchronized (scheduledTasks) {
+			scheduledTasks.add(getScheduler().schedule(task, delay, period));
+		}
+	}
+
+	/**
+	 * Connect both channels using the selector
+	 */
+	private final boolean connectChannels(final InetSocketAddress remoteAddress, final InetSocketAddress remoteAddressKeepAlive, final Integer timeout) throws IOException, InterruptedException {
+		final SelectorConnection connectionDefault = selector.createConnection(remoteAddress, this, EOL, null, maxFrameSize);
+		connectionDefault.getSendQueue().setCapacity(sendQueueCapacity);
+		listenerDefault = connectionDefault;
+		connectionDefault.start();
+		
+		final SelectorConnection connectionKeepAlive = selector.createConnection(remoteAddressKeepAlive, this, EOL, null, maxFrameSize);
+		connectionKeepAlive.getSendQueue().setCapacity(sendQueueCapacity);
+		listenerKeepAlive = connectionKeepAlive;
+		connectionKeepAlive.start();
+		
+		// Both connects are in progress at the same time
+		return connectionDefault.awaitConnected(timeout) && connectionKeepAlive.awaitConnected(timeout);
+	}
+
 	/**
 	 * Prepare the socket
 	 */
@@ -384,11 +483,15 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 	private final void startReceiver(final Cipher cipher) {
 		if (listenerDefault == null) {
 			// start thread
-			(listenerDefault = new DecryptingSocketListener(this, socketDefault, EOL, cipher)).start();
+			final DecryptingSocketListener listener = new DecryptingSocketListener(this, socketDefault, EOL, cipher, maxFrameSize);
+			listener.getSendQueue().setCapacity(sendQueueCapacity);
+			(listenerDefault = listener).start();
 		}
 		if (listenerKeepAlive == null) {
 			// start thread
-			(listenerKeepAlive = new DecryptingSocketListener(this, socketKeepAlive, EOL, cipher)).start();
+			final DecryptingSocketListener listener = new DecryptingSocketListener(this, socketKeepAlive, EOL, cipher, maxFrameSize);
+			listener.getSendQueue().setCapacity(sendQueueCapacity);
+			(listenerKeepAlive = listener).start();
 		}
 	}
 
@@ -413,14 +516,10 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 	 * 
 	 * @throws IOException 
 	 * @throws SocketException 
-	 * @throws InterruptedException 
 	 */
-	private final void setupGateway(final SocketType socketType) throws SocketException, IOException, InterruptedException {
-		// Gateway needs a moment
-		Thread.sleep(2000);
-		
+	private final boolean setupGateway(final SocketType socketType) throws SocketException, IOException {
 		// Clear settings
-		send(socketType, ">" + getPacketIndexHex(socketType) + ",0000");
+		return send(socketType, ">" + getPacketIndexHex(socketType) + ",0000");
 		
 		
 		//send(socketType, new byte[] {0, 3});
@@ -507,10 +606,10 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
     }
 
     public void processData(final Object source, final SocketType socketType, final byte[] packet) {
-    	// Split the data to parts
-    	final String[] parts = new String(packet).split(",");
-    	
-    	final int packetIndex = Util.toIntFromHex(Util.toString(Util.subset(packet, 1, 2)));
+    	// The first field holds the packet index
+    	final LANFrameTokenizer tokenizer = new LANFrameTokenizer(packet);
+    	tokenizer.next();
+    	final int packetIndex = tokenizer.hexInt(0, 2);
     	
     	// Get current packet index
     	if (socketType.equals(SocketType.DEFAULT)) {
@@ -524,7 +623,7 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
     	}
     	
     	// Process the different packet types
-        char c = (char) packet[0];
+        char c = tokenizer.getType();
         if (c == 'H') {
             /*
             HXX,01,eQ3-HM-LGW,1.1.X,OEQ0123456
@@ -537,9 +636,11 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
     		4		Serial number
     		*/
         	
-        	if (parts.length >= 5) {
-        		firmwareVersion = parts[3];
-        		serial = parts[4];
+        	if (tokenizer.countFields() >= 5) {
+        		tokenizer.skip(3);
+        		firmwareVersion = tokenizer.string();
+        		tokenizer.next();
+        		serial = tokenizer.string();
         		
         		//startUpTime = Long.parseLong(parts[5], 16);
         		if (socketType.equals(SocketType.DEFAULT)) {
@@ -560,18 +661,19 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
     		1		The AES IV sent from the gateway 
     		*/
 			
-			final String remoteIV = parts[1];
+			tokenizer.next();
+			final String remoteIV = tokenizer.string();
 
     		if (socketType.equals(SocketType.DEFAULT)) {
         		
     	        this.aesRemoteIVDefault = remoteIV;
-    	        this.aesRemoteIVByteDefault = Util.toByteFromHex(remoteIV);
     			log.debug("Received RemoteIV from 'HM-LGW' (" + socketType + "): [" + this.aesRemoteIVDefault + ", packetIndex=" + Util.toHex(packetIndex).toLowerCase() + "]");
     	        
-    	        if (!Util.isHex(this.aesRemoteIVDefault) || this.aesRemoteIVByteDefault.length != 16) {
+    	        if (!Util.isHex(this.aesRemoteIVDefault) || this.aesRemoteIVDefault.length() != 32) {
     				log.warn("RemoteIV received from HM-LGW (" + socketType + ") not in hexadecimal format: " + this.aesRemoteIVDefault);
     				return;
     	        }
+    	        this.aesRemoteIVByteDefault = Util.toByteFromHex(remoteIV);
     	        
         		try {
     	    		this.aesCipherEncryptDefault = CryptoUtil.getAESCipherEncrypt(this.aesLanKeyByte, this.aesRemoteIVByteDefault);
@@ -595,15 +697,16 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 
         		listenerDefault.setCipher(this.aesCipherDecryptDefault);
         		aesInitializedSocketDefault.getAndSet(true);
+        		acknowledge(LinkHandshake.Step.IV);
         	} else if (socketType.equals(SocketType.KEEPALIVE)) {
     	        this.aesRemoteIVKeepAlive = remoteIV;
-    	        this.aesRemoteIVByteKeepAlive = Util.toByteFromHex(remoteIV);
     			log.debug("Received RemoteIV from 'HM-LGW' (" + socketType + "): [" + this.aesRemoteIVKeepAlive + ", packetIndex=" + Util.toHex(packetIndex) + "]");
 
-    	        if (!Util.isHex(this.aesRemoteIVKeepAlive) || this.aesRemoteIVByteKeepAlive.length != 16) {
+    	        if (!Util.isHex(this.aesRemoteIVKeepAlive) || this.aesRemoteIVKeepAlive.length() != 32) {
     				log.warn("RemoteIV received from HM-LGW (" + socketType + ") not in hexadecimal format: " + this.aesRemoteIVKeepAlive);
     				return;
     	        }
+    	        this.aesRemoteIVByteKeepAlive = Util.toByteFromHex(remoteIV);
     	        
         		try {
     	    		this.aesCipherEncryptKeepAlive = CryptoUtil.getAESCipherEncrypt(this.aesLanKeyByte, this.aesRemoteIVByteKeepAlive);
@@ -627,6 +730,7 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 
         		listenerKeepAlive.setCipher(this.aesCipherDecryptKeepAlive);
         		aesInitializedSocketKeepAlive.getAndSet(true);
+        		acknowledge(LinkHandshake.Step.IV_KEEPALIVE);
         	}
     		
     		/*
@@ -646,20 +750,35 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
     		*/
 		} else if (c == 'V' && !getAESEnabled()) {
 			log.error("Device 'HM-LGW' requires AES, but AES was not configured!");
+			failHandshake("AES required");
 			return;
 		} else if (c == 'S') {
 			if (socketType.equals(SocketType.DEFAULT)) {
-				if (parts.length == 2 && parts[0].length() == 3 && parts[1].length() >= 15 && parts[1].startsWith("BidCoS-over-LAN")) {
-					try {
-						log.debug("Setup gateway");
-						setupGateway(socketType);
-					} catch (Throwable ex) {
-						log.error("Error while setting up the gateway", ex);
-						close();
-						return;
-					}
+				if (tokenizer.countFields() == 2 && tokenizer.length() == 2 && tokenizer.next() && tokenizer.startsWith("BidCoS-over-LAN")) {
+					acknowledge(LinkHandshake.Step.GATEWAY);
+					
+					// Gateway needs a moment after connecting, the IV exchange already used part of that time
+					final long delay = Math.max(0L, connectedTime + GATEWAY_SETUP_DELAY - System.currentTimeMillis());
+					schedule(new Runnable() {
+						
+						@Override
+						public void run() {
+							try {
+								log.debug("Setup gateway");
+								if (setupGateway(socketType)) {
+									acknowledge(LinkHandshake.Step.SETUP);
+								} else {
+									failHandshake("Setup not sent");
+								}
+							} catch (Throwable ex) {
+								log.error("Error while setting up the gateway", ex);
+								close();
+							}
+						}
+					}, delay, 0);
 				} else {
 					log.error("Error initiating: Packet \"S\" has wrong structure. Please check your AES key.");
+					failHandshake("Unexpected service");
 					close();
 					return;
 				}
@@ -671,43 +790,44 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 			log.debug("KeepAlive Packet received...");
 			return;
 		} else if (c == 'E' || c == 'R') {
-			final HomeMaticPacket homeMaticPacket = PacketUtil.createPacketByMessageType(PacketUtil.convertLANPacketToBidCos(packet));
-			if (homeMaticPacket == null) {
+			final HomeMaticPacketView frame = new HomeMaticPacketView();
+			if (!PacketUtil.decodeLANPacket(packet, getDuplicateFilter(), frame)) {
 	        	return;
 	        }
 	        
-	        //log.debug("Packet: " + homeMaticPacket);
-	        
-	        for (IHomeMaticLinkListener listener : getLinkListeners()) {
-	        	try {
-	        		listener.received(this, homeMaticPacket);
-				} catch (Throwable ex) {
-					//
-				}
-	        }
+	        receivedFrame(frame);
 		}
     }
     
     @Override
 	public boolean send(final HomeMaticPacket packet) throws SocketException, IOException {
-    	//packet.setSenderAddress(address);
-    	packet.setMessageCounter(getNextMessageCounter(packet.getDestinationAddress()));
-    	
-		final String data = "S" + formatHexTime(System.currentTimeMillis()) + ",00,00000000,01," + formatHexTime(System.currentTimeMillis() - startUpTime) + "," + Util.toHex(packet.getData()).substring(2);
-
-		final boolean result = send(SocketType.DEFAULT, data);
+		final boolean result = LANSendQueue.await(sendAsync(packet), LANSendQueue.DEFAULT_SEND_TIMEOUT);
 		if (!result) {
-			decreaseMessageCounter(packet.getDestinationAddress());
+			releaseMessageCounter(packet);
 		}
 		return result;
 	}
 	
+	/**
+	 * Queue a packet for sending. The packet must not be changed until the
+	 * returned future is completed.
+	 * 
+	 * @return completed with true once the packet is written to the gateway
+	 */
+	@Override
+	public Future<Boolean> sendAsync(final HomeMaticPacket packet) {
+    	//packet.setSenderAddress(address);
+    	packet.setMessageCounter(getMessageCounter(packet));
+    	
+    	return enqueue(SocketType.DEFAULT, LANSendQueue.packet(packet, startUpTime));
+	}
+	
 	protected boolean send(final SocketType socketType, final String data) throws SocketException, IOException {
 		if (data == null) {
 			log.debug("Sending not possible. Data is null.");
 			return false;
 		}
-		return send(socketType, data.getBytes());
+		return LANSendQueue.await(enqueue(socketType, LANSendQueue.command(data)), LANSendQueue.DEFAULT_SEND_TIMEOUT);
 	}
 	
 	protected boolean send(final SocketType socketType, final byte[] data) throws SocketException, IOException {
@@ -715,73 +835,52 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 			log.debug("Sending not possible. Data is null.");
 			return false;
 		}
+		return LANSendQueue.await(enqueue(socketType, LANSendQueue.command(data)), LANSendQueue.DEFAULT_SEND_TIMEOUT);
+	}
+	
+	/**
+	 * Queue a frame on the given channel, encrypted if AES is ready at this point
+	 */
+	private Future<Boolean> enqueue(final SocketType socketType, final LANSendQueue.Frame frame) {
+		final LANConnection connection = getConnection(socketType);
 		
-		final Socket socket = getSocket(socketType);
-		
-		if (socket == null) {
-			log.error("Sending not possible. Socket is null.");
-			return false;
+		if (connection == null) {
+			log.error("Sending not possible. Not connected.");
+			return SettableFuture.immediate(Boolean.FALSE);
 		}
 		
-		final byte[] packet;
-        if (getAESEnabled()) {
-        	if (this.aesInitialized.get()) {
-            	// Encryption enabled and ready
-                /* */
-	        	log.debug("Encrypt packet");
-	            /* */
-	        	try {
-	                /* */
-	            	log.debug("Plain packet >>");
-	            	PacketUtil.logPacket(this, data);
-	            	log.debug("<<");
-	            	/* */
-	            	
-	            	final Cipher cipherEncrypt = getCipherEncrypt(socketType);
-	            	
-	                if (cipherEncrypt == null) {
-	                	log.error("Encryption not working due to missing cipher");
-	                	packet = Util.appendItem(data, EOL);
-	                } else {
-	                	packet = CryptoUtil.aesCrypt(cipherEncrypt, Util.appendItem(data, EOL));
-	                }
-	
-	                /* */
-	            	log.debug("Encrypted packet >>");
-	            	PacketUtil.logPacket(this, packet);
-	            	log.debug("<<");
-	            	/* */
-				} catch (Throwable ex) {
-					log.error("Error while encrypting", ex);
-					return false;
-				}
-            } else {
-            	// Encryption enabled but not yet ready
-	        	//log.debug("Trying to send packet but AES not initialized yet. Sending plain.");
-	        	packet = Util.appendItem(data, EOL);
-            }
-        } else {
-        	// Encryption disabled
-        	packet = Util.appendItem(data, EOL);
-        }
-		
-        if (packet == null) {
-        	//log.debug("Packet is null");
-        	return false;
+		Cipher cipherEncrypt = null;
+        if (getAESEnabled() && this.aesInitialized.get()) {
+        	// Encryption enabled and ready, otherwise the frame is sent plain
+        	cipherEncrypt = getCipherEncrypt(socketType);
+        	if (cipherEncrypt == null) {
+            	log.error("Encryption not working due to missing cipher");
+        	}
         }
         
-		try {
-			final OutputStream out = socket.getOutputStream();
-			out.write(packet);
-			out.flush();
-            /* */
-			log.debug("Sending packet (" + socketType + "): '" + Util.toString(data) + "'");
-        	/* */
-		} catch (IOException ex) {
-			log.error("Sending: IO exception", ex);
-			return false;
+        return connection.getSendQueue().submit(frame, cipherEncrypt);
+	}
+    
+	private void acknowledge(final LinkHandshake.Step step) {
+		final LinkHandshake current = handshake;
+		if (current != null) {
+			current.acknowledge(step);
 		}
-		return true;
+	}
+	
+	private void failHandshake(final String reason) {
+		final LinkHandshake current = handshake;
+		if (current != null) {
+			current.fail(reason);
+		}
+	}
+	
+	/**
+	 * @return true once the gateway acknowledged the startup handshake
+	 */
+	public boolean isReady() {
+		final LinkHandshake current = handshake;
+		return current != null && current.isReady() && isConnected();
 	}
     
     /**
@@ -932,10 +1031,89 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
 			this.keepAliveInterval = keepAliveInterval;
 		}
 	}
-    
-    private String formatHexTime(final long time) {
-    	return Util.padLeft(Util.toHex(time), 8, "0");
-    }
+	
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Set the maximum length of a received frame. Takes effect when the link
+	 * is (re-)started.
+	 */
+	public void setMaxFrameSize(final int maxFrameSize) {
+		if (maxFrameSize > 0) {
+			this.maxFrameSize = maxFrameSize;
+		}
+	}
+	
+	public int getSendQueueCapacity() {
+		return sendQueueCapacity;
+	}
+
+	/**
+	 * Set the maximum number of frames waiting to be sent on each channel,
+	 * further frames are rejected. 0 means no limit. Takes effect when the
+	 * link is (re-)started.
+	 */
+	public void setSendQueueCapacity(final int sendQueueCapacity) {
+		if (sendQueueCapacity >= 0) {
+			this.sendQueueCapacity = sendQueueCapacity;
+		}
+	}
+	
+	/**
+	 * @return the send queue of the channel with its metrics, null if not connected
+	 */
+	public LANSendQueue getSendQueue(final SocketType socketType) {
+		final LANConnection connection = getConnection(socketType);
+		return connection != null ? connection.getSendQueue() : null;
+	}
+
+	/**
+	 * @return the number of received frames dropped on both connections since
+	 *         the link was started as they exceeded the maximum frame size
+	 */
+	public long getOversizeFrames() {
+		long result = 0L;
+		final LANConnection currentDefault = listenerDefault;
+		if (currentDefault != null) {
+			result = result + currentDefault.getOversizeFrames();
+		}
+		final LANConnection currentKeepAlive = listenerKeepAlive;
+		if (currentKeepAlive != null) {
+			result = result + currentKeepAlive.getOversizeFrames();
+		}
+		return result;
+	}
+
+	public LANSelector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Serve both connections with the given event loop instead of dedicated
+	 * reader threads. Several links may share the same selector. Pass null to
+	 * use the blocking transport. Takes effect when the link is (re-)started.
+	 */
+	public void setSelector(final LANSelector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * @return the scheduler executing the keep alive and gateway time tasks
+	 */
+	@Override
+	public LinkScheduler getScheduler() {
+		return scheduler != null ? scheduler : LinkScheduler.getDefault();
+	}
+
+	/**
+	 * Execute the periodic tasks with the given scheduler instead of the
+	 * shared default one. Takes effect when the link is (re-)started.
+	 */
+	public void setScheduler(final LinkScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
     
     private synchronized int getPacketIndex(final SocketType socketType) {
     	int result = 0;
@@ -981,12 +1159,12 @@ public class HMLGWLink extends LinkBaseImpl implements MessageCallback {
     	return Util.toHex(getNextPacketIndex(socketType)).toLowerCase();
     }
 
-	private Socket getSocket(final SocketType socketType) {
+	private LANConnection getConnection(final SocketType socketType) {
 		switch(socketType) {
 		case DEFAULT:
-			return socketDefault;
+			return listenerDefault;
 		case KEEPALIVE:
-			return socketKeepAlive;
+			return listenerKeepAlive;
 		}
 		return null;
 	}
@@ -109,7 +109,7 @@ public class HMSerialLink extends LinkBaseImpl {
     @Override
 	public boolean send(final HomeMaticPacket packet) throws SocketException, IOException {
     	/*
-    	packet.setMessageCounter(getNextMessageCounter(packet.getDestinationAddress()));
+    	packet.setMessageCounter(getMessageCounter(packet));
 
 		boolean result = false;
 		synchronized (connectionsBySerial) {
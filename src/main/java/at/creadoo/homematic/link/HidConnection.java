@@ -17,10 +17,8 @@ package at.creadoo.homematic.link;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import at.creadoo.homematic.IHomeMaticLinkListener;
 import at.creadoo.homematic.MessageCallback;
-import at.creadoo.homematic.packet.HomeMaticPacket;
-import at.creadoo.homematic.packet.HomeMaticPacketRemote;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
 import at.creadoo.homematic.util.PacketUtil;
 
 import org.apache.log4j.Logger;
@@ -86,24 +84,12 @@ public class HidConnection implements MessageCallback  {
     public void received(final Object source, final byte[] packet) {
     	PacketUtil.logPacket(link, packet);
         
-        final HomeMaticPacket homeMaticPacket = PacketUtil.createPacket(packet);        
-        if (homeMaticPacket == null) {
+        final HomeMaticPacketView frame = new HomeMaticPacketView();
+        if (!PacketUtil.decodeUSBPacket(packet, link.getDuplicateFilter(), frame)) {
         	return;
         }
         
-        log.debug("Packet: " + homeMaticPacket);
-        if (homeMaticPacket instanceof HomeMaticPacketRemote) {
-        	final HomeMaticPacketRemote homeMaticPacketRemote = (HomeMaticPacketRemote) homeMaticPacket;
-        	log.debug("Packet: Channel = " + homeMaticPacketRemote.getChannel());
-        }
-        
-        for (IHomeMaticLinkListener listener : this.link.getLinkListeners()) {
-        	try {
-	            listener.received(link, homeMaticPacket);
-			} catch (Throwable ex) {
-				//
-			}
-        }
+        link.frameReceived(frame);
     }
 
     public boolean sendPacketToDevice(final byte[] packet) {
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import at.creadoo.homematic.MessageCallback;
+import at.creadoo.homematic.util.CryptoUtil;
+
+/**
+ * Base class for a connection to a LAN gateway. Takes care of decrypting
+ * the received bytes and of splitting them into frames which are passed to
+ * the {@link MessageCallback}. Outgoing frames pass the {@link LANSendQueue}
+ * of the connection. The subclasses provide the actual transport.
+ */
+abstract class LANConnection implements FrameAssembler.FrameHandler {
+
+	/**
+	 * Maximum number of bytes read from the socket at once
+	 */
+	protected static final int READ_BUFFER_SIZE = 1024;
+
+	/**
+	 * Block size of the AES cipher
+	 */
+	private static final int CIPHER_BLOCK_SIZE = 16;
+
+	protected final MessageCallback callback;
+
+	/**
+	 * Assembles the line end marker terminated frames
+	 */
+	private final FrameAssembler frameAssembler;
+
+	/**
+	 * Decrypted bytes, the cipher may release bytes buffered from previous reads as well
+	 */
+	private final byte[] plain = new byte[READ_BUFFER_SIZE + CIPHER_BLOCK_SIZE];
+
+	private final Object cipherLock = new Object();
+	private Cipher cipher = null;
+
+	/**
+	 * Cipher used for the last decoded bytes and the number of bytes it still
+	 * holds back, only accessed by the reading thread
+	 */
+	private Cipher decodeCipher = null;
+	private int decodePending = 0;
+
+	private final LANSendQueue sendQueue;
+
+	protected LANConnection(final MessageCallback callback, final byte[] endOfLineMarker, final Cipher cipher, final int maxFrameSize) {
+		this.callback = callback;
+		this.frameAssembler = new FrameAssembler(endOfLineMarker, maxFrameSize);
+		this.cipher = cipher;
+		this.sendQueue = new LANSendQueue(this, endOfLineMarker);
+	}
+
+	/**
+	 * Starts receiving data
+	 */
+	public abstract void start();
+
+	/**
+	 * Stops receiving data
+	 */
+	public abstract void stop();
+
+	public abstract boolean isRunning();
+
+	/**
+	 * Writes the already encoded bytes to the gateway
+	 */
+	public void write(final byte[] data) throws IOException {
+		write(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer to the gateway. The buffer is
+	 * not referenced after the method returns, so the caller may reuse it.
+	 */
+	public abstract void write(final ByteBuffer data) throws IOException;
+
+	public LANSendQueue getSendQueue() {
+		return sendQueue;
+	}
+
+	/**
+	 * Runs the writer of the send queue, by default on the calling thread
+	 */
+	void dispatchWrite(final Runnable writer) {
+		writer.run();
+	}
+
+	/**
+	 * @return true if the calling thread is the one writers are handed over
+	 *         to, a writer dispatched by another thread does not run while
+	 *         it waits
+	 */
+	boolean isWriterThread() {
+		return false;
+	}
+
+	public void setCipher(final Cipher cipher) {
+		synchronized (cipherLock) {
+			this.cipher = cipher;
+		}
+	}
+
+	/**
+	 * @return the number of received frames dropped as they exceeded the maximum frame size
+	 */
+	public long getOversizeFrames() {
+		return frameAssembler.getOversizeFrames();
+	}
+
+	/**
+	 * Decrypts a chunk of raw bytes read from the socket and passes all
+	 * completed frames to the callback.
+	 */
+	protected final void process(final byte[] chunk, final int bytesRead) throws GeneralSecurityException {
+		// Decrypt (or copy in plain mode) the whole chunk at once
+		int decoded = decode(chunk, 0, bytesRead, plain, 0);
+		int position = 0;
+
+		// Hand over the frames one by one
+		while (position < decoded) {
+			position = position + frameAssembler.append(plain, position, decoded - position, this);
+
+			// The callback may have switched the cipher (e.g. after the AES handshake). As the
+			// remaining bytes of this chunk were decoded with the previous one, decode them again.
+			if (position < decoded && decodeCipher != getCipher()) {
+				final int restInChunk = Math.min(decoded - position + decodePending, bytesRead);
+				decoded = decode(chunk, bytesRead - restInChunk, restInChunk, plain, 0);
+				position = 0;
+			}
+		}
+	}
+
+	@Override
+	public void frame(final byte[] data, final int offset, final int length) {
+		final byte[] packet = new byte[length];
+		System.arraycopy(data, offset, packet, 0, length);
+		callback.received(this, packet);
+	}
+
+	private Cipher getCipher() {
+		synchronized (cipherLock) {
+			return this.cipher;
+		}
+	}
+
+	/**
+	 * Decrypts the given region of raw bytes into the target buffer using the
+	 * current cipher or copies them unchanged in plain mode. The cipher works
+	 * on whole blocks, so the number of bytes returned may differ from the
+	 * number of bytes passed in.
+	 *
+	 * @return the number of bytes written to the target buffer
+	 */
+	private int decode(final byte[] source, final int sourceOffset, final int length, final byte[] target, final int targetOffset) throws GeneralSecurityException {
+		synchronized (cipherLock) {
+			if (this.cipher != decodeCipher) {
+				decodeCipher = this.cipher;
+				decodePending = 0;
+			}
+
+			if (this.cipher != null) {
+				final int decrypted = CryptoUtil.aesCrypt(this.cipher, source, sourceOffset, length, target, targetOffset);
+				decodePending = decodePending + length - decrypted;
+				return decrypted;
+			}
+
+			System.arraycopy(source, sourceOffset, target, targetOffset, length);
+			return length;
+		}
+	}
+
+}
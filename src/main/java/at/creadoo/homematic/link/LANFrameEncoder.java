@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.Util;
+
+/**
+ * Reusable encoder for the frames sent to a LAN gateway. A frame is written
+ * as ASCII into an internal buffer, terminated with the line end marker and
+ * encrypted (or copied) into the output buffer, so sending a frame does not
+ * allocate. Several frames may be encoded one after the other and written
+ * at once.
+ * <p>
+ * Not thread safe, used by the single writer of a {@link LANSendQueue}.
+ */
+final class LANFrameEncoder {
+
+	/**
+	 * Enough for the longest BidCoS packet as 'S' command
+	 */
+	static final int DEFAULT_CAPACITY = 512;
+
+	/**
+	 * Block size of the AES cipher, bytes the cipher may hold back from former frames
+	 */
+	private static final int CIPHER_BLOCK_SIZE = 16;
+
+	private final byte[] endOfLineMarker;
+
+	private final byte[] plain;
+
+	private final byte[] output;
+
+	private final ByteBuffer outputBuffer;
+
+	/**
+	 * Start of the current frame and end of the encoded data in the plain buffer
+	 */
+	private int frameStart = 0;
+	private int length = 0;
+
+	/**
+	 * End of the terminated frames in the output buffer
+	 */
+	private int outputLength = 0;
+
+	LANFrameEncoder(final byte[] endOfLineMarker) {
+		this(endOfLineMarker, DEFAULT_CAPACITY);
+	}
+
+	LANFrameEncoder(final byte[] endOfLineMarker, final int capacity) {
+		this.endOfLineMarker = endOfLineMarker;
+		this.plain = new byte[capacity + endOfLineMarker.length];
+		this.output = new byte[plain.length + CIPHER_BLOCK_SIZE];
+		this.outputBuffer = ByteBuffer.wrap(output);
+	}
+
+	/**
+	 * Discards all frames and starts a new one
+	 */
+	LANFrameEncoder reset() {
+		frameStart = 0;
+		length = 0;
+		outputLength = 0;
+		return this;
+	}
+
+	/**
+	 * Discards the content of the current frame
+	 */
+	LANFrameEncoder rollback() {
+		length = frameStart;
+		return this;
+	}
+
+	LANFrameEncoder append(final char c) {
+		ensureCapacity(1);
+		plain[length++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Appends the characters of the string, which has to consist of ASCII characters only
+	 */
+	LANFrameEncoder append(final String ascii) {
+		final int count = ascii.length();
+		ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			plain[length++] = (byte) ascii.charAt(i);
+		}
+		return this;
+	}
+
+	LANFrameEncoder append(final byte[] data) {
+		ensureCapacity(data.length);
+		System.arraycopy(data, 0, plain, length, data.length);
+		length = length + data.length;
+		return this;
+	}
+
+	/**
+	 * Appends the bytes as upper case hexadecimal digits
+	 */
+	LANFrameEncoder appendHex(final byte[] data, final int offset, final int count) {
+		ensureCapacity(count * 2);
+		length = length + Util.toHex(data, offset, count, plain, length);
+		return this;
+	}
+
+	/**
+	 * Appends the lowest bits of the value as exactly the given number of
+	 * upper case hexadecimal digits
+	 */
+	LANFrameEncoder appendHex(final long value, final int digits) {
+		ensureCapacity(digits);
+		long rest = value;
+		for (int i = length + digits - 1; i >= length; i--) {
+			final int nibble = (int) (rest & 0x0F);
+			plain[i] = (byte) (nibble < 10 ? '0' + nibble : 'A' + nibble - 10);
+			rest = rest >>> 4;
+		}
+		length = length + digits;
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes of the current frame without the line end marker
+	 */
+	int length() {
+		return length - frameStart;
+	}
+
+	/**
+	 * @return the content of the current frame
+	 */
+	String frameToString() {
+		return new String(plain, frameStart, length - frameStart);
+	}
+
+	/**
+	 * Terminates the current frame with the line end marker and encrypts it
+	 * if a cipher is given, the next frame starts after it.
+	 */
+	void endFrame(final Cipher cipher) throws GeneralSecurityException {
+		// The capacity reserves room for the marker
+		System.arraycopy(endOfLineMarker, 0, plain, length, endOfLineMarker.length);
+		length = length + endOfLineMarker.length;
+
+		if (cipher == null) {
+			System.arraycopy(plain, frameStart, output, outputLength, length - frameStart);
+			outputLength = outputLength + length - frameStart;
+		} else {
+			outputLength = outputLength + CryptoUtil.aesCrypt(cipher, plain, frameStart, length - frameStart, output, outputLength);
+		}
+		frameStart = length;
+	}
+
+	/**
+	 * Terminates the current frame as {@link #endFrame(Cipher)} does.
+	 *
+	 * @return the bytes of all frames to write, from position to limit. The
+	 *         buffer is reused after the next reset.
+	 */
+	ByteBuffer finish(final Cipher cipher) throws GeneralSecurityException {
+		endFrame(cipher);
+		return finish();
+	}
+
+	/**
+	 * @return the bytes of all terminated frames to write, from position to
+	 *         limit. The buffer is reused after the next reset.
+	 */
+	ByteBuffer finish() {
+		outputBuffer.clear();
+		outputBuffer.limit(outputLength);
+		return outputBuffer;
+	}
+
+	private void ensureCapacity(final int count) {
+		if (length + count > plain.length - endOfLineMarker.length) {
+			throw new BufferOverflowException();
+		}
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.MessageCallback;
+
+/**
+ * Event loop serving the connections of any number of LAN links with a single
+ * thread. Reads, writes and nonblocking connects are all handled by the loop,
+ * so the number of threads no longer grows with the number of gateways. The
+ * periodic tasks of the links (keep alive, gateway time) may block on a send
+ * and run on the {@link LinkScheduler} instead.
+ * <p>
+ * Links use the blocking transport with one thread per connection unless a
+ * selector is set, e.g. {@link HMCFGLANLink#setSelector(LANSelector)}. A
+ * small pool is formed by distributing the links over several selectors.
+ * <p>
+ * Link callbacks are executed on the loop thread and must not block.
+ */
+public class LANSelector {
+
+	private static final Logger log = Logger.getLogger(LANSelector.class);
+
+	private static LANSelector defaultSelector = null;
+
+	private final String name;
+
+	private final Object lock = new Object();
+
+	private Selector selector = null;
+
+	private Thread thread = null;
+
+	private volatile boolean running = false;
+
+	/**
+	 * Tasks handed over from other threads to be executed by the loop
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private final AtomicInteger connectionCount = new AtomicInteger(0);
+
+	public LANSelector() {
+		this(LANSelector.class.getSimpleName());
+	}
+
+	public LANSelector(final String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the selector shared by all links which don't bring their own
+	 */
+	public static synchronized LANSelector getDefault() {
+		if (defaultSelector == null || !defaultSelector.isRunning()) {
+			defaultSelector = new LANSelector(LANSelector.class.getSimpleName() + " [default]");
+		}
+		return defaultSelector;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Opens the selector and starts the loop thread. Called implicitly when the
+	 * first connection is registered.
+	 */
+	public void start() throws IOException {
+		synchronized (lock) {
+			if (running) {
+				return;
+			}
+			selector = Selector.open();
+			running = true;
+			thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					loop();
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the loop thread. All connections still registered are closed and
+	 * their links are notified about the terminated connection.
+	 */
+	public void close() {
+		synchronized (lock) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			selector.wakeup();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the number of connections currently served by this selector
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Creates a nonblocking connection to the given address served by this
+	 * selector. Connecting starts with {@link SelectorConnection#start()} and is
+	 * completed by the loop, use {@link SelectorConnection#awaitConnected(long)}
+	 * to wait for it.
+	 */
+	SelectorConnection createConnection(final InetSocketAddress remoteAddress, final MessageCallback callback, final byte[] endOfLineMarker, final Cipher cipher, final int maxFrameSize) throws IOException {
+		start();
+		return new SelectorConnection(this, remoteAddress, callback, endOfLineMarker, cipher, maxFrameSize);
+	}
+
+	/**
+	 * Executes the task on the loop thread
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		if (!inLoop()) {
+			synchronized (lock) {
+				if (selector != null) {
+					selector.wakeup();
+				}
+			}
+		}
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Only to be called by the loop thread
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	void connectionOpened() {
+		connectionCount.incrementAndGet();
+	}
+
+	void connectionClosed() {
+		connectionCount.decrementAndGet();
+	}
+
+	private void loop() {
+		log.debug(name + " : Starting event loop");
+
+		while (running) {
+			try {
+				if (!tasks.isEmpty()) {
+					selector.selectNow();
+				} else {
+					selector.select();
+				}
+
+				runTasks();
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+
+					final SelectorConnection connection = (SelectorConnection) key.attachment();
+					if (connection != null) {
+						connection.handle(key);
+					}
+				}
+			} catch (Throwable ex) {
+				log.error(name + " : Error in event loop", ex);
+			}
+		}
+
+		// Close all remaining connections
+		runTasks();
+		final List<SelectorConnection> remaining = new ArrayList<SelectorConnection>();
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof SelectorConnection) {
+				remaining.add((SelectorConnection) key.attachment());
+			}
+		}
+		for (SelectorConnection connection : remaining) {
+			connection.terminate(null);
+		}
+
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			log.error(name + " : Error while closing selector", ex);
+		}
+
+		log.debug(name + " : Stopped event loop");
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable ex) {
+				log.error(name + " : Error while executing task", ex);
+			}
+		}
+	}
+
+}
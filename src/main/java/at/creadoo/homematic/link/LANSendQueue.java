@@ -0,0 +1,434 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.nio.BufferOverflowException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.util.SettableFuture;
+
+/**
+ * Send queue of a connection to a LAN gateway. Any number of threads submit
+ * frames, a single writer at a time drains the queue: it encodes and
+ * encrypts the frames in queue order and writes all frames found in the
+ * queue with one write to the connection.
+ * <p>
+ * The writer is started by the connection, a {@link SelectorConnection}
+ * drains on the loop thread, a blocking connection on the thread which
+ * found the queue idle. Frames submitted while a writer is active are
+ * picked up by it. Waiting for a frame on the loop thread writes the queue
+ * right away, a writer handed over to the loop by another thread would only
+ * run once the wait timed out.
+ */
+public final class LANSendQueue {
+
+	private static final Logger log = Logger.getLogger(LANSendQueue.class);
+
+	/**
+	 * Time to wait for a frame to be written when sending synchronously
+	 */
+	public static final long DEFAULT_SEND_TIMEOUT = 5000;
+
+	/**
+	 * Size of the buffer the frames of one write are encoded into
+	 */
+	static final int WRITE_BUFFER_SIZE = 4096;
+
+	/**
+	 * Content of a frame, encoded by the writer
+	 */
+	interface Frame {
+
+		void encode(final LANFrameEncoder encoder);
+
+	}
+
+	private final class Entry {
+
+		private final Frame frame;
+
+		private final Cipher cipher;
+
+		private final SettableFuture<Boolean> future = new Written();
+
+		private Entry(final Frame frame, final Cipher cipher) {
+			this.frame = frame;
+			this.cipher = cipher;
+		}
+
+	}
+
+	/**
+	 * Completed by the writer, drains the queue first if waited for on the
+	 * thread the writer is handed over to
+	 */
+	private final class Written extends SettableFuture<Boolean> {
+
+		@Override
+		public Boolean get() throws InterruptedException, ExecutionException {
+			if (!isDone()) {
+				writeInline();
+			}
+			return super.get();
+		}
+
+		@Override
+		public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!isDone()) {
+				writeInline();
+			}
+			return super.get(timeout, unit);
+		}
+
+	}
+
+	private final LANConnection connection;
+
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+	/**
+	 * Set while a writer drains the queue
+	 */
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+
+	private final Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Only accessed by the writer
+	 */
+	private final LANFrameEncoder encoder;
+	private final List<Entry> batch = new ArrayList<Entry>();
+	private boolean inWriter = false;
+
+	private volatile boolean closed = false;
+
+	private volatile int capacity = 0;
+
+	private final AtomicInteger depth = new AtomicInteger(0);
+	private final AtomicInteger maxDepth = new AtomicInteger(0);
+	private final AtomicLong framesWritten = new AtomicLong(0);
+	private final AtomicLong writes = new AtomicLong(0);
+	private final AtomicLong rejectedFrames = new AtomicLong(0);
+
+	LANSendQueue(final LANConnection connection, final byte[] endOfLineMarker) {
+		this.connection = connection;
+		this.encoder = new LANFrameEncoder(endOfLineMarker, WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Queues a frame
+	 *
+	 * @param cipher
+	 *            cipher to encrypt the frame with, null to send it plain
+	 * @return completed with true once the frame is written, with false if
+	 *         the frame was rejected, could not be written or the queue was
+	 *         closed
+	 */
+	Future<Boolean> submit(final Frame frame, final Cipher cipher) {
+		final Entry entry = new Entry(frame, cipher);
+		if (closed) {
+			entry.future.set(Boolean.FALSE);
+			return entry.future;
+		}
+
+		final int limit = capacity;
+		final int currentDepth = depth.incrementAndGet();
+		if (limit > 0 && currentDepth > limit) {
+			depth.decrementAndGet();
+			rejectedFrames.incrementAndGet();
+			log.warn("Send queue full, frame rejected");
+			entry.future.set(Boolean.FALSE);
+			return entry.future;
+		}
+		updateMaxDepth(currentDepth);
+
+		queue.add(entry);
+		if (writing.compareAndSet(false, true)) {
+			connection.dispatchWrite(writer);
+		}
+		return entry.future;
+	}
+
+	/**
+	 * Fails all queued frames and rejects further ones
+	 */
+	void close() {
+		closed = true;
+		// Entries are only removed by the writer, an active one fails them when done
+		if (writing.compareAndSet(false, true)) {
+			try {
+				failPending();
+			} finally {
+				writing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of queued frames, 0 for no limit
+	 */
+	public void setCapacity(final int capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of frames waiting to be written
+	 */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	/**
+	 * @return the highest number of frames waiting at the same time
+	 */
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long getFramesWritten() {
+		return framesWritten.get();
+	}
+
+	/**
+	 * @return the number of writes to the connection, each carrying one or more frames
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public long getRejectedFrames() {
+		return rejectedFrames.get();
+	}
+
+	/**
+	 * Waits for a frame to be written
+	 *
+	 * @return true if the frame was written in time
+	 */
+	static boolean await(final Future<Boolean> future, final long timeoutMillis) {
+		try {
+			return Boolean.TRUE.equals(future.get(timeoutMillis, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			log.error("Error while sending", ex.getCause());
+		} catch (TimeoutException ex) {
+			log.error("Sending timed out");
+			future.cancel(false);
+		}
+		return false;
+	}
+
+	/**
+	 * @return a frame consisting of the given ASCII command
+	 */
+	static Frame command(final String command) {
+		return new Frame() {
+
+			@Override
+			public void encode(final LANFrameEncoder encoder) {
+				encoder.append(command);
+			}
+		};
+	}
+
+	/**
+	 * @return a frame consisting of the given bytes
+	 */
+	static Frame command(final byte[] command) {
+		return new Frame() {
+
+			@Override
+			public void encode(final LANFrameEncoder encoder) {
+				encoder.append(command);
+			}
+		};
+	}
+
+	/**
+	 * The packet is read when the frame is encoded, so it must not be changed
+	 * until it is written.
+	 *
+	 * @return an 'S' command sending the packet
+	 */
+	static Frame packet(final HomeMaticPacket packet, final long startUpTime) {
+		return new Frame() {
+
+			@Override
+			public void encode(final LANFrameEncoder encoder) {
+				final long now = System.currentTimeMillis();
+				final byte[] data = packet.getData();
+				encoder
+					.append('S').appendHex(now, 8)
+					.append(",00,00000000,01,").appendHex(now - startUpTime, 8)
+					.append(',').appendHex(data, 1, data.length - 1);
+			}
+		};
+	}
+
+	private void drain() {
+		do {
+			inWriter = true;
+			try {
+				writePending();
+			} finally {
+				inWriter = false;
+				writing.set(false);
+			}
+			// A frame may have been queued after the last check but before the flag was cleared
+		} while (!queue.isEmpty() && writing.compareAndSet(false, true));
+	}
+
+	/**
+	 * Drains the queue on the thread the writer is handed over to while a
+	 * writer dispatched by another thread is still pending there. That
+	 * writer keeps the flag and clears it when it finds the queue empty.
+	 */
+	private void writeInline() {
+		if (!connection.isWriterThread() || inWriter || !writing.get()) {
+			return;
+		}
+		inWriter = true;
+		try {
+			writePending();
+		} finally {
+			inWriter = false;
+		}
+	}
+
+	private void writePending() {
+		while (!queue.isEmpty()) {
+			if (closed) {
+				failPending();
+			} else {
+				writeBatch();
+			}
+		}
+	}
+
+	private void writeBatch() {
+		encoder.reset();
+
+		Entry entry;
+		while ((entry = queue.peek()) != null) {
+			if (entry.future.isCancelled()) {
+				remove();
+				continue;
+			}
+			try {
+				entry.frame.encode(encoder);
+			} catch (BufferOverflowException ex) {
+				encoder.rollback();
+				if (!batch.isEmpty()) {
+					// Write what we have, the frame starts the next batch
+					break;
+				}
+				remove();
+				log.error("Frame too large to be sent");
+				entry.future.set(Boolean.FALSE);
+				continue;
+			} catch (Throwable ex) {
+				encoder.rollback();
+				remove();
+				entry.future.setException(ex);
+				continue;
+			}
+
+			if (log.isDebugEnabled()) {
+				log.debug("Sending packet: '" + encoder.frameToString() + "'");
+			}
+			try {
+				encoder.endFrame(entry.cipher);
+			} catch (Throwable ex) {
+				log.error("Error while encrypting", ex);
+				encoder.rollback();
+				remove();
+				entry.future.set(Boolean.FALSE);
+				continue;
+			}
+			remove();
+			batch.add(entry);
+		}
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		boolean result;
+		try {
+			connection.write(encoder.finish());
+			writes.incrementAndGet();
+			framesWritten.addAndGet(batch.size());
+			result = true;
+		} catch (Throwable ex) {
+			log.error("Sending: IO exception", ex);
+			result = false;
+		}
+		for (Entry written : batch) {
+			written.future.set(Boolean.valueOf(result));
+		}
+		batch.clear();
+	}
+
+	private void remove() {
+		queue.poll();
+		depth.decrementAndGet();
+	}
+
+	private void failPending() {
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			depth.decrementAndGet();
+			entry.future.set(Boolean.FALSE);
+		}
+	}
+
+	private void updateMaxDepth(final int currentDepth) {
+		int max;
+		while (currentDepth > (max = maxDepth.get())) {
+			if (maxDepth.compareAndSet(max, currentDepth)) {
+				return;
+			}
+		}
+	}
+
+}
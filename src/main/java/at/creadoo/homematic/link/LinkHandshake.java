@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.util.SettableFuture;
+
+/**
+ * Startup handshake of a link with a LAN gateway. The handshake is a fixed
+ * sequence of steps, each completed as soon as the gateway acknowledged it
+ * (or, for the setup, once it was written). The starting thread waits for
+ * the steps in order, each with its own timeout, so it continues as soon as
+ * the gateway is ready instead of polling.
+ * <p>
+ * Steps may be acknowledged out of order, the handshake is ready once all
+ * of them are.
+ */
+final class LinkHandshake {
+
+	private static final Logger log = Logger.getLogger(LinkHandshake.class);
+
+	/**
+	 * Time the gateway gets to acknowledge each step
+	 */
+	static final long DEFAULT_STEP_TIMEOUT = 5000;
+
+	enum Step {
+		/**
+		 * The gateway sent its IV and got ours, frames are encrypted from now on
+		 */
+		IV,
+		/**
+		 * Same as {@link #IV} for the keep alive channel of a HM-LGW
+		 */
+		IV_KEEPALIVE,
+		/**
+		 * The gateway announced its service, e.g. "BidCoS-over-LAN"
+		 */
+		GATEWAY,
+		/**
+		 * The setup was sent to the gateway
+		 */
+		SETUP
+	}
+
+	private final String name;
+
+	private final List<Step> steps;
+
+	private final Map<Step, SettableFuture<Boolean>> acknowledged = new EnumMap<Step, SettableFuture<Boolean>>(Step.class);
+
+	private final SettableFuture<Boolean> ready = new SettableFuture<Boolean>();
+
+	private volatile Step current;
+
+	LinkHandshake(final String name, final Step... steps) {
+		this.name = name;
+		this.steps = Collections.unmodifiableList(Arrays.asList(steps));
+		for (Step step : steps) {
+			acknowledged.put(step, new SettableFuture<Boolean>());
+		}
+		this.current = steps.length > 0 ? steps[0] : null;
+		if (steps.length == 0) {
+			ready.set(Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Marks the step as acknowledged, steps which are not part of the handshake are ignored
+	 */
+	void acknowledge(final Step step) {
+		final SettableFuture<Boolean> future = acknowledged.get(step);
+		if (future == null || !future.set(Boolean.TRUE)) {
+			return;
+		}
+		log.debug(name + ": Handshake step " + step + " acknowledged");
+
+		for (SettableFuture<Boolean> other : acknowledged.values()) {
+			if (!other.isDone()) {
+				return;
+			}
+		}
+		if (ready.set(Boolean.TRUE)) {
+			current = null;
+			log.debug(name + ": Handshake completed");
+		}
+	}
+
+	/**
+	 * Aborts the handshake, e.g. as the gateway sent something unexpected
+	 */
+	void fail(final String reason) {
+		if (ready.set(Boolean.FALSE)) {
+			log.error(name + ": Handshake failed in step " + current + ": " + reason);
+		}
+		completeSteps();
+	}
+
+	/**
+	 * Aborts the handshake without further notice as the link is closed
+	 */
+	void cancel() {
+		ready.set(Boolean.FALSE);
+		completeSteps();
+	}
+
+	/**
+	 * Waits for the steps in order
+	 *
+	 * @param stepTimeout
+	 *            time in milliseconds each step may take after the previous one was acknowledged
+	 * @return true if all steps were acknowledged in time
+	 */
+	boolean await(final long stepTimeout) throws InterruptedException {
+		for (Step step : steps) {
+			if (ready.isDone()) {
+				break;
+			}
+			current = step;
+			try {
+				if (!Boolean.TRUE.equals(acknowledged.get(step).get(stepTimeout, TimeUnit.MILLISECONDS))) {
+					return false;
+				}
+			} catch (TimeoutException ex) {
+				fail("not acknowledged within " + stepTimeout + " ms");
+				return false;
+			} catch (ExecutionException ex) {
+				fail(String.valueOf(ex.getCause()));
+				return false;
+			}
+		}
+		try {
+			// All steps are acknowledged, the last acknowledging thread completes the handshake right away
+			return Boolean.TRUE.equals(ready.get(stepTimeout, TimeUnit.MILLISECONDS));
+		} catch (TimeoutException ex) {
+			return false;
+		} catch (ExecutionException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return completed with true once all steps are acknowledged, with false
+	 *         if the handshake failed
+	 */
+	Future<Boolean> ready() {
+		return ready;
+	}
+
+	boolean isReady() {
+		try {
+			return ready.isDone() && Boolean.TRUE.equals(ready.get());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			//
+		}
+		return false;
+	}
+
+	/**
+	 * @return the step the handshake waits for, null once it is completed
+	 */
+	Step getCurrentStep() {
+		return current;
+	}
+
+	private void completeSteps() {
+		for (SettableFuture<Boolean> future : acknowledged.values()) {
+			future.set(Boolean.FALSE);
+		}
+	}
+
+}
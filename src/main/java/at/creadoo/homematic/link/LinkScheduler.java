@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Executes the periodic tasks of the links (keep alive, gateway time) and
+ * their delayed one-off tasks. A scheduler is shared by any number of
+ * links, so the number of threads does not grow with the number of
+ * gateways, and its daemon threads do not keep the JVM alive.
+ * <p>
+ * Periodic tasks run with a fixed delay like with {@link java.util.Timer},
+ * a stalled task does not cause a burst of executions. Tasks must not
+ * block for long, the scheduler reports how late the tasks run.
+ */
+public class LinkScheduler {
+
+	private static final Logger log = Logger.getLogger(LinkScheduler.class);
+
+	/**
+	 * Threads of the default scheduler, enough for a blocking send to not hold up the keep alives
+	 */
+	private static final int DEFAULT_THREADS = 2;
+
+	private static LinkScheduler defaultScheduler = null;
+
+	private final String name;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final AtomicInteger scheduledTasks = new AtomicInteger(0);
+
+	private final AtomicLong executions = new AtomicLong(0L);
+
+	private final AtomicLong totalLateness = new AtomicLong(0L);
+
+	private final AtomicLong maxLateness = new AtomicLong(0L);
+
+	public LinkScheduler() {
+		this(LinkScheduler.class.getSimpleName(), DEFAULT_THREADS);
+	}
+
+	public LinkScheduler(final String name, final int threads) {
+		this.name = name;
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(threads, 1), new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.setRemoveOnCancelPolicy(true);
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * @return the scheduler shared by all links which don't bring their own
+	 */
+	public static synchronized LinkScheduler getDefault() {
+		if (defaultScheduler == null || !defaultScheduler.isRunning()) {
+			defaultScheduler = new LinkScheduler(LinkScheduler.class.getSimpleName() + " [default]", DEFAULT_THREADS);
+		}
+		return defaultScheduler;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param delay
+	 *            delay in milliseconds before the first execution
+	 * @param period
+	 *            time in milliseconds between the end of an execution and
+	 *            the start of the next one, or 0 to execute the task once
+	 * @return handle to cancel the task
+	 */
+	public ScheduledTask schedule(final Runnable task, final long delay, final long period) {
+		final ScheduledTask scheduledTask = new ScheduledTask(task, Math.max(delay, 0L), Math.max(period, 0L));
+		scheduledTasks.incrementAndGet();
+		if (scheduledTask.period > 0) {
+			scheduledTask.future = executor.scheduleWithFixedDelay(scheduledTask, scheduledTask.delay, scheduledTask.period, TimeUnit.MILLISECONDS);
+		} else {
+			scheduledTask.future = executor.schedule(scheduledTask, scheduledTask.delay, TimeUnit.MILLISECONDS);
+		}
+		return scheduledTask;
+	}
+
+	/**
+	 * Stops the scheduler, tasks not yet executed are dropped
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	public boolean isRunning() {
+		return !executor.isShutdown();
+	}
+
+	/**
+	 * @return the number of tasks waiting for their next execution
+	 */
+	public int getScheduledTasks() {
+		return scheduledTasks.get();
+	}
+
+	/**
+	 * @return the number of task executions so far
+	 */
+	public long getExecutions() {
+		return executions.get();
+	}
+
+	/**
+	 * @return the longest time in milliseconds a task started after it was due
+	 */
+	public long getMaxLateness() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLateness.get());
+	}
+
+	/**
+	 * @return the average time in milliseconds the tasks started after they were due
+	 */
+	public double getAverageLateness() {
+		final long count = executions.get();
+		return count > 0 ? totalLateness.get() / 1000000.0 / count : 0.0;
+	}
+
+	private void executed(final long lateness) {
+		executions.incrementAndGet();
+		totalLateness.addAndGet(lateness);
+		long max;
+		while (lateness > (max = maxLateness.get())) {
+			if (maxLateness.compareAndSet(max, lateness)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Task scheduled with {@link LinkScheduler#schedule(Runnable, long, long)}
+	 */
+	public final class ScheduledTask implements Runnable {
+
+		private final Runnable task;
+
+		private final long delay;
+
+		private final long period;
+
+		private volatile ScheduledFuture<?> future;
+
+		/**
+		 * Time the next execution is due, in {@link System#nanoTime()}
+		 */
+		private volatile long nextRun;
+
+		private volatile boolean cancelled = false;
+
+		private final AtomicBoolean finished = new AtomicBoolean(false);
+
+		private ScheduledTask(final Runnable task, final long delay, final long period) {
+			this.task = task;
+			this.delay = delay;
+			this.period = period;
+			this.nextRun = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			executed(Math.max(0L, System.nanoTime() - nextRun));
+			try {
+				task.run();
+			} catch (Throwable ex) {
+				// An exception would cancel a periodic task
+				log.error(name + " : Error while executing scheduled task", ex);
+			} finally {
+				if (period > 0) {
+					nextRun = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(period);
+				} else {
+					finish();
+				}
+			}
+		}
+
+		public void cancel() {
+			cancelled = true;
+			final ScheduledFuture<?> current = future;
+			if (current != null) {
+				current.cancel(false);
+			}
+			finish();
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		private void finish() {
+			if (finished.compareAndSet(false, true)) {
+				scheduledTasks.decrementAndGet();
+			}
+		}
+
+	}
+
+}
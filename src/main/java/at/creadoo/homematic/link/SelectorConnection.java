@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.MessageCallback;
+
+/**
+ * Nonblocking connection to a LAN gateway served by a {@link LANSelector}.
+ * Connecting and reading is done by the loop thread. Writes go straight to
+ * the channel if nothing is pending, what the socket does not take at once
+ * is copied, queued and flushed by the loop as soon as the channel is
+ * writable.
+ */
+class SelectorConnection extends LANConnection {
+
+	private static final Logger log = Logger.getLogger(SelectorConnection.class);
+
+	private final LANSelector loop;
+
+	private final InetSocketAddress remoteAddress;
+
+	/**
+	 * Raw bytes as read from the channel, only accessed by the loop
+	 */
+	private final byte[] chunk = new byte[READ_BUFFER_SIZE];
+
+	private final ByteBuffer readBuffer = ByteBuffer.wrap(chunk);
+
+	/**
+	 * Encoded data waiting to be written, guarded by itself
+	 */
+	private final Queue<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	private final CountDownLatch connectedLatch = new CountDownLatch(1);
+
+	private volatile SocketChannel channel = null;
+
+	private SelectionKey key = null;
+
+	private volatile boolean connected = false;
+
+	private volatile boolean running = false;
+
+	SelectorConnection(final LANSelector loop, final InetSocketAddress remoteAddress, final MessageCallback callback, final byte[] endOfLineMarker, final Cipher cipher, final int maxFrameSize) {
+		super(callback, endOfLineMarker, cipher, maxFrameSize);
+		this.loop = loop;
+		this.remoteAddress = remoteAddress;
+	}
+
+	/**
+	 * Starts connecting, the connect itself is completed by the loop
+	 */
+	@Override
+	public void start() {
+		if (running) {
+			log.error("Already running");
+			return;
+		}
+		running = true;
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				open();
+			}
+		});
+	}
+
+	@Override
+	public void stop() {
+		if (!running) {
+			log.debug("Not running");
+			return;
+		}
+		running = false;
+		if (loop.inLoop()) {
+			closeChannel();
+		} else {
+			loop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					closeChannel();
+				}
+			});
+		}
+		connectedLatch.countDown();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * The send queue is drained by the loop
+	 */
+	@Override
+	void dispatchWrite(final Runnable writer) {
+		if (loop.inLoop()) {
+			writer.run();
+		} else {
+			loop.execute(writer);
+		}
+	}
+
+	@Override
+	boolean isWriterThread() {
+		return loop.inLoop();
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Waits for the nonblocking connect to complete
+	 *
+	 * @return true if connected, false if the connect failed or timed out
+	 */
+	public boolean awaitConnected(final long timeoutMillis) throws InterruptedException {
+		connectedLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		return connected;
+	}
+
+	@Override
+	public void write(final ByteBuffer data) throws IOException {
+		if (!running) {
+			throw new ClosedChannelException();
+		}
+		synchronized (writeQueue) {
+			final SocketChannel current = channel;
+			if (connected && current != null && writeQueue.isEmpty()) {
+				current.write(data);
+				if (!data.hasRemaining()) {
+					return;
+				}
+			}
+			// Keep a copy of the rest as the caller reuses the buffer
+			final ByteBuffer rest = ByteBuffer.allocate(data.remaining());
+			rest.put(data);
+			rest.flip();
+			writeQueue.add(rest);
+		}
+		if (loop.inLoop()) {
+			flush();
+		} else {
+			loop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Handles the ready operations of the channel, called by the loop
+	 */
+	void handle(final SelectionKey selectionKey) {
+		try {
+			if (!selectionKey.isValid()) {
+				return;
+			}
+			if (selectionKey.isConnectable()) {
+				finishConnect();
+			}
+			if (selectionKey.isValid() && selectionKey.isReadable()) {
+				read();
+			}
+			if (selectionKey.isValid() && selectionKey.isWritable()) {
+				flush();
+			}
+		} catch (Throwable ex) {
+			terminate(ex);
+		}
+	}
+
+	/**
+	 * Closes the channel and notifies the callback about the lost connection
+	 */
+	void terminate(final Throwable cause) {
+		if (!running) {
+			closeChannel();
+			return;
+		}
+		if (cause != null) {
+			log.error(remoteAddress + ": Error on connection", cause);
+		}
+		running = false;
+		closeChannel();
+		connectedLatch.countDown();
+		if (callback != null) {
+			callback.connectionTerminated();
+		}
+	}
+
+	private void open() {
+		if (!running) {
+			return;
+		}
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			key = channel.register(loop.getSelector(), 0, this);
+			loop.connectionOpened();
+
+			if (channel.connect(remoteAddress)) {
+				connectionEstablished();
+			} else {
+				key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		} catch (Throwable ex) {
+			log.debug(remoteAddress + ": Error connecting", ex);
+			running = false;
+			closeChannel();
+			connectedLatch.countDown();
+		}
+	}
+
+	private void finishConnect() throws IOException {
+		try {
+			if (channel.finishConnect()) {
+				connectionEstablished();
+			}
+		} catch (IOException ex) {
+			// Connect failed, the link learns about it by the latch
+			log.debug(remoteAddress + ": Error connecting", ex);
+			running = false;
+			closeChannel();
+			connectedLatch.countDown();
+		}
+	}
+
+	private void connectionEstablished() {
+		connected = true;
+		updateInterest();
+		connectedLatch.countDown();
+	}
+
+	private void read() throws Exception {
+		// Read until the channel is drained, but give the other connections a chance after a few rounds
+		for (int i = 0; i < 16 && running; i++) {
+			readBuffer.clear();
+			final int bytesRead = channel.read(readBuffer);
+			if (bytesRead < 0) {
+				throw new EOFException("Connection closed by remote host");
+			} else if (bytesRead == 0) {
+				return;
+			}
+
+			process(chunk, bytesRead);
+		}
+	}
+
+	private void flush() {
+		if (!connected || channel == null || !channel.isOpen()) {
+			return;
+		}
+		try {
+			synchronized (writeQueue) {
+				ByteBuffer buffer;
+				while ((buffer = writeQueue.peek()) != null) {
+					channel.write(buffer);
+					if (buffer.hasRemaining()) {
+						// Socket buffer full, continue when writable again
+						break;
+					}
+					writeQueue.poll();
+				}
+				updateInterest();
+			}
+		} catch (Throwable ex) {
+			terminate(ex);
+		}
+	}
+
+	private void updateInterest() {
+		if (key != null && key.isValid()) {
+			final boolean pending;
+			synchronized (writeQueue) {
+				pending = !writeQueue.isEmpty();
+			}
+			key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	private void closeChannel() {
+		connected = false;
+		getSendQueue().close();
+		synchronized (writeQueue) {
+			writeQueue.clear();
+		}
+		if (key != null) {
+			key.cancel();
+			key = null;
+			loop.connectionClosed();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				log.error(remoteAddress + ": Error while closing channel", ex);
+			}
+			channel = null;
+		}
+	}
+
+}
@@ -15,9 +15,6 @@
  */
 package at.creadoo.homematic.packet;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import at.creadoo.homematic.HomeMaticMessageType;
 import at.creadoo.homematic.util.PacketUtil;
 import at.creadoo.homematic.util.Util;
@@ -57,8 +54,14 @@ public abstract class HomeMaticPacket {
 	protected int destinationAddress = 0x0;
 
 	// Byte 10+
+	// Decoded from the raw data on first access for received packets, see decodePayload()
 	protected int[] payload = null;
 
+	/**
+	 * False until the payload of a received packet is decoded
+	 */
+	private volatile boolean payloadDecoded = true;
+
 	/**
 	 * This is the unmodified raw data from the recorded frame
 	 */
@@ -66,6 +69,16 @@ public abstract class HomeMaticPacket {
 	
 	protected int rssi;
 
+	/**
+	 * Status byte reported by a LAN gateway along with the received frame
+	 */
+	protected int gatewayStatus = 0x0;
+
+	/**
+	 * Receive time reported by a LAN gateway, milliseconds since the gateway was started
+	 */
+	protected long gatewayTime = 0;
+
 	private HomeMaticPacket() {
 		this.timestamp = System.currentTimeMillis();
 	}
@@ -143,6 +156,10 @@ public abstract class HomeMaticPacket {
 		return messageCounter;
 	}
 
+	/**
+	 * Patches the counter byte of the raw data in place, the links call this
+	 * for each packet sent
+	 */
 	public final void setMessageCounter(final int messageCounter) {
 		if (messageCounter < 0) {
 			this.messageCounter = 0;
@@ -151,7 +168,7 @@ public abstract class HomeMaticPacket {
 		} else {
 			this.messageCounter = messageCounter;
 		}
-		this.data = generateRawData();
+		patchRawData(1, this.messageCounter, 1);
 	}
 
 	public HomeMaticMessageType getMessageType() {
@@ -160,7 +177,7 @@ public abstract class HomeMaticPacket {
 
 	public final void setMessageType(final HomeMaticMessageType messageType) {
 		this.messageType = messageType;
-		this.data = generateRawData();
+		patchRawData(3, messageType != null ? messageType.getId() : 0, 1);
 	}
 
 	public int getPacketLength() {
@@ -168,6 +185,7 @@ public abstract class HomeMaticPacket {
 	}
 
 	public int[] getPayload() {
+		decodePayload();
 		return payload;
 	}
 
@@ -175,13 +193,67 @@ public abstract class HomeMaticPacket {
 		return rssi;
 	}
 
+	/**
+	 * @param rssi The signal strength in dBm
+	 */
+	public final void setRssi(final int rssi) {
+		this.rssi = rssi;
+	}
+
+	/**
+	 * @return The status byte of a LAN gateway: 0x00 not set, 0x01 waiting for AES handshake, 0x02 high load, 0x04 overload
+	 */
+	public int getGatewayStatus() {
+		return gatewayStatus;
+	}
+
+	public final void setGatewayStatus(final int gatewayStatus) {
+		this.gatewayStatus = gatewayStatus;
+	}
+
+	public long getGatewayTime() {
+		return gatewayTime;
+	}
+
+	public final void setGatewayTime(final long gatewayTime) {
+		this.gatewayTime = gatewayTime;
+	}
+
 	public final int getSenderAddress() {
 		return senderAddress;
 	}
 
 	public final void setSenderAddress(final int senderAddress) {
 		this.senderAddress = senderAddress;
-		this.data = generateRawData();
+		patchRawData(4, senderAddress, 3);
+	}
+
+	/**
+	 * @return the key of sender address, message counter, message type id
+	 *         and control byte, see {@link #identityKey(int, int, int, int)}
+	 */
+	public final long getIdentityKey() {
+		final int messageTypeId;
+		if (messageType != null) {
+			messageTypeId = messageType.getId();
+		} else {
+			// Unknown types are only kept in the raw data
+			messageTypeId = data != null && data.length > 3 ? Util.toInt(data[3]) : 0;
+		}
+		return identityKey(senderAddress, messageCounter, messageTypeId, controlByte);
+	}
+
+	/**
+	 * Packs the fields identifying a transmission into one value, so caches
+	 * and indexes can key packets without boxing. Resends of a packet have
+	 * the same key, the repeated flag of a repeater changes the control
+	 * byte.
+	 * <p>
+	 * Bits 24-47 hold the sender address, bits 16-23 the message counter,
+	 * bits 8-15 the message type id and bits 0-7 the control byte.
+	 */
+	public static long identityKey(final int senderAddress, final int messageCounter, final int messageTypeId, final int controlByte) {
+		return ((long) (senderAddress & 0xFFFFFF) << 24) | ((messageCounter & 0xFF) << 16) | ((messageTypeId & 0xFF) << 8) | (controlByte & 0xFF);
 	}
 
 	public final long getTimestamp() {
@@ -189,8 +261,8 @@ public abstract class HomeMaticPacket {
 	}
 
 	public final void setTimestamp(final long timestamp) {
+		// Not part of the raw data
 		this.timestamp = timestamp;
-		this.data = generateRawData();
 	}
 	
 	final void setPayload(final int[] payload) {
@@ -220,6 +292,28 @@ public abstract class HomeMaticPacket {
 	 */
 	protected abstract void parsePayload();
 
+	/**
+	 * Decodes the payload of a received packet on the first call, which
+	 * includes {@link #parsePayload()}. Accessors of payload fields call
+	 * this first, packets no one looks into are never decoded.
+	 */
+	protected final void decodePayload() {
+		if (!payloadDecoded) {
+			synchronized (this) {
+				if (!payloadDecoded) {
+					final int size = Math.max(0, Math.min(packetLength - MIN_PACKET_LEN, data.length - MIN_PACKET_LEN - 1));
+					final int[] result = new int[size];
+					for (int i = 0; i < size; i++) {
+						result[i] = Util.toInt(data[MIN_PACKET_LEN + 1 + i]);
+					}
+					this.payload = result;
+					parsePayload();
+					payloadDecoded = true;
+				}
+			}
+		}
+	}
+
 	/**
 	 * This method is called when a packet is built out of its stored values and
 	 * is converted to a byte array. This method should be overridden when
@@ -228,32 +322,35 @@ public abstract class HomeMaticPacket {
 	 */
 	protected abstract void generatePayload();
 
+	/**
+	 * Packets are equal if they are of the same class and their header
+	 * fields are equal, subclasses add their payload fields
+	 */
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof HomeMaticPacket) {
-			final HomeMaticPacket other = (HomeMaticPacket) obj;
-			EqualsBuilder builder = new EqualsBuilder()
-				.append(getControlByte(), other.getControlByte())
-				.append(getDestinationAddress(), other.getDestinationAddress())
-				.append(getMessageCounter(), other.getMessageCounter())
-				.append(getMessageType(), other.getMessageType())
-				.append(getPacketLength(), other.getPacketLength())
-				.append(getSenderAddress(), other.getSenderAddress());
-			return builder.isEquals();
+		if (this == obj) {
+			return true;
 		}
-		return false;
+		if (obj == null || obj.getClass() != getClass()) {
+			return false;
+		}
+		final HomeMaticPacket other = (HomeMaticPacket) obj;
+		return getControlByte() == other.getControlByte()
+				&& getDestinationAddress() == other.getDestinationAddress()
+				&& getMessageCounter() == other.getMessageCounter()
+				&& getMessageType() == other.getMessageType()
+				&& getPacketLength() == other.getPacketLength()
+				&& getSenderAddress() == other.getSenderAddress();
 	}
 
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder(1, 31)
-			.append(getControlByte())
-			.append(getDestinationAddress())
-			.append(getMessageCounter())
-			.append(getMessageType())
-			.append(getPacketLength())
-			.append(getSenderAddress())
-			.toHashCode();
+		int result = 31 + getControlByte();
+		result = 31 * result + getDestinationAddress();
+		result = 31 * result + getMessageCounter();
+		result = 31 * result + (getMessageType() == null ? 0 : getMessageType().getId() + 1);
+		result = 31 * result + getPacketLength();
+		return 31 * result + getSenderAddress();
 	}
 	
 	/**
@@ -262,6 +359,7 @@ public abstract class HomeMaticPacket {
 	 */
 	@Override
 	public final String toString() {
+		decodePayload();
 		final StringBuilder sb = new StringBuilder();
 		sb.append(this.getClass().getSimpleName() + " [");
 		sb.append("rssi=").append(rssi).append("dBm, ");
@@ -293,41 +391,49 @@ public abstract class HomeMaticPacket {
 		this.data = new byte[data.length];
 		System.arraycopy(data, 0, this.data, 0, data.length);
 		
-		final int[] tempData = Util.toIntArray(data);
-		
-		messageCounter = tempData[1];
-		controlByte = tempData[2];
-		messageType = HomeMaticMessageType.getById(tempData[3]);
-		senderAddress = (tempData[4] << 16) + (tempData[5] << 8) + tempData[6];
-		destinationAddress = (tempData[7] << 16) + (tempData[8] << 8) + tempData[9];
+		messageCounter = Util.toInt(data[1]);
+		controlByte = Util.toInt(data[2]);
+		messageType = HomeMaticMessageType.getById(Util.toInt(data[3]));
+		senderAddress = (Util.toInt(data[4]) << 16) + (Util.toInt(data[5]) << 8) + Util.toInt(data[6]);
+		destinationAddress = (Util.toInt(data[7]) << 16) + (Util.toInt(data[8]) << 8) + Util.toInt(data[9]);
 		
-		int payload_size = packetLength - MIN_PACKET_LEN;
-		payload = new int[payload_size];
-		for (int i = 0; i < payload_size; i++) {
-			payload[i] = tempData[10 + i];
-		}
-		parsePayload();
+		payloadDecoded = false;
 	}
 
 	private byte[] generateRawData() {
-		final int[] tempData = new int[packetLength + 1];
+		decodePayload();
+		final byte[] result = new byte[packetLength + 1];
 		
-		tempData[0] = packetLength;
-		tempData[1] = messageCounter;
-		tempData[2] = controlByte;
-		tempData[3] = (messageType != null ? messageType.getId() : 0);
-		tempData[4] = senderAddress >> 16;
-		tempData[5] = senderAddress >> 8;
-		tempData[6] = senderAddress;
-		tempData[7] = destinationAddress >> 16;
-		tempData[8] = destinationAddress >> 8;
-		tempData[9] = destinationAddress;
+		result[0] = (byte) packetLength;
+		result[1] = (byte) messageCounter;
+		result[2] = (byte) controlByte;
+		result[3] = (byte) (messageType != null ? messageType.getId() : 0);
+		result[4] = (byte) (senderAddress >> 16);
+		result[5] = (byte) (senderAddress >> 8);
+		result[6] = (byte) senderAddress;
+		result[7] = (byte) (destinationAddress >> 16);
+		result[8] = (byte) (destinationAddress >> 8);
+		result[9] = (byte) destinationAddress;
 		
 		for (int i = 0; i < payload.length; i++) {
-			tempData[10 + i] = payload[i];
+			result[10 + i] = (byte) payload[i];
 		}
 		
-		return Util.toByteArray(tempData);
+		return result;
+	}
+
+	/**
+	 * Writes a header field of the given number of bytes, big endian, into
+	 * the raw data instead of generating it again
+	 */
+	private void patchRawData(final int index, final int value, final int bytes) {
+		if (data == null || data.length < index + bytes) {
+			this.data = generateRawData();
+			return;
+		}
+		for (int i = 0; i < bytes; i++) {
+			data[index + i] = (byte) (value >> (8 * (bytes - 1 - i)));
+		}
 	}
 
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.packet;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.HomeMaticStatus;
+import at.creadoo.homematic.util.PacketUtil;
+
+/**
+ * Collects the fields of an outbound packet and encodes them once, either
+ * into a buffer of the caller with {@link #encode(byte[], int)} or into a
+ * packet with {@link #build()}. Building a packet with its constructor and
+ * setters encodes it again on every change.
+ * <p>
+ * A builder can be reused after {@link #reset()}, it does not allocate
+ * while collecting fields or encoding into a buffer. Builders are not
+ * thread safe.
+ */
+public final class HomeMaticPacketBuilder {
+
+	/**
+	 * The length byte counts at most 255 bytes following it
+	 */
+	public static final int MAX_PAYLOAD_LEN = 255 - HomeMaticPacket.MIN_PACKET_LEN;
+
+	private int messageCounter = 0;
+
+	private int controlByte = 0;
+
+	private HomeMaticMessageType messageType = null;
+
+	private int senderAddress = 0;
+
+	private int destinationAddress = 0;
+
+	private final byte[] payload = new byte[MAX_PAYLOAD_LEN];
+
+	private int payloadLength = 0;
+
+	/**
+	 * @return a builder for the given type with the payload length the
+	 *         packet class of the type uses
+	 */
+	public static HomeMaticPacketBuilder forType(final HomeMaticMessageType messageType) {
+		final HomeMaticPacketBuilder result = new HomeMaticPacketBuilder().messageType(messageType);
+		if (messageType == HomeMaticMessageType.EVENT) {
+			result.payloadLength(HomeMaticPacketEvent.PAYLOAD_LEN);
+		} else if (messageType == HomeMaticMessageType.INFORMATION) {
+			result.payloadLength(HomeMaticPacketInformation.PAYLOAD_LEN);
+		} else if (messageType == HomeMaticMessageType.REMOTE) {
+			result.payloadLength(HomeMaticPacketRemote.PAYLOAD_LEN);
+		} else if (messageType == HomeMaticMessageType.SET) {
+			result.payloadLength(HomeMaticPacketSet.PAYLOAD_LEN);
+		}
+		return result;
+	}
+
+	public HomeMaticPacketBuilder messageCounter(final int messageCounter) {
+		this.messageCounter = messageCounter & 0xFF;
+		return this;
+	}
+
+	public HomeMaticPacketBuilder controlByte(final int controlByte) {
+		this.controlByte = controlByte & 0xFF;
+		return this;
+	}
+
+	public HomeMaticPacketBuilder messageType(final HomeMaticMessageType messageType) {
+		this.messageType = messageType;
+		return this;
+	}
+
+	public HomeMaticPacketBuilder senderAddress(final int senderAddress) {
+		this.senderAddress = senderAddress & 0xFFFFFF;
+		return this;
+	}
+
+	public HomeMaticPacketBuilder destinationAddress(final int destinationAddress) {
+		this.destinationAddress = destinationAddress & 0xFFFFFF;
+		return this;
+	}
+
+	/**
+	 * Sets the payload length, added bytes are 0
+	 */
+	public HomeMaticPacketBuilder payloadLength(final int length) {
+		if (length < 0 || length > MAX_PAYLOAD_LEN) {
+			throw new IllegalArgumentException("Invalid payload length: " + length);
+		}
+		if (length < payloadLength) {
+			clearPayload(length, payloadLength);
+		}
+		payloadLength = length;
+		return this;
+	}
+
+	/**
+	 * Sets a payload byte, the payload grows as needed
+	 */
+	public HomeMaticPacketBuilder payload(final int index, final int value) {
+		if (index >= payloadLength) {
+			payloadLength(index + 1);
+		}
+		payload[index] = (byte) value;
+		return this;
+	}
+
+	/**
+	 * Replaces the payload
+	 */
+	public HomeMaticPacketBuilder payload(final byte[] payload) {
+		payloadLength(0);
+		payloadLength(payload.length);
+		System.arraycopy(payload, 0, this.payload, 0, payload.length);
+		return this;
+	}
+
+	/**
+	 * Sets the status byte of an {@link HomeMaticMessageType#EVENT} or
+	 * {@link HomeMaticMessageType#SET} packet
+	 */
+	public HomeMaticPacketBuilder status(final HomeMaticStatus status) {
+		if (status == HomeMaticStatus.ON) {
+			payload(2, 0xC8);
+		} else if (status == HomeMaticStatus.OFF) {
+			payload(2, 0x00);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes {@link #encode(byte[], int)} writes,
+	 *         including the length byte
+	 */
+	public int getEncodedLength() {
+		return HomeMaticPacket.MIN_PACKET_LEN + payloadLength + 1;
+	}
+
+	/**
+	 * Writes the packet, starting with the length byte, to the buffer
+	 *
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if the buffer is too small
+	 */
+	public int encode(final byte[] buffer, final int offset) {
+		final int length = getEncodedLength();
+		if (offset < 0 || buffer.length - offset < length) {
+			throw new IllegalArgumentException("Buffer too small, " + length + " bytes required");
+		}
+		buffer[offset] = (byte) (length - 1);
+		buffer[offset + 1] = (byte) messageCounter;
+		buffer[offset + 2] = (byte) controlByte;
+		buffer[offset + 3] = (byte) (messageType != null ? messageType.getId() : 0);
+		buffer[offset + 4] = (byte) (senderAddress >> 16);
+		buffer[offset + 5] = (byte) (senderAddress >> 8);
+		buffer[offset + 6] = (byte) senderAddress;
+		buffer[offset + 7] = (byte) (destinationAddress >> 16);
+		buffer[offset + 8] = (byte) (destinationAddress >> 8);
+		buffer[offset + 9] = (byte) destinationAddress;
+		System.arraycopy(payload, 0, buffer, offset + 10, payloadLength);
+		return length;
+	}
+
+	public byte[] toByteArray() {
+		final byte[] result = new byte[getEncodedLength()];
+		encode(result, 0);
+		return result;
+	}
+
+	/**
+	 * @return the packet class registered for the message type, see
+	 *         {@link PacketCodecRegistry}
+	 */
+	public HomeMaticPacket build() {
+		final HomeMaticPacket result = PacketUtil.createPacketByMessageType(toByteArray());
+		// Outbound, there is no signal strength
+		result.setRssi(0);
+		return result;
+	}
+
+	/**
+	 * Clears all fields for the next packet
+	 */
+	public HomeMaticPacketBuilder reset() {
+		messageCounter = 0;
+		controlByte = 0;
+		messageType = null;
+		senderAddress = 0;
+		destinationAddress = 0;
+		clearPayload(0, payloadLength);
+		payloadLength = 0;
+		return this;
+	}
+
+	private void clearPayload(final int from, final int to) {
+		for (int i = from; i < to; i++) {
+			payload[i] = 0;
+		}
+	}
+
+}
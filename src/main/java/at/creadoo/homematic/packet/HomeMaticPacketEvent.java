@@ -15,9 +15,6 @@
  */
 package at.creadoo.homematic.packet;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import at.creadoo.homematic.HomeMaticMessageType;
 import at.creadoo.homematic.HomeMaticStatus;
 import at.creadoo.homematic.util.Util;
@@ -53,19 +50,23 @@ public class HomeMaticPacketEvent extends HomeMaticPacket {
 	}
 
 	public final HomeMaticStatus getStatus() {
+		decodePayload();
 		return status;
 	}
 
 	public final void setStatus(final HomeMaticStatus status) {
+		decodePayload();
 		this.status = status;
 		generatePayload();
 	}
 
 	public final boolean getLowBat() {
+		decodePayload();
 		return lowBat;
 	}
 
 	public final void setLowBat(final boolean lowBat) {
+		decodePayload();
 		this.lowBat = lowBat;
 		generatePayload();
 	}
@@ -113,24 +114,19 @@ public class HomeMaticPacketEvent extends HomeMaticPacket {
 
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof HomeMaticPacket) {
-			final HomeMaticPacketEvent other = (HomeMaticPacketEvent) obj;
-			EqualsBuilder builder = new EqualsBuilder()
-				.appendSuper(super.equals(other))
-				.append(getStatus(), other.getStatus())
-				.append(getLowBat(), other.getLowBat());
-			return builder.isEquals();
+		if (!super.equals(obj)) {
+			return false;
 		}
-		return false;
+		final HomeMaticPacketEvent other = (HomeMaticPacketEvent) obj;
+		return getStatus() == other.getStatus()
+				&& getLowBat() == other.getLowBat();
 	}
 
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder(1, 31)
-			.appendSuper(super.hashCode())
-			.append(getStatus())
-			.append(getLowBat())
-			.toHashCode();
+		int result = super.hashCode();
+		result = 31 * result + (getStatus() == null ? 0 : getStatus().ordinal() + 1);
+		return 31 * result + (getLowBat() ? 1231 : 1237);
 	}
 
 }
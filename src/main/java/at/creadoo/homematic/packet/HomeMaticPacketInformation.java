@@ -15,9 +15,6 @@
  */
 package at.creadoo.homematic.packet;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import at.creadoo.homematic.HomeMaticError;
 import at.creadoo.homematic.HomeMaticMessageType;
 import at.creadoo.homematic.util.Util;
@@ -52,28 +49,34 @@ public class HomeMaticPacketInformation extends HomeMaticPacket {
 	}
 
 	public final int getStatus() {
+		decodePayload();
 		return status;
 	}
 
 	public final void setStatus(final int status) {
+		decodePayload();
 		this.status = status;
 		generatePayload();
 	}
 
 	public final HomeMaticError getError() {
+		decodePayload();
 		return error;
 	}
 
 	public final void setError(final HomeMaticError error) {
+		decodePayload();
 		this.error = error;
 		generatePayload();
 	}
 
 	public final boolean getLowBat() {
+		decodePayload();
 		return lowBat;
 	}
 
 	public final void setLowBat(final boolean lowBat) {
+		decodePayload();
 		this.lowBat = lowBat;
 		generatePayload();
 	}
@@ -127,26 +130,21 @@ public class HomeMaticPacketInformation extends HomeMaticPacket {
 
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof HomeMaticPacket) {
-			final HomeMaticPacketInformation other = (HomeMaticPacketInformation) obj;
-			EqualsBuilder builder = new EqualsBuilder()
-				.appendSuper(super.equals(other))
-				.append(getStatus(), other.getStatus())
-				.append(getError(), other.getError())
-				.append(getLowBat(), other.getLowBat());
-			return builder.isEquals();
+		if (!super.equals(obj)) {
+			return false;
 		}
-		return false;
+		final HomeMaticPacketInformation other = (HomeMaticPacketInformation) obj;
+		return getStatus() == other.getStatus()
+				&& getError() == other.getError()
+				&& getLowBat() == other.getLowBat();
 	}
 
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder(1, 31)
-			.appendSuper(super.hashCode())
-			.append(getStatus())
-			.append(getError())
-			.append(getLowBat())
-			.toHashCode();
+		int result = super.hashCode();
+		result = 31 * result + getStatus();
+		result = 31 * result + (getError() == null ? 0 : getError().ordinal() + 1);
+		return 31 * result + (getLowBat() ? 1231 : 1237);
 	}
 
 }
@@ -15,9 +15,6 @@
  */
 package at.creadoo.homematic.packet;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import at.creadoo.homematic.HomeMaticMessageType;
 import at.creadoo.homematic.util.Util;
 
@@ -53,28 +50,34 @@ public class HomeMaticPacketRemote extends HomeMaticPacket {
 	}
 
 	public final int getChannel() {
+		decodePayload();
 		return channel;
 	}
 
 	public final void setChannel(final int channel) {
+		decodePayload();
 		this.channel = channel & 0x0000000f;
 		generatePayload();
 	}
 
 	public final boolean getLongPress() {
+		decodePayload();
 		return longPress;
 	}
 
 	public final void setLongPress(final boolean longPress) {
+		decodePayload();
 		this.longPress = longPress;
 		generatePayload();
 	}
 
 	public final int getCounter() {
+		decodePayload();
 		return counter;
 	}
 
 	public final void setCounter(final int counter) {
+		decodePayload();
 		this.counter = counter;
 		generatePayload();
 	}
@@ -114,26 +117,21 @@ public class HomeMaticPacketRemote extends HomeMaticPacket {
 
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof HomeMaticPacket) {
-			final HomeMaticPacketRemote other = (HomeMaticPacketRemote) obj;
-			EqualsBuilder builder = new EqualsBuilder()
-				.appendSuper(super.equals(other))
-				.append(getChannel(), other.getChannel())
-				.append(getLongPress(), other.getLongPress())
-				.append(getCounter(), other.getCounter());
-			return builder.isEquals();
+		if (!super.equals(obj)) {
+			return false;
 		}
-		return false;
+		final HomeMaticPacketRemote other = (HomeMaticPacketRemote) obj;
+		return getChannel() == other.getChannel()
+				&& getLongPress() == other.getLongPress()
+				&& getCounter() == other.getCounter();
 	}
 
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder(1, 31)
-			.appendSuper(super.hashCode())
-			.append(getChannel())
-			.append(getLongPress())
-			.append(getCounter())
-			.toHashCode();
+		int result = super.hashCode();
+		result = 31 * result + getChannel();
+		result = 31 * result + (getLongPress() ? 1231 : 1237);
+		return 31 * result + getCounter();
 	}
 	
 }
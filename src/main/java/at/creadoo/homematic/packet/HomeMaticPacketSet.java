@@ -15,9 +15,6 @@
  */
 package at.creadoo.homematic.packet;
 
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-
 import at.creadoo.homematic.HomeMaticMessageType;
 import at.creadoo.homematic.HomeMaticStatus;
 
@@ -46,10 +43,12 @@ public class HomeMaticPacketSet extends HomeMaticPacket {
 	}
 
 	public final HomeMaticStatus getStatus() {
+		decodePayload();
 		return status;
 	}
 
 	public final void setStatus(final HomeMaticStatus status) {
+		decodePayload();
 		this.status = status;
 		generatePayload();
 	}
@@ -85,22 +84,17 @@ public class HomeMaticPacketSet extends HomeMaticPacket {
 
 	@Override
 	public boolean equals(final Object obj) {
-		if (obj instanceof HomeMaticPacket) {
-			final HomeMaticPacketSet other = (HomeMaticPacketSet) obj;
-			EqualsBuilder builder = new EqualsBuilder()
-				.appendSuper(super.equals(other))
-				.append(getStatus(), other.getStatus());
-			return builder.isEquals();
+		if (!super.equals(obj)) {
+			return false;
 		}
-		return false;
+		final HomeMaticPacketSet other = (HomeMaticPacketSet) obj;
+		return getStatus() == other.getStatus();
 	}
 
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder(1, 31)
-			.appendSuper(super.hashCode())
-			.append(getStatus())
-			.toHashCode();
+		int result = super.hashCode();
+		return 31 * result + (getStatus() == null ? 0 : getStatus().ordinal() + 1);
 	}
 
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.packet;
+
+import at.creadoo.homematic.HomeMaticError;
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.HomeMaticProtocol;
+import at.creadoo.homematic.HomeMaticStatus;
+import at.creadoo.homematic.util.PacketUtil;
+import at.creadoo.homematic.util.Util;
+
+/**
+ * Read-only view of a BidCoS frame, the fields are decoded from the bytes
+ * on each call instead of being copied into a {@link HomeMaticPacket}. One
+ * view can be moved from frame to frame with {@link #wrap(byte[], int)} or
+ * decode LAN gateway frames into its own buffer, see
+ * {@link PacketUtil#decodeLANPacket(byte[], at.creadoo.homematic.util.DuplicateFilter, HomeMaticPacketView)}.
+ * <p>
+ * A view is only valid until it is moved to the next frame. Consumers
+ * keeping a frame have to take a {@link #copy()} or convert it with
+ * {@link #toPacket()}. Views are not thread safe.
+ */
+public final class HomeMaticPacketView {
+
+	private static final int HEADER_LEN = HomeMaticPacket.MIN_PACKET_LEN + 1;
+
+	/**
+	 * Buffer owned by the view, reused by {@link #prepare(int)}
+	 */
+	private byte[] buffer = null;
+
+	private byte[] data = null;
+
+	private int offset = 0;
+
+	private int rssi = 0;
+
+	private int gatewayStatus = 0;
+
+	private long gatewayTime = 0L;
+
+	private int gatewayResponse = -1;
+
+	public HomeMaticPacketView() {
+		//
+	}
+
+	/**
+	 * @param data BidCoS frame starting with the length byte
+	 */
+	public HomeMaticPacketView(final byte[] data) {
+		wrap(data, 0);
+	}
+
+	/**
+	 * Moves the view to the frame starting with the length byte at the given
+	 * offset. The bytes are not copied.
+	 *
+	 * @throws IllegalArgumentException if the frame is shorter than its header or its length byte
+	 */
+	public HomeMaticPacketView wrap(final byte[] data, final int offset) {
+		if (data == null || offset < 0 || data.length - offset < HEADER_LEN || data.length - offset <= Util.toInt(data[offset])) {
+			throw new IllegalArgumentException("Incomplete frame");
+		}
+		this.data = data;
+		this.offset = offset;
+		this.rssi = 0;
+		this.gatewayStatus = 0;
+		this.gatewayTime = 0L;
+		this.gatewayResponse = -1;
+		return this;
+	}
+
+	/**
+	 * @return a buffer of at least the given length the caller writes the
+	 *         next frame to, starting at index 0, before calling
+	 *         {@link #wrap(byte[], int)}. The buffer is reused by the
+	 *         following calls.
+	 */
+	public byte[] prepare(final int length) {
+		if (buffer == null || buffer.length < length) {
+			buffer = new byte[length];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Sets the values a LAN gateway reports along with the frame
+	 */
+	public HomeMaticPacketView setGatewayValues(final int rssi, final int gatewayStatus, final long gatewayTime) {
+		this.rssi = rssi;
+		this.gatewayStatus = gatewayStatus;
+		this.gatewayTime = gatewayTime;
+		return this;
+	}
+
+	/**
+	 * Marks the frame as the response of a LAN gateway to a sent frame, an
+	 * 'R' frame echoing it
+	 *
+	 * @param gatewayResponse the low byte of the status field, e.g. 0x01 for
+	 *            an ACK or 0x08 for no answer after three tries
+	 */
+	public HomeMaticPacketView setGatewayResponse(final int gatewayResponse) {
+		this.gatewayResponse = gatewayResponse & 0xFF;
+		return this;
+	}
+
+	public boolean isWrapped() {
+		return data != null;
+	}
+
+	/**
+	 * @return the length of the frame not including the length byte
+	 */
+	public int getPacketLength() {
+		return byteAt(0);
+	}
+
+	public int getMessageCounter() {
+		return byteAt(1);
+	}
+
+	public int getControlByte() {
+		return byteAt(2);
+	}
+
+	public boolean isRepeated() {
+		return HomeMaticProtocol.isRPTSet(getControlByte());
+	}
+
+	public int getMessageTypeId() {
+		return byteAt(3);
+	}
+
+	/**
+	 * @return the message type or null if unknown
+	 */
+	public HomeMaticMessageType getMessageType() {
+		return HomeMaticMessageType.getById(getMessageTypeId());
+	}
+
+	public int getSenderAddress() {
+		return (byteAt(4) << 16) | (byteAt(5) << 8) | byteAt(6);
+	}
+
+	public int getDestinationAddress() {
+		return (byteAt(7) << 16) | (byteAt(8) << 8) | byteAt(9);
+	}
+
+	/**
+	 * @return the same key as {@link HomeMaticPacket#getIdentityKey()} of the decoded packet
+	 */
+	public long getIdentityKey() {
+		return HomeMaticPacket.identityKey(getSenderAddress(), getMessageCounter(), getMessageTypeId(), getControlByte());
+	}
+
+	public int getPayloadLength() {
+		return Math.max(0, getPacketLength() - HomeMaticPacket.MIN_PACKET_LEN);
+	}
+
+	/**
+	 * @return the unsigned payload byte at the given index
+	 * @throws IndexOutOfBoundsException if the payload is shorter
+	 */
+	public int getPayload(final int index) {
+		if (index < 0 || index >= getPayloadLength()) {
+			throw new IndexOutOfBoundsException("Payload index " + index + ", length " + getPayloadLength());
+		}
+		return byteAt(HEADER_LEN + index);
+	}
+
+	public int getRssi() {
+		return rssi;
+	}
+
+	public int getGatewayStatus() {
+		return gatewayStatus;
+	}
+
+	public long getGatewayTime() {
+		return gatewayTime;
+	}
+
+	/**
+	 * @return the response code if the frame is the response of a LAN
+	 *         gateway to a sent frame, -1 for received frames
+	 */
+	public int getGatewayResponse() {
+		return gatewayResponse;
+	}
+
+	/**
+	 * @return the status of an {@link HomeMaticMessageType#EVENT} or
+	 *         {@link HomeMaticMessageType#SET} frame, null for other frames or
+	 *         an unknown status
+	 */
+	public HomeMaticStatus getStatus() {
+		final int type = getMessageTypeId();
+		if ((type != HomeMaticMessageType.EVENT.getId() && type != HomeMaticMessageType.SET.getId()) || getPayloadLength() < 3) {
+			return null;
+		}
+		final int status = getPayload(2);
+		if (status == 0x00) {
+			return HomeMaticStatus.OFF;
+		} else if (status == 0xC8) {
+			return HomeMaticStatus.ON;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the low battery flag of an {@link HomeMaticMessageType#EVENT} or
+	 *         {@link HomeMaticMessageType#INFORMATION} frame
+	 */
+	public boolean getLowBat() {
+		final int type = getMessageTypeId();
+		if (type == HomeMaticMessageType.EVENT.getId() && getPayloadLength() >= 1) {
+			return Util.isBitSet(getPayload(0), 7);
+		} else if (type == HomeMaticMessageType.INFORMATION.getId() && getPayloadLength() >= 4) {
+			return Util.isBitSet(getPayload(3), 7);
+		}
+		return false;
+	}
+
+	/**
+	 * @return the error of an {@link HomeMaticMessageType#INFORMATION} frame, null for other frames
+	 */
+	public HomeMaticError getError() {
+		if (getMessageTypeId() != HomeMaticMessageType.INFORMATION.getId() || getPayloadLength() < 4) {
+			return null;
+		}
+		final int error = Util.bitsToInt(getPayload(3), 1, 3);
+		if (error == 0) {
+			return HomeMaticError.NO_ERROR;
+		} else if (error == 7) {
+			return HomeMaticError.SABOTAGE;
+		}
+		return HomeMaticError.ERROR;
+	}
+
+	/**
+	 * @return the channel of a {@link HomeMaticMessageType#REMOTE} frame, -1 for other frames
+	 */
+	public int getChannel() {
+		if (!isRemote()) {
+			return -1;
+		}
+		return getPayload(0) & 0x0F;
+	}
+
+	/**
+	 * @return the long press flag of a {@link HomeMaticMessageType#REMOTE} frame
+	 */
+	public boolean getLongPress() {
+		return isRemote() && Util.isBitSet(getPayload(0), 6);
+	}
+
+	/**
+	 * @return the key press counter of a {@link HomeMaticMessageType#REMOTE} frame, -1 for other frames
+	 */
+	public int getCounter() {
+		if (!isRemote()) {
+			return -1;
+		}
+		return getPayload(1);
+	}
+
+	/**
+	 * @return a copy of the frame including the length byte
+	 */
+	public byte[] toByteArray() {
+		final byte[] result = new byte[getPacketLength() + 1];
+		System.arraycopy(data, offset, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @return a view of a copy of the frame, stays valid when this view is moved
+	 */
+	public HomeMaticPacketView copy() {
+		final HomeMaticPacketView result = new HomeMaticPacketView(toByteArray()).setGatewayValues(rssi, gatewayStatus, gatewayTime);
+		result.gatewayResponse = gatewayResponse;
+		return result;
+	}
+
+	/**
+	 * @return the frame decoded into a packet of the class registered for
+	 *         its message type, see {@link PacketCodecRegistry}
+	 */
+	public HomeMaticPacket toPacket() {
+		// The packet copies the bytes itself
+		final byte[] frame = offset == 0 && data.length == getPacketLength() + 1 ? data : toByteArray();
+		final HomeMaticPacket result = PacketUtil.createPacketByMessageType(frame);
+		if (result != null) {
+			result.setRssi(rssi);
+			result.setGatewayStatus(gatewayStatus);
+			result.setGatewayTime(gatewayTime);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		if (data == null) {
+			return getClass().getSimpleName() + " [ ]";
+		}
+		final HomeMaticMessageType messageType = getMessageType();
+		final StringBuilder sb = new StringBuilder();
+		sb.append(getClass().getSimpleName() + " [");
+		sb.append("rssi=").append(rssi).append("dBm, ");
+		sb.append("length=").append(getPacketLength()).append(", ");
+		sb.append("type=").append(messageType != null ? messageType.name() : ("0x" + Integer.toHexString(getMessageTypeId()) + " (Unkown)")).append(", ");
+		sb.append("sender=0x").append(Integer.toHexString(getSenderAddress())).append(", ");
+		sb.append("destination=0x").append(Integer.toHexString(getDestinationAddress())).append(", ");
+		sb.append("packet_number=0x").append(Integer.toHexString(getMessageCounter())).append(", ");
+		sb.append("payload= [ ");
+		for (int i = 0; i < getPayloadLength(); i++) {
+			if (i != 0)
+				sb.append(", ");
+			sb.append(Integer.toHexString(getPayload(i)));
+		}
+		sb.append(" ] ]");
+		return sb.toString();
+	}
+
+	private boolean isRemote() {
+		return getMessageTypeId() == HomeMaticMessageType.REMOTE.getId() && getPayloadLength() >= 2;
+	}
+
+	private int byteAt(final int index) {
+		return data[offset + index] & 0xFF;
+	}
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.packet;
+
+/**
+ * Creates the packet class of a message type from the raw bytes of a
+ * received frame, see {@link PacketCodecRegistry}. The packet encodes its
+ * payload itself when it is sent.
+ */
+public interface PacketCodec {
+
+	/**
+	 * @param data the BidCoS frame starting with the length byte, the packet copies it
+	 * @param rssi the signal strength as reported by the receiver, not yet converted to dBm
+	 */
+	HomeMaticPacket decode(byte[] data, int rssi);
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.packet;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.util.Util;
+
+/**
+ * {@link PacketCodec}s by message type id, looked up by array index for each
+ * received frame. Frames of types without a codec are decoded into a
+ * {@link HomeMaticPacketPlain}.
+ * <p>
+ * The codecs are kept in an array that is replaced on registration, so
+ * decoding does not lock. The default registry, used by the links, has
+ * codecs for {@link HomeMaticMessageType#EVENT},
+ * {@link HomeMaticMessageType#INFORMATION},
+ * {@link HomeMaticMessageType#REMOTE} and {@link HomeMaticMessageType#SET}.
+ */
+public class PacketCodecRegistry {
+
+	private static final int TYPES = 256;
+
+	/**
+	 * Message type id at index 3, after length, counter and control byte
+	 */
+	private static final int TYPE_INDEX = 3;
+
+	private static final PacketCodec PLAIN = new PacketCodec() {
+
+		@Override
+		public HomeMaticPacket decode(final byte[] data, final int rssi) {
+			return new HomeMaticPacketPlain(data, rssi);
+		}
+	};
+
+	private static final PacketCodecRegistry DEFAULT = createDefault();
+
+	private final Object lock = new Object();
+
+	private volatile PacketCodec[] codecs = new PacketCodec[TYPES];
+
+	/**
+	 * @return the registry used by the links to decode received frames
+	 */
+	public static PacketCodecRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return a new registry with the codecs of the packet classes of this library
+	 */
+	public static PacketCodecRegistry createDefault() {
+		final PacketCodecRegistry result = new PacketCodecRegistry();
+		result.register(HomeMaticMessageType.EVENT, new PacketCodec() {
+
+			@Override
+			public HomeMaticPacket decode(final byte[] data, final int rssi) {
+				return new HomeMaticPacketEvent(data, rssi);
+			}
+		});
+		result.register(HomeMaticMessageType.INFORMATION, new PacketCodec() {
+
+			@Override
+			public HomeMaticPacket decode(final byte[] data, final int rssi) {
+				return new HomeMaticPacketInformation(data, rssi);
+			}
+		});
+		result.register(HomeMaticMessageType.REMOTE, new PacketCodec() {
+
+			@Override
+			public HomeMaticPacket decode(final byte[] data, final int rssi) {
+				return new HomeMaticPacketRemote(data, rssi);
+			}
+		});
+		result.register(HomeMaticMessageType.SET, new PacketCodec() {
+
+			@Override
+			public HomeMaticPacket decode(final byte[] data, final int rssi) {
+				return new HomeMaticPacketSet(data, rssi);
+			}
+		});
+		return result;
+	}
+
+	public void register(final HomeMaticMessageType messageType, final PacketCodec codec) {
+		register(messageType.getId(), codec);
+	}
+
+	/**
+	 * Registers the codec for the message type id, replacing a codec
+	 * registered before. Pass null to decode the type into a
+	 * {@link HomeMaticPacketPlain} again.
+	 */
+	public void register(final int messageTypeId, final PacketCodec codec) {
+		if (messageTypeId < 0 || messageTypeId >= TYPES) {
+			throw new IllegalArgumentException("Invalid message type id: " + messageTypeId);
+		}
+		synchronized (lock) {
+			final PacketCodec[] updated = codecs.clone();
+			updated[messageTypeId] = codec;
+			codecs = updated;
+		}
+	}
+
+	/**
+	 * @return the codec registered for the message type id or null
+	 */
+	public PacketCodec getCodec(final int messageTypeId) {
+		if (messageTypeId < 0 || messageTypeId >= TYPES) {
+			return null;
+		}
+		return codecs[messageTypeId];
+	}
+
+	/**
+	 * @param data the BidCoS frame starting with the length byte
+	 * @return the packet decoded by the codec of its message type or a
+	 *         {@link HomeMaticPacketPlain}, null if the frame is too short
+	 *         to carry a type
+	 */
+	public HomeMaticPacket decode(final byte[] data, final int rssi) {
+		if (data == null || data.length <= TYPE_INDEX) {
+			return null;
+		}
+		final PacketCodec codec = codecs[Util.toInt(data[TYPE_INDEX])];
+		return (codec != null ? codec : PLAIN).decode(data, rssi);
+	}
+
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import org.apache.log4j.Logger;
+
+import at.creadoo.homematic.HomeMaticProtocol;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+
+/**
+ * Transmit time a gateway used within the last hour. Radios on 868 MHz may
+ * send 1% of the time, 36 seconds per hour; a gateway which reaches the
+ * limit drops further frames. The budget estimates the airtime of each
+ * frame from its length and keeps it in one minute buckets, a bucket
+ * leaves the window an hour after it ended.
+ * <p>
+ * Frames the host does not see, e.g. ACKs the gateway sends on its own,
+ * are learned from the status the gateway reports with its frames:
+ * {@link #resync(int)} raises the estimate to the level the status
+ * implies. This assumed airtime is not booked into a bucket, the
+ * gateway's own window drains at an unknown rate: it decays to nothing
+ * within the recovery time, a gateway still overloaded then reports so
+ * again with its next frame. A status never lowers the estimate, a
+ * gateway that reports no load does not tell how close to the limit it is.
+ */
+public class AirtimeBudget {
+
+	private static final Logger log = Logger.getLogger(AirtimeBudget.class);
+
+	/**
+	 * 1% of an hour in milliseconds
+	 */
+	public static final long DEFAULT_LIMIT = 36000L;
+
+	public static final long DEFAULT_WINDOW = 3600000L;
+
+	/**
+	 * Gateway status: the gateway nearly reached the limit
+	 */
+	public static final int STATUS_HIGH_LOAD = 0x02;
+
+	/**
+	 * Gateway status: the gateway reached the limit and drops frames
+	 */
+	public static final int STATUS_OVERLOAD = 0x04;
+
+	/**
+	 * Share of the limit a gateway reporting high load is assumed to have used
+	 */
+	public static final double HIGH_LOAD = 0.8;
+
+	/**
+	 * Time in milliseconds the airtime assumed from a gateway status decays in
+	 */
+	public static final long DEFAULT_RECOVERY = 300000L;
+
+	/**
+	 * Microseconds per byte at the BidCoS data rate of 10 kbit/s
+	 */
+	private static final long BYTE_TIME = 800L;
+
+	/**
+	 * Preamble, sync word, length byte and CRC sent with each frame
+	 */
+	private static final int FRAME_OVERHEAD = 11;
+
+	/**
+	 * Microseconds of the wake-up preamble of a burst frame
+	 */
+	private static final long BURST_TIME = 360000L;
+
+	private static final int BUCKETS = 60;
+
+	/**
+	 * The current bucket and the ones ended within the window
+	 */
+	private static final int SLOTS = BUCKETS + 1;
+
+	private final long window;
+
+	private final long bucketLength;
+
+	/**
+	 * Number of the bucket each slot holds, bucket n covers the time from
+	 * <code>n * bucketLength</code>
+	 */
+	private final long[] numbers = new long[SLOTS];
+
+	/**
+	 * Airtime in microseconds per slot
+	 */
+	private final long[] airtime = new long[SLOTS];
+
+	private long limit;
+
+	private int gatewayStatus = 0;
+
+	/**
+	 * Airtime in microseconds assumed from the status at the time it was assumed
+	 */
+	private long assumed = 0L;
+
+	private long assumedTime = 0L;
+
+	private long recovery = DEFAULT_RECOVERY;
+
+	public AirtimeBudget() {
+		this(DEFAULT_LIMIT, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param limit airtime in milliseconds allowed within the window
+	 * @param window length of the window in milliseconds
+	 */
+	public AirtimeBudget(final long limit, final long window) {
+		this.limit = Math.max(0L, limit) * 1000L;
+		this.bucketLength = Math.max(1L, window / BUCKETS);
+		this.window = bucketLength * BUCKETS;
+		for (int i = 0; i < SLOTS; i++) {
+			numbers[i] = -1L;
+		}
+	}
+
+	/**
+	 * @return the airtime of the packet in microseconds
+	 */
+	public static long getAirtime(final HomeMaticPacket packet) {
+		return getAirtime(packet.getPacketLength(), packet.getControlByte());
+	}
+
+	/**
+	 * @param packetLength the length byte of the frame
+	 * @return the airtime of the frame in microseconds
+	 */
+	public static long getAirtime(final int packetLength, final int controlByte) {
+		final long result = (packetLength + FRAME_OVERHEAD) * BYTE_TIME;
+		return HomeMaticProtocol.isBurstSet(controlByte) ? result + BURST_TIME : result;
+	}
+
+	/**
+	 * @return the allowed airtime within the window in milliseconds
+	 */
+	public synchronized long getLimit() {
+		return limit / 1000L;
+	}
+
+	public synchronized void setLimit(final long limit) {
+		this.limit = Math.max(0L, limit) * 1000L;
+	}
+
+	/**
+	 * @return the time in milliseconds the airtime assumed from a gateway
+	 *         status decays in
+	 */
+	public synchronized long getRecovery() {
+		return recovery;
+	}
+
+	public synchronized void setRecovery(final long recovery) {
+		this.recovery = Math.max(1L, recovery);
+	}
+
+	/**
+	 * @return the length of the window in milliseconds
+	 */
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the last status reported by the gateway
+	 */
+	public synchronized int getGatewayStatus() {
+		return gatewayStatus;
+	}
+
+	/**
+	 * @return the airtime used within the window in microseconds, including
+	 *         the airtime assumed from the gateway status
+	 */
+	public long getUsed() {
+		return getUsed(System.currentTimeMillis());
+	}
+
+	synchronized long getUsed(final long now) {
+		return getRecorded(now) + getAssumed(now);
+	}
+
+	/**
+	 * @return the airtime of the sent frames within the window
+	 */
+	private long getRecorded(final long now) {
+		final long current = now / bucketLength;
+		long result = 0L;
+		for (int i = 0; i < SLOTS; i++) {
+			if (numbers[i] >= current - BUCKETS) {
+				result += airtime[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the share of the limit used within the window
+	 */
+	public double getLoad() {
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			return limit > 0L ? (double) getUsed(now) / limit : 1.0;
+		}
+	}
+
+	/**
+	 * Adds the airtime of a sent frame
+	 *
+	 * @param airtime in microseconds
+	 */
+	public void record(final long airtime) {
+		record(airtime, System.currentTimeMillis());
+	}
+
+	synchronized void record(final long airtime, final long now) {
+		if (airtime <= 0L) {
+			return;
+		}
+		final long current = now / bucketLength;
+		final int slot = (int) (current % SLOTS);
+		if (numbers[slot] != current) {
+			numbers[slot] = current;
+			this.airtime[slot] = 0L;
+		}
+		this.airtime[slot] += airtime;
+	}
+
+	/**
+	 * @param airtime of the frame to send in microseconds
+	 * @param share of the limit the frame may use up to, 1.0 for all of it
+	 * @return milliseconds until the frame fits into the budget, 0 if it
+	 *         fits now. A frame larger than the limit fits once nothing else
+	 *         is left in the window.
+	 */
+	public long getWaitTime(final long airtime, final double share) {
+		return getWaitTime(airtime, share, System.currentTimeMillis());
+	}
+
+	synchronized long getWaitTime(final long airtime, final double share, final long now) {
+		final long allowed = (long) (limit * Math.min(1.0, Math.max(0.0, share)));
+		final long used = getUsed(now);
+		if (used + airtime <= allowed || used == 0L) {
+			return 0L;
+		}
+		// Buckets leaving the window while the assumed airtime stays
+		long result = getBucketWaitTime(used, airtime, allowed, now);
+		final long assumedNow = getAssumed(now);
+		if (assumedNow > 0L) {
+			final long remaining = Math.max(1L, assumedTime + recovery - now);
+			final long needed = used + airtime - allowed;
+			if (needed <= assumedNow) {
+				// The decay alone frees enough
+				result = Math.min(result, Math.max(1L, (long) Math.ceil((double) needed * remaining / assumedNow)));
+			} else {
+				// Decayed and buckets leaving the window
+				result = Math.min(result, Math.max(remaining, getBucketWaitTime(used - assumedNow, airtime, allowed, now)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param used airtime to free up from by buckets leaving the window
+	 * @return milliseconds until the frame fits when the oldest buckets left the window
+	 */
+	private long getBucketWaitTime(final long used, final long airtime, final long allowed, final long now) {
+		if (used + airtime <= allowed || used == 0L) {
+			return 0L;
+		}
+		// Oldest bucket first, each one frees its airtime when it leaves the window
+		final long current = now / bucketLength;
+		long left = used;
+		for (long number = current - BUCKETS; number <= current; number++) {
+			final int slot = (int) (number % SLOTS);
+			if (number < 0 || numbers[slot] != number) {
+				continue;
+			}
+			left -= this.airtime[slot];
+			if (left + airtime <= allowed || left == 0L) {
+				return Math.max(1L, (number + SLOTS) * bucketLength - now);
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * @return the airtime assumed from the gateway status, decayed linearly
+	 *         over the recovery time
+	 */
+	private long getAssumed(final long now) {
+		if (assumed <= 0L) {
+			return 0L;
+		}
+		final long elapsed = Math.max(0L, now - assumedTime);
+		if (elapsed >= recovery) {
+			return 0L;
+		}
+		return assumed - assumed * elapsed / recovery;
+	}
+
+	/**
+	 * Raises the estimate to the level the status of a gateway frame implies
+	 *
+	 * @param status the status byte reported by the gateway
+	 * @return true if the estimate was raised
+	 */
+	public boolean resync(final int status) {
+		return resync(status, System.currentTimeMillis());
+	}
+
+	synchronized boolean resync(final int status, final long now) {
+		final int previous = gatewayStatus;
+		gatewayStatus = status;
+		final long target;
+		if ((status & STATUS_OVERLOAD) != 0) {
+			if ((previous & STATUS_OVERLOAD) == 0) {
+				log.warn("Gateway reached the 1% rule");
+			}
+			target = limit;
+		} else if ((status & STATUS_HIGH_LOAD) != 0) {
+			if ((previous & (STATUS_HIGH_LOAD | STATUS_OVERLOAD)) == 0) {
+				log.warn("Gateway nearly reached the 1% rule");
+			}
+			target = (long) (limit * HIGH_LOAD);
+		} else {
+			return false;
+		}
+		final long used = getUsed(now);
+		if (used >= target) {
+			return false;
+		}
+		assumed = getAssumed(now) + target - used;
+		assumedTime = now;
+		return true;
+	}
+
+	/**
+	 * Forgets all airtime
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < SLOTS; i++) {
+			numbers[i] = -1L;
+			airtime[i] = 0L;
+		}
+		assumed = 0L;
+		gatewayStatus = 0;
+	}
+
+}
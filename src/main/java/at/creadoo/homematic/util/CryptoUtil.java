@@ -63,6 +63,20 @@ public class CryptoUtil {
 		return cipher.update(plain);
 	}
 
+	/**
+	 * En-/decrypts a region of the given input into the output array without
+	 * allocating an intermediate array. Input and output may be the same array
+	 * with identical offsets to transform the data in place.
+	 *
+	 * @return the number of bytes stored in the output array
+	 */
+	public static int aesCrypt(final Cipher cipher, final byte[] input, final int inputOffset, final int length, final byte[] output, final int outputOffset) throws GeneralSecurityException {
+		if (length <= 0) {
+			return 0;
+		}
+		return cipher.update(input, inputOffset, length, output, outputOffset);
+	}
+
     private static String toHash(final String raw, final String algorithm) throws NoSuchAlgorithmException, UnsupportedEncodingException, NoSuchProviderException {
         if (raw == null) {
             return null;
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+/**
+ * Recognizes BidCoS frames already received within a time window: frames
+ * resent by a device, forwarded by a repeater or heard by more than one
+ * gateway. Frames are checked on their raw bytes before a packet is
+ * created, see {@link PacketUtil#decodeLANPacket(byte[], DuplicateFilter)}.
+ * <p>
+ * A frame is identified by sender, message counter, message type and a
+ * hash of destination and payload. The control byte is not part of it, a
+ * repeated frame only differs from the original in its RPT flag. One
+ * instance can be shared by the links of several gateways.
+ */
+public class DuplicateFilter {
+
+	/**
+	 * Default time window in milliseconds
+	 */
+	public static final long DEFAULT_WINDOW = 1000L;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Length byte, counter, control byte, type, sender and destination
+	 */
+	private static final int MIN_FRAME_LEN = 10;
+
+	private long window;
+
+	private long[] keys;
+
+	/**
+	 * Time the entry expires, 0 for slots never used
+	 */
+	private long[] expiries;
+
+	private int mask;
+
+	/**
+	 * Slots used by live or expired entries, expired ones are reused or
+	 * dropped by {@link #purge(long)}
+	 */
+	private int used = 0;
+
+	private long passed = 0L;
+
+	private long suppressed = 0L;
+
+	public DuplicateFilter() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param window time window in milliseconds, 0 to let all frames pass
+	 */
+	public DuplicateFilter(final long window) {
+		this.window = window;
+		init(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param frame BidCoS frame starting with the length byte at the given offset
+	 * @return true if the frame was already received within the window
+	 */
+	public boolean isDuplicate(final byte[] frame, final int offset) {
+		return isDuplicate(frame, offset, System.currentTimeMillis());
+	}
+
+	synchronized boolean isDuplicate(final byte[] frame, final int offset, final long now) {
+		if (window <= 0 || frame == null || offset < 0 || frame.length - offset < MIN_FRAME_LEN) {
+			passed++;
+			return false;
+		}
+
+		final long key = key(frame, offset);
+		int i = hash(key) & mask;
+		int free = -1;
+		long expiry;
+		while ((expiry = expiries[i]) != 0L) {
+			if (expiry > now) {
+				if (keys[i] == key) {
+					suppressed++;
+					return true;
+				}
+			} else if (free < 0) {
+				free = i;
+			}
+			i = (i + 1) & mask;
+		}
+		if (free < 0) {
+			free = i;
+			used++;
+		}
+		keys[free] = key;
+		expiries[free] = now + window;
+		passed++;
+
+		if (used * 2 > keys.length) {
+			purge(now);
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets all frames received so far
+	 */
+	public synchronized void clear() {
+		init(INITIAL_CAPACITY);
+	}
+
+	public synchronized long getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param window time window in milliseconds, 0 to let all frames pass
+	 */
+	public synchronized void setWindow(final long window) {
+		this.window = window;
+	}
+
+	/**
+	 * @return the number of frames let through
+	 */
+	public synchronized long getPassed() {
+		return passed;
+	}
+
+	/**
+	 * @return the number of frames recognized as duplicates
+	 */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * @return the number of frames remembered, including expired ones not yet dropped
+	 */
+	public synchronized int getEntries() {
+		return used;
+	}
+
+	private void init(final int capacity) {
+		this.keys = new long[capacity];
+		this.expiries = new long[capacity];
+		this.mask = capacity - 1;
+		this.used = 0;
+	}
+
+	/**
+	 * Drops the expired entries, grows the table if at least a quarter is still live
+	 */
+	private void purge(final long now) {
+		final long[] oldKeys = keys;
+		final long[] oldExpiries = expiries;
+
+		int live = 0;
+		for (long expiry : oldExpiries) {
+			if (expiry > now) {
+				live++;
+			}
+		}
+		int capacity = oldKeys.length;
+		while (live * 4 > capacity) {
+			capacity <<= 1;
+		}
+
+		init(capacity);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldExpiries[j] > now) {
+				int i = hash(oldKeys[j]) & mask;
+				while (expiries[i] != 0L) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				expiries[i] = oldExpiries[j];
+				used++;
+			}
+		}
+	}
+
+	/**
+	 * Sender (24 bit), counter (8 bit), type (8 bit) and a 24 bit hash of
+	 * destination and payload
+	 */
+	private static long key(final byte[] frame, final int offset) {
+		final int end = Math.min(frame.length, offset + 1 + Util.toInt(frame[offset]));
+		int hash = 0x811C9DC5;
+		for (int i = offset + 7; i < end; i++) {
+			hash = (hash ^ (frame[i] & 0xFF)) * 0x01000193;
+		}
+		final long sender = ((frame[offset + 4] & 0xFFL) << 16) | ((frame[offset + 5] & 0xFFL) << 8) | (frame[offset + 6] & 0xFFL);
+		return (sender << 40) | ((frame[offset + 1] & 0xFFL) << 32) | ((frame[offset + 3] & 0xFFL) << 24) | ((hash ^ (hash >>> 24)) & 0xFFFFFFL);
+	}
+
+	private static int hash(final long key) {
+		final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+/**
+ * Splits a frame received from a LAN gateway into its comma separated fields
+ * without copying it. A frame starts with a single type character directly
+ * followed by the first field, e.g.
+ *
+ * <pre>
+ * E1A2B3C,0000,00015807,FF,FFDB,0484003322A4...
+ * </pre>
+ *
+ * The hexadecimal fields are parsed directly from the ASCII bytes, no
+ * intermediate {@link String} is created unless explicitly requested with
+ * {@link #string()}.
+ * <p>
+ * The tokenizer is a cursor over the frame: {@link #next()} moves to the
+ * following field. Instances are cheap and meant to be created per frame.
+ */
+public final class LANFrameTokenizer {
+
+	private static final byte SEPARATOR = ',';
+
+	private final byte[] data;
+
+	/**
+	 * Start of the first field and end of the frame
+	 */
+	private final int start;
+	private final int end;
+
+	private final char type;
+
+	/**
+	 * Start (inclusive) and end (exclusive) of the current field
+	 */
+	private int fieldStart;
+	private int fieldEnd;
+
+	public LANFrameTokenizer(final byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public LANFrameTokenizer(final byte[] data, final int offset, final int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Empty frame");
+		}
+		this.data = data;
+		this.start = offset + 1;
+		this.end = offset + length;
+		this.type = (char) (data[offset] & 0xFF);
+
+		// Positioned before the first field which directly follows the type
+		this.fieldStart = start;
+		this.fieldEnd = offset;
+	}
+
+	/**
+	 * @return the type character of the frame, e.g. 'E'
+	 */
+	public char getType() {
+		return type;
+	}
+
+	/**
+	 * @return the number of fields of the whole frame, independent of the
+	 *         current position
+	 */
+	public int countFields() {
+		int result = 1;
+		for (int i = start; i < end; i++) {
+			if (data[i] == SEPARATOR) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Moves to the next field. The first call moves to the field directly
+	 * following the type character.
+	 *
+	 * @return false if there are no more fields
+	 */
+	public boolean next() {
+		if (fieldEnd >= end) {
+			return false;
+		}
+		if (fieldEnd > fieldStart || data[fieldEnd] == SEPARATOR) {
+			// Skip the separator after the previous field
+			fieldStart = fieldEnd + 1;
+		}
+		int i = fieldStart;
+		while (i < end && data[i] != SEPARATOR) {
+			i++;
+		}
+		fieldEnd = i;
+		return true;
+	}
+
+	/**
+	 * Moves forward by the given number of fields
+	 *
+	 * @return false if there are not enough fields
+	 */
+	public boolean skip(final int fields) {
+		for (int i = 0; i < fields; i++) {
+			if (!next()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of characters of the current field
+	 */
+	public int length() {
+		return fieldEnd - fieldStart;
+	}
+
+	/**
+	 * @return true if the current field is not empty and consists of hexadecimal digits only
+	 */
+	public boolean isHex() {
+		if (fieldEnd <= fieldStart) {
+			return false;
+		}
+		for (int i = fieldStart; i < fieldEnd; i++) {
+			if (Util.hexValue(data[i] & 0xFF) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the current field as unsigned hexadecimal number
+	 *
+	 * @throws NumberFormatException
+	 *             if the field is empty, longer than 8 digits or contains an
+	 *             invalid character
+	 */
+	public int hexInt() {
+		return hexInt(0, length());
+	}
+
+	/**
+	 * Parses a part of the current field as unsigned hexadecimal number
+	 *
+	 * @param from
+	 *            index of the first digit within the field
+	 * @param digits
+	 *            number of digits to parse
+	 * @throws NumberFormatException
+	 *             if the part is empty, longer than 8 digits, exceeds the
+	 *             field or contains an invalid character
+	 */
+	public int hexInt(final int from, final int digits) {
+		if (digits > 8) {
+			throw new NumberFormatException("Too many digits for an int: " + string());
+		}
+		return (int) hexLong(from, digits);
+	}
+
+	/**
+	 * Parses the current field as unsigned hexadecimal number
+	 *
+	 * @throws NumberFormatException
+	 *             if the field is empty, longer than 16 digits or contains an
+	 *             invalid character
+	 */
+	public long hexLong() {
+		return hexLong(0, length());
+	}
+
+	private long hexLong(final int from, final int digits) {
+		if (digits <= 0 || digits > 16 || from < 0 || from + digits > length()) {
+			throw new NumberFormatException("Invalid hexadecimal field: " + string());
+		}
+		long result = 0L;
+		final int stop = fieldStart + from + digits;
+		for (int i = fieldStart + from; i < stop; i++) {
+			final int value = Util.hexValue(data[i] & 0xFF);
+			if (value < 0) {
+				throw new NumberFormatException("Invalid hexadecimal field: " + string());
+			}
+			result = (result << 4) | value;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of bytes the hexadecimal current field decodes to
+	 */
+	public int hexBytesLength() {
+		return length() / 2;
+	}
+
+	/**
+	 * Decodes the current hexadecimal field into the target array. A trailing
+	 * odd digit is ignored.
+	 *
+	 * @return the number of bytes written
+	 * @throws NumberFormatException
+	 *             if the field contains an invalid character
+	 */
+	public int hexBytes(final byte[] target, final int offset) {
+		final int count = hexBytesLength();
+		int position = fieldStart;
+		for (int i = 0; i < count; i++) {
+			final int high = Util.hexValue(data[position] & 0xFF);
+			final int low = Util.hexValue(data[position + 1] & 0xFF);
+			if ((high | low) < 0) {
+				throw new NumberFormatException("Invalid hexadecimal field: " + string());
+			}
+			target[offset + i] = (byte) ((high << 4) | low);
+			position = position + 2;
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if the current field starts with the given ASCII prefix
+	 */
+	public boolean startsWith(final String prefix) {
+		if (prefix.length() > length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[fieldStart + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current field as string, allocates a new string
+	 */
+	public String string() {
+		if (fieldEnd <= fieldStart) {
+			return "";
+		}
+		return new String(data, fieldStart, fieldEnd - fieldStart);
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Message counters of the devices a link sends to, by 24 bit address. The
+ * first counter handed out for an address is 0, the counters wrap from 255
+ * to 0.
+ * <p>
+ * Each slot of an open addressing table packs address and counter into
+ * one long that is updated by compare and swap, so threads sending to the
+ * same device get distinct counters without locking and without boxing.
+ * Only growing the table takes a lock, threads finding a slot moved to
+ * the new table wait for it.
+ */
+public class MessageCounterTable {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final long EMPTY = 0L;
+
+	/**
+	 * Slot already copied to the next table
+	 */
+	private static final long MOVED = -1L;
+
+	private final Object resizeLock = new Object();
+
+	private volatile AtomicLongArray table;
+
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	public MessageCounterTable() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param capacity expected number of addresses
+	 */
+	public MessageCounterTable(final int capacity) {
+		int slots = INITIAL_CAPACITY;
+		while (slots < capacity * 2) {
+			slots <<= 1;
+		}
+		this.table = new AtomicLongArray(slots);
+	}
+
+	/**
+	 * @return the next message counter for the address
+	 */
+	public int next(final int address) {
+		final long key = key(address);
+		while (true) {
+			final AtomicLongArray current = table;
+			final int mask = current.length() - 1;
+			int i = hash(key) & mask;
+			for (int probes = 0; probes <= mask; probes++) {
+				long slot = current.get(i);
+				while (slot == EMPTY) {
+					if (size.get() * 2 >= current.length()) {
+						break;
+					}
+					if (current.compareAndSet(i, EMPTY, key << 32)) {
+						size.incrementAndGet();
+						return 0;
+					}
+					slot = current.get(i);
+				}
+				if (slot == EMPTY || slot == MOVED) {
+					break;
+				}
+				while ((slot >>> 32) == key) {
+					final int counter = (int) ((slot + 1) & 0xFF);
+					if (current.compareAndSet(i, slot, (key << 32) | counter)) {
+						return counter;
+					}
+					slot = current.get(i);
+				}
+				if (slot == MOVED) {
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+			// Address not found in a full table or the table is being replaced
+			grow(current);
+		}
+	}
+
+	/**
+	 * Takes back a counter of a packet that was not sent, so the next packet
+	 * gets it again. Nothing is changed if another counter was handed out
+	 * for the address in the meantime.
+	 *
+	 * @return true if the counter was taken back
+	 */
+	public boolean release(final int address, final int counter) {
+		final long key = key(address);
+		while (true) {
+			final AtomicLongArray current = table;
+			final int mask = current.length() - 1;
+			int i = hash(key) & mask;
+			boolean moved = false;
+			for (int probes = 0; probes <= mask; probes++) {
+				long slot = current.get(i);
+				if (slot == EMPTY) {
+					return false;
+				} else if (slot == MOVED) {
+					moved = true;
+					break;
+				}
+				while ((slot >>> 32) == key) {
+					if ((slot & 0xFF) != (counter & 0xFF)) {
+						return false;
+					}
+					if (current.compareAndSet(i, slot, (key << 32) | ((counter - 1) & 0xFF))) {
+						return true;
+					}
+					slot = current.get(i);
+				}
+				if (slot == MOVED) {
+					moved = true;
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+			if (!moved) {
+				return false;
+			}
+			grow(current);
+		}
+	}
+
+	/**
+	 * @return the counter last handed out for the address, -1 if none
+	 */
+	public int get(final int address) {
+		final long key = key(address);
+		while (true) {
+			final AtomicLongArray current = table;
+			final int mask = current.length() - 1;
+			int i = hash(key) & mask;
+			boolean moved = false;
+			for (int probes = 0; probes <= mask; probes++) {
+				final long slot = current.get(i);
+				if (slot == EMPTY) {
+					return -1;
+				} else if (slot == MOVED) {
+					moved = true;
+					break;
+				} else if ((slot >>> 32) == key) {
+					return (int) (slot & 0xFF);
+				}
+				i = (i + 1) & mask;
+			}
+			if (!moved) {
+				return -1;
+			}
+			grow(current);
+		}
+	}
+
+	/**
+	 * @return the number of addresses
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Replaces the table by one of twice the size unless another thread
+	 * already did
+	 */
+	private void grow(final AtomicLongArray current) {
+		synchronized (resizeLock) {
+			if (table != current) {
+				return;
+			}
+			final AtomicLongArray next = new AtomicLongArray(current.length() * 2);
+			final int mask = next.length() - 1;
+			for (int i = 0; i < current.length(); i++) {
+				// Later updates of the slot fail and retry on the next table
+				final long slot = current.getAndSet(i, MOVED);
+				if (slot != EMPTY) {
+					int j = hash(slot >>> 32) & mask;
+					while (next.get(j) != EMPTY) {
+						j = (j + 1) & mask;
+					}
+					next.set(j, slot);
+				}
+			}
+			table = next;
+		}
+	}
+
+	/**
+	 * @return the address plus one, 0 marks empty slots
+	 */
+	private static long key(final int address) {
+		return (address & 0xFFFFFFL) + 1L;
+	}
+
+	private static int hash(final long key) {
+		final int h = (int) key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -19,13 +19,10 @@ import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
-import at.creadoo.homematic.HomeMaticMessageType;
 import at.creadoo.homematic.IHomeMaticLink;
 import at.creadoo.homematic.packet.HomeMaticPacket;
-import at.creadoo.homematic.packet.HomeMaticPacketEvent;
-import at.creadoo.homematic.packet.HomeMaticPacketInformation;
-import at.creadoo.homematic.packet.HomeMaticPacketRemote;
-import at.creadoo.homematic.packet.HomeMaticPacketSet;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.packet.PacketCodecRegistry;
 
 public final class PacketUtil {
 
@@ -68,16 +65,62 @@ public final class PacketUtil {
 	}
 
 	public static byte[] convertLANPacketToBidCos(final byte[] packet) {
-    	final String[] parts = new String(packet).split(",");
-        
-        char c = (char) packet[0];
+		final HomeMaticPacket homeMaticPacket = decodeLANPacket(packet);
+		if (homeMaticPacket == null) {
+			return null;
+		}
+		return homeMaticPacket.getData();
+	}
+
+	/**
+	 * Decodes an 'E' or 'R' frame of a LAN gateway into a packet carrying the
+	 * RSSI, the gateway status byte and the gateway receive time.
+	 */
+	public static HomeMaticPacket decodeLANPacket(final byte[] packet) {
+		return decodeLANPacket(packet, null);
+	}
+
+	/**
+	 * Like {@link #decodeLANPacket(byte[])}, but returns null without
+	 * creating a packet if the filter recognizes the frame as a duplicate.
+	 */
+	public static HomeMaticPacket decodeLANPacket(final byte[] packet, final DuplicateFilter filter) {
+		final HomeMaticPacketView view = new HomeMaticPacketView();
+		if (!decodeLANPacket(packet, filter, view)) {
+			return null;
+		}
+
+		final HomeMaticPacket homeMaticPacket = view.toPacket();
+		if (homeMaticPacket == null) {
+			return null;
+		}
+
+		log.debug("Packet (LAN):");
+		logPacket(packet);
+
+		log.debug("Packet (Converted):");
+		logPacket(homeMaticPacket.getData());
+
+		return homeMaticPacket;
+	}
+
+	/**
+	 * Decodes an 'E' or 'R' frame of a LAN gateway into the buffer of the
+	 * given view without creating a packet. The view is valid until it
+	 * decodes the next frame.
+	 * 
+	 * @return false if the frame is invalid, of another type or recognized
+	 *         as duplicate by the filter
+	 */
+	public static boolean decodeLANPacket(final byte[] packet, final DuplicateFilter filter, final HomeMaticPacketView view) {
+		if (packet == null || packet.length == 0) {
+			return false;
+		}
+		
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer(packet);
+        final char c = tokenizer.getType();
 
         if (c == 'E' || c == 'R') {
-			if (parts.length < 6) {
-				log.warn("Invalid packet: " + Util.toHex(packet));
-				return null;
-			}
-			
 			/*
 			Index	Meaning
 			0		Sender address
@@ -87,8 +130,14 @@ public final class PacketUtil {
 			4		RSSI
 			5		BidCoS packet
 			*/
+        	
+			// Skip the sender address
+			if (!tokenizer.skip(2)) {
+				log.warn("Invalid packet: " + Util.toHex(packet));
+				return false;
+			}
 
-			int tempNumber = Integer.parseInt(parts[1], 16);
+			final int tempNumber = tokenizer.hexInt();
 			
 			/*
 			00: Not set
@@ -96,16 +145,19 @@ public final class PacketUtil {
 			02: High load
 			04: Overload
 			*/
-			int statusByte = tempNumber >> 8;
+			final int statusByte = tempNumber >> 8;
 
-			log.debug("tempNumber: " + parts[1]);
-			log.debug("tempNumber: " + tempNumber);
-			log.debug("statusByte: " + statusByte);
+			if (log.isDebugEnabled()) {
+				log.debug("tempNumber: " + tokenizer.string());
+				log.debug("tempNumber: " + tempNumber);
+				log.debug("statusByte: " + statusByte);
+			}
 			
+			// Reported with the frame, the airtime budget of the link warns
 			if (statusByte == 4) {
-				log.warn("HM-CFG-LAN reached 1% rule.");
+				log.debug("HM-CFG-LAN reached 1% rule.");
 			} else if(statusByte == 2) {
-				log.warn("HM-CFG-LAN nearly reached 1% rule.");
+				log.debug("HM-CFG-LAN nearly reached 1% rule.");
 			}
 			
 			/*
@@ -120,55 +172,119 @@ public final class PacketUtil {
 			50: AES handshake not successful
 			8*: ?
 			*/
-			int controlByte = tempNumber & 0xFF;
-			log.debug("controlByte: " + controlByte);
+			final int controlByte = tempNumber & 0xFF;
+			if (log.isDebugEnabled()) {
+				log.debug("controlByte: " + controlByte);
+			}
+			
+			if (!tokenizer.next()) {
+				log.warn("Invalid packet: " + Util.toHex(packet));
+				return false;
+			}
+			final long timeReceived = tokenizer.hexLong();
 			
-			if (parts[5].length() > 18) { // 18 is minimal packet length
-				byte[] b = Util.toByteFromHex(parts[5]);
+			// Skip AES key index
+			if (!tokenizer.skip(2)) {
+				log.warn("Invalid packet: " + Util.toHex(packet));
+				return false;
+			}
+			
+			// Signed value in dBm, usually 16 bit (e.g. FFDB = -37 dBm)
+			final int rssiLength = tokenizer.length();
+			final int rssi;
+			if (rssiLength >= 4) {
+				rssi = (short) tokenizer.hexInt(rssiLength - 4, 4);
+			} else if (rssiLength >= 2) {
+				rssi = (byte) tokenizer.hexInt(rssiLength - 2, 2);
+			} else {
+				log.warn("Invalid packet: " + Util.toHex(packet));
+				return false;
+			}
+			
+			if (!tokenizer.next()) {
+				log.warn("Invalid packet: " + Util.toHex(packet));
+				return false;
+			}
+			
+			if (tokenizer.length() > 18) { // 18 is minimal packet length
+				final int length = tokenizer.hexBytesLength();
 				
-				if (b.length < 10) {
+				if (length < 10) {
 					log.warn("Invalid packet: " + Util.toHex(packet));
-					return null;
-				} else if (b.length > 200) {
+					return false;
+				} else if (length > 200) {
 					log.warn("Tried to import BidCoS packet larger than 200 bytes.");
-					return null;
+					return false;
 				}
 				
-				int rssi = Util.toIntFromHex(parts[4].substring(parts[4].length() - 2));
-				//Convert to TI CC1101 format
-				if (rssi <= -75)
-					rssi = ((rssi + 74) * 2) + 256;
-				else
-					rssi = (rssi + 74) * 2;
+				// Length byte followed by the BidCoS packet
+				final byte[] b = view.prepare(length + 1);
+				b[0] = (byte) length;
+				tokenizer.hexBytes(b, 1);
 				
-				final HomeMaticPacket homeMaticPacket = createPacketByMessageType(Util.prependItem(b, b.length), rssi);
-				if (homeMaticPacket == null) {
-		        	return null;
-		        }
-
-				log.debug("Packet (LAN):");
-				logPacket(packet);
-
-				log.debug("Packet (Converted):");
-				logPacket(homeMaticPacket.getData());
+				// Responses to retries echo the same frame with another result
+				if (c == 'E' && filter != null && filter.isDuplicate(b, 0)) {
+					log.debug("Duplicate packet: " + Util.toHex(b));
+					return false;
+				}
 				
-				return homeMaticPacket.getData();
+				view.wrap(b, 0).setGatewayValues(rssi, statusByte, timeReceived);
+				if (c == 'R') {
+					view.setGatewayResponse(controlByte);
+				}
+				return true;
         	} else {
         		log.warn("Packet too short: " + Util.toHex(packet));
-        		return null;
+        		return false;
         	}
 		}
 
-        return null;
+        return false;
+	}
+
+	/**
+	 * Moves the view to the BidCoS frame of an 'E' frame of the USB adapter
+	 * without creating a packet, see {@link #createPacket(byte[], DuplicateFilter)}
+	 *
+	 * @return false if the frame is invalid, of another type or recognized
+	 *         as duplicate by the filter
+	 */
+	public static boolean decodeUSBPacket(final byte[] data, final DuplicateFilter filter, final HomeMaticPacketView view) {
+		if (data == null || data.length <= 13 || (char) data[0] != 'E') {
+			return false;
+		}
+		if (data.length <= 13 + Util.toInt(data[13])) {
+			log.warn("Packet too short: " + Util.toHex(data));
+			return false;
+		}
+		if (filter != null && filter.isDuplicate(data, 13)) {
+			log.debug("Duplicate packet");
+			return false;
+		}
+		// The adapter reports the raw value of the radio
+		view.wrap(data, 13).setGatewayValues(convertRSSI(Util.toInt(data[12])), 0, 0L);
+		return true;
 	}
 
 	// Procedure for the initialization of new HomeMaticPacket:
 	public static HomeMaticPacket createPacket(final byte[] data) {
+		return createPacket(data, null);
+	}
+
+	/**
+	 * Like {@link #createPacket(byte[])}, but returns null without creating a
+	 * packet if the filter recognizes the frame as a duplicate.
+	 */
+	public static HomeMaticPacket createPacket(final byte[] data, final DuplicateFilter filter) {
 		char c = (char) data[0];
 		log.debug("Packet type '" + c + "'");
 		
 		switch (c) {
 		case 'E':
+			if (filter != null && filter.isDuplicate(data, 13)) {
+				log.debug("Duplicate packet");
+				return null;
+			}
 			int copyLen = Util.toInt(data[13]) + 1;
 			byte[] tmp = new byte[copyLen];
 			try {
@@ -193,36 +309,21 @@ public final class PacketUtil {
 		return createPacketByMessageType(data, 0);
 	}
 
+	/**
+	 * Decodes the frame with the codec registered for its message type in
+	 * the default {@link PacketCodecRegistry}, frames of other types become
+	 * a {@link at.creadoo.homematic.packet.HomeMaticPacketPlain}
+	 */
 	public static HomeMaticPacket createPacketByMessageType(final byte[] data, final int rssi) {
 		if (data == null) {
 			return null;
 		}
 		
-		final int id = Util.toInt(data[3]);
-		log.debug("Message Type ID: " + id + " (0x" + Util.toHex(id) + ")");
-		final HomeMaticMessageType messageType = HomeMaticMessageType.getById(id);
-		final HomeMaticPacket homeMaticPacket;
-		
-		switch (messageType) {
-		case EVENT:
-			homeMaticPacket = new HomeMaticPacketEvent(data, rssi);
-			break;
-		case INFORMATION:
-			homeMaticPacket = new HomeMaticPacketInformation(data, rssi);
-			break;
-		case REMOTE:
-			homeMaticPacket = new HomeMaticPacketRemote(data, rssi);
-			break;
-		case SET:
-			homeMaticPacket = new HomeMaticPacketSet(data, rssi);
-			break;
-		default:
-			log.debug("Packet type not found");
-			homeMaticPacket = null;
-			break;
+		if (log.isDebugEnabled() && data.length > 3) {
+			final int id = Util.toInt(data[3]);
+			log.debug("Message Type ID: " + id + " (0x" + Util.toHex(id) + ")");
 		}
-		
-		return homeMaticPacket;
+		return PacketCodecRegistry.getDefault().decode(data, rssi);
 	}
 
 }
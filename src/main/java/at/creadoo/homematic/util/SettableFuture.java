@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link Future} completed explicitly by whoever produces the result. Only
+ * the first completion (value, exception or cancellation) counts.
+ */
+public class SettableFuture<V> implements Future<V> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+
+	private volatile V value = null;
+
+	private volatile Throwable exception = null;
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Listeners to run on completion, null once they ran
+	 */
+	private List<Runnable> listeners = new ArrayList<Runnable>(1);
+
+	/**
+	 * @return a future already completed with the given value
+	 */
+	public static <V> SettableFuture<V> immediate(final V value) {
+		final SettableFuture<V> result = new SettableFuture<V>();
+		result.set(value);
+		return result;
+	}
+
+	/**
+	 * @return true if this call completed the future
+	 */
+	public boolean set(final V value) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.value = value;
+		done.countDown();
+		done();
+		runListeners();
+		return true;
+	}
+
+	/**
+	 * @return true if this call completed the future
+	 */
+	public boolean setException(final Throwable exception) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.exception = exception;
+		done.countDown();
+		done();
+		runListeners();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		if (!completed.compareAndSet(false, true)) {
+			return false;
+		}
+		this.cancelled = true;
+		done.countDown();
+		done();
+		runListeners();
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return report();
+	}
+
+	@Override
+	public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+
+	/**
+	 * Runs the listener once the future is completed, on the thread
+	 * completing it, or right away if it is already completed. Listeners
+	 * must not block, the completing thread may be the one reading from the
+	 * gateway.
+	 */
+	public void addListener(final Runnable listener) {
+		synchronized (done) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Called once by the thread completing the future, does nothing by default
+	 */
+	protected void done() {
+		//
+	}
+
+	private void runListeners() {
+		final List<Runnable> current;
+		synchronized (done) {
+			current = listeners;
+			listeners = null;
+		}
+		for (Runnable listener : current) {
+			listener.run();
+		}
+	}
+
+	private V report() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return value;
+	}
+
+}
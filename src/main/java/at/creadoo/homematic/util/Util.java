@@ -15,6 +15,8 @@
  */
 package at.creadoo.homematic.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
@@ -25,6 +27,29 @@ import java.util.Random;
 
 public class Util {
 	
+	/**
+	 * Upper case hexadecimal digit of each value
+	 */
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Value of each ASCII character as hexadecimal digit, -1 if it isn't one
+	 */
+	private static final byte[] HEX_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < HEX_VALUES.length; i++) {
+			HEX_VALUES[i] = -1;
+		}
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+		}
+	}
+	
 	public static int toInt(final byte data) {
 		return ((int) data) & 0xFF;
 	}
@@ -57,27 +82,55 @@ public class Util {
 		return result;
 	}
 	
+	/**
+	 * @return the value of the hexadecimal digit, -1 if the character isn't one
+	 */
+	public static int hexValue(final int c) {
+		if (c < 0 || c >= HEX_VALUES.length) {
+			return -1;
+		}
+		return HEX_VALUES[c];
+	}
+	
 	public static boolean isHex(final String data) {
-		if (data == null) {
+		if (data == null || data.isEmpty()) {
 			return false;
 		}
-		return data.matches("\\p{XDigit}+");
+		for (int i = 0; i < data.length(); i++) {
+			if (hexValue(data.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	public static String toHex(final byte data) {
-		return String.format("%02x", Byte.valueOf(data)).toUpperCase();
+		return new String(new char[] {HEX_DIGITS[(data >> 4) & 0x0F], HEX_DIGITS[data & 0x0F]});
 	}
 
 	public static String toHex(final int data) {
-		return String.format("%02x", Integer.valueOf(data)).toUpperCase();
+		return toHex(data & 0xFFFFFFFFL);
 	}
 
 	public static String toHex(final int[] data, final boolean prettyPrint) {
 		return toHex(toByteArray(data), prettyPrint);
     }
 
+	/**
+	 * @return the unsigned value as upper case hexadecimal digits, at least two
+	 */
 	public static String toHex(final long data) {
-		return String.format("%02x", Long.valueOf(data)).toUpperCase();
+		final char[] chars = new char[16];
+		int position = chars.length;
+		long value = data;
+		do {
+			chars[--position] = HEX_DIGITS[(int) (value & 0x0F)];
+			value = value >>> 4;
+		} while (value != 0);
+		if (position == chars.length - 1) {
+			chars[--position] = '0';
+		}
+		return new String(chars, position, chars.length - position);
 	}
 	
 	public static String toHex(final String data) {
@@ -93,33 +146,176 @@ public class Util {
 	}
 	
 	public static String toHex(final byte[] data, final boolean prettyPrint) {
-        final StringBuilder sb = new StringBuilder();
-        for (byte aD : data) {
-            final int val = 0xFF & (int) aD;
-            sb.append(String.format("%02x", val).toUpperCase());
-            if (prettyPrint) {
-            	sb.append(" ");
-            }
-        }
-        return sb.toString();
-    }
+		final char[] chars = new char[data.length * (prettyPrint ? 3 : 2)];
+		int position = 0;
+		for (byte b : data) {
+			chars[position++] = HEX_DIGITS[(b >> 4) & 0x0F];
+			chars[position++] = HEX_DIGITS[b & 0x0F];
+			if (prettyPrint) {
+				chars[position++] = ' ';
+			}
+		}
+		return new String(chars);
+	}
+	
+	/**
+	 * Encodes bytes as upper case hexadecimal digits into the target array
+	 * 
+	 * @return the number of characters written
+	 */
+	public static int toHex(final byte[] data, final int offset, final int length, final char[] target, final int targetOffset) {
+		if (target.length - targetOffset < length * 2) {
+			throw new IndexOutOfBoundsException("Target too small for " + (length * 2) + " characters");
+		}
+		int position = targetOffset;
+		for (int i = offset; i < offset + length; i++) {
+			target[position++] = HEX_DIGITS[(data[i] >> 4) & 0x0F];
+			target[position++] = HEX_DIGITS[data[i] & 0x0F];
+		}
+		return length * 2;
+	}
+	
+	/**
+	 * Encodes bytes as upper case ASCII hexadecimal digits into the target array
+	 * 
+	 * @return the number of bytes written
+	 */
+	public static int toHex(final byte[] data, final int offset, final int length, final byte[] target, final int targetOffset) {
+		if (target.length - targetOffset < length * 2) {
+			throw new IndexOutOfBoundsException("Target too small for " + (length * 2) + " bytes");
+		}
+		int position = targetOffset;
+		for (int i = offset; i < offset + length; i++) {
+			target[position++] = (byte) HEX_DIGITS[(data[i] >> 4) & 0x0F];
+			target[position++] = (byte) HEX_DIGITS[data[i] & 0x0F];
+		}
+		return length * 2;
+	}
+	
+	/**
+	 * Encodes bytes as upper case ASCII hexadecimal digits at the position of the target buffer
+	 * 
+	 * @return the number of bytes written
+	 * @throws BufferOverflowException
+	 *             if the remaining space of the buffer is too small, nothing is written then
+	 */
+	public static int toHex(final byte[] data, final int offset, final int length, final ByteBuffer target) {
+		if (target.remaining() < length * 2) {
+			throw new BufferOverflowException();
+		}
+		if (target.hasArray()) {
+			toHex(data, offset, length, target.array(), target.arrayOffset() + target.position());
+			target.position(target.position() + length * 2);
+		} else {
+			for (int i = offset; i < offset + length; i++) {
+				target.put((byte) HEX_DIGITS[(data[i] >> 4) & 0x0F]);
+				target.put((byte) HEX_DIGITS[data[i] & 0x0F]);
+			}
+		}
+		return length * 2;
+	}
     
+	/**
+	 * @throws NumberFormatException
+	 *             if the data contains an odd number of digits or an invalid character
+	 */
 	public static byte[] toByteFromHex(final byte[] data) {
-		return toByteFromHex(toString(data));
+		final byte[] result = new byte[hexBytesLength(data.length)];
+		toByteFromHex(data, 0, data.length, result, 0);
+		return result;
 	}
     
+	/**
+	 * @throws NumberFormatException
+	 *             if the data contains an odd number of digits or an invalid character
+	 */
 	public static byte[] toByteFromHex(final String data) {
-		final String temp = data.toLowerCase();
-		int len = temp.length();
-		byte[] result = new byte[len / 2];
-		try {
-			for (int i = 0; i < len; i += 2) {
-				result[i / 2] = (byte) ((Character.digit(temp.charAt(i), 16) << 4) + Character.digit(temp.charAt(i + 1), 16));
+		final byte[] result = new byte[hexBytesLength(data.length())];
+		toByteFromHex(data, 0, data.length(), result, 0);
+		return result;
+	}
+	
+	/**
+	 * Decodes hexadecimal digits into the target array
+	 * 
+	 * @return the number of bytes written
+	 * @throws NumberFormatException
+	 *             if the data contains an odd number of digits or an invalid character
+	 */
+	public static int toByteFromHex(final CharSequence data, final int offset, final int length, final byte[] target, final int targetOffset) {
+		final int count = hexBytesLength(length);
+		if (target.length - targetOffset < count) {
+			throw new IndexOutOfBoundsException("Target too small for " + count + " bytes");
+		}
+		int position = offset;
+		for (int i = targetOffset; i < targetOffset + count; i++) {
+			target[i] = (byte) hexByte(data.charAt(position), data.charAt(position + 1), position);
+			position = position + 2;
+		}
+		return count;
+	}
+	
+	/**
+	 * Decodes ASCII hexadecimal digits into the target array
+	 * 
+	 * @return the number of bytes written
+	 * @throws NumberFormatException
+	 *             if the data contains an odd number of digits or an invalid character
+	 */
+	public static int toByteFromHex(final byte[] data, final int offset, final int length, final byte[] target, final int targetOffset) {
+		final int count = hexBytesLength(length);
+		if (target.length - targetOffset < count) {
+			throw new IndexOutOfBoundsException("Target too small for " + count + " bytes");
+		}
+		int position = offset;
+		for (int i = targetOffset; i < targetOffset + count; i++) {
+			target[i] = (byte) hexByte(data[position] & 0xFF, data[position + 1] & 0xFF, position);
+			position = position + 2;
+		}
+		return count;
+	}
+	
+	/**
+	 * Decodes hexadecimal digits at the position of the target buffer
+	 * 
+	 * @return the number of bytes written
+	 * @throws NumberFormatException
+	 *             if the data contains an odd number of digits or an invalid character
+	 * @throws BufferOverflowException
+	 *             if the remaining space of the buffer is too small
+	 */
+	public static int toByteFromHex(final CharSequence data, final ByteBuffer target) {
+		final int count = hexBytesLength(data.length());
+		if (target.remaining() < count) {
+			throw new BufferOverflowException();
+		}
+		if (target.hasArray()) {
+			toByteFromHex(data, 0, data.length(), target.array(), target.arrayOffset() + target.position());
+			target.position(target.position() + count);
+		} else {
+			for (int i = 0; i < data.length(); i += 2) {
+				target.put((byte) hexByte(data.charAt(i), data.charAt(i + 1), i));
 			}
-		} catch (Throwable ex) {
-			//
 		}
-		return result;
+		return count;
+	}
+	
+	private static int hexBytesLength(final int digits) {
+		if ((digits & 1) != 0) {
+			throw new NumberFormatException("Odd number of hexadecimal digits: " + digits);
+		}
+		return digits / 2;
+	}
+	
+	private static int hexByte(final int high, final int low, final int index) {
+		final int highValue = hexValue(high);
+		final int lowValue = hexValue(low);
+		if (highValue < 0) {
+			throw new NumberFormatException("Invalid hexadecimal digit at index " + index);
+		} else if (lowValue < 0) {
+			throw new NumberFormatException("Invalid hexadecimal digit at index " + (index + 1));
+		}
+		return (highValue << 4) | lowValue;
 	}
     
 	public static String toStringFromHex(final byte[] data) {
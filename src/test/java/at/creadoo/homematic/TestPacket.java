@@ -26,7 +26,9 @@ import at.creadoo.homematic.HomeMaticStatus;
 import at.creadoo.homematic.packet.HomeMaticPacket;
 import at.creadoo.homematic.packet.HomeMaticPacketEvent;
 import at.creadoo.homematic.packet.HomeMaticPacketInformation;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
 import at.creadoo.homematic.packet.HomeMaticPacketRemote;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
 import at.creadoo.homematic.util.PacketUtil;
 import at.creadoo.homematic.util.Util;
 
@@ -87,6 +89,42 @@ public class TestPacket {
 		Assert.assertNotEquals(p2, p3);
 	}
 
+	@Test
+	public void testPacketEqualsOtherClass() {
+		log.debug("testPacketEqualsOtherClass");
+
+		// Same header, decoded into different classes
+		final byte[] data = Util.toByteFromHex("0C4594413322A43322A40101C8");
+		final HomeMaticPacket event = new HomeMaticPacketEvent(data, 0);
+		final HomeMaticPacket plain = new HomeMaticPacketPlain(data, 0);
+		Assert.assertFalse(event.equals(plain));
+		Assert.assertFalse(plain.equals(event));
+		Assert.assertFalse(event.equals(null));
+		Assert.assertEquals(event.getIdentityKey(), plain.getIdentityKey());
+
+		final HomeMaticPacket copy = new HomeMaticPacketEvent(data, 0);
+		Assert.assertEquals(copy, event);
+		Assert.assertEquals(copy.hashCode(), event.hashCode());
+	}
+
+	@Test
+	public void testPacketIdentityKey() {
+		log.debug("testPacketIdentityKey");
+
+		final byte[] data = Util.toByteFromHex("0C4594413322A43322A40101C8");
+		final HomeMaticPacket p = PacketUtil.createPacketByMessageType(data);
+		Assert.assertEquals(p.getIdentityKey(), 0x3322A4454194L);
+		Assert.assertEquals(new HomeMaticPacketView(data).getIdentityKey(), p.getIdentityKey());
+		Assert.assertEquals(HomeMaticPacket.identityKey(0xFFFFFF, 0xFF, 0xFF, 0xFF), 0xFFFFFFFFFFFFL);
+
+		// Unknown message types are part of the key
+		final HomeMaticPacket unknown = PacketUtil.createPacketByMessageType(Util.toByteFromHex("0C4594FF3322A43322A40101C8"));
+		Assert.assertEquals(unknown.getIdentityKey(), 0x3322A445FF94L);
+
+		p.setMessageCounter(0x46);
+		Assert.assertEquals(p.getIdentityKey(), 0x3322A4464194L);
+	}
+
 	@Test
 	public void testPacketEventContactOff() {
 		log.debug("testPacketEventContactOff");
@@ -189,4 +227,51 @@ public class TestPacket {
 		}
 	}
 
+	@Test
+	public void testPacketLazyPayload() {
+		log.debug("testPacketLazyPayload");
+
+		final byte[] data = Util.toByteFromHex("0C4594413322A43322A481A5C8");
+		final HomeMaticPacketEvent p = new HomeMaticPacketEvent(data, 0);
+		// Header fields are available without decoding the payload
+		Assert.assertEquals(p.getSenderAddress(), 0x3322A4);
+		Assert.assertEquals(p.getMessageType(), HomeMaticMessageType.EVENT);
+
+		// Decoded once
+		final int[] payload = p.getPayload();
+		Assert.assertEquals(payload, new int[] { 0x81, 0xA5, 0xC8 });
+		Assert.assertSame(p.getPayload(), payload);
+
+		// Setting a field as first access keeps the other payload fields
+		final HomeMaticPacketEvent q = new HomeMaticPacketEvent(data, 0);
+		q.setStatus(HomeMaticStatus.OFF);
+		Assert.assertTrue(q.getLowBat());
+		Assert.assertEquals(q.getStatus(), HomeMaticStatus.OFF);
+		Assert.assertEquals(Util.toHex(new HomeMaticPacketEvent(data, 0).getData()), Util.toHex(data));
+	}
+
+	@Test
+	public void testPacketLANGatewayValues() {
+		log.debug("testPacketLANGatewayValues");
+
+		final HomeMaticPacket p1 = PacketUtil.decodeLANPacket("E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8".getBytes());
+		Assert.assertTrue(p1 instanceof HomeMaticPacketEvent);
+		Assert.assertEquals(p1.getRssi(), -37);
+		Assert.assertEquals(p1.getGatewayStatus(), 0x00);
+		Assert.assertEquals(p1.getGatewayTime(), 0x46B7DL);
+		Assert.assertEquals(Util.toHex(p1.getData()), "0C4594413322A43322A40101C8");
+
+		final HomeMaticPacket p2 = PacketUtil.decodeLANPacket("E3322A4,0201,0005201A,FF,FFAF,4994413322A43322A4010201".getBytes());
+		Assert.assertNotNull(p2);
+		Assert.assertEquals(p2.getRssi(), -81);
+		Assert.assertEquals(p2.getGatewayStatus(), 0x02);
+		Assert.assertEquals(p2.getGatewayTime(), 0x5201AL);
+
+		// Message type without packet class
+		final HomeMaticPacket p3 = PacketUtil.decodeLANPacket("E3322A4,0000,0005201A,FF,FFDF,4994023322A43322A4010201".getBytes());
+		Assert.assertTrue(p3 instanceof HomeMaticPacketPlain);
+		Assert.assertEquals(p3.getMessageType(), HomeMaticMessageType.ACKNOWLEDGE);
+		Assert.assertEquals(p3.getRssi(), -33);
+	}
+
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketBuilder;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
+import at.creadoo.homematic.packet.HomeMaticPacketSet;
+import at.creadoo.homematic.util.Util;
+
+public class TestPacketBuilder {
+
+	private static final Logger log = Logger.getLogger(TestPacketBuilder.class);
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testEncode() {
+		final HomeMaticPacketSet expected = new HomeMaticPacketSet(0x26, 0x31e00f, 0x35366f, HomeMaticStatus.ON);
+		final HomeMaticPacketBuilder builder = HomeMaticPacketBuilder.forType(HomeMaticMessageType.SET)
+			.messageCounter(0x26)
+			.senderAddress(0x31e00f)
+			.destinationAddress(0x35366f)
+			.status(HomeMaticStatus.ON);
+
+		Assert.assertEquals(builder.toByteArray(), expected.getData());
+
+		// Into a buffer of the caller, at an offset
+		final byte[] buffer = new byte[64];
+		final int length = builder.encode(buffer, 5);
+		Assert.assertEquals(length, expected.getData().length);
+		for (int i = 0; i < length; i++) {
+			Assert.assertEquals(buffer[5 + i], expected.getData()[i]);
+		}
+	}
+
+	@Test
+	public void testBuild() {
+		final HomeMaticPacket p = HomeMaticPacketBuilder.forType(HomeMaticMessageType.SET)
+			.messageCounter(1)
+			.senderAddress(0x31e00f)
+			.destinationAddress(0x35366f)
+			.status(HomeMaticStatus.OFF)
+			.build();
+		Assert.assertTrue(p instanceof HomeMaticPacketSet);
+		Assert.assertEquals(((HomeMaticPacketSet) p).getStatus(), HomeMaticStatus.OFF);
+		Assert.assertEquals(p.getRssi(), 0);
+		Assert.assertEquals(p, new HomeMaticPacketSet(1, 0x31e00f, 0x35366f, HomeMaticStatus.OFF));
+
+		// Type without packet class
+		final HomeMaticPacket plain = new HomeMaticPacketBuilder().payload(0, 0x12).build();
+		Assert.assertTrue(plain instanceof HomeMaticPacketPlain);
+		Assert.assertEquals(Util.toHex(plain.getData()), "0A000000000000000000" + "12");
+	}
+
+	@Test
+	public void testReset() {
+		final HomeMaticPacketBuilder builder = new HomeMaticPacketBuilder()
+			.messageType(HomeMaticMessageType.REMOTE)
+			.senderAddress(0x123456)
+			.payload(new byte[] { 1, 2, 3 });
+		Assert.assertEquals(builder.getEncodedLength(), 13);
+
+		builder.reset().payloadLength(2);
+		Assert.assertEquals(Util.toHex(builder.toByteArray()), "0B000000000000000000" + "0000");
+
+		builder.payload(1, 0xFF).payloadLength(1).payloadLength(2);
+		Assert.assertEquals(builder.toByteArray()[11], 0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testBufferTooSmall() {
+		HomeMaticPacketBuilder.forType(HomeMaticMessageType.SET).encode(new byte[15], 0);
+	}
+
+	@Test
+	public void testPatchHeader() {
+		final HomeMaticPacketSet p = new HomeMaticPacketSet(0x26, 0x31e00f, 0x35366f, HomeMaticStatus.ON);
+		final byte[] data = p.getData();
+
+		// As done by the links when sending
+		p.setSenderAddress(0x1A2B3C);
+		p.setMessageCounter(0x27);
+		Assert.assertSame(p.getData(), data);
+		Assert.assertEquals(p.getData(), new HomeMaticPacketSet(0x27, 0x1A2B3C, 0x35366f, HomeMaticStatus.ON).getData());
+
+		p.setMessageType(HomeMaticMessageType.EVENT);
+		Assert.assertEquals(Util.toInt(p.getData()[3]), HomeMaticMessageType.EVENT.getId());
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketEvent;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
+import at.creadoo.homematic.packet.HomeMaticPacketRemote;
+import at.creadoo.homematic.packet.HomeMaticPacketSet;
+import at.creadoo.homematic.packet.PacketCodec;
+import at.creadoo.homematic.packet.PacketCodecRegistry;
+import at.creadoo.homematic.util.Util;
+
+public class TestPacketCodecRegistry {
+
+	private static final Logger log = Logger.getLogger(TestPacketCodecRegistry.class);
+
+	private static final String EVENT = "0C4594413322A43322A40101C8";
+
+	private static final String SMOKE_DETECTOR = "0C4594CD3322A43322A40101C8";
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testGetById() {
+		for (HomeMaticMessageType messageType : HomeMaticMessageType.values()) {
+			Assert.assertSame(HomeMaticMessageType.getById(messageType.getId()), messageType);
+			Assert.assertSame(HomeMaticMessageType.getById(Integer.valueOf(messageType.getId())), messageType);
+		}
+		Assert.assertNull(HomeMaticMessageType.getById(0xFF));
+		Assert.assertNull(HomeMaticMessageType.getById(-1));
+		Assert.assertNull(HomeMaticMessageType.getById(256));
+		Assert.assertNull(HomeMaticMessageType.getById((Integer) null));
+	}
+
+	@Test
+	public void testDefault() {
+		final PacketCodecRegistry registry = PacketCodecRegistry.getDefault();
+		Assert.assertTrue(registry.decode(Util.toByteFromHex(EVENT), 0) instanceof HomeMaticPacketEvent);
+		Assert.assertNotNull(registry.getCodec(HomeMaticMessageType.REMOTE.getId()));
+		Assert.assertNotNull(registry.getCodec(HomeMaticMessageType.SET.getId()));
+		Assert.assertNotNull(registry.getCodec(HomeMaticMessageType.INFORMATION.getId()));
+
+		// Known type without packet class and unknown type
+		final HomeMaticPacket smoke = registry.decode(Util.toByteFromHex(SMOKE_DETECTOR), 0);
+		Assert.assertTrue(smoke instanceof HomeMaticPacketPlain);
+		Assert.assertEquals(smoke.getMessageType(), HomeMaticMessageType.SMOKEDETECTOR);
+		final HomeMaticPacket unknown = registry.decode(Util.toByteFromHex("0C4594FF3322A43322A40101C8"), 0);
+		Assert.assertTrue(unknown instanceof HomeMaticPacketPlain);
+		Assert.assertNull(unknown.getMessageType());
+		Assert.assertEquals(unknown.getSenderAddress(), 0x3322A4);
+
+		Assert.assertNull(registry.decode(new byte[] { 0x0C, 0x45 }, 0));
+		Assert.assertNull(registry.decode(null, 0));
+	}
+
+	@Test
+	public void testRegister() {
+		final PacketCodecRegistry registry = PacketCodecRegistry.createDefault();
+		final PacketCodec codec = new PacketCodec() {
+
+			@Override
+			public HomeMaticPacket decode(final byte[] data, final int rssi) {
+				return new HomeMaticPacketRemote(data, rssi);
+			}
+		};
+		registry.register(HomeMaticMessageType.SMOKEDETECTOR, codec);
+		Assert.assertSame(registry.getCodec(HomeMaticMessageType.SMOKEDETECTOR.getId()), codec);
+		Assert.assertTrue(registry.decode(Util.toByteFromHex(SMOKE_DETECTOR), 0) instanceof HomeMaticPacketRemote);
+
+		// Not registered in the default registry
+		Assert.assertNull(PacketCodecRegistry.getDefault().getCodec(HomeMaticMessageType.SMOKEDETECTOR.getId()));
+
+		registry.register(HomeMaticMessageType.SMOKEDETECTOR, null);
+		Assert.assertTrue(registry.decode(Util.toByteFromHex(SMOKE_DETECTOR), 0) instanceof HomeMaticPacketPlain);
+		Assert.assertTrue(registry.decode(Util.toByteFromHex("0E4594113322A43322A40100C80000"), 0) instanceof HomeMaticPacketSet);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testRegisterInvalidId() {
+		new PacketCodecRegistry().register(256, null);
+	}
+
+}
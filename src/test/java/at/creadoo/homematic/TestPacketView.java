@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketEvent;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.PacketUtil;
+import at.creadoo.homematic.util.Util;
+
+public class TestPacketView {
+
+	private static final Logger log = Logger.getLogger(TestPacketView.class);
+
+	/**
+	 * Frames of the USB adapter, the BidCoS frame starts at index 13
+	 */
+	private static final String USB_EVENT_ON = "4531e00f000000441ddbffffb80c098441" + "31e00f00000001abc80e";
+
+	private static final String USB_INFORMATION = "4531e00f00000002cce5ffffb90d018610" + "31e00f0000000601c80e";
+
+	private static final String USB_REMOTE = "453373A6000000F04F6CFFFFD90BB98440" + "3373A600000001B7C80E";
+
+	private static final String LAN_EVENT_ON = "E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8";
+
+	private static final String LAN_EVENT_OFF = "E3322A4,0000,0005201A,FF,FFDF,4994413322A43322A4010200";
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testHeader() {
+		final HomeMaticPacketView view = new HomeMaticPacketView().wrap(Util.toByteFromHex(USB_EVENT_ON), 13);
+		final HomeMaticPacket p = PacketUtil.createPacket(Util.toByteFromHex(USB_EVENT_ON));
+		log.debug("View: " + view);
+
+		Assert.assertEquals(view.getPacketLength(), p.getPacketLength());
+		Assert.assertEquals(view.getMessageCounter(), p.getMessageCounter());
+		Assert.assertEquals(view.getControlByte(), p.getControlByte());
+		Assert.assertEquals(view.getMessageType(), HomeMaticMessageType.EVENT);
+		Assert.assertEquals(view.getSenderAddress(), p.getSenderAddress());
+		Assert.assertEquals(view.getDestinationAddress(), p.getDestinationAddress());
+		Assert.assertEquals(view.getPayloadLength(), p.getPayload().length);
+		for (int i = 0; i < view.getPayloadLength(); i++) {
+			Assert.assertEquals(view.getPayload(i), p.getPayload()[i]);
+		}
+		Assert.assertFalse(view.isRepeated());
+	}
+
+	@Test
+	public void testTypedPayload() {
+		final HomeMaticPacketView view = new HomeMaticPacketView();
+
+		view.wrap(Util.toByteFromHex(USB_EVENT_ON), 13);
+		Assert.assertEquals(view.getStatus(), HomeMaticStatus.ON);
+		Assert.assertFalse(view.getLowBat());
+		Assert.assertNull(view.getError());
+		Assert.assertEquals(view.getChannel(), -1);
+
+		view.wrap(Util.toByteFromHex(USB_INFORMATION), 13);
+		Assert.assertEquals(view.getMessageType(), HomeMaticMessageType.INFORMATION);
+		Assert.assertEquals(view.getPayload(2), 200);
+		Assert.assertEquals(view.getError(), HomeMaticError.SABOTAGE);
+		Assert.assertFalse(view.getLowBat());
+		Assert.assertNull(view.getStatus());
+
+		view.wrap(Util.toByteFromHex(USB_REMOTE), 13);
+		Assert.assertEquals(view.getMessageType(), HomeMaticMessageType.REMOTE);
+		Assert.assertEquals(view.getChannel(), 1);
+		Assert.assertFalse(view.getLongPress());
+		Assert.assertEquals(view.getCounter(), 183);
+	}
+
+	@Test(expectedExceptions = IndexOutOfBoundsException.class)
+	public void testPayloadIndex() {
+		final HomeMaticPacketView view = new HomeMaticPacketView().wrap(Util.toByteFromHex(USB_EVENT_ON), 13);
+		view.getPayload(view.getPayloadLength());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testIncompleteFrame() {
+		// Length byte announces more bytes than present
+		new HomeMaticPacketView(Util.toByteFromHex("0C4594413322A43322A401"));
+	}
+
+	@Test
+	public void testDecodeLANPacket() {
+		final HomeMaticPacketView view = new HomeMaticPacketView();
+
+		Assert.assertTrue(PacketUtil.decodeLANPacket(LAN_EVENT_ON.getBytes(), null, view));
+		Assert.assertEquals(view.getStatus(), HomeMaticStatus.ON);
+		Assert.assertEquals(view.getRssi(), -37);
+		Assert.assertEquals(view.getGatewayTime(), 0x46B7DL);
+		final byte[] buffer = view.prepare(0);
+		final HomeMaticPacketView copy = view.copy();
+
+		// The next frame reuses the buffer
+		Assert.assertTrue(PacketUtil.decodeLANPacket(LAN_EVENT_OFF.getBytes(), null, view));
+		Assert.assertSame(view.prepare(0), buffer);
+		Assert.assertEquals(view.getStatus(), HomeMaticStatus.OFF);
+		Assert.assertEquals(view.getMessageCounter(), 0x49);
+
+		// The copy is not affected
+		Assert.assertEquals(copy.getStatus(), HomeMaticStatus.ON);
+		Assert.assertEquals(copy.getMessageCounter(), 0x45);
+		Assert.assertEquals(copy.getRssi(), -37);
+
+		Assert.assertFalse(PacketUtil.decodeLANPacket("HHM-LAN-IF,03C4".getBytes(), null, view));
+	}
+
+	@Test
+	public void testToPacket() {
+		final HomeMaticPacketView view = new HomeMaticPacketView();
+		Assert.assertTrue(PacketUtil.decodeLANPacket(LAN_EVENT_ON.getBytes(), null, view));
+		final HomeMaticPacket p = view.toPacket();
+		final HomeMaticPacket expected = PacketUtil.decodeLANPacket(LAN_EVENT_ON.getBytes());
+
+		Assert.assertTrue(p instanceof HomeMaticPacketEvent);
+		Assert.assertEquals(p, expected);
+		Assert.assertEquals(p.getData(), expected.getData());
+		Assert.assertEquals(p.getRssi(), -37);
+		Assert.assertEquals(p.getGatewayTime(), 0x46B7DL);
+		Assert.assertNotSame(p.getData(), view.prepare(0));
+
+		// RSSI in dBm like the packets of the USB adapter
+		final byte[] usb = Util.toByteFromHex(USB_EVENT_ON);
+		Assert.assertTrue(PacketUtil.decodeUSBPacket(usb, null, view));
+		Assert.assertEquals(view.getRssi(), PacketUtil.convertRSSI(0xB8));
+		Assert.assertEquals(view.getRssi(), -110);
+		Assert.assertEquals(view.toPacket().getRssi(), PacketUtil.createPacket(usb).getRssi());
+
+		// Message type without packet class
+		Assert.assertTrue(new HomeMaticPacketView(Util.toByteFromHex("0C4594023322A43322A40101C8")).toPacket() instanceof HomeMaticPacketPlain);
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.event.PacketEvent;
+import at.creadoo.homematic.event.PacketEventBus;
+import at.creadoo.homematic.event.PacketEventHandler;
+import at.creadoo.homematic.event.WaitStrategy;
+import at.creadoo.homematic.impl.StubLink;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.util.PacketUtil;
+
+/**
+ * Hand-off of received packets from a link reader thread to a consumer:
+ * calling the listener on the reader thread, the per-listener queue of
+ * the link and the {@link PacketEventBus} with each wait strategy.
+ * <p>
+ * The throughput benchmarks give packets per second the reader thread
+ * can hand off. The handOff benchmarks sample the time until the consumer
+ * got the packet, see the p0.99 percentile.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBusBenchmark {
+
+	private static final HomeMaticPacket PACKET = PacketUtil.decodeLANPacket("E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8".getBytes());
+
+	@State(Scope.Benchmark)
+	public static class ListenerState {
+
+		private final AtomicLong received = new AtomicLong(0L);
+
+		private final IHomeMaticLinkListener listener = new IHomeMaticLinkListener() {
+
+			@Override
+			public void received(final IHomeMaticLink link, final HomeMaticPacket packet) {
+				received.incrementAndGet();
+			}
+
+			@Override
+			public void linkStarted(final IHomeMaticLink link) {
+				//
+			}
+
+			@Override
+			public void linkClosed(final IHomeMaticLink link) {
+				//
+			}
+
+			@Override
+			public void linkTerminated(final IHomeMaticLink link) {
+				//
+			}
+		};
+
+		private StubLink link;
+
+		@Setup
+		public void setUp() {
+			// The bundled log4j configuration logs this library at DEBUG level
+			Logger.getLogger("at.creadoo.homematic").setLevel(Level.WARN);
+			link = new StubLink();
+			link.addLinkListener(listener);
+		}
+
+		@TearDown
+		public void tearDown() {
+			link.removeLinkListener(listener);
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class BusState {
+
+		@Param({"BLOCKING", "YIELDING", "BUSY_SPIN"})
+		public WaitStrategy waitStrategy;
+
+		private PacketEventBus bus;
+
+		private PacketEventBus.Processor processor;
+
+		@Setup
+		public void setUp() {
+			Logger.getLogger("at.creadoo.homematic").setLevel(Level.WARN);
+			bus = new PacketEventBus("Benchmark", 1024, waitStrategy);
+			processor = bus.addHandler(new PacketEventHandler() {
+
+				private long received = 0L;
+
+				@Override
+				public void onEvent(final PacketEvent event, final long sequence, final boolean endOfBatch) {
+					received++;
+				}
+			});
+			bus.start();
+		}
+
+		@TearDown
+		public void tearDown() {
+			bus.close();
+		}
+
+	}
+
+	/**
+	 * Listener called on the reader thread, as all links did before
+	 */
+	@Benchmark
+	public void synchronous(final ListenerState state) {
+		state.listener.received(state.link, PACKET);
+	}
+
+	/**
+	 * Per-listener queue and thread of the link
+	 */
+	@Benchmark
+	public void listenerQueue(final ListenerState state) {
+		state.link.receivedPacket(PACKET);
+	}
+
+	@Benchmark
+	public boolean ringBuffer(final BusState state) {
+		return state.bus.publish(null, PACKET);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void handOffListenerQueue(final ListenerState state) {
+		final long expected = state.received.get() + 1;
+		state.link.receivedPacket(PACKET);
+		while (state.received.get() < expected) {
+			Thread.yield();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void handOffRingBuffer(final BusState state) {
+		state.bus.publish(null, PACKET);
+		final long sequence = state.bus.getPublished() - 1;
+		while (state.processor.getSequence() < sequence) {
+			Thread.yield();
+		}
+	}
+
+}
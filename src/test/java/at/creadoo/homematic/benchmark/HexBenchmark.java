@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.util.Util;
+
+/**
+ * Hexadecimal encoding and decoding of {@link Util} compared to the former
+ * String.format/Character.digit based implementation. The sizes are an AES
+ * IV and a typical BidCoS packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+
+	@Param({"16", "64"})
+	public int size;
+
+	private byte[] data;
+
+	private String hex;
+
+	private char[] chars;
+
+	private byte[] bytes;
+
+	@Setup
+	public void setUp() {
+		data = new byte[size];
+		new Random(42).nextBytes(data);
+		hex = Util.toHex(data);
+		chars = new char[size * 2];
+		bytes = new byte[size];
+	}
+
+	@Benchmark
+	public String encodeLegacy() {
+		final StringBuilder sb = new StringBuilder();
+		for (byte aD : data) {
+			final int val = 0xFF & (int) aD;
+			sb.append(String.format("%02x", val).toUpperCase());
+		}
+		return sb.toString();
+	}
+
+	@Benchmark
+	public String encode() {
+		return Util.toHex(data);
+	}
+
+	@Benchmark
+	public char[] encodeIntoArray() {
+		Util.toHex(data, 0, data.length, chars, 0);
+		return chars;
+	}
+
+	@Benchmark
+	public byte[] decodeLegacy() {
+		final String temp = hex.toLowerCase();
+		final int len = temp.length();
+		final byte[] result = new byte[len / 2];
+		for (int i = 0; i < len; i += 2) {
+			result[i / 2] = (byte) ((Character.digit(temp.charAt(i), 16) << 4) + Character.digit(temp.charAt(i + 1), 16));
+		}
+		return result;
+	}
+
+	@Benchmark
+	public byte[] decode() {
+		return Util.toByteFromHex(hex);
+	}
+
+	@Benchmark
+	public byte[] decodeIntoArray() {
+		Util.toByteFromHex(hex, 0, hex.length(), bytes, 0);
+		return bytes;
+	}
+
+}
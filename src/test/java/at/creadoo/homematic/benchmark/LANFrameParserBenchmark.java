@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.util.LANFrameTokenizer;
+import at.creadoo.homematic.util.PacketUtil;
+import at.creadoo.homematic.util.Util;
+
+/**
+ * Parsing of the fields of received 'E'/'R' frames, the former String.split
+ * based parsing compared to the {@link LANFrameTokenizer}. Run with
+ * <code>-prof gc</code> to see the allocations per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LANFrameParserBenchmark {
+
+	@Param({
+		"E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8",
+		"R1A2B3C,0001,0005201A,FF,FFDF,0BA0101A2B3C3322A40601C80000"
+	})
+	public String frame;
+
+	private byte[] packet;
+
+	@Setup
+	public void setUp() {
+		// The bundled log4j configuration logs this library at DEBUG level
+		Logger.getLogger("at.creadoo.homematic").setLevel(Level.WARN);
+		packet = frame.getBytes();
+	}
+
+	/**
+	 * Field parsing as done before by convertLANPacketToBidCos
+	 */
+	@Benchmark
+	public int splitParse() {
+		final String[] parts = new String(packet).split(",");
+		final int tempNumber = Integer.parseInt(parts[1], 16);
+		final byte[] b = Util.toByteFromHex(parts[5]);
+		final int rssi = Util.toIntFromHex(parts[4].substring(parts[4].length() - 2));
+		final byte[] bidCos = Util.prependItem(b, b.length);
+		return tempNumber + rssi + bidCos[bidCos.length - 1];
+	}
+
+	/**
+	 * Same fields parsed with the tokenizer
+	 */
+	@Benchmark
+	public int tokenizerParse() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer(packet);
+		tokenizer.skip(2);
+		final int tempNumber = tokenizer.hexInt();
+		tokenizer.skip(3);
+		final int rssi = (short) tokenizer.hexInt(tokenizer.length() - 4, 4);
+		tokenizer.next();
+		final byte[] bidCos = new byte[tokenizer.hexBytesLength() + 1];
+		bidCos[0] = (byte) (bidCos.length - 1);
+		tokenizer.hexBytes(bidCos, 1);
+		return tempNumber + rssi + bidCos[bidCos.length - 1];
+	}
+
+	/**
+	 * The whole conversion including the creation of the packet
+	 */
+	@Benchmark
+	public byte[] convertLANPacketToBidCos() {
+		return PacketUtil.convertLANPacketToBidCos(packet);
+	}
+
+	/**
+	 * Ingest path of the links before, the converted frame was parsed a second time
+	 */
+	@Benchmark
+	public HomeMaticPacket convertAndCreatePacket() {
+		return PacketUtil.createPacketByMessageType(PacketUtil.convertLANPacketToBidCos(packet));
+	}
+
+	/**
+	 * Ingest path of the links, the frame is decoded once
+	 */
+	@Benchmark
+	public HomeMaticPacket decodeLANPacket() {
+		return PacketUtil.decodeLANPacket(packet);
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.PacketFilter;
+import at.creadoo.homematic.impl.OverflowPolicy;
+import at.creadoo.homematic.impl.StubLink;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketBuilder;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.PacketUtil;
+
+/**
+ * Received frames of four message types handed to a link whose
+ * subscriptions select some of the types. Frames no subscription selects
+ * are dropped before a packet is created, run with <code>-prof gc</code>
+ * to see the allocations per frame fall with the number of subscribed
+ * types. The packet benchmarks compare decoding the payload eagerly, as
+ * before, with only reading the header of a packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyDecodeBenchmark {
+
+	private static final HomeMaticMessageType[] TYPES = {
+		HomeMaticMessageType.EVENT, HomeMaticMessageType.INFORMATION, HomeMaticMessageType.REMOTE, HomeMaticMessageType.SET
+	};
+
+	/**
+	 * Number of the four message types a subscription selects
+	 */
+	@Param({ "0", "1", "4" })
+	public int subscribedTypes;
+
+	private final byte[][] frames = new byte[TYPES.length][];
+
+	private final HomeMaticPacketView view = new HomeMaticPacketView();
+
+	private StubLink link;
+
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		// The bundled log4j configuration logs this library at DEBUG level
+		Logger.getLogger("at.creadoo.homematic").setLevel(Level.WARN);
+		for (int i = 0; i < TYPES.length; i++) {
+			frames[i] = HomeMaticPacketBuilder.forType(TYPES[i]).messageCounter(i).senderAddress(0x3322A4).destinationAddress(0x123456).toByteArray();
+		}
+		link = new StubLink();
+		final IHomeMaticLinkListener listener = new NoOpListener();
+		for (int i = 0; i < subscribedTypes; i++) {
+			link.subscribe(PacketFilter.messageType(TYPES[i]), listener, 1024, OverflowPolicy.DROP_OLDEST);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		link.close();
+	}
+
+	/**
+	 * Ingest path of the links
+	 */
+	@Benchmark
+	public long receivedFrame() {
+		link.receivedFrame(view.wrap(nextFrame(), 0));
+		return link.getSkippedFrames();
+	}
+
+	/**
+	 * Packet of which only the header is read
+	 */
+	@Benchmark
+	public int packetHeader() {
+		final HomeMaticPacket p = PacketUtil.createPacketByMessageType(nextFrame());
+		return p.getSenderAddress() + p.getMessageCounter();
+	}
+
+	/**
+	 * Packet of which the payload is read, the cost of each packet before
+	 * the payload was decoded lazily
+	 */
+	@Benchmark
+	public int packetPayload() {
+		final HomeMaticPacket p = PacketUtil.createPacketByMessageType(nextFrame());
+		return p.getSenderAddress() + p.getMessageCounter() + p.getPayload().length;
+	}
+
+	private byte[] nextFrame() {
+		next = (next + 1) & (TYPES.length - 1);
+		return frames[next];
+	}
+
+	private static class NoOpListener implements IHomeMaticLinkListener {
+
+		@Override
+		public void received(final IHomeMaticLink link, final HomeMaticPacket packet) {
+			//
+		}
+
+		@Override
+		public void linkStarted(final IHomeMaticLink link) {
+			//
+		}
+
+		@Override
+		public void linkClosed(final IHomeMaticLink link) {
+			//
+		}
+
+		@Override
+		public void linkTerminated(final IHomeMaticLink link) {
+			//
+		}
+
+	}
+
+}
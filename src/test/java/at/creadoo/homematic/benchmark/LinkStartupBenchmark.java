@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.link.FakeHMCFGLANGateway;
+import at.creadoo.homematic.link.HMCFGLANLink;
+
+/**
+ * Time from {@link HMCFGLANLink#start()} to a link ready for sending,
+ * against a local fake gateway. Each invocation connects a new link, runs
+ * the startup handshake and closes the link again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkStartupBenchmark {
+
+	@Param({"true", "false"})
+	public boolean aes;
+
+	private FakeHMCFGLANGateway gateway;
+
+	@Setup
+	public void setUp() throws IOException {
+		// The bundled log4j configuration logs this library at DEBUG level
+		Logger.getLogger("at.creadoo.homematic").setLevel(Level.WARN);
+		gateway = new FakeHMCFGLANGateway(aes);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		gateway.close();
+	}
+
+	@Benchmark
+	public boolean startAndClose() {
+		final HMCFGLANLink link = new HMCFGLANLink(gateway.getAddress());
+		link.setAESEnabled(aes);
+		link.setAESLANKey(FakeHMCFGLANGateway.LAN_KEY);
+		try {
+			return link.start();
+		} finally {
+			link.close();
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.util.MessageCounterTable;
+
+/**
+ * Message counters of 10000 destination addresses: the
+ * {@link MessageCounterTable} of the links compared to the
+ * <code>HashMap&lt;Integer, Integer&gt;</code> they used before, which is
+ * only measured on one thread as it is not thread safe. Run with
+ * <code>-prof gc</code> to see the boxing of the map.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCounterBenchmark {
+
+	private static final int ADDRESSES = 10000;
+
+	@State(Scope.Benchmark)
+	public static class Counters {
+
+		private final int[] addresses = new int[ADDRESSES];
+
+		private final MessageCounterTable table = new MessageCounterTable();
+
+		private final Map<Integer, Integer> map = new HashMap<Integer, Integer>();
+
+		@Setup
+		public void setUp() {
+			for (int i = 0; i < ADDRESSES; i++) {
+				// Spread over the address space like device addresses
+				addresses[i] = (i * 0x9E3779B9) & 0xFFFFFF;
+				table.next(addresses[i]);
+				map.put(addresses[i], 0);
+			}
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int next = 0;
+
+		@Setup
+		public void setUp() {
+			next = (int) (Thread.currentThread().getId() * 7919) % ADDRESSES;
+		}
+
+		private int address(final Counters counters) {
+			if (++next == ADDRESSES) {
+				next = 0;
+			}
+			return counters.addresses[next];
+		}
+
+	}
+
+	@Benchmark
+	public int table(final Counters counters, final Cursor cursor) {
+		return counters.table.next(cursor.address(counters));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int tableContended(final Counters counters, final Cursor cursor) {
+		return counters.table.next(cursor.address(counters));
+	}
+
+	/**
+	 * The code the links used before
+	 */
+	@Benchmark
+	public int boxedMap(final Counters counters, final Cursor cursor) {
+		final Integer address = cursor.address(counters);
+		int value = 0;
+		if (counters.map.containsKey(address)) {
+			value = counters.map.get(address) + 1;
+			if (value > 255) {
+				value = 0;
+			}
+		}
+		counters.map.put(address, value);
+		return value;
+	}
+
+}
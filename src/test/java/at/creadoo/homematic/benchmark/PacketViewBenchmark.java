@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.PacketUtil;
+
+/**
+ * Decoding of received frames into a {@link HomeMaticPacket} compared to a
+ * reused {@link HomeMaticPacketView}, reading the header fields and one
+ * payload byte as a typical listener does. Run with <code>-prof gc</code>
+ * to see the allocations per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketViewBenchmark {
+
+	@Param({
+		"E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8",
+		"E31E00F,0000,0005201A,FF,FFB9,01861031E00F0000000601C80E"
+	})
+	public String frame;
+
+	private byte[] packet;
+
+	/**
+	 * The BidCoS frame of the LAN frame, starting with the length byte
+	 */
+	private byte[] bidCos;
+
+	private final HomeMaticPacketView view = new HomeMaticPacketView();
+
+	@Setup
+	public void setUp() {
+		// The bundled log4j configuration logs this library at DEBUG level
+		Logger.getLogger("at.creadoo.homematic").setLevel(Level.WARN);
+		packet = frame.getBytes();
+		PacketUtil.decodeLANPacket(packet, null, view);
+		bidCos = view.toByteArray();
+	}
+
+	/**
+	 * Ingest path of the links
+	 */
+	@Benchmark
+	public int decodePacket() {
+		final HomeMaticPacket p = PacketUtil.decodeLANPacket(packet);
+		return p.getSenderAddress() + p.getDestinationAddress() + p.getMessageCounter() + p.getPayload()[2];
+	}
+
+	@Benchmark
+	public int decodeView() {
+		PacketUtil.decodeLANPacket(packet, null, view);
+		return view.getSenderAddress() + view.getDestinationAddress() + view.getMessageCounter() + view.getPayload(2);
+	}
+
+	/**
+	 * Packet created from the BidCoS bytes, as by the USB link
+	 */
+	@Benchmark
+	public int createPacket() {
+		final HomeMaticPacket p = PacketUtil.createPacketByMessageType(bidCos);
+		return p.getSenderAddress() + p.getDestinationAddress() + p.getMessageCounter() + p.getPayload()[2];
+	}
+
+	@Benchmark
+	public int wrapView() {
+		view.wrap(bidCos, 0);
+		return view.getSenderAddress() + view.getDestinationAddress() + view.getMessageCounter() + view.getPayload(2);
+	}
+
+}
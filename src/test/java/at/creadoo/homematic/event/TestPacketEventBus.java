@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.impl.StubLink;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
+
+public class TestPacketEventBus {
+
+	private static final Logger log = Logger.getLogger(TestPacketEventBus.class);
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testSizeNotPowerOfTwo() throws Exception {
+		new PacketEventBus("Test", 1000, WaitStrategy.BLOCKING);
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testAddHandlerAfterStart() throws Exception {
+		final PacketEventBus bus = new PacketEventBus("Test", 16, WaitStrategy.BLOCKING);
+		bus.start();
+		try {
+			bus.addHandler(new CountingHandler());
+		} finally {
+			bus.close();
+		}
+	}
+
+	@Test
+	public void testMultipleLinks() throws Throwable {
+		for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+			log.debug("Wait strategy " + waitStrategy);
+			publishConcurrently(waitStrategy);
+		}
+	}
+
+	private void publishConcurrently(final WaitStrategy waitStrategy) throws Throwable {
+		final int links = 4;
+		final int packets = 2000;
+		// Small ring, the links have to wait for the handler
+		final PacketEventBus bus = new PacketEventBus("Test", 64, waitStrategy);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int[] lastCounter = new int[links];
+		final CountingHandler handler = new CountingHandler() {
+
+			@Override
+			public void onEvent(final PacketEvent event, final long sequence, final boolean endOfBatch) throws Exception {
+				super.onEvent(event, sequence, endOfBatch);
+				// Each link's packets arrive in the order they were published
+				final HomeMaticPacket packet = event.getPacket();
+				final int link = packet.getSenderAddress();
+				if (packet.getDestinationAddress() != lastCounter[link] + 1) {
+					failure.compareAndSet(null, new AssertionError("Link " + link + ": " + packet.getDestinationAddress() + " after " + lastCounter[link]));
+				}
+				lastCounter[link] = packet.getDestinationAddress();
+			}
+		};
+		final PacketEventBus.Processor processor = bus.addHandler(handler);
+		bus.start();
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < links; i++) {
+			final int link = i;
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int counter = 1; counter <= packets; counter++) {
+						if (!bus.publish(null, new HomeMaticPacketPlain(0, link, counter))) {
+							failure.compareAndSet(null, new AssertionError("Not published"));
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		final long end = System.currentTimeMillis() + 10000;
+		while (processor.getSequence() < links * packets - 1 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		bus.close();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		Assert.assertEquals(bus.getPublished(), links * packets);
+		Assert.assertEquals(handler.events.get(), links * packets);
+		Assert.assertEquals(handler.batches.get(), processor.getBatches());
+		log.debug("Handled " + handler.events.get() + " events in " + processor.getBatches() + " batches");
+	}
+
+	@Test
+	public void testDependentHandler() throws Throwable {
+		final int packets = 1000;
+		final PacketEventBus bus = new PacketEventBus("Test", 16, WaitStrategy.YIELDING);
+		final AtomicIntegerArray decoded = new AtomicIntegerArray(packets);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		final PacketEventBus.Processor first = bus.addHandler(new PacketEventHandler() {
+
+			@Override
+			public void onEvent(final PacketEvent event, final long sequence, final boolean endOfBatch) {
+				decoded.set((int) sequence, 1);
+			}
+		});
+		final CountingHandler dependent = new CountingHandler() {
+
+			@Override
+			public void onEvent(final PacketEvent event, final long sequence, final boolean endOfBatch) throws Exception {
+				super.onEvent(event, sequence, endOfBatch);
+				if (decoded.get((int) sequence) != 1) {
+					failure.compareAndSet(null, new AssertionError("Event " + sequence + " before the first handler"));
+				}
+			}
+		};
+		final PacketEventBus.Processor second = bus.addHandler(dependent, first);
+		bus.start();
+
+		for (int i = 0; i < packets; i++) {
+			Assert.assertTrue(bus.publish(null, new HomeMaticPacketPlain(0, 1, i)));
+		}
+		final long end = System.currentTimeMillis() + 5000;
+		while (second.getSequence() < packets - 1 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		bus.close();
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		Assert.assertEquals(dependent.events.get(), packets);
+		Assert.assertTrue(first.getSequence() >= second.getSequence());
+	}
+
+	@Test
+	public void testLink() throws Exception {
+		final PacketEventBus bus = new PacketEventBus();
+		final CountingHandler handler = new CountingHandler();
+		final PacketEventBus.Processor processor = bus.addHandler(handler);
+
+		final StubLink link = new StubLink();
+		link.setEventBus(bus);
+		final HomeMaticPacket packet = new HomeMaticPacketPlain(0, 1, 2);
+		// Nothing is published before the bus is started
+		link.receivedPacket(packet);
+		bus.start();
+		link.receivedPacket(packet);
+
+		final long end = System.currentTimeMillis() + 5000;
+		while (processor.getSequence() < 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		bus.close();
+		Assert.assertEquals(handler.events.get(), 1);
+		Assert.assertSame(handler.lastLink.get(), link);
+		Assert.assertFalse(bus.publish(link, packet));
+	}
+
+	private static class CountingHandler implements PacketEventHandler {
+
+		private final AtomicLong events = new AtomicLong(0L);
+
+		private final AtomicLong batches = new AtomicLong(0L);
+
+		private final AtomicReference<Object> lastLink = new AtomicReference<Object>();
+
+		@Override
+		public void onEvent(final PacketEvent event, final long sequence, final boolean endOfBatch) throws Exception {
+			events.incrementAndGet();
+			if (endOfBatch) {
+				batches.incrementAndGet();
+			}
+			if (event.getLink() != null) {
+				lastLink.set(event.getLink());
+			}
+		}
+
+	}
+
+}
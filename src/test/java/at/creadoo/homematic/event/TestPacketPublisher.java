@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.impl.OverflowPolicy;
+import at.creadoo.homematic.impl.StubLink;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
+
+public class TestPacketPublisher {
+
+	private static final Logger log = Logger.getLogger(TestPacketPublisher.class);
+
+	private PacketPublisher publisher;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		publisher = new PacketPublisher("Test");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		publisher.close();
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testRequest() throws Exception {
+		final RecordingSubscriber subscriber = new RecordingSubscriber(2);
+		publisher.subscribe(subscriber);
+		for (int i = 0; i < 5; i++) {
+			publisher.publish(createPacket(i));
+		}
+
+		subscriber.await(2);
+		Thread.sleep(50);
+		// No more than requested
+		Assert.assertEquals(subscriber.packets.size(), 2);
+
+		subscriber.subscription.request(10);
+		subscriber.await(5);
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals(subscriber.packets.get(i).getDestinationAddress(), i);
+		}
+	}
+
+	@Test
+	public void testIndependentSubscribers() throws Exception {
+		final RecordingSubscriber fast = new RecordingSubscriber(Long.MAX_VALUE);
+		final RecordingSubscriber slow = new RecordingSubscriber(1);
+		publisher.subscribe(fast);
+		publisher.subscribe(slow);
+		Assert.assertEquals(publisher.getSubscribers(), 2);
+
+		for (int i = 0; i < 10; i++) {
+			publisher.publish(createPacket(i));
+		}
+		fast.await(10);
+		slow.await(1);
+		Assert.assertEquals(slow.packets.size(), 1);
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		final RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		final PacketPublisher.PacketSubscription subscription = publisher.subscribe(subscriber, 3, OverflowPolicy.DROP_OLDEST);
+		for (int i = 0; i < 10; i++) {
+			publisher.publish(createPacket(i));
+		}
+		Assert.assertEquals(subscription.getPending(), 3);
+		Assert.assertEquals(subscription.getDropped(), 7);
+
+		subscription.request(Long.MAX_VALUE);
+		subscriber.await(3);
+		Assert.assertEquals(subscriber.packets.get(0).getDestinationAddress(), 7);
+		Assert.assertEquals(subscription.getDelivered(), 3);
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		final RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		final PacketPublisher.PacketSubscription subscription = publisher.subscribe(subscriber, 3, OverflowPolicy.DROP_NEWEST);
+		for (int i = 0; i < 10; i++) {
+			publisher.publish(createPacket(i));
+		}
+		subscription.request(5);
+		subscriber.await(3);
+		Assert.assertEquals(subscriber.packets.get(0).getDestinationAddress(), 0);
+		Assert.assertEquals(subscription.getDropped(), 7);
+		Assert.assertEquals(subscription.getDemand(), 2);
+	}
+
+	@Test
+	public void testInvalidRequest() throws Exception {
+		final RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		publisher.subscribe(subscriber);
+		subscriber.subscription.request(0);
+
+		final long end = System.currentTimeMillis() + 5000;
+		while (subscriber.error == null && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+		Assert.assertEquals(publisher.getSubscribers(), 0);
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+		publisher.subscribe(subscriber);
+		publisher.publish(createPacket(1));
+		subscriber.await(1);
+
+		subscriber.subscription.cancel();
+		Assert.assertEquals(publisher.getSubscribers(), 0);
+		publisher.publish(createPacket(2));
+		Thread.sleep(50);
+		Assert.assertEquals(subscriber.packets.size(), 1);
+	}
+
+	@Test
+	public void testCompleteAfterBuffered() throws Exception {
+		final RecordingSubscriber subscriber = new RecordingSubscriber(0);
+		publisher.subscribe(subscriber);
+		publisher.publish(createPacket(1));
+		publisher.close();
+		Thread.sleep(50);
+		Assert.assertFalse(subscriber.completed);
+
+		subscriber.subscription.request(1);
+		subscriber.await(1);
+		final long end = System.currentTimeMillis() + 5000;
+		while (!subscriber.completed && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertTrue(subscriber.completed);
+
+		// Late subscribers are completed right away
+		final RecordingSubscriber late = new RecordingSubscriber(1);
+		publisher.subscribe(late);
+		Thread.sleep(50);
+		Assert.assertTrue(late.completed);
+	}
+
+	@Test
+	public void testLink() throws Exception {
+		final StubLink link = new StubLink();
+		final RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+		link.getPublisher().subscribe(subscriber);
+		Assert.assertSame(link.getPublisher(), link.getPublisher());
+
+		link.receivedPacket(createPacket(1));
+		subscriber.await(1);
+		link.getPublisher().close();
+	}
+
+	private static HomeMaticPacket createPacket(final int counter) {
+		return new HomeMaticPacketPlain(0, 1, counter);
+	}
+
+	private static class RecordingSubscriber implements Flow.Subscriber<HomeMaticPacket> {
+
+		private final long initialRequest;
+
+		private final List<HomeMaticPacket> packets = Collections.synchronizedList(new ArrayList<HomeMaticPacket>());
+
+		private volatile Flow.Subscription subscription;
+
+		private volatile Throwable error;
+
+		private volatile boolean completed = false;
+
+		private RecordingSubscriber(final long initialRequest) {
+			this.initialRequest = initialRequest;
+		}
+
+		@Override
+		public void onSubscribe(final Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (initialRequest > 0) {
+				subscription.request(initialRequest);
+			}
+		}
+
+		@Override
+		public void onNext(final HomeMaticPacket item) {
+			packets.add(item);
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+
+		private void await(final int count) throws InterruptedException {
+			final long end = System.currentTimeMillis() + 5000;
+			while (packets.size() < count && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals(packets.size(), count);
+		}
+
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+
+/**
+ * Link without a gateway, the tests push the received packets with
+ * {@link #receivedPacket(HomeMaticPacket)} or
+ * {@link #receivedFrame(HomeMaticPacketView)}
+ */
+public class StubLink extends LinkBaseImpl {
+
+	private final List<HomeMaticPacket> sent = new CopyOnWriteArrayList<HomeMaticPacket>();
+
+	private volatile boolean sendFails = false;
+
+	@Override
+	public String getName() {
+		return "StubLink";
+	}
+
+	@Override
+	public boolean isReconnectSupported() {
+		return false;
+	}
+
+	@Override
+	protected boolean startLink(final boolean reconnecting) {
+		return true;
+	}
+
+	@Override
+	protected boolean closeLink() {
+		return true;
+	}
+
+	@Override
+	public boolean send(final HomeMaticPacket packet) {
+		if (sendFails) {
+			return false;
+		}
+		packet.setMessageCounter(getMessageCounter(packet));
+		sent.add(packet);
+		return true;
+	}
+
+	/**
+	 * @return the packets sent so far
+	 */
+	public List<HomeMaticPacket> getSent() {
+		return sent;
+	}
+
+	public void setSendFails(final boolean sendFails) {
+		this.sendFails = sendFails;
+	}
+
+	@Override
+	protected boolean setupAES() {
+		return true;
+	}
+
+	@Override
+	protected void cleanUpAES() {
+		//
+	}
+
+	@Override
+	public void receivedPacket(final HomeMaticPacket packet) {
+		super.receivedPacket(packet);
+	}
+
+	@Override
+	public void receivedFrame(final HomeMaticPacketView frame) {
+		super.receivedFrame(frame);
+	}
+
+}
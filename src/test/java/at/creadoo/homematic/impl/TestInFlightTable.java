@@ -0,0 +1,300 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.HomeMaticStatus;
+import at.creadoo.homematic.SendResult;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketBuilder;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.SettableFuture;
+
+public class TestInFlightTable {
+
+	private static final Logger log = Logger.getLogger(TestInFlightTable.class);
+
+	private static final int CENTRAL = 0x123456;
+
+	private static final int DEVICE = 0x3322A4;
+
+	private static final int OTHER = 0x3322A5;
+
+	/**
+	 * RPTEN and BIDI, an answer is expected
+	 */
+	private static final int BIDI = 0xA0;
+
+	private StubLink link;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		link = new StubLink();
+		// Retries are covered by TestRetryPolicy
+		link.setRetryPolicy(RetryPolicy.none());
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testAcknowledged() throws Exception {
+		final Future<SendResult> future = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		Assert.assertFalse(future.isDone());
+		Assert.assertEquals(link.getInFlight(), 1);
+		awaitSent(1);
+
+		// ACK of another device or to another counter
+		link.receivedFrame(createAnswer(OTHER, 0, 0x00));
+		link.receivedFrame(createAnswer(DEVICE, 1, 0x00));
+		Assert.assertFalse(future.isDone());
+
+		link.receivedFrame(createAnswer(DEVICE, 0, 0x00));
+		final SendResult result = future.get(1, TimeUnit.SECONDS);
+		Assert.assertEquals(result.getStatus(), SendResult.Status.ACKNOWLEDGED);
+		Assert.assertTrue(result.isSuccess());
+		Assert.assertEquals(result.getResponse().getMessageType(), HomeMaticMessageType.ACKNOWLEDGE);
+		Assert.assertEquals(link.getInFlight(), 0);
+	}
+
+	@Test
+	public void testNotAcknowledged() throws Exception {
+		final Future<SendResult> future = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		awaitSent(1);
+		link.receivedFrame(createAnswer(DEVICE, 0, 0x80));
+		Assert.assertEquals(future.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.NOT_ACKNOWLEDGED);
+		Assert.assertFalse(future.get().isSuccess());
+	}
+
+	@Test
+	public void testGatewayResponse() throws Exception {
+		final Future<SendResult> future = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		awaitSent(1);
+		final HomeMaticPacketView echo = new HomeMaticPacketView(link.getSent().get(0).getData());
+
+		// Received frames are not answers
+		link.receivedFrame(echo);
+		Assert.assertFalse(future.isDone());
+
+		// No response after three tries
+		link.receivedFrame(echo.setGatewayResponse(0x08));
+		Assert.assertEquals(future.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.NO_RESPONSE);
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+		final Future<SendResult> first = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		final Future<SendResult> second = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		final Future<SendResult> other = link.sendConfirmed(createPacket(OTHER, BIDI));
+		Assert.assertEquals(link.getInFlight(), 3);
+		// The second packet to the device waits
+		awaitSent(2);
+		Assert.assertEquals(link.getSent().get(1).getDestinationAddress(), OTHER);
+
+		link.receivedFrame(createAnswer(DEVICE, 0, 0x00));
+		Assert.assertTrue(first.get(1, TimeUnit.SECONDS).isSuccess());
+		awaitSent(3);
+		Assert.assertEquals(link.getSent().get(2).getMessageCounter(), 1);
+
+		link.receivedFrame(createAnswer(DEVICE, 1, 0x00));
+		link.receivedFrame(createAnswer(OTHER, 0, 0x00));
+		Assert.assertTrue(second.get(1, TimeUnit.SECONDS).isSuccess());
+		Assert.assertTrue(other.get(1, TimeUnit.SECONDS).isSuccess());
+		Assert.assertEquals(link.getInFlight(), 0);
+
+		// Two in flight, the third waits
+		link.setInFlightWindow(2);
+		link.sendConfirmed(createPacket(DEVICE, BIDI));
+		link.sendConfirmed(createPacket(DEVICE, BIDI));
+		final Future<SendResult> waiting = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		awaitSent(5);
+
+		// Cancelling a waiting send removes it
+		Assert.assertTrue(waiting.cancel(false));
+		Assert.assertEquals(link.getInFlight(), 2);
+	}
+
+	@Test
+	public void testWithoutAnswer() throws Exception {
+		// Without the BIDI flag no answer is expected
+		final Future<SendResult> unidirectional = link.sendConfirmed(createPacket(DEVICE, 0x80));
+		Assert.assertEquals(unidirectional.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+
+		link.setAckTimeout(50L);
+		final Future<SendResult> timeout = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		Assert.assertEquals(timeout.get(2, TimeUnit.SECONDS).getStatus(), SendResult.Status.TIMEOUT);
+
+		link.setSendFails(true);
+		final Future<SendResult> failed = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		Assert.assertEquals(failed.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.FAILED);
+		awaitInFlight(0);
+
+		// The counter of the failed write is taken back
+		link.setSendFails(false);
+		Assert.assertEquals(link.sendConfirmed(createPacket(DEVICE, 0x80)).get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+		Assert.assertEquals(link.getSent().get(2).getMessageCounter(), 2);
+	}
+
+	@Test
+	public void testAnswerDuringWrite() throws Exception {
+		// Answers handled before the write returns, e.g. while the sending thread is held up
+		final StubLink answering = new StubLink() {
+
+			@Override
+			public boolean send(final HomeMaticPacket packet) {
+				final boolean result = super.send(packet);
+				if (packet.getDestinationAddress() == DEVICE) {
+					receivedFrame(createAnswer(DEVICE, packet.getMessageCounter(), 0x00));
+				} else {
+					receivedFrame(new HomeMaticPacketView(packet.getData()).setGatewayResponse(0x01));
+				}
+				return result;
+			}
+		};
+		answering.setRetryPolicy(RetryPolicy.none());
+
+		final SendResult acknowledged = answering.sendConfirmed(createPacket(DEVICE, BIDI)).get(1, TimeUnit.SECONDS);
+		Assert.assertEquals(acknowledged.getStatus(), SendResult.Status.ACKNOWLEDGED);
+		Assert.assertEquals(acknowledged.getResponse().getMessageType(), HomeMaticMessageType.ACKNOWLEDGE);
+
+		final SendResult response = answering.sendConfirmed(createPacket(OTHER, BIDI)).get(1, TimeUnit.SECONDS);
+		Assert.assertEquals(response.getStatus(), SendResult.Status.ACKNOWLEDGED);
+		Assert.assertEquals(response.getRetries(), 0);
+		Assert.assertEquals(answering.getSent().size(), 2);
+	}
+
+	@Test
+	public void testReturnsBeforeWrite() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final StubLink blocking = new StubLink() {
+
+			@Override
+			public boolean send(final HomeMaticPacket packet) {
+				try {
+					// Bounded, a send on the calling thread fails the test instead of hanging it
+					release.await(2, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					return false;
+				}
+				return super.send(packet);
+			}
+		};
+		blocking.setRetryPolicy(RetryPolicy.none());
+
+		final long start = System.currentTimeMillis();
+		final Future<SendResult> future = blocking.sendConfirmed(createPacket(DEVICE, BIDI));
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+		Assert.assertFalse(future.isDone());
+
+		release.countDown();
+		final long end = System.currentTimeMillis() + 5000;
+		while (blocking.getSent().isEmpty() && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		blocking.receivedFrame(createAnswer(DEVICE, 0, 0x00));
+		Assert.assertEquals(future.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.ACKNOWLEDGED);
+	}
+
+	@Test
+	public void testWriteCompletedLater() throws Exception {
+		// Like a LAN link, the writer completes the future of the queued packet
+		final List<SettableFuture<Boolean>> writes = new CopyOnWriteArrayList<SettableFuture<Boolean>>();
+		final StubLink queueing = new StubLink() {
+
+			@Override
+			public Future<Boolean> sendAsync(final HomeMaticPacket packet) {
+				packet.setMessageCounter(getMessageCounter(packet));
+				final SettableFuture<Boolean> result = new SettableFuture<Boolean>();
+				writes.add(result);
+				return result;
+			}
+		};
+
+		final Future<SendResult> written = queueing.sendConfirmed(createPacket(DEVICE, 0x80));
+		final Future<SendResult> failed = queueing.sendConfirmed(createPacket(OTHER, BIDI));
+		final long end = System.currentTimeMillis() + 5000;
+		while (writes.size() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(writes.size(), 2);
+		Assert.assertFalse(written.isDone());
+		Assert.assertFalse(failed.isDone());
+
+		writes.get(0).set(Boolean.TRUE);
+		writes.get(1).set(Boolean.FALSE);
+		Assert.assertEquals(written.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+		Assert.assertEquals(failed.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.FAILED);
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Assert.assertTrue(link.start());
+		final Future<SendResult> sent = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		final Future<SendResult> waiting = link.sendConfirmed(createPacket(DEVICE, BIDI));
+		link.close();
+		Assert.assertEquals(sent.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.FAILED);
+		Assert.assertEquals(waiting.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.FAILED);
+		Assert.assertEquals(link.getInFlight(), 0);
+	}
+
+	private void awaitSent(final int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (link.getSent().size() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(link.getSent().size(), count);
+	}
+
+	/**
+	 * A send completed by the scheduler leaves the table after its result is visible
+	 */
+	private void awaitInFlight(final int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (link.getInFlight() > count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(link.getInFlight(), count);
+	}
+
+	private static HomeMaticPacket createPacket(final int destinationAddress, final int controlByte) {
+		return HomeMaticPacketBuilder.forType(HomeMaticMessageType.SET).controlByte(controlByte)
+				.senderAddress(CENTRAL).destinationAddress(destinationAddress).status(HomeMaticStatus.ON).build();
+	}
+
+	/**
+	 * @param subtype 0x00 for an ACK, 0x80 for a NACK
+	 */
+	private static HomeMaticPacketView createAnswer(final int senderAddress, final int messageCounter, final int subtype) {
+		return new HomeMaticPacketView(HomeMaticPacketBuilder.forType(HomeMaticMessageType.ACKNOWLEDGE).messageCounter(messageCounter)
+				.controlByte(0x80).senderAddress(senderAddress).destinationAddress(CENTRAL).payload(0, subtype).toByteArray());
+	}
+
+}
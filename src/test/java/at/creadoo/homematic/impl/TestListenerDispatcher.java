@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.util.PacketUtil;
+
+public class TestListenerDispatcher {
+
+	private static final Logger log = Logger.getLogger(TestListenerDispatcher.class);
+
+	private static final HomeMaticPacket PACKET = PacketUtil.decodeLANPacket("E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8".getBytes());
+
+	private StubLink link;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		link = new StubLink();
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testSlowListenerDoesNotBlockOthers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingListener slow = new RecordingListener(release);
+		final RecordingListener fast = new RecordingListener(null);
+		link.addLinkListener(slow);
+		link.addLinkListener(fast);
+
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			link.receivedPacket(PACKET);
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+
+		fast.await(10);
+		Assert.assertEquals(fast.packets.size(), 10);
+
+		Thread.sleep(50);
+		release.countDown();
+		slow.await(10);
+		Assert.assertEquals(link.getListenerDispatcher(slow).getDelivered(), 10);
+		Assert.assertEquals(link.getListenerDispatcher(slow).getDropped(), 0);
+		// The second packet waited for the first one to be released
+		Assert.assertTrue(link.getListenerDispatcher(slow).getMaxLag() >= 50);
+	}
+
+	@Test
+	public void testDropNewest() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingListener listener = new RecordingListener(release);
+		link.addLinkListener(listener, 2, OverflowPolicy.DROP_NEWEST);
+		final ListenerDispatcher dispatcher = link.getListenerDispatcher(listener);
+
+		final List<HomeMaticPacket> packets = createPackets(5);
+		// The first packet is taken by the listener, which blocks
+		dispatcher.dispatch(packets.get(0));
+		listener.awaitBlocked();
+		for (int i = 1; i < packets.size(); i++) {
+			dispatcher.dispatch(packets.get(i));
+		}
+		Assert.assertEquals(dispatcher.getPending(), 2);
+		Assert.assertEquals(dispatcher.getDropped(), 2);
+
+		release.countDown();
+		listener.await(3);
+		Assert.assertEquals(listener.packets, packets.subList(0, 3));
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingListener listener = new RecordingListener(release);
+		link.addLinkListener(listener, 2, OverflowPolicy.DROP_OLDEST);
+		final ListenerDispatcher dispatcher = link.getListenerDispatcher(listener);
+
+		final List<HomeMaticPacket> packets = createPackets(5);
+		dispatcher.dispatch(packets.get(0));
+		listener.awaitBlocked();
+		for (int i = 1; i < packets.size(); i++) {
+			dispatcher.dispatch(packets.get(i));
+		}
+		Assert.assertEquals(dispatcher.getDropped(), 2);
+
+		release.countDown();
+		listener.await(3);
+		Assert.assertEquals(listener.packets.get(0), packets.get(0));
+		Assert.assertEquals(listener.packets.subList(1, 3), packets.subList(3, 5));
+	}
+
+	@Test
+	public void testDefaultPolicy() throws Exception {
+		Assert.assertEquals(link.getOverflowPolicy(), OverflowPolicy.DROP_OLDEST);
+		link.setListenerQueueCapacity(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingListener listener = new RecordingListener(release);
+		link.addLinkListener(listener);
+		final ListenerDispatcher dispatcher = link.getListenerDispatcher(listener);
+		Assert.assertEquals(dispatcher.getPolicy(), OverflowPolicy.DROP_OLDEST);
+
+		link.receivedPacket(PACKET);
+		listener.awaitBlocked();
+
+		// The receiving thread is never held up by the listener
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			link.receivedPacket(PACKET);
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+		Assert.assertEquals(dispatcher.getPending(), 2);
+		Assert.assertEquals(dispatcher.getDropped(), 8);
+
+		release.countDown();
+		listener.await(3);
+		Assert.assertEquals(dispatcher.getDelivered(), 3);
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingListener listener = new RecordingListener(release);
+		link.addLinkListener(listener, 1, OverflowPolicy.BLOCK);
+		final ListenerDispatcher dispatcher = link.getListenerDispatcher(listener);
+
+		dispatcher.dispatch(PACKET);
+		listener.awaitBlocked();
+		dispatcher.dispatch(PACKET);
+
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ex) {
+					//
+				}
+				release.countDown();
+			}
+		}).start();
+
+		// Waits for the listener to take the second packet
+		final long start = System.currentTimeMillis();
+		Assert.assertTrue(dispatcher.dispatch(PACKET));
+		Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+
+		listener.await(3);
+		Assert.assertEquals(dispatcher.getDropped(), 0);
+	}
+
+	@Test
+	public void testRemoveListener() throws Exception {
+		final RecordingListener listener = new RecordingListener(null);
+		link.addLinkListener(listener);
+		final ListenerDispatcher dispatcher = link.getListenerDispatcher(listener);
+		link.removeLinkListener(listener);
+
+		Assert.assertNull(link.getListenerDispatcher(listener));
+		Assert.assertFalse(dispatcher.dispatch(PACKET));
+		link.receivedPacket(PACKET);
+		Thread.sleep(50);
+		Assert.assertTrue(listener.packets.isEmpty());
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Throwable {
+		final CountingListener permanent = new CountingListener();
+		link.addLinkListener(permanent, ListenerDispatcher.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong pushed = new AtomicLong(0L);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final List<Thread> threads = new ArrayList<Thread>();
+
+		// Links pushing packets
+		for (int i = 0; i < 4; i++) {
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (running.get()) {
+							link.receivedPacket(PACKET);
+							pushed.incrementAndGet();
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			}));
+		}
+		// Listeners coming and going meanwhile
+		for (int i = 0; i < 2; i++) {
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (running.get()) {
+							final CountingListener listener = new CountingListener();
+							link.addLinkListener(listener, 10, OverflowPolicy.DROP_NEWEST);
+							Assert.assertTrue(link.getLinkListeners().contains(listener));
+							link.removeLinkListener(listener);
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			}));
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(500);
+		running.set(false);
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		log.debug("Pushed " + pushed.get() + " packets");
+		Assert.assertEquals(link.getLinkListeners(), Collections.singletonList(permanent));
+		// The permanent listener blocks the links instead of dropping packets, so it got all of them
+		final long end = System.currentTimeMillis() + 5000;
+		while (permanent.count.get() < pushed.get() && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(permanent.count.get(), pushed.get());
+		Assert.assertEquals(link.getListenerDispatcher(permanent).getDropped(), 0);
+	}
+
+	private static List<HomeMaticPacket> createPackets(final int count) {
+		final List<HomeMaticPacket> result = new ArrayList<HomeMaticPacket>();
+		for (int i = 0; i < count; i++) {
+			// Packets differ by their message counter
+			result.add(PacketUtil.decodeLANPacket(("E3322A4,0000,00046B7D,FF,FFDB," + String.format("%02X", i) + "94413322A43322A40101C8").getBytes()));
+		}
+		Assert.assertNotEquals(result.get(0), result.get(1));
+		return result;
+	}
+
+	private static class RecordingListener implements IHomeMaticLinkListener {
+
+		private final List<HomeMaticPacket> packets = Collections.synchronizedList(new ArrayList<HomeMaticPacket>());
+
+		private final CountDownLatch release;
+
+		private final CountDownLatch blocked = new CountDownLatch(1);
+
+		private RecordingListener(final CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public void received(final IHomeMaticLink link, final HomeMaticPacket packet) {
+			if (release != null) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			packets.add(packet);
+		}
+
+		private void awaitBlocked() throws InterruptedException {
+			Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		}
+
+		private void await(final int count) throws InterruptedException {
+			final long end = System.currentTimeMillis() + 5000;
+			while (packets.size() < count && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals(packets.size(), count);
+		}
+
+		@Override
+		public void linkStarted(final IHomeMaticLink link) {
+			//
+		}
+
+		@Override
+		public void linkClosed(final IHomeMaticLink link) {
+			//
+		}
+
+		@Override
+		public void linkTerminated(final IHomeMaticLink link) {
+			//
+		}
+
+	}
+
+	private static class CountingListener extends RecordingListener {
+
+		private final AtomicLong count = new AtomicLong(0L);
+
+		private CountingListener() {
+			super(null);
+		}
+
+		@Override
+		public void received(final IHomeMaticLink link, final HomeMaticPacket packet) {
+			count.incrementAndGet();
+		}
+
+	}
+
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.HomeMaticStatus;
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.ISendFailureListener;
+import at.creadoo.homematic.SendResult;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketBuilder;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.PacketUtil;
+import at.creadoo.homematic.util.Util;
+
+public class TestRetryPolicy {
+
+	private static final Logger log = Logger.getLogger(TestRetryPolicy.class);
+
+	private static final int CENTRAL = 0x123456;
+
+	private static final int DEVICE = 0x3322A4;
+
+	/**
+	 * RPTEN and BIDI, an answer is expected
+	 */
+	private static final int BIDI = 0xA0;
+
+	private LossyGateway link;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		link = new LossyGateway();
+		link.setAckTimeout(50L);
+		final RetryPolicy policy = new RetryPolicy();
+		policy.setInitialDelay(10L);
+		policy.setMaxDelay(40L);
+		link.setRetryPolicy(policy);
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		link.shutdown();
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testDelay() {
+		final RetryPolicy policy = new RetryPolicy();
+		policy.setInitialDelay(100L);
+		policy.setMaxDelay(1000L);
+		policy.setJitter(0.0);
+		Assert.assertEquals(policy.getDelay(1), 100L);
+		Assert.assertEquals(policy.getDelay(2), 200L);
+		Assert.assertEquals(policy.getDelay(3), 400L);
+		Assert.assertEquals(policy.getDelay(5), 1000L);
+
+		policy.setJitter(0.5);
+		for (int i = 0; i < 100; i++) {
+			final long delay = policy.getDelay(2);
+			Assert.assertTrue(delay >= 100L && delay <= 300L, "Delay " + delay);
+		}
+	}
+
+	@Test
+	public void testBudget() {
+		final RetryPolicy policy = new RetryPolicy();
+		Assert.assertEquals(policy.getRetries(HomeMaticMessageType.SET), RetryPolicy.DEFAULT_RETRIES);
+		// Virtual key presses toggle
+		Assert.assertTrue(policy.isUnsafe(HomeMaticMessageType.REMOTE));
+		Assert.assertEquals(policy.getRetries(HomeMaticMessageType.REMOTE), 0);
+
+		policy.setRetries(HomeMaticMessageType.SET, 5);
+		policy.setRetries(1);
+		Assert.assertEquals(policy.getRetries(HomeMaticMessageType.SET), 5);
+		Assert.assertEquals(policy.getRetries(HomeMaticMessageType.CONFIGURATION), 1);
+		policy.setRetries(HomeMaticMessageType.SET, null);
+		Assert.assertEquals(policy.getRetries(HomeMaticMessageType.SET), 1);
+
+		policy.setUnsafe(HomeMaticMessageType.SET, true);
+		Assert.assertEquals(policy.getRetries(HomeMaticMessageType.SET), 0);
+
+		Assert.assertTrue(policy.isRetryable(SendResult.Status.TIMEOUT));
+		Assert.assertTrue(policy.isRetryable(SendResult.Status.NO_RESPONSE));
+		Assert.assertFalse(policy.isRetryable(SendResult.Status.NOT_ACKNOWLEDGED));
+		Assert.assertFalse(policy.isRetryable(SendResult.Status.FAILED));
+	}
+
+	@Test
+	public void testRetryUntilAcknowledged() throws Exception {
+		link.drop(2);
+		final Future<SendResult> future = link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI));
+		final SendResult result = future.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(result.getStatus(), SendResult.Status.ACKNOWLEDGED);
+		Assert.assertEquals(result.getRetries(), 2);
+		Assert.assertEquals(link.getRetransmissions(), 2L);
+		Assert.assertEquals(link.getSendFailures(), 0L);
+
+		// Sent again with the counter of the first try
+		Assert.assertEquals(link.getSent().size(), 3);
+		for (HomeMaticPacket packet : link.getSent()) {
+			Assert.assertEquals(packet.getMessageCounter(), 0);
+		}
+		// The next packet gets the next counter
+		link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI)).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(link.getSent().get(3).getMessageCounter(), 1);
+	}
+
+	@Test
+	public void testFinalFailure() throws Exception {
+		final List<SendResult> failures = new CopyOnWriteArrayList<SendResult>();
+		link.addSendFailureListener(new ISendFailureListener() {
+
+			@Override
+			public void sendFailed(final IHomeMaticLink source, final HomeMaticPacket packet, final SendResult result) {
+				Assert.assertSame(source, link);
+				failures.add(result);
+			}
+		});
+		link.getRetryPolicy().setRetries(HomeMaticMessageType.SET, 3);
+		link.drop(Integer.MAX_VALUE);
+
+		final SendResult result = link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI)).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(result.getStatus(), SendResult.Status.TIMEOUT);
+		Assert.assertEquals(result.getRetries(), 3);
+		Assert.assertEquals(link.getSent().size(), 4);
+		Assert.assertEquals(link.getRetransmissions(), 3L);
+
+		awaitFailures(failures, 1);
+		Assert.assertEquals(failures.get(0).getRetries(), 3);
+		Assert.assertEquals(link.getSendFailures(), 1L);
+		Assert.assertEquals(link.getInFlight(), 0);
+	}
+
+	@Test
+	public void testNoRetry() throws Exception {
+		link.drop(Integer.MAX_VALUE);
+
+		// Unsafe type
+		Assert.assertEquals(link.sendConfirmed(createPacket(HomeMaticMessageType.REMOTE, BIDI)).get(5, TimeUnit.SECONDS).getStatus(), SendResult.Status.TIMEOUT);
+		Assert.assertEquals(link.getSent().size(), 1);
+
+		// Marked by the caller
+		Assert.assertEquals(link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI), false).get(5, TimeUnit.SECONDS).getStatus(), SendResult.Status.TIMEOUT);
+		Assert.assertEquals(link.getSent().size(), 2);
+
+		// A NACK does not change when the packet is sent again
+		link.drop(0);
+		link.answer(0x80);
+		final SendResult result = link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI)).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(result.getStatus(), SendResult.Status.NOT_ACKNOWLEDGED);
+		Assert.assertEquals(result.getRetries(), 0);
+		Assert.assertEquals(link.getSent().size(), 3);
+		Assert.assertEquals(link.getRetransmissions(), 0L);
+		awaitSendFailures(3L);
+	}
+
+	@Test
+	public void testGatewayNoResponse() throws Exception {
+		link.drop(Integer.MAX_VALUE);
+		link.setAckTimeout(5000L);
+		final Future<SendResult> future = link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI));
+		awaitSent(1);
+
+		// The gateway reports each try without answer
+		for (int i = 1; i <= RetryPolicy.DEFAULT_RETRIES; i++) {
+			link.receivedFrame(new HomeMaticPacketView(link.getSent().get(i - 1).getData()).setGatewayResponse(0x08));
+			awaitSent(i + 1);
+		}
+		Assert.assertFalse(future.isDone());
+		link.receivedFrame(new HomeMaticPacketView(link.getSent().get(0).getData()).setGatewayResponse(0x08));
+		final SendResult result = future.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(result.getStatus(), SendResult.Status.NO_RESPONSE);
+		Assert.assertEquals(result.getRetries(), RetryPolicy.DEFAULT_RETRIES);
+	}
+
+	@Test
+	public void testGatewayResponseToRetry() throws Exception {
+		link.drop(Integer.MAX_VALUE);
+		link.setAckTimeout(5000L);
+		final Future<SendResult> future = link.sendConfirmed(createPacket(HomeMaticMessageType.SET, BIDI));
+		awaitSent(1);
+		final byte[] frame = link.getSent().get(0).getData();
+
+		// No response to the first try, the retry is acknowledged right away
+		receivedLANFrame(createResponse(frame, 0x08));
+		awaitSent(2);
+		receivedLANFrame(createResponse(frame, 0x01));
+
+		final SendResult result = future.get(1, TimeUnit.SECONDS);
+		Assert.assertEquals(result.getStatus(), SendResult.Status.ACKNOWLEDGED);
+		Assert.assertEquals(result.getRetries(), 1);
+	}
+
+	@Test
+	public void testLossyGateway() throws Exception {
+		link.getRetryPolicy().setRetries(10);
+		link.loss(0.3);
+		final List<Future<SendResult>> futures = new ArrayList<Future<SendResult>>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(link.sendConfirmed(createPacket(DEVICE + i % 10, HomeMaticMessageType.SET, BIDI)));
+		}
+		int retries = 0;
+		for (Future<SendResult> future : futures) {
+			final SendResult result = future.get(30, TimeUnit.SECONDS);
+			Assert.assertEquals(result.getStatus(), SendResult.Status.ACKNOWLEDGED);
+			retries += result.getRetries();
+		}
+		log.debug("Retries: " + retries);
+		Assert.assertTrue(retries > 0);
+		Assert.assertEquals(link.getRetransmissions(), (long) retries);
+		Assert.assertEquals(link.getSent().size(), 100 + retries);
+		awaitInFlight(0);
+	}
+
+	/**
+	 * Decodes the frame like a LAN link, through the duplicate filter of the link
+	 */
+	private void receivedLANFrame(final String frame) {
+		final HomeMaticPacketView view = new HomeMaticPacketView();
+		Assert.assertTrue(PacketUtil.decodeLANPacket(frame.getBytes(), link.getDuplicateFilter(), view));
+		link.receivedFrame(view);
+	}
+
+	/**
+	 * @return the 'R' frame of a LAN gateway reporting the result of a sent frame
+	 */
+	private static String createResponse(final byte[] frame, final int response) {
+		final byte[] bidcos = new byte[frame.length - 1];
+		System.arraycopy(frame, 1, bidcos, 0, bidcos.length);
+		return "R" + Util.toHex(CENTRAL) + "," + String.format("%04X", response) + ",00046B7D,FF,FFDB," + Util.toHex(bidcos);
+	}
+
+	private void awaitSent(final int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (link.getSent().size() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(link.getSent().size(), count);
+	}
+
+	/**
+	 * The failures are counted by the thread completing the send after the
+	 * result is visible
+	 */
+	private void awaitSendFailures(final long count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (link.getSendFailures() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(link.getSendFailures(), count);
+	}
+
+	private void awaitInFlight(final int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (link.getInFlight() > count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(link.getInFlight(), count);
+	}
+
+	private static void awaitFailures(final List<SendResult> failures, final int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (failures.size() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(failures.size(), count);
+	}
+
+	private static HomeMaticPacket createPacket(final HomeMaticMessageType messageType, final int controlByte) {
+		return createPacket(DEVICE, messageType, controlByte);
+	}
+
+	private static HomeMaticPacket createPacket(final int destinationAddress, final HomeMaticMessageType messageType, final int controlByte) {
+		return HomeMaticPacketBuilder.forType(messageType).controlByte(controlByte)
+				.senderAddress(CENTRAL).destinationAddress(destinationAddress).status(HomeMaticStatus.ON).build();
+	}
+
+	/**
+	 * Gateway whose devices answer each packet after a few milliseconds,
+	 * unless the packet or its answer is lost
+	 */
+	private static final class LossyGateway extends StubLink {
+
+		private final ScheduledExecutorService devices = Executors.newSingleThreadScheduledExecutor();
+
+		private final Random random = new Random(42L);
+
+		private int drop = 0;
+
+		private double loss = 0.0;
+
+		private int subtype = 0x00;
+
+		/**
+		 * @param drop number of packets to lose
+		 */
+		synchronized void drop(final int drop) {
+			this.drop = drop;
+		}
+
+		/**
+		 * @param loss probability a packet is lost
+		 */
+		synchronized void loss(final double loss) {
+			this.loss = loss;
+		}
+
+		/**
+		 * @param subtype 0x00 to answer with an ACK, 0x80 for a NACK
+		 */
+		synchronized void answer(final int subtype) {
+			this.subtype = subtype;
+		}
+
+		void shutdown() {
+			devices.shutdownNow();
+		}
+
+		@Override
+		public boolean send(final HomeMaticPacket packet) {
+			if (!super.send(packet)) {
+				return false;
+			}
+			final int answer;
+			synchronized (this) {
+				if (drop > 0) {
+					drop--;
+					return true;
+				}
+				if (random.nextDouble() < loss) {
+					return true;
+				}
+				answer = subtype;
+			}
+			final int senderAddress = packet.getDestinationAddress();
+			final int messageCounter = packet.getMessageCounter();
+			devices.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					receivedFrame(new HomeMaticPacketView(HomeMaticPacketBuilder.forType(HomeMaticMessageType.ACKNOWLEDGE).messageCounter(messageCounter)
+							.controlByte(0x80).senderAddress(senderAddress).destinationAddress(CENTRAL).payload(0, answer).toByteArray()));
+				}
+			}, 5L, TimeUnit.MILLISECONDS);
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.IHomeMaticLink;
+import at.creadoo.homematic.IHomeMaticLinkListener;
+import at.creadoo.homematic.PacketFilter;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketBuilder;
+import at.creadoo.homematic.packet.HomeMaticPacketPlain;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+
+public class TestSubscriptionIndex {
+
+	private static final Logger log = Logger.getLogger(TestSubscriptionIndex.class);
+
+	private static final int CENTRAL = 0x123456;
+
+	private StubLink link;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		link = new StubLink();
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testFilter() throws Exception {
+		final HomeMaticPacket packet = createPacket(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE);
+
+		Assert.assertTrue(PacketFilter.ALL.matches(packet));
+		Assert.assertTrue(PacketFilter.sender(0x3322A4).matches(packet));
+		Assert.assertFalse(PacketFilter.sender(0x3322A5).matches(packet));
+		Assert.assertTrue(PacketFilter.destination(CENTRAL).withMessageType(HomeMaticMessageType.REMOTE).matches(packet));
+		Assert.assertFalse(PacketFilter.sender(0x3322A4).withMessageType(HomeMaticMessageType.EVENT).matches(packet));
+		Assert.assertEquals(PacketFilter.sender(1).withDestination(2), PacketFilter.destination(2).withSender(1));
+	}
+
+	@Test
+	public void testDispatch() throws Exception {
+		final CollectingListener bySender = new CollectingListener();
+		final CollectingListener byDestination = new CollectingListener();
+		final CollectingListener byType = new CollectingListener();
+		final CollectingListener bySenderAndType = new CollectingListener();
+		final CollectingListener all = new CollectingListener();
+		link.subscribe(PacketFilter.sender(0x3322A4), bySender);
+		link.subscribe(PacketFilter.destination(CENTRAL), byDestination);
+		link.subscribe(PacketFilter.messageType(HomeMaticMessageType.EVENT), byType);
+		link.subscribe(PacketFilter.sender(0x3322A4).withMessageType(HomeMaticMessageType.REMOTE), bySenderAndType);
+		link.subscribe(PacketFilter.ALL, all);
+
+		final HomeMaticPacket remote = createPacket(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE);
+		final HomeMaticPacket event = createPacket(0x3322A4, 0x000000, HomeMaticMessageType.EVENT);
+		final HomeMaticPacket other = createPacket(0x111111, 0x222222, HomeMaticMessageType.INFORMATION);
+
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(remote), 4);
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(event), 3);
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(other), 1);
+
+		bySender.await(2);
+		byDestination.await(1);
+		byType.await(1);
+		bySenderAndType.await(1);
+		all.await(3);
+		Assert.assertEquals(byDestination.packets, Collections.singletonList(remote));
+		Assert.assertEquals(byType.packets, Collections.singletonList(event));
+		Assert.assertEquals(bySenderAndType.packets, Collections.singletonList(remote));
+	}
+
+	@Test
+	public void testManyDevices() throws Exception {
+		// A subscription per device, each packet reaches one of them
+		final List<CollectingListener> listeners = new ArrayList<CollectingListener>();
+		for (int address = 0; address < 500; address++) {
+			final CollectingListener listener = new CollectingListener();
+			link.subscribe(PacketFilter.sender(address * 0x100), listener);
+			listeners.add(listener);
+		}
+
+		for (int address = 0; address < 500; address++) {
+			Assert.assertEquals(link.getSubscriptionIndex().dispatch(createPacket(address * 0x100, CENTRAL, HomeMaticMessageType.INFORMATION)), 1);
+		}
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(createPacket(0x1, CENTRAL, HomeMaticMessageType.INFORMATION)), 0);
+
+		for (CollectingListener listener : listeners) {
+			listener.await(1);
+		}
+	}
+
+	@Test
+	public void testUnsubscribe() throws Exception {
+		final CollectingListener listener = new CollectingListener();
+		final Subscription first = link.subscribe(PacketFilter.sender(0x3322A4), listener);
+		final Subscription second = link.subscribe(PacketFilter.sender(0x3322A4), listener);
+
+		final HomeMaticPacket packet = createPacket(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE);
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(packet), 2);
+
+		link.unsubscribe(first);
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(packet), 1);
+		// Unsubscribing twice does no harm
+		link.unsubscribe(first);
+		link.unsubscribe(second);
+		Assert.assertTrue(link.getSubscriptionIndex().isEmpty());
+		Assert.assertEquals(link.getSubscriptionIndex().dispatch(packet), 0);
+	}
+
+	@Test
+	public void testListenersAndSubscriptions() throws Exception {
+		final CollectingListener listener = new CollectingListener();
+		final CollectingListener subscriber = new CollectingListener();
+		link.addLinkListener(listener);
+		link.subscribe(PacketFilter.sender(0x3322A4), subscriber);
+
+		link.receivedPacket(createPacket(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE));
+		link.receivedPacket(createPacket(0x111111, CENTRAL, HomeMaticMessageType.REMOTE));
+
+		listener.await(2);
+		subscriber.await(1);
+		Assert.assertTrue(link.getLinkListeners().contains(listener));
+		Assert.assertFalse(link.getLinkListeners().contains(subscriber));
+	}
+
+	@Test
+	public void testMatchesHeader() throws Exception {
+		final CollectingListener listener = new CollectingListener();
+		link.subscribe(PacketFilter.sender(0x3322A4).withMessageType(HomeMaticMessageType.REMOTE), listener);
+		link.subscribe(PacketFilter.messageType(HomeMaticMessageType.EVENT), listener);
+
+		final SubscriptionIndex index = link.getSubscriptionIndex();
+		Assert.assertTrue(index.matches(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE.getId()));
+		Assert.assertFalse(index.matches(0x3322A4, CENTRAL, HomeMaticMessageType.INFORMATION.getId()));
+		Assert.assertTrue(index.matches(0x111111, CENTRAL, HomeMaticMessageType.EVENT.getId()));
+		Assert.assertFalse(index.matches(0x111111, CENTRAL, 0xFF));
+		Assert.assertFalse(SubscriptionIndex.EMPTY.matches(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE.getId()));
+
+		link.subscribe(PacketFilter.ALL, listener);
+		Assert.assertTrue(link.getSubscriptionIndex().matches(0x111111, CENTRAL, 0xFF));
+	}
+
+	@Test
+	public void testReceivedFrame() throws Exception {
+		final CollectingListener subscriber = new CollectingListener();
+		link.subscribe(PacketFilter.messageType(HomeMaticMessageType.EVENT), subscriber);
+
+		final HomeMaticPacketView frame = new HomeMaticPacketView();
+		// Remote frame no one is interested in is not decoded
+		link.receivedFrame(frame.wrap(createFrame(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE), 0));
+		Assert.assertEquals(link.getSkippedFrames(), 1L);
+		link.receivedFrame(frame.wrap(createFrame(0x3322A4, CENTRAL, HomeMaticMessageType.EVENT), 0));
+		subscriber.await(1);
+		Assert.assertEquals(subscriber.packets.get(0).getMessageType(), HomeMaticMessageType.EVENT);
+
+		// Listeners receive all frames
+		final CollectingListener listener = new CollectingListener();
+		link.addLinkListener(listener);
+		link.receivedFrame(frame.wrap(createFrame(0x3322A4, CENTRAL, HomeMaticMessageType.REMOTE), 0));
+		listener.await(1);
+		Assert.assertEquals(link.getSkippedFrames(), 1L);
+	}
+
+	private static HomeMaticPacket createPacket(final int senderAddress, final int destinationAddress, final HomeMaticMessageType messageType) {
+		final HomeMaticPacket packet = new HomeMaticPacketPlain(1, senderAddress, destinationAddress);
+		packet.setMessageType(messageType);
+		return packet;
+	}
+
+	private static byte[] createFrame(final int senderAddress, final int destinationAddress, final HomeMaticMessageType messageType) {
+		return HomeMaticPacketBuilder.forType(messageType).senderAddress(senderAddress).destinationAddress(destinationAddress).toByteArray();
+	}
+
+	private static class CollectingListener implements IHomeMaticLinkListener {
+
+		private final List<HomeMaticPacket> packets = Collections.synchronizedList(new ArrayList<HomeMaticPacket>());
+
+		@Override
+		public void received(final IHomeMaticLink link, final HomeMaticPacket packet) {
+			packets.add(packet);
+		}
+
+		private void await(final int count) throws InterruptedException {
+			final long end = System.currentTimeMillis() + 5000;
+			while (packets.size() < count && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			Assert.assertEquals(packets.size(), count);
+		}
+
+		@Override
+		public void linkStarted(final IHomeMaticLink link) {
+			//
+		}
+
+		@Override
+		public void linkClosed(final IHomeMaticLink link) {
+			//
+		}
+
+		@Override
+		public void linkTerminated(final IHomeMaticLink link) {
+			//
+		}
+
+	}
+
+}
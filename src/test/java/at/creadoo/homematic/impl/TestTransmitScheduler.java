@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.impl;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.HomeMaticMessageType;
+import at.creadoo.homematic.HomeMaticStatus;
+import at.creadoo.homematic.SendResult;
+import at.creadoo.homematic.packet.HomeMaticPacket;
+import at.creadoo.homematic.packet.HomeMaticPacketBuilder;
+import at.creadoo.homematic.packet.HomeMaticPacketView;
+import at.creadoo.homematic.util.AirtimeBudget;
+
+public class TestTransmitScheduler {
+
+	private static final Logger log = Logger.getLogger(TestTransmitScheduler.class);
+
+	private static final int CENTRAL = 0x123456;
+
+	private static final int DEVICE = 0x3322A4;
+
+	/**
+	 * Without BIDI, completed once sent
+	 */
+	private static final int NO_BIDI = 0x80;
+
+	private StubLink link;
+
+	/**
+	 * Airtime of a packet in microseconds
+	 */
+	private long airtime;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		link = new StubLink();
+		link.setRetryPolicy(RetryPolicy.none());
+		airtime = AirtimeBudget.getAirtime(createPacket(DEVICE));
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testDefaultBudget() throws Exception {
+		// Not paced unless enabled
+		Assert.assertNull(link.getAirtimeBudget());
+
+		final AirtimeBudget budget = new AirtimeBudget();
+		Assert.assertEquals(budget.getLimit(), AirtimeBudget.DEFAULT_LIMIT);
+		link.setAirtimeBudget(budget);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(link.sendConfirmed(createPacket(DEVICE + i)).get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+		}
+		Assert.assertEquals(budget.getUsed(), 10 * airtime);
+		Assert.assertEquals(link.getDelayedTransmissions(), 0L);
+	}
+
+	@Test
+	public void testPacing() throws Exception {
+		// Room for two packets per window
+		link.setAirtimeBudget(new AirtimeBudget(2 * airtime / 1000 + 1, 600L));
+		final Future<SendResult> first = link.sendConfirmed(createPacket(DEVICE));
+		final Future<SendResult> second = link.sendConfirmed(createPacket(DEVICE + 1));
+		final Future<SendResult> third = link.sendConfirmed(createPacket(DEVICE + 2));
+		Assert.assertEquals(first.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+		Assert.assertEquals(second.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+		awaitDelayed(1L);
+		Assert.assertFalse(third.isDone());
+		Assert.assertEquals(link.getSent().size(), 2);
+		Assert.assertEquals(link.getTransmitQueueSize(), 1);
+
+		// Sent once the first two left the window
+		Assert.assertEquals(third.get(5, TimeUnit.SECONDS).getStatus(), SendResult.Status.SENT);
+		Assert.assertEquals(link.getSent().size(), 3);
+		Assert.assertEquals(link.getTransmitQueueSize(), 0);
+	}
+
+	@Test
+	public void testPriority() throws Exception {
+		final AirtimeBudget budget = new AirtimeBudget(2 * airtime / 1000 + 1, 600L);
+		link.setAirtimeBudget(budget);
+		budget.record(budget.getLimit() * 1000L);
+
+		final Future<SendResult> low = link.sendConfirmed(createPacket(DEVICE), true, SendPriority.LOW);
+		final Future<SendResult> normal = link.sendConfirmed(createPacket(DEVICE + 1), true, SendPriority.NORMAL);
+		final Future<SendResult> high = link.sendConfirmed(createPacket(DEVICE + 2), true, SendPriority.HIGH);
+		Assert.assertEquals(link.getSent().size(), 0);
+		Assert.assertEquals(link.getTransmitQueueSize(), 3);
+
+		Assert.assertTrue(normal.get(5, TimeUnit.SECONDS).isSuccess());
+		Assert.assertTrue(high.isDone());
+		Assert.assertEquals(link.getSent().get(0).getDestinationAddress(), DEVICE + 2);
+		Assert.assertEquals(link.getSent().get(1).getDestinationAddress(), DEVICE + 1);
+		// The rest of the budget is kept from low priority packets
+		Assert.assertFalse(low.isDone());
+
+		Assert.assertTrue(low.get(5, TimeUnit.SECONDS).isSuccess());
+		Assert.assertEquals(link.getSent().get(2).getDestinationAddress(), DEVICE);
+	}
+
+	@Test
+	public void testResync() throws Exception {
+		final AirtimeBudget budget = new AirtimeBudget(2 * airtime / 1000 + 1, 60000L);
+		budget.setRecovery(300L);
+		link.setAirtimeBudget(budget);
+
+		// Any frame of the gateway reporting overload
+		link.receivedFrame(new HomeMaticPacketView(createPacket(CENTRAL).getData()).setGatewayValues(-40, AirtimeBudget.STATUS_OVERLOAD, 0L));
+		Assert.assertEquals(budget.getGatewayStatus(), AirtimeBudget.STATUS_OVERLOAD);
+		Assert.assertTrue(budget.getWaitTime(airtime, 1.0) > 0L);
+
+		// Held back until the assumed airtime decayed, not for the whole window
+		final Future<SendResult> future = link.sendConfirmed(createPacket(DEVICE));
+		Assert.assertFalse(future.isDone());
+		Assert.assertTrue(future.get(5, TimeUnit.SECONDS).isSuccess());
+	}
+
+	@Test
+	public void testWithoutBudget() throws Exception {
+		link.setAirtimeBudget(new AirtimeBudget(1L, 60000L));
+		link.sendConfirmed(createPacket(DEVICE));
+		final Future<SendResult> held = link.sendConfirmed(createPacket(DEVICE + 1));
+		Assert.assertFalse(held.isDone());
+
+		// Sends the held back packets right away
+		link.setAirtimeBudget(null);
+		Assert.assertTrue(held.get(1, TimeUnit.SECONDS).isSuccess());
+		Assert.assertNull(link.getAirtimeBudget());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Assert.assertTrue(link.start());
+		link.setAirtimeBudget(new AirtimeBudget(1L, 60000L));
+		link.sendConfirmed(createPacket(DEVICE));
+		final Future<SendResult> held = link.sendConfirmed(createPacket(DEVICE + 1));
+		link.close();
+		Assert.assertEquals(held.get(1, TimeUnit.SECONDS).getStatus(), SendResult.Status.FAILED);
+		Assert.assertEquals(link.getTransmitQueueSize(), 0);
+		Assert.assertEquals(link.getInFlight(), 0);
+	}
+
+	/**
+	 * The queue is drained by the scheduler of the link
+	 */
+	private void awaitDelayed(final long count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (link.getDelayedTransmissions() < count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(link.getDelayedTransmissions(), count);
+	}
+
+	private static HomeMaticPacket createPacket(final int destinationAddress) {
+		return HomeMaticPacketBuilder.forType(HomeMaticMessageType.SET).controlByte(NO_BIDI)
+				.senderAddress(CENTRAL).destinationAddress(destinationAddress).status(HomeMaticStatus.ON).build();
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local stand-in for a HM-CFG-LAN, serving one link at a time. With AES it
+ * opens the handshake with its IV and waits for the IV of the link, then it
+ * discards everything the link sends until the link disconnects.
+ */
+public class FakeHMCFGLANGateway implements Closeable {
+
+	private static final Logger log = Logger.getLogger(FakeHMCFGLANGateway.class);
+
+	public static final String LAN_KEY = "00112233445566778899AABBCCDDEEFF";
+
+	private static final String REMOTE_IV = "0F0E0D0C0B0A09080706050403020100";
+
+	private final boolean aes;
+
+	private final ServerSocket server;
+
+	private final AtomicInteger handshakes = new AtomicInteger(0);
+
+	public FakeHMCFGLANGateway(final boolean aes) throws IOException {
+		this.aes = aes;
+		this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+		final Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "FakeHMCFGLANGateway");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public InetSocketAddress getAddress() {
+		return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+	}
+
+	/**
+	 * @return the number of links which completed the IV exchange (or connected, without AES)
+	 */
+	public int getHandshakes() {
+		return handshakes.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void serve() {
+		while (!server.isClosed()) {
+			try (Socket socket = server.accept()) {
+				socket.setTcpNoDelay(true);
+				handle(socket.getInputStream(), socket.getOutputStream());
+			} catch (IOException ex) {
+				if (!server.isClosed()) {
+					log.debug("Connection to link lost", ex);
+				}
+			}
+		}
+	}
+
+	private void handle(final InputStream in, final OutputStream out) throws IOException {
+		if (aes) {
+			out.write(("V" + REMOTE_IV + "\r\n").getBytes());
+			out.flush();
+
+			final String response = readLine(in);
+			if (response == null || !response.startsWith("V") || response.length() != 33) {
+				log.error("Unexpected response to IV: " + response);
+				return;
+			}
+		}
+		handshakes.incrementAndGet();
+
+		final byte[] buffer = new byte[256];
+		while (in.read(buffer) >= 0) {
+			// Discard the (encrypted) setup and keep alive frames
+		}
+	}
+
+	private static String readLine(final InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				return line.toString();
+			} else if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return null;
+	}
+
+}
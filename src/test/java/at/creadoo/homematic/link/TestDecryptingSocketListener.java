@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.MessageCallback;
+import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.Util;
+
+public class TestDecryptingSocketListener {
+
+	private static final Logger log = Logger.getLogger(TestDecryptingSocketListener.class);
+
+	private static final byte[] EOL = new byte[] {0x0D , 0x0A};
+
+	private static final byte[] KEY = Util.toByteFromHex("2b7e151628aed2a6abf7158809cf4f3c");
+
+	private static final byte[] IV = Util.toByteFromHex("000102030405060708090a0b0c0d0e0f");
+
+	private ServerSocket server;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		server.close();
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testPlainFrames() throws Exception {
+		final List<byte[]> lines = createLines(new Random(1), "H", 200);
+		final byte[] stream = toStream(lines, null, -1);
+
+		Assert.assertEquals(receive(stream, false, lines.size(), new Random(2)), decodeLegacy(stream, false));
+	}
+
+	@Test
+	public void testEncryptedFramesAfterHandshake() throws Exception {
+		final List<byte[]> lines = new ArrayList<byte[]>();
+		lines.add("HM-CFG-LAN,03C4,JEQ0000000,1B2C3D,1B2C3D,00034C46,0000".getBytes());
+		lines.add(("V" + Util.toHex(IV)).getBytes());
+		lines.addAll(createLines(new Random(3), "E", 300));
+
+		// Everything following the 'V' line is encrypted
+		final byte[] stream = toStream(lines, CryptoUtil.getAESCipherEncrypt(KEY, IV), 2);
+
+		// The cipher releases whole blocks only, so the last line may be held back
+		final List<String> expected = decodeLegacy(stream, true);
+		Assert.assertTrue(expected.size() >= lines.size() - 1);
+		for (int i = 0; i < expected.size(); i++) {
+			Assert.assertEquals(expected.get(i), new String(lines.get(i)));
+		}
+
+		Assert.assertEquals(receive(stream, true, expected.size(), new Random(4)), expected);
+	}
+
+	@Test
+	public void testHandshakeAndEncryptedDataInOneChunk() throws Exception {
+		final List<byte[]> lines = new ArrayList<byte[]>();
+		lines.add(("V" + Util.toHex(IV)).getBytes());
+		lines.addAll(createLines(new Random(5), "R", 20));
+
+		final byte[] stream = toStream(lines, CryptoUtil.getAESCipherEncrypt(KEY, IV), 1);
+
+		// Write everything with a single call, so the plain and the encrypted part end up in the same read
+		final List<String> expected = decodeLegacy(stream, true);
+		Assert.assertTrue(expected.size() >= lines.size() - 1);
+		Assert.assertEquals(receive(stream, true, expected.size(), null), expected);
+	}
+
+	/**
+	 * Sends the stream through a real socket to a {@link DecryptingSocketListener} and collects the received
+	 * frames. The stream is written in chunks of random size if a random generator is passed.
+	 */
+	private List<String> receive(final byte[] stream, final boolean switchCipherOnV, final int expectedFrames, final Random random) throws Exception {
+		final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(expectedFrames);
+
+		final Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+		final Socket accepted = server.accept();
+		try {
+			final DecryptingSocketListener[] listener = new DecryptingSocketListener[1];
+			listener[0] = new DecryptingSocketListener(new MessageCallback() {
+
+				@Override
+				public void received(final Object source, final byte[] packet) {
+					frames.add(new String(packet));
+					if (switchCipherOnV && packet.length > 0 && packet[0] == 'V') {
+						try {
+							listener[0].setCipher(CryptoUtil.getAESCipherDecrypt(KEY, IV));
+						} catch (Exception ex) {
+							throw new RuntimeException(ex);
+						}
+					}
+					latch.countDown();
+				}
+
+				@Override
+				public void connectionTerminated() {
+					//
+				}
+			}, client, EOL);
+			listener[0].start();
+
+			final OutputStream out = accepted.getOutputStream();
+			if (random == null) {
+				out.write(stream);
+				out.flush();
+			} else {
+				int offset = 0;
+				while (offset < stream.length) {
+					final int length = Math.min(stream.length - offset, 1 + random.nextInt(700));
+					out.write(stream, offset, length);
+					out.flush();
+					offset = offset + length;
+				}
+			}
+
+			Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Only " + frames.size() + " of " + expectedFrames + " frames received");
+			listener[0].stop();
+		} finally {
+			accepted.close();
+			client.close();
+		}
+		return new ArrayList<String>(frames);
+	}
+
+	/**
+	 * Reference implementation of the former receive loop: reads byte by byte and decrypts every single byte.
+	 */
+	private static List<String> decodeLegacy(final byte[] stream, final boolean switchCipherOnV) throws Exception {
+		final List<String> result = new ArrayList<String>();
+		final int bufferMax = 2048;
+		byte[] buffer = new byte[bufferMax];
+		int offset = 0;
+		Cipher cipher = null;
+
+		for (int i = 0; i < stream.length; i++) {
+			final byte[] buff = new byte[] {stream[i]};
+			if (cipher != null) {
+				// The cipher holds back bytes until a whole block is available
+				final byte[] decrypted = CryptoUtil.aesCrypt(cipher, buff);
+				if (decrypted != null) {
+					System.arraycopy(decrypted, 0, buffer, offset, decrypted.length);
+					offset = offset + decrypted.length;
+				}
+			} else {
+				System.arraycopy(buff, 0, buffer, offset, 1);
+				offset = offset + 1;
+			}
+
+			int lineEndMarker = Util.indexOf(buffer, EOL);
+			while (lineEndMarker > -1) {
+				final byte[] packet = new byte[lineEndMarker];
+				System.arraycopy(buffer, 0, packet, 0, lineEndMarker);
+
+				final int restLength = offset - lineEndMarker - EOL.length;
+				final byte[] rest = new byte[Math.max(restLength, 0)];
+				if (restLength > 0) {
+					System.arraycopy(buffer, lineEndMarker + EOL.length, rest, 0, restLength);
+				}
+				buffer = new byte[bufferMax];
+				System.arraycopy(rest, 0, buffer, 0, rest.length);
+				offset = rest.length;
+
+				result.add(new String(packet));
+				if (switchCipherOnV && packet.length > 0 && packet[0] == 'V') {
+					cipher = CryptoUtil.getAESCipherDecrypt(KEY, IV);
+				}
+
+				lineEndMarker = Util.indexOf(buffer, EOL);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Concatenates the lines with line end markers. All lines starting at the given index are encrypted.
+	 */
+	private static byte[] toStream(final List<byte[]> lines, final Cipher cipher, final int encryptFrom) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < lines.size(); i++) {
+			final byte[] line = Util.appendItem(lines.get(i), EOL);
+			if (cipher != null && i >= encryptFrom) {
+				out.write(CryptoUtil.aesCrypt(cipher, line));
+			} else {
+				out.write(line);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static List<byte[]> createLines(final Random random, final String prefix, final int count) {
+		final List<byte[]> result = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			result.add((prefix + Util.randomHex(8 + random.nextInt(120)).toUpperCase() + "," + i).getBytes());
+		}
+		return result;
+	}
+
+}
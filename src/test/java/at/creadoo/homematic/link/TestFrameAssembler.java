@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestFrameAssembler {
+
+	private static final Logger log = Logger.getLogger(TestFrameAssembler.class);
+
+	private static final byte[] EOL = new byte[] {0x0D , 0x0A};
+
+	private final List<String> frames = new ArrayList<String>();
+
+	private final FrameAssembler.FrameHandler handler = new FrameAssembler.FrameHandler() {
+
+		@Override
+		public void frame(final byte[] data, final int offset, final int length) {
+			frames.add(new String(data, offset, length));
+		}
+	};
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		frames.clear();
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testStopsAfterEachFrame() {
+		final FrameAssembler assembler = new FrameAssembler(EOL, 16);
+		final byte[] data = "K00\r\nHello\r\n\r\nRest".getBytes();
+
+		Assert.assertEquals(assembler.append(data, 0, data.length, handler), 5);
+		Assert.assertEquals(frames, Arrays.asList("K00"));
+
+		Assert.assertEquals(assembler.append(data, 5, data.length - 5, handler), 7);
+		Assert.assertEquals(assembler.append(data, 12, data.length - 12, handler), 2);
+		Assert.assertEquals(assembler.append(data, 14, data.length - 14, handler), 4);
+		Assert.assertEquals(frames, Arrays.asList("K00", "Hello", ""));
+		Assert.assertEquals(assembler.getPending(), 4);
+	}
+
+	@Test
+	public void testLineEndSplitAcrossAppends() {
+		final FrameAssembler assembler = new FrameAssembler(EOL, 16);
+		final byte[] data = "ABC\r\nDEF\r\n".getBytes();
+
+		// Feed byte by byte
+		for (int i = 0; i < data.length; i++) {
+			Assert.assertEquals(assembler.append(data, i, 1, handler), 1);
+		}
+		Assert.assertEquals(frames, Arrays.asList("ABC", "DEF"));
+		Assert.assertEquals(assembler.getPending(), 0);
+	}
+
+	@Test
+	public void testCarriageReturnInsideFrame() {
+		final FrameAssembler assembler = new FrameAssembler(EOL, 16);
+		feed(assembler, "A\rB\r\r\nC\r\n");
+		Assert.assertEquals(frames, Arrays.asList("A\rB\r", "C"));
+	}
+
+	@Test
+	public void testConsecutiveFrames() {
+		final FrameAssembler assembler = new FrameAssembler(EOL, 8);
+		final List<String> expected = new ArrayList<String>();
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			final String frame = ("F" + i + "ABCDEFGH").substring(0, 1 + (i % 8));
+			expected.add(frame);
+			sb.append(frame).append("\r\n");
+		}
+		feed(assembler, sb.toString());
+		Assert.assertEquals(frames, expected);
+	}
+
+	@Test
+	public void testOversizeFrameIsDropped() {
+		final FrameAssembler assembler = new FrameAssembler(EOL, 8);
+
+		final StringBuilder sb = new StringBuilder("12345678\r\n");
+		for (int i = 0; i < 5000; i++) {
+			sb.append('X');
+		}
+		sb.append("\r\n123456789\r\nOK\r\n");
+		feed(assembler, sb.toString());
+
+		Assert.assertEquals(frames, Arrays.asList("12345678", "OK"));
+		Assert.assertEquals(assembler.getOversizeFrames(), 2L);
+		Assert.assertEquals(assembler.getPending(), 0);
+	}
+
+	private void feed(final FrameAssembler assembler, final String data) {
+		final byte[] bytes = data.getBytes();
+		int offset = 0;
+		while (offset < bytes.length) {
+			offset = offset + assembler.append(bytes, offset, bytes.length - offset, handler);
+		}
+	}
+
+}
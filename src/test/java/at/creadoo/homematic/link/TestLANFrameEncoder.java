@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.Util;
+
+public class TestLANFrameEncoder {
+
+	private static final Logger log = Logger.getLogger(TestLANFrameEncoder.class);
+
+	private static final byte[] EOL = new byte[] {0x0D , 0x0A};
+
+	private static final byte[] KEY = Util.toByteFromHex("2b7e151628aed2a6abf7158809cf4f3c");
+
+	private static final byte[] IV = Util.toByteFromHex("000102030405060708090a0b0c0d0e0f");
+
+	private static final byte[] PACKET = Util.toByteFromHex("0C4594413322A43322A40101C8");
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testCommandFrame() throws Exception {
+		final LANFrameEncoder encoder = new LANFrameEncoder(EOL);
+		encoder.reset()
+			.append('S').appendHex(0x15F1E2D3C4B5L, 8)
+			.append(",00,00000000,01,").appendHex(0x46B7DL, 8)
+			.append(',').appendHex(PACKET, 1, PACKET.length - 1);
+
+		Assert.assertEquals(encoder.frameToString(), "SE2D3C4B5,00,00000000,01,00046B7D,4594413322A43322A40101C8");
+
+		final int length = encoder.length();
+		final ByteBuffer frame = encoder.finish(null);
+		Assert.assertEquals(frame.remaining(), length + 2);
+		Assert.assertEquals(frame.get(frame.limit() - 2), 0x0D);
+		Assert.assertEquals(frame.get(frame.limit() - 1), 0x0A);
+
+		// The next frame starts from scratch
+		final ByteBuffer next = encoder.reset().append("K").finish(null);
+		Assert.assertEquals(next.remaining(), 3);
+		Assert.assertEquals(next.get(0), 'K');
+	}
+
+	@Test
+	public void testEncryptedFramesContinueCipherStream() throws Exception {
+		final Cipher cipher = CryptoUtil.getAESCipherEncrypt(KEY, IV);
+		final LANFrameEncoder encoder = new LANFrameEncoder(EOL);
+		final String[] frames = new String[] {"C", "Y01,00,", "SE2D3C4B5,00,00000000,01,00046B7D,4594413322A43322A40101C8", "K"};
+
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		final StringBuilder plain = new StringBuilder();
+		for (String frame : frames) {
+			final ByteBuffer buffer = encoder.reset().append(frame).finish(cipher);
+			sent.write(buffer.array(), buffer.position(), buffer.remaining());
+			plain.append(frame).append("\r\n");
+		}
+
+		// Same as encrypting the whole stream at once
+		final byte[] expected = CryptoUtil.aesCrypt(CryptoUtil.getAESCipherEncrypt(KEY, IV), plain.toString().getBytes());
+		Assert.assertEquals(sent.toByteArray(), expected);
+	}
+
+	@Test
+	public void testMultipleFrames() throws Exception {
+		final Cipher cipher = CryptoUtil.getAESCipherEncrypt(KEY, IV);
+		final LANFrameEncoder encoder = new LANFrameEncoder(EOL);
+
+		encoder.reset().append("C").endFrame(cipher);
+		encoder.append("discarded");
+		encoder.rollback();
+		Assert.assertEquals(encoder.length(), 0);
+		encoder.append("Y01,00,");
+		Assert.assertEquals(encoder.frameToString(), "Y01,00,");
+		final ByteBuffer frames = encoder.finish(cipher);
+
+		// The cipher holds back the bytes of an incomplete block
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		sent.write(frames.array(), frames.position(), frames.remaining());
+		sent.write(cipher.doFinal());
+		Assert.assertEquals(new String(CryptoUtil.getAESCipherDecrypt(KEY, IV).doFinal(sent.toByteArray())), "C\r\nY01,00,\r\n");
+	}
+
+	@Test(expectedExceptions = BufferOverflowException.class)
+	public void testOverflow() {
+		final LANFrameEncoder encoder = new LANFrameEncoder(EOL, 8);
+		encoder.reset().append("12345678");
+		encoder.append('9');
+	}
+
+	@Test
+	public void testNoAllocation() throws Exception {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			log.info("Allocation counting not supported, skipping");
+			return;
+		}
+		final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		final Cipher cipher = CryptoUtil.getAESCipherEncrypt(KEY, IV);
+		final LANFrameEncoder encoder = new LANFrameEncoder(EOL);
+
+		int sum = 0;
+		for (int i = 0; i < 20000; i++) {
+			sum = sum + encode(encoder, cipher, i);
+		}
+
+		final long threadId = Thread.currentThread().getId();
+		final long before = allocations.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			sum = sum + encode(encoder, cipher, i);
+		}
+		final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+		log.debug("Allocated " + allocated + " bytes for 10000 frames (" + sum + ")");
+		// Leave some room for the measurement itself
+		Assert.assertTrue(allocated < 10000, "Allocated " + allocated + " bytes");
+	}
+
+	private static int encode(final LANFrameEncoder encoder, final Cipher cipher, final long time) throws Exception {
+		encoder.reset()
+			.append('S').appendHex(time, 8)
+			.append(",00,00000000,01,").appendHex(time, 8)
+			.append(',').appendHex(PACKET, 1, PACKET.length - 1);
+		return encoder.finish(cipher).remaining();
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.MessageCallback;
+import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.Util;
+
+public class TestLANSelector {
+
+	private static final Logger log = Logger.getLogger(TestLANSelector.class);
+
+	private static final byte[] EOL = new byte[] {0x0D , 0x0A};
+
+	private static final byte[] KEY = Util.toByteFromHex("2b7e151628aed2a6abf7158809cf4f3c");
+
+	private LANSelector selector;
+
+	private final List<ServerSocket> servers = new ArrayList<ServerSocket>();
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		selector = new LANSelector("TestLANSelector");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		selector.close();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		sockets.clear();
+		for (ServerSocket server : servers) {
+			server.close();
+		}
+		servers.clear();
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testManyGatewaysOneThread() throws Exception {
+		final int gateways = 20;
+		final int framesPerGateway = 50;
+
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(gateways * framesPerGateway);
+		final List<SelectorConnection> connections = new ArrayList<SelectorConnection>();
+		final List<Socket> accepted = new ArrayList<Socket>();
+
+		for (int i = 0; i < gateways; i++) {
+			final ServerSocket server = createServer();
+			final SelectorConnection connection = selector.createConnection(address(server), new MessageCallback() {
+
+				@Override
+				public void received(final Object source, final byte[] packet) {
+					received.add(new String(packet));
+					latch.countDown();
+				}
+
+				@Override
+				public void connectionTerminated() {
+					//
+				}
+			}, EOL, null, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
+			connection.start();
+			connections.add(connection);
+			accepted.add(accept(server));
+		}
+
+		for (SelectorConnection connection : connections) {
+			Assert.assertTrue(connection.awaitConnected(5000));
+		}
+		Assert.assertEquals(selector.getConnectionCount(), gateways);
+
+		// All gateways send at the same time
+		for (int frame = 0; frame < framesPerGateway; frame++) {
+			for (int i = 0; i < gateways; i++) {
+				accepted.get(i).getOutputStream().write(("E" + i + "," + frame + "\r\n").getBytes());
+			}
+		}
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS), "Only " + received.size() + " frames received");
+
+		// Frames of each gateway are received in order
+		final int[] next = new int[gateways];
+		for (String frame : new ArrayList<String>(received)) {
+			final String[] parts = frame.substring(1).split(",");
+			final int gateway = Integer.parseInt(parts[0]);
+			Assert.assertEquals(Integer.parseInt(parts[1]), next[gateway]++);
+		}
+
+		// Writes from another thread reach the gateways
+		for (int i = 0; i < gateways; i++) {
+			connections.get(i).write(("K" + i + "\r\n").getBytes());
+		}
+		for (int i = 0; i < gateways; i++) {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(accepted.get(i).getInputStream()));
+			Assert.assertEquals(reader.readLine(), "K" + i);
+		}
+
+		for (SelectorConnection connection : connections) {
+			connection.stop();
+		}
+	}
+
+	@Test
+	public void testDecryptStatePerChannel() throws Exception {
+		final int gateways = 3;
+		final int frames = 40;
+
+		final List<List<String>> received = new ArrayList<List<String>>();
+		final CountDownLatch latch = new CountDownLatch(gateways * (frames + 1));
+		final List<Socket> accepted = new ArrayList<Socket>();
+
+		for (int i = 0; i < gateways; i++) {
+			final List<String> frameList = Collections.synchronizedList(new ArrayList<String>());
+			received.add(frameList);
+
+			final byte[] iv = Util.toByteFromHex(Util.randomHex(32));
+			final ServerSocket server = createServer();
+			final SelectorConnection[] connection = new SelectorConnection[1];
+			connection[0] = selector.createConnection(address(server), new MessageCallback() {
+
+				@Override
+				public void received(final Object source, final byte[] packet) {
+					frameList.add(new String(packet));
+					if (packet.length > 0 && packet[0] == 'V') {
+						try {
+							connection[0].setCipher(CryptoUtil.getAESCipherDecrypt(KEY, Util.toByteFromHex(new String(packet, 1, packet.length - 1))));
+						} catch (Exception ex) {
+							throw new RuntimeException(ex);
+						}
+					}
+					latch.countDown();
+				}
+
+				@Override
+				public void connectionTerminated() {
+					//
+				}
+			}, EOL, null, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
+			connection[0].start();
+			Assert.assertTrue(connection[0].awaitConnected(5000));
+
+			final Socket socket = accept(server);
+			accepted.add(socket);
+
+			// Plain handshake followed by encrypted frames in the same write
+			final OutputStream out = socket.getOutputStream();
+			final byte[] handshake = ("V" + Util.toHex(iv) + "\r\n").getBytes();
+			final StringBuilder sb = new StringBuilder();
+			for (int frame = 0; frame < frames; frame++) {
+				sb.append("E").append(i).append(",").append(frame).append("\r\n");
+			}
+			// Padding frame, the cipher releases whole blocks only
+			sb.append("PADDINGPADDINGPADDING\r\n");
+			out.write(Util.appendItem(handshake, CryptoUtil.aesCrypt(CryptoUtil.getAESCipherEncrypt(KEY, iv), sb.toString().getBytes())));
+			out.flush();
+		}
+
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < gateways; i++) {
+			final List<String> frameList = received.get(i);
+			for (int frame = 0; frame < frames; frame++) {
+				Assert.assertEquals(frameList.get(frame + 1), "E" + i + "," + frame);
+			}
+		}
+	}
+
+	@Test
+	public void testConnectFailure() throws Exception {
+		final ServerSocket server = createServer();
+		final InetSocketAddress address = address(server);
+		server.close();
+
+		final SelectorConnection connection = selector.createConnection(address, new MessageCallback() {
+
+			@Override
+			public void received(final Object source, final byte[] packet) {
+				//
+			}
+
+			@Override
+			public void connectionTerminated() {
+				//
+			}
+		}, EOL, null, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
+		connection.start();
+
+		Assert.assertFalse(connection.awaitConnected(5000));
+		Assert.assertFalse(connection.isRunning());
+		Assert.assertEquals(selector.getConnectionCount(), 0);
+	}
+
+	@Test
+	public void testRemoteClose() throws Exception {
+		final ServerSocket server = createServer();
+		final CountDownLatch terminated = new CountDownLatch(1);
+		final SelectorConnection connection = selector.createConnection(address(server), new MessageCallback() {
+
+			@Override
+			public void received(final Object source, final byte[] packet) {
+				//
+			}
+
+			@Override
+			public void connectionTerminated() {
+				terminated.countDown();
+			}
+		}, EOL, null, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
+		connection.start();
+		Assert.assertTrue(connection.awaitConnected(5000));
+
+		accept(server).close();
+
+		Assert.assertTrue(terminated.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(connection.isRunning());
+		Assert.assertEquals(selector.getConnectionCount(), 0);
+	}
+
+	@Test
+	public void testLinkUsingSelector() throws Exception {
+		final ServerSocket server = createServer();
+		final HMCFGLANLink link = new HMCFGLANLink(address(server));
+		link.setSelector(selector);
+
+		final Socket[] accepted = new Socket[1];
+		final Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					accepted[0] = accept(server);
+				} catch (Exception ex) {
+					log.error("Error accepting", ex);
+				}
+			}
+		});
+		acceptor.start();
+
+		Assert.assertTrue(link.start());
+		acceptor.join(5000);
+		Assert.assertNotNull(accepted[0]);
+
+		// The gateway setup is sent through the selector
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(accepted[0].getInputStream()));
+		Assert.assertEquals(reader.readLine(), "C");
+		Assert.assertEquals(reader.readLine(), "Y01,00,");
+
+		// The gateway info is received through the selector
+		accepted[0].getOutputStream().write("HM-CFG-LAN,03C4,JEQ0000000,1B2C3D,1B2C3D,00034C46,0000\r\n".getBytes());
+		for (int i = 0; i < 100 && link.getSerial() == null; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(link.getSerial(), "JEQ0000000");
+
+		link.close();
+		for (int i = 0; i < 100 && selector.getConnectionCount() > 0; i++) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(selector.getConnectionCount(), 0);
+	}
+
+	private ServerSocket createServer() throws Exception {
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		servers.add(server);
+		return server;
+	}
+
+	private Socket accept(final ServerSocket server) throws Exception {
+		final Socket socket = server.accept();
+		synchronized (sockets) {
+			sockets.add(socket);
+		}
+		return socket;
+	}
+
+	private static InetSocketAddress address(final ServerSocket server) {
+		return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+	}
+
+}
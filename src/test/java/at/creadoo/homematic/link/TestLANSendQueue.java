@@ -0,0 +1,425 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.util.CryptoUtil;
+import at.creadoo.homematic.util.Util;
+
+public class TestLANSendQueue {
+
+	private static final Logger log = Logger.getLogger(TestLANSendQueue.class);
+
+	private static final byte[] EOL = new byte[] {0x0D , 0x0A};
+
+	private static final byte[] KEY = Util.toByteFromHex("2b7e151628aed2a6abf7158809cf4f3c");
+
+	private static final byte[] IV = Util.toByteFromHex("000102030405060708090a0b0c0d0e0f");
+
+	private static final int THREADS = 4;
+
+	private static final int FRAMES_PER_THREAD = 250;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final RecordingConnection connection = new RecordingConnection();
+		final LANSendQueue queue = connection.getSendQueue();
+
+		// The first frame occupies the writer, the following ones queue up behind it
+		final Future<Boolean> first = submitInBackground(queue, "first");
+		Assert.assertTrue(connection.writeStarted.await(5, TimeUnit.SECONDS));
+
+		final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(queue.submit(LANSendQueue.command("F" + i), null));
+		}
+		Assert.assertEquals(queue.getDepth(), 10);
+		connection.release.countDown();
+
+		Assert.assertTrue(LANSendQueue.await(first, 5000));
+		for (Future<Boolean> future : futures) {
+			Assert.assertTrue(LANSendQueue.await(future, 5000));
+		}
+
+		Assert.assertEquals(connection.writes(), 2);
+		Assert.assertEquals(queue.getWrites(), 2);
+		Assert.assertEquals(queue.getFramesWritten(), 11);
+		Assert.assertEquals(queue.getDepth(), 0);
+		Assert.assertEquals(queue.getMaxDepth(), 10);
+		Assert.assertEquals(new String(connection.output()), "first\r\nF0\r\nF1\r\nF2\r\nF3\r\nF4\r\nF5\r\nF6\r\nF7\r\nF8\r\nF9\r\n");
+	}
+
+	@Test
+	public void testConcurrentSendersKeepOrder() throws Exception {
+		final RecordingConnection connection = new RecordingConnection();
+		connection.release.countDown();
+
+		final List<String> lines = send(connection, null);
+
+		Assert.assertEquals(lines.size(), THREADS * FRAMES_PER_THREAD);
+		assertOrdered(lines);
+		Assert.assertTrue(connection.getSendQueue().getWrites() <= THREADS * FRAMES_PER_THREAD);
+		log.debug(connection.getSendQueue().getWrites() + " writes for " + lines.size() + " frames");
+	}
+
+	@Test
+	public void testConcurrentEncryptedSenders() throws Exception {
+		final RecordingConnection connection = new RecordingConnection();
+		connection.release.countDown();
+
+		final List<String> lines = send(connection, CryptoUtil.getAESCipherEncrypt(KEY, IV));
+
+		Assert.assertEquals(lines.size(), THREADS * FRAMES_PER_THREAD);
+		assertOrdered(lines);
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		final RecordingConnection connection = new RecordingConnection();
+		final LANSendQueue queue = connection.getSendQueue();
+		queue.setCapacity(2);
+
+		final Future<Boolean> first = submitInBackground(queue, "first");
+		Assert.assertTrue(connection.writeStarted.await(5, TimeUnit.SECONDS));
+
+		final Future<Boolean> second = queue.submit(LANSendQueue.command("second"), null);
+		final Future<Boolean> third = queue.submit(LANSendQueue.command("third"), null);
+		final Future<Boolean> rejected = queue.submit(LANSendQueue.command("rejected"), null);
+		Assert.assertTrue(rejected.isDone());
+		Assert.assertFalse(rejected.get());
+		Assert.assertEquals(queue.getRejectedFrames(), 1);
+
+		connection.release.countDown();
+		Assert.assertTrue(LANSendQueue.await(first, 5000));
+		Assert.assertTrue(LANSendQueue.await(second, 5000));
+		Assert.assertTrue(LANSendQueue.await(third, 5000));
+		Assert.assertEquals(new String(connection.output()), "first\r\nsecond\r\nthird\r\n");
+	}
+
+	@Test
+	public void testCloseFailsPendingFrames() throws Exception {
+		final RecordingConnection connection = new RecordingConnection();
+		final LANSendQueue queue = connection.getSendQueue();
+
+		final Future<Boolean> first = submitInBackground(queue, "first");
+		Assert.assertTrue(connection.writeStarted.await(5, TimeUnit.SECONDS));
+		final Future<Boolean> pending = queue.submit(LANSendQueue.command("pending"), null);
+
+		queue.close();
+		connection.release.countDown();
+
+		Assert.assertTrue(LANSendQueue.await(first, 5000));
+		Assert.assertFalse(pending.get(5, TimeUnit.SECONDS));
+		Assert.assertFalse(queue.submit(LANSendQueue.command("closed"), null).get());
+		Assert.assertEquals(queue.getDepth(), 0);
+		Assert.assertEquals(new String(connection.output()), "first\r\n");
+	}
+
+	@Test
+	public void testWriteFailure() throws Exception {
+		final RecordingConnection connection = new RecordingConnection();
+		connection.release.countDown();
+		connection.fail = true;
+
+		Assert.assertFalse(LANSendQueue.await(connection.getSendQueue().submit(LANSendQueue.command("K"), null), 5000));
+		Assert.assertEquals(connection.getSendQueue().getFramesWritten(), 0);
+	}
+
+	@Test
+	public void testAwaitOnWriterThread() throws Exception {
+		final LoopConnection connection = new LoopConnection();
+		final LANSendQueue queue = connection.getSendQueue();
+		final CountDownLatch busy = new CountDownLatch(1);
+		final CountDownLatch submitted = new CountDownLatch(1);
+		try {
+			// A callback on the loop sends while another thread's writer waits behind it
+			final Future<Boolean> callback = connection.loop.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					busy.countDown();
+					submitted.await();
+					final long start = System.currentTimeMillis();
+					final boolean result = LANSendQueue.await(queue.submit(LANSendQueue.command("callback"), null), 5000);
+					return result && System.currentTimeMillis() - start < 1000;
+				}
+			});
+			Assert.assertTrue(busy.await(5, TimeUnit.SECONDS));
+			final Future<Boolean> other = queue.submit(LANSendQueue.command("other"), null);
+			submitted.countDown();
+
+			Assert.assertTrue(callback.get(5, TimeUnit.SECONDS));
+			Assert.assertTrue(LANSendQueue.await(other, 5000));
+			Assert.assertEquals(new String(connection.output.toByteArray()), "other\r\ncallback\r\n");
+
+			// The writer handed over before found the queue empty and released it
+			Assert.assertTrue(LANSendQueue.await(queue.submit(LANSendQueue.command("next"), null), 5000));
+			Assert.assertEquals(queue.getDepth(), 0);
+		} finally {
+			connection.loop.shutdown();
+		}
+	}
+
+	/**
+	 * Submits on another thread, the writer runs on it and blocks in the first write
+	 */
+	private static Future<Boolean> submitInBackground(final LANSendQueue queue, final String command) {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			return executor.submit(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					return queue.submit(LANSendQueue.command(command), null).get();
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Sends frames from several threads at once and returns the lines the connection received
+	 */
+	private static List<String> send(final RecordingConnection connection, final Cipher cipher) throws Exception {
+		final LANSendQueue queue = connection.getSendQueue();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException ex) {
+						return;
+					}
+					for (int i = 0; i < FRAMES_PER_THREAD; i++) {
+						final Future<Boolean> future = queue.submit(LANSendQueue.command(thread + ":" + i), cipher);
+						synchronized (futures) {
+							futures.add(future);
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+
+		synchronized (futures) {
+			Assert.assertEquals(futures.size(), THREADS * FRAMES_PER_THREAD);
+			for (Future<Boolean> future : futures) {
+				Assert.assertTrue(LANSendQueue.await(future, 5000));
+			}
+		}
+
+		byte[] output = connection.output();
+		if (cipher != null) {
+			// Flush the bytes of the incomplete block held back by the cipher
+			final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+			encrypted.write(output);
+			encrypted.write(cipher.doFinal());
+			output = CryptoUtil.getAESCipherDecrypt(KEY, IV).doFinal(encrypted.toByteArray());
+		}
+		final String text = new String(output);
+		Assert.assertTrue(text.endsWith("\r\n"));
+
+		final List<String> lines = new ArrayList<String>();
+		for (String line : text.split("\r\n")) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * Every frame is intact and the frames of each thread arrive in the order they were sent
+	 */
+	private static void assertOrdered(final List<String> lines) {
+		final int[] next = new int[THREADS];
+		for (String line : lines) {
+			final String[] parts = line.split(":");
+			Assert.assertEquals(parts.length, 2, line);
+			final int thread = Integer.parseInt(parts[0]);
+			Assert.assertEquals(Integer.parseInt(parts[1]), next[thread], line);
+			next[thread]++;
+		}
+		for (int t = 0; t < THREADS; t++) {
+			Assert.assertEquals(next[t], FRAMES_PER_THREAD);
+		}
+	}
+
+	/**
+	 * Records the written bytes, the first write blocks until released
+	 */
+	private static final class RecordingConnection extends LANConnection {
+
+		private final CountDownLatch writeStarted = new CountDownLatch(1);
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		private int writes = 0;
+
+		private volatile boolean fail = false;
+
+		private RecordingConnection() {
+			super(null, EOL, null, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
+		}
+
+		@Override
+		public void start() {
+			//
+		}
+
+		@Override
+		public void stop() {
+			getSendQueue().close();
+		}
+
+		@Override
+		public boolean isRunning() {
+			return true;
+		}
+
+		@Override
+		public void write(final ByteBuffer data) throws IOException {
+			writeStarted.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+			if (fail) {
+				throw new IOException("Write failed");
+			}
+			synchronized (output) {
+				output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+				writes++;
+			}
+		}
+
+		private int writes() {
+			synchronized (output) {
+				return writes;
+			}
+		}
+
+		private byte[] output() {
+			synchronized (output) {
+				return output.toByteArray();
+			}
+		}
+
+	}
+
+	/**
+	 * Hands the writer over to a single thread like a {@link SelectorConnection}
+	 */
+	private static final class LoopConnection extends LANConnection {
+
+		private final ExecutorService loop = Executors.newSingleThreadExecutor();
+
+		private volatile Thread thread = null;
+
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		private LoopConnection() {
+			super(null, EOL, null, FrameAssembler.DEFAULT_MAX_FRAME_SIZE);
+			loop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					thread = Thread.currentThread();
+				}
+			});
+		}
+
+		@Override
+		public void start() {
+			//
+		}
+
+		@Override
+		public void stop() {
+			getSendQueue().close();
+		}
+
+		@Override
+		public boolean isRunning() {
+			return true;
+		}
+
+		@Override
+		void dispatchWrite(final Runnable writer) {
+			if (isWriterThread()) {
+				writer.run();
+			} else {
+				loop.execute(writer);
+			}
+		}
+
+		@Override
+		boolean isWriterThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		@Override
+		public void write(final ByteBuffer data) throws IOException {
+			// Only called on the loop thread
+			output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+
+	}
+
+}
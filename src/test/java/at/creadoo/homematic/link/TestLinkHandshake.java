@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import at.creadoo.homematic.link.LinkHandshake.Step;
+
+public class TestLinkHandshake {
+
+	private static final Logger log = Logger.getLogger(TestLinkHandshake.class);
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testStepsInOrder() throws Exception {
+		final LinkHandshake handshake = new LinkHandshake("Test", Step.IV, Step.SETUP);
+		Assert.assertEquals(handshake.getCurrentStep(), Step.IV);
+
+		handshake.acknowledge(Step.IV);
+		Assert.assertFalse(handshake.isReady());
+		handshake.acknowledge(Step.SETUP);
+
+		Assert.assertTrue(handshake.isReady());
+		Assert.assertTrue(handshake.ready().get(0, TimeUnit.MILLISECONDS));
+		Assert.assertNull(handshake.getCurrentStep());
+		Assert.assertTrue(handshake.await(0));
+	}
+
+	@Test
+	public void testStepsOutOfOrder() throws Exception {
+		final LinkHandshake handshake = new LinkHandshake("Test", Step.GATEWAY, Step.SETUP);
+
+		handshake.acknowledge(Step.SETUP);
+		// Steps which are not part of the handshake do not count
+		handshake.acknowledge(Step.IV);
+		Assert.assertFalse(handshake.isReady());
+
+		handshake.acknowledge(Step.GATEWAY);
+		Assert.assertTrue(handshake.isReady());
+	}
+
+	@Test
+	public void testAwaitWakesUpOnAcknowledge() throws Exception {
+		final LinkHandshake handshake = new LinkHandshake("Test", Step.IV, Step.SETUP);
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				handshake.acknowledge(Step.IV);
+				handshake.acknowledge(Step.SETUP);
+			}
+		}).start();
+
+		final long start = System.currentTimeMillis();
+		Assert.assertTrue(handshake.await(5000));
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void testStepTimeout() throws Exception {
+		final LinkHandshake handshake = new LinkHandshake("Test", Step.IV, Step.SETUP);
+		handshake.acknowledge(Step.IV);
+
+		Assert.assertFalse(handshake.await(50));
+		Assert.assertEquals(handshake.getCurrentStep(), Step.SETUP);
+		Assert.assertFalse(handshake.ready().get());
+
+		// A late acknowledge does not revive the handshake
+		handshake.acknowledge(Step.SETUP);
+		Assert.assertFalse(handshake.isReady());
+	}
+
+	@Test
+	public void testFail() throws Exception {
+		final LinkHandshake handshake = new LinkHandshake("Test", Step.IV, Step.SETUP);
+		handshake.fail("AES required");
+
+		final long start = System.currentTimeMillis();
+		Assert.assertFalse(handshake.await(5000));
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void testLinkStartup() throws Exception {
+		final FakeHMCFGLANGateway gateway = new FakeHMCFGLANGateway(true);
+		try {
+			// The first start pays for loading the crypto provider
+			startLink(gateway);
+			final long duration = startLink(gateway);
+			log.debug("Link ready after " + duration + " ms");
+
+			Assert.assertEquals(gateway.getHandshakes(), 2);
+			// No more waiting in polling intervals, see LinkStartupBenchmark for numbers
+			Assert.assertTrue(duration < 500, "Startup took " + duration + " ms");
+		} finally {
+			gateway.close();
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds the link needed to get ready
+	 */
+	private static long startLink(final FakeHMCFGLANGateway gateway) {
+		final HMCFGLANLink link = new HMCFGLANLink(gateway.getAddress());
+		link.setAESEnabled(true);
+		link.setAESLANKey(FakeHMCFGLANGateway.LAN_KEY);
+		try {
+			final long start = System.currentTimeMillis();
+			Assert.assertTrue(link.start());
+			final long duration = System.currentTimeMillis() - start;
+			Assert.assertTrue(link.isReady());
+			return duration;
+		} finally {
+			link.close();
+			Assert.assertFalse(link.isReady());
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.link;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestLinkScheduler {
+
+	private static final Logger log = Logger.getLogger(TestLinkScheduler.class);
+
+	private LinkScheduler scheduler;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+		scheduler = new LinkScheduler("Test", 1);
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		scheduler.close();
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testPeriodicTask() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(3);
+		final LinkScheduler.ScheduledTask task = scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 0, 10);
+		Assert.assertEquals(scheduler.getScheduledTasks(), 1);
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		task.cancel();
+		Assert.assertTrue(task.isCancelled());
+		Assert.assertEquals(scheduler.getScheduledTasks(), 0);
+
+		// Cancelling again does not change the count
+		task.cancel();
+		Assert.assertEquals(scheduler.getScheduledTasks(), 0);
+		Assert.assertTrue(scheduler.getExecutions() >= 3);
+	}
+
+	@Test
+	public void testOneShotTask() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final LinkScheduler.ScheduledTask task = scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 10, 0);
+		Assert.assertEquals(scheduler.getScheduledTasks(), 1);
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		waitForTasks(0);
+		Assert.assertFalse(task.isCancelled());
+		Assert.assertEquals(scheduler.getExecutions(), 1);
+	}
+
+	@Test
+	public void testCancelBeforeExecution() throws Exception {
+		final AtomicInteger executions = new AtomicInteger(0);
+		final LinkScheduler.ScheduledTask task = scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				executions.incrementAndGet();
+			}
+		}, 50, 50);
+		task.cancel();
+		Assert.assertEquals(scheduler.getScheduledTasks(), 0);
+
+		Thread.sleep(150);
+		Assert.assertEquals(executions.get(), 0);
+	}
+
+	@Test
+	public void testExceptionDoesNotCancelTask() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(3);
+		final LinkScheduler.ScheduledTask task = scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+				throw new IllegalStateException("Test");
+			}
+		}, 0, 10);
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(scheduler.getScheduledTasks(), 1);
+		task.cancel();
+	}
+
+	@Test
+	public void testLateness() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		// A task blocking the only thread delays the next one
+		scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0, 0);
+		scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 10, 0);
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		log.debug("Max lateness " + scheduler.getMaxLateness() + " ms, average " + scheduler.getAverageLateness() + " ms");
+		Assert.assertTrue(scheduler.getMaxLateness() >= 50, "Lateness " + scheduler.getMaxLateness() + " ms");
+		Assert.assertTrue(scheduler.getAverageLateness() > 0.0);
+	}
+
+	@Test
+	public void testLinkRestart() throws Exception {
+		final FakeHMCFGLANGateway gateway = new FakeHMCFGLANGateway(false);
+		final HMCFGLANLink link = new HMCFGLANLink(gateway.getAddress());
+		link.setScheduler(scheduler);
+		try {
+			// The tasks of a closed link are gone, so the same link can be started again
+			for (int i = 0; i < 2; i++) {
+				Assert.assertTrue(link.start());
+				Assert.assertEquals(scheduler.getScheduledTasks(), 2);
+				link.close();
+				Assert.assertEquals(scheduler.getScheduledTasks(), 0);
+			}
+		} finally {
+			link.close();
+			gateway.close();
+		}
+	}
+
+	private void waitForTasks(final int count) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 5000;
+		while (scheduler.getScheduledTasks() != count && System.currentTimeMillis() < end) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(scheduler.getScheduledTasks(), count);
+	}
+
+}
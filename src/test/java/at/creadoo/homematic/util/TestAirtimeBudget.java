@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestAirtimeBudget {
+
+	private static final Logger log = Logger.getLogger(TestAirtimeBudget.class);
+
+	/**
+	 * Start of a bucket of the default window
+	 */
+	private static final long NOW = 60000L * 1000L;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testAirtime() {
+		// 14 bytes, preamble, sync word, length byte and CRC at 0.8 ms per byte
+		Assert.assertEquals(AirtimeBudget.getAirtime(14, 0xA0), 20000L);
+		// Burst frames wake up the device first
+		Assert.assertEquals(AirtimeBudget.getAirtime(14, 0xB0), 380000L);
+	}
+
+	@Test
+	public void testWindow() {
+		final AirtimeBudget budget = new AirtimeBudget();
+		Assert.assertEquals(budget.getLimit(), AirtimeBudget.DEFAULT_LIMIT);
+		Assert.assertEquals(budget.getUsed(NOW), 0L);
+
+		budget.record(20000L, NOW);
+		budget.record(20000L, NOW + 30000L);
+		budget.record(10000L, NOW + 60000L);
+		Assert.assertEquals(budget.getUsed(NOW + 60000L), 50000L);
+
+		// The first bucket leaves the window an hour after it ended
+		Assert.assertEquals(budget.getUsed(NOW + 3659999L), 50000L);
+		Assert.assertEquals(budget.getUsed(NOW + 3660000L), 10000L);
+		Assert.assertEquals(budget.getUsed(NOW + 3720000L), 0L);
+
+		budget.clear();
+		Assert.assertEquals(budget.getUsed(NOW), 0L);
+	}
+
+	@Test
+	public void testWaitTime() {
+		final AirtimeBudget budget = new AirtimeBudget(100L, AirtimeBudget.DEFAULT_WINDOW);
+		Assert.assertEquals(budget.getWaitTime(100000L, 1.0, NOW), 0L);
+		// Larger than the limit, fits while nothing else was sent
+		Assert.assertEquals(budget.getWaitTime(500000L, 1.0, NOW), 0L);
+
+		budget.record(60000L, NOW);
+		budget.record(30000L, NOW + 120000L);
+		Assert.assertEquals(budget.getWaitTime(10000L, 1.0, NOW + 120000L), 0L);
+		// Fits once the first bucket left the window
+		Assert.assertEquals(budget.getWaitTime(20000L, 1.0, NOW + 120000L), 3540000L);
+		// Needs both buckets to leave
+		Assert.assertEquals(budget.getWaitTime(80000L, 1.0, NOW + 120000L), 3660000L);
+		// Limited to the share of the priority
+		Assert.assertEquals(budget.getWaitTime(10000L, 0.8, NOW + 120000L), 3540000L);
+		Assert.assertEquals(budget.getWaitTime(10000L, 0.8, NOW + 3660000L), 0L);
+	}
+
+	@Test
+	public void testResync() {
+		final AirtimeBudget budget = new AirtimeBudget();
+		budget.record(1000000L, NOW);
+
+		Assert.assertFalse(budget.resync(0x00, NOW));
+		Assert.assertEquals(budget.getUsed(NOW), 1000000L);
+
+		Assert.assertTrue(budget.resync(AirtimeBudget.STATUS_HIGH_LOAD, NOW));
+		Assert.assertEquals(budget.getGatewayStatus(), AirtimeBudget.STATUS_HIGH_LOAD);
+		Assert.assertEquals(budget.getUsed(NOW), (long) (AirtimeBudget.DEFAULT_LIMIT * 1000L * AirtimeBudget.HIGH_LOAD));
+		Assert.assertFalse(budget.resync(AirtimeBudget.STATUS_HIGH_LOAD, NOW));
+
+		Assert.assertTrue(budget.resync(AirtimeBudget.STATUS_OVERLOAD, NOW + 1000L));
+		Assert.assertEquals(budget.getUsed(NOW + 1000L), AirtimeBudget.DEFAULT_LIMIT * 1000L);
+		Assert.assertTrue(budget.getWaitTime(20000L, 1.0, NOW + 1000L) > 0L);
+
+		// Never lowered by the gateway
+		Assert.assertFalse(budget.resync(0x00, NOW + 1000L));
+		Assert.assertEquals(budget.getUsed(NOW + 1000L), AirtimeBudget.DEFAULT_LIMIT * 1000L);
+
+		// The assumed airtime decays within the recovery time, the sent one stays
+		final long assumed = AirtimeBudget.DEFAULT_LIMIT * 1000L - 1000000L;
+		Assert.assertEquals(budget.getUsed(NOW + 1000L + AirtimeBudget.DEFAULT_RECOVERY / 2), 1000000L + assumed / 2);
+		Assert.assertEquals(budget.getUsed(NOW + 1000L + AirtimeBudget.DEFAULT_RECOVERY), 1000000L);
+
+		// Raised again while the gateway still reports overload
+		Assert.assertTrue(budget.resync(AirtimeBudget.STATUS_OVERLOAD, NOW + 1000L + AirtimeBudget.DEFAULT_RECOVERY));
+		budget.clear();
+		Assert.assertEquals(budget.getUsed(NOW), 0L);
+	}
+
+	@Test
+	public void testRecoveryWaitTime() {
+		final AirtimeBudget budget = new AirtimeBudget(100L, AirtimeBudget.DEFAULT_WINDOW);
+		budget.setRecovery(10000L);
+		Assert.assertTrue(budget.resync(AirtimeBudget.STATUS_OVERLOAD, NOW));
+
+		// Held back until enough assumed airtime decayed, not for the window
+		Assert.assertEquals(budget.getWaitTime(20000L, 1.0, NOW), 2000L);
+		Assert.assertEquals(budget.getWaitTime(20000L, 1.0, NOW + 2000L), 0L);
+
+		// Sent frames leave the window as before
+		budget.record(90000L, NOW + 2000L);
+		Assert.assertEquals(budget.getWaitTime(20000L, 1.0, NOW + 10000L), 3600000L + 60000L - 10000L);
+	}
+
+}
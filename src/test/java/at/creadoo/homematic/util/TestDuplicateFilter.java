@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestDuplicateFilter {
+
+	private static final Logger log = Logger.getLogger(TestDuplicateFilter.class);
+
+	/**
+	 * Length, counter 0x45, control byte 0x94, type 0x41, sender, destination, payload
+	 */
+	private static final String FRAME = "0C4594413322A43322A40101C8";
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testDuplicate() {
+		final DuplicateFilter filter = new DuplicateFilter(1000);
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 1000));
+		Assert.assertTrue(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 1500));
+		// Forwarded by a repeater, RPT flag set
+		Assert.assertTrue(filter.isDuplicate(Util.toByteFromHex("0C45D4413322A43322A40101C8"), 0, 1600));
+
+		Assert.assertEquals(filter.getPassed(), 1);
+		Assert.assertEquals(filter.getSuppressed(), 2);
+	}
+
+	@Test
+	public void testDifferentFrames() {
+		final DuplicateFilter filter = new DuplicateFilter(1000);
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 1000));
+		// Counter
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex("0C4694413322A43322A40101C8"), 0, 1000));
+		// Type
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex("0C4594103322A43322A40101C8"), 0, 1000));
+		// Sender
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex("0C4594413322A53322A40101C8"), 0, 1000));
+		// Destination
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex("0C4594413322A43322A50101C8"), 0, 1000));
+		// Payload
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex("0C4594413322A43322A40101C9"), 0, 1000));
+
+		Assert.assertEquals(filter.getPassed(), 6);
+		Assert.assertEquals(filter.getSuppressed(), 0);
+	}
+
+	@Test
+	public void testWindow() {
+		final DuplicateFilter filter = new DuplicateFilter(1000);
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 1000));
+		Assert.assertTrue(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 1999));
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 2000));
+
+		filter.setWindow(0);
+		Assert.assertFalse(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 2001));
+	}
+
+	@Test
+	public void testExpiredEntries() {
+		final DuplicateFilter filter = new DuplicateFilter(100);
+		final byte[] frame = Util.toByteFromHex(FRAME);
+		for (int i = 0; i < 100000; i++) {
+			// A new frame every millisecond, about 100 are live at a time
+			frame[1] = (byte) i;
+			frame[frame.length - 1] = (byte) (i >> 8);
+			Assert.assertFalse(filter.isDuplicate(frame, 0, i));
+			Assert.assertTrue(filter.isDuplicate(frame, 0, i));
+		}
+		Assert.assertTrue(filter.getEntries() <= 1024, "Entries: " + filter.getEntries());
+		Assert.assertEquals(filter.getSuppressed(), 100000);
+	}
+
+	@Test
+	public void testOffset() {
+		final DuplicateFilter filter = new DuplicateFilter(1000);
+		// Frame of the USB adapter, RSSI at 12 and the BidCoS frame at 13
+		final byte[] frame = Util.toByteFromHex("45000000000000000000000000" + FRAME);
+		Assert.assertFalse(filter.isDuplicate(frame, 13, 1000));
+		Assert.assertTrue(filter.isDuplicate(Util.toByteFromHex(FRAME), 0, 1000));
+
+		// Too short to carry sender and destination
+		Assert.assertFalse(filter.isDuplicate(frame, 20, 1000));
+		Assert.assertFalse(filter.isDuplicate(null, 0, 1000));
+	}
+
+	@Test
+	public void testDecodeLANPacket() {
+		final DuplicateFilter filter = new DuplicateFilter();
+		Assert.assertNotNull(PacketUtil.decodeLANPacket("E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8".getBytes(), filter));
+		// Same frame from a second gateway
+		Assert.assertNull(PacketUtil.decodeLANPacket("E1234AB,0000,0000A2C1,FF,FFC0,4594413322A43322A40101C8".getBytes(), filter));
+		Assert.assertNotNull(PacketUtil.decodeLANPacket("E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8".getBytes(), null));
+		Assert.assertEquals(filter.getSuppressed(), 1);
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestLANFrameTokenizer {
+
+	private static final Logger log = Logger.getLogger(TestLANFrameTokenizer.class);
+
+	private static final String FRAME = "E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8";
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testFields() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer(FRAME.getBytes());
+		Assert.assertEquals(tokenizer.getType(), 'E');
+		Assert.assertEquals(tokenizer.countFields(), 6);
+
+		final String[] parts = FRAME.substring(1).split(",");
+		for (String part : parts) {
+			Assert.assertTrue(tokenizer.next());
+			Assert.assertEquals(tokenizer.string(), part);
+			Assert.assertEquals(tokenizer.length(), part.length());
+			Assert.assertTrue(tokenizer.isHex());
+		}
+		Assert.assertFalse(tokenizer.next());
+	}
+
+	@Test
+	public void testHexValues() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer(FRAME.getBytes());
+		tokenizer.next();
+		Assert.assertEquals(tokenizer.hexInt(), 0x3322A4);
+		tokenizer.skip(2);
+		Assert.assertEquals(tokenizer.hexLong(), 0x46B7DL);
+		tokenizer.skip(2);
+		Assert.assertEquals(tokenizer.hexInt(), 0xFFDB);
+		Assert.assertEquals(tokenizer.hexInt(2, 2), 0xDB);
+		tokenizer.next();
+
+		final byte[] bytes = new byte[tokenizer.hexBytesLength() + 1];
+		Assert.assertEquals(tokenizer.hexBytes(bytes, 1), 12);
+		Assert.assertEquals(Util.toHex(Util.subset(bytes, 1)), "4594413322A43322A40101C8");
+		Assert.assertEquals(bytes[0], 0);
+	}
+
+	@Test
+	public void testLowerCaseHex() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer("Vxx,0a1B2c".getBytes());
+		tokenizer.skip(2);
+		Assert.assertEquals(tokenizer.hexInt(), 0x0A1B2C);
+	}
+
+	@Test
+	public void testEmptyFields() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer("K,,A,".getBytes());
+		Assert.assertEquals(tokenizer.countFields(), 4);
+		Assert.assertTrue(tokenizer.next());
+		Assert.assertEquals(tokenizer.length(), 0);
+		Assert.assertFalse(tokenizer.isHex());
+		Assert.assertTrue(tokenizer.next());
+		Assert.assertEquals(tokenizer.length(), 0);
+		Assert.assertTrue(tokenizer.next());
+		Assert.assertEquals(tokenizer.string(), "A");
+		Assert.assertTrue(tokenizer.next());
+		Assert.assertEquals(tokenizer.string(), "");
+		Assert.assertFalse(tokenizer.next());
+	}
+
+	@Test
+	public void testTypeOnly() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer("K".getBytes());
+		Assert.assertEquals(tokenizer.getType(), 'K');
+		Assert.assertTrue(tokenizer.next());
+		Assert.assertEquals(tokenizer.length(), 0);
+		Assert.assertFalse(tokenizer.next());
+	}
+
+	@Test
+	public void testStartsWith() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer("S00,BidCoS-over-LAN".getBytes());
+		tokenizer.skip(2);
+		Assert.assertTrue(tokenizer.startsWith("BidCoS-over-LAN"));
+		Assert.assertFalse(tokenizer.startsWith("BidCoS-over-LANX"));
+	}
+
+	@Test(expectedExceptions = NumberFormatException.class)
+	public void testInvalidHex() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer("E12G4".getBytes());
+		tokenizer.next();
+		tokenizer.hexInt();
+	}
+
+	@Test(expectedExceptions = NumberFormatException.class)
+	public void testEmptyHex() {
+		final LANFrameTokenizer tokenizer = new LANFrameTokenizer("E,1".getBytes());
+		tokenizer.next();
+		tokenizer.hexInt();
+	}
+
+	@Test
+	public void testConvertMatchesLegacy() {
+		// Same frames as in TestPacket
+		final String[] frames = new String[] {
+				"E3322A4,0000,00046B7D,FF,FFDB,4594413322A43322A40101C8",
+				"E3322A4,0000,0005201A,FF,FFDF,4994413322A43322A4010201"
+		};
+		for (String frame : frames) {
+			final byte[] bidCos = PacketUtil.convertLANPacketToBidCos(frame.getBytes());
+			Assert.assertNotNull(bidCos);
+
+			final String payload = frame.substring(frame.lastIndexOf(',') + 1);
+			Assert.assertEquals(Util.toHex(bidCos), Util.toHex(payload.length() / 2) + payload);
+		}
+	}
+
+}
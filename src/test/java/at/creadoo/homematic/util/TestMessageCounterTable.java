@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 crea-doo.at
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package at.creadoo.homematic.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestMessageCounterTable {
+
+	private static final Logger log = Logger.getLogger(TestMessageCounterTable.class);
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		log.debug("\n");
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception {
+		log.debug("\n\n");
+	}
+
+	@Test
+	public void testNext() {
+		final MessageCounterTable table = new MessageCounterTable();
+		Assert.assertEquals(table.get(0x3322A4), -1);
+		for (int i = 0; i < 256; i++) {
+			Assert.assertEquals(table.next(0x3322A4), i);
+		}
+		// Wraps at 255
+		Assert.assertEquals(table.next(0x3322A4), 0);
+		Assert.assertEquals(table.get(0x3322A4), 0);
+
+		// Separate counter per address, address 0 included
+		Assert.assertEquals(table.next(0x000000), 0);
+		Assert.assertEquals(table.next(0xFFFFFF), 0);
+		Assert.assertEquals(table.next(0xFFFFFF), 1);
+		Assert.assertEquals(table.size(), 3);
+	}
+
+	@Test
+	public void testRelease() {
+		final MessageCounterTable table = new MessageCounterTable();
+		Assert.assertFalse(table.release(0x3322A4, 0));
+
+		final int first = table.next(0x3322A4);
+		final int second = table.next(0x3322A4);
+		// Another counter was handed out after the first one
+		Assert.assertFalse(table.release(0x3322A4, first));
+		Assert.assertTrue(table.release(0x3322A4, second));
+		Assert.assertEquals(table.next(0x3322A4), second);
+
+		// Rolls back over the wrap
+		final MessageCounterTable other = new MessageCounterTable();
+		Assert.assertTrue(other.release(0x1, other.next(0x1)));
+		Assert.assertEquals(other.get(0x1), 255);
+		Assert.assertEquals(other.next(0x1), 0);
+	}
+
+	@Test
+	public void testGrow() {
+		final MessageCounterTable table = new MessageCounterTable();
+		for (int address = 0; address < 10000; address++) {
+			Assert.assertEquals(table.next(address * 7), 0);
+		}
+		for (int address = 0; address < 10000; address++) {
+			Assert.assertEquals(table.next(address * 7), 1);
+		}
+		Assert.assertEquals(table.size(), 10000);
+		Assert.assertEquals(table.get(1), -1);
+	}
+
+	@Test
+	public void testConcurrentNext() throws Exception {
+		final int threads = 8;
+		final int addresses = 1000;
+		// Multiple of 256, each counter is handed out equally often per address
+		final int rounds = 512;
+		final MessageCounterTable table = new MessageCounterTable(1);
+		final AtomicIntegerArray counts = new AtomicIntegerArray(addresses * 256);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int round = 0; round < rounds / threads * addresses; round++) {
+							// The threads grow the table while they insert
+							final int address = (round + offset * 97) % addresses;
+							counts.incrementAndGet(address * 256 + table.next(address));
+						}
+					} catch (Throwable ex) {
+						failure.set(ex);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "TestMessageCounterTable-" + t).start();
+		}
+		start.countDown();
+		done.await();
+
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(table.size(), addresses);
+		for (int i = 0; i < counts.length(); i++) {
+			Assert.assertEquals(counts.get(i), rounds / 256, "Address " + (i / 256) + ", counter " + (i % 256));
+		}
+	}
+
+	@Test
+	public void testConcurrentRelease() throws Exception {
+		final int threads = 4;
+		final int sends = 10000;
+		final MessageCounterTable table = new MessageCounterTable();
+		final AtomicIntegerArray sent = new AtomicIntegerArray(256);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < sends; i++) {
+							final int counter = table.next(0x3322A4);
+							// Every other send fails and takes its counter back
+							if ((i & 1) == 0 || !table.release(0x3322A4, counter)) {
+								sent.incrementAndGet(counter);
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+
+		// A counter is only handed out again after it was taken back, so
+		// the sent counters are 0, 1, 2, ... up to the current one
+		int total = 0;
+		for (int i = 0; i < 256; i++) {
+			total += sent.get(i);
+		}
+		final int last = table.get(0x3322A4);
+		Assert.assertEquals((total - 1) & 0xFF, last);
+		for (int i = 0; i < 256; i++) {
+			final int expected = total / 256 + (i < total % 256 ? 1 : 0);
+			Assert.assertEquals(sent.get(i), expected, "Counter " + i);
+		}
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package at.creadoo.homematic.util;
 
+import java.nio.ByteBuffer;
+
 import org.apache.log4j.Logger;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
@@ -74,4 +76,79 @@ public class TestUtil {
 	public void testByteToHex2() {
 		Assert.assertEquals(Util.toIntFromHex("3C1E0F0"), 63037680);
 	}
+	
+	@Test
+	public void testHexRoundTrip() {
+		final byte[] data = new byte[256];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		final String hex = Util.toHex(data);
+		Assert.assertEquals(hex.substring(0, 8), "00010203");
+		Assert.assertEquals(hex.substring(hex.length() - 4), "FEFF");
+		Assert.assertEquals(Util.toByteFromHex(hex), data);
+		Assert.assertEquals(Util.toByteFromHex(hex.toLowerCase()), data);
+		Assert.assertEquals(Util.toByteFromHex(hex.getBytes()), data);
+		Assert.assertEquals(Util.toHex(new byte[] {0x0A, (byte) 0xFF}, true), "0A FF ");
+	}
+	
+	@Test
+	public void testHexNumbers() {
+		Assert.assertEquals(Util.toHex((byte) 0x0A), "0A");
+		Assert.assertEquals(Util.toHex((byte) -1), "FF");
+		Assert.assertEquals(Util.toHex(0x5), "05");
+		Assert.assertEquals(Util.toHex(0x3322A4), "3322A4");
+		Assert.assertEquals(Util.toHex(-1), "FFFFFFFF");
+		Assert.assertEquals(Util.toHex(0L), "00");
+		Assert.assertEquals(Util.toHex(0x123456789AL), "123456789A");
+		Assert.assertEquals(Util.toHex(-1L), "FFFFFFFFFFFFFFFF");
+	}
+	
+	@Test
+	public void testHexIntoTarget() {
+		final byte[] data = Util.toByteFromHex("3C1E0F07");
+		
+		final char[] chars = new char[10];
+		Assert.assertEquals(Util.toHex(data, 1, 2, chars, 1), 4);
+		Assert.assertEquals(new String(chars, 1, 4), "1E0F");
+		
+		final byte[] ascii = new byte[8];
+		Assert.assertEquals(Util.toHex(data, 0, 4, ascii, 0), 8);
+		Assert.assertEquals(new String(ascii), "3C1E0F07");
+		
+		final ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.put((byte) 'V');
+		Assert.assertEquals(Util.toHex(data, 0, 4, buffer), 8);
+		Assert.assertEquals(buffer.position(), 9);
+		Assert.assertEquals(new String(buffer.array(), 0, 9), "V3C1E0F07");
+		
+		final ByteBuffer direct = ByteBuffer.allocateDirect(4);
+		Assert.assertEquals(Util.toByteFromHex("3c1e0f07", direct), 4);
+		direct.flip();
+		final byte[] decoded = new byte[4];
+		direct.get(decoded);
+		Assert.assertEquals(decoded, data);
+		
+		final byte[] target = new byte[3];
+		Assert.assertEquals(Util.toByteFromHex("V1E0F".getBytes(), 1, 4, target, 1), 2);
+		Assert.assertEquals(target, new byte[] {0x00, 0x1E, 0x0F});
+	}
+	
+	@Test
+	public void testHexInvalid() {
+		Assert.assertFalse(Util.isHex(""));
+		Assert.assertFalse(Util.isHex(null));
+		Assert.assertEquals(Util.hexValue('g'), -1);
+		Assert.assertEquals(Util.hexValue(0x100 + 'A'), -1);
+		
+		final String[] invalid = new String[] {"3C1", "3C1G", "3C 1E", "\u00C4A"};
+		for (String data : invalid) {
+			try {
+				Util.toByteFromHex(data);
+				Assert.fail("No exception for " + data);
+			} catch (NumberFormatException ex) {
+				log.debug("Expected: " + ex.getMessage());
+			}
+		}
+	}
 }